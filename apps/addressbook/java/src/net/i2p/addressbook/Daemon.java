@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -145,6 +146,9 @@ public class Daemon {
             }
             int old = 0, nnew = 0, invalid = 0, conflict = 0, total = 0;
             int deleted = 0;
+            // new entries without actions, imported in one batch
+            Map<String, Destination> pendingDests = new LinkedHashMap<String, Destination>();
+            Map<String, Properties> pendingProps = new HashMap<String, Properties>();
             for (Map.Entry<String, HostTxtEntry> entry : addressbook) {
                 total++;
                 // may be null for 'remove' entries
@@ -163,13 +167,16 @@ public class Daemon {
                     isKnown = key != null ? knownNames.contains(key) : null;
                 } else {
                     oldDest = key != null ? router.lookup(key) : null;
-                    isKnown = oldDest != null;
+                    isKnown = oldDest != null || (key != null && pendingDests.containsKey(key));
                 }
                 try {
                     HostTxtEntry he = entry.getValue();
                     Properties hprops = he.getProps();
                     boolean mustValidate = MUST_VALIDATE || hprops != null;
                     String action = hprops != null ? hprops.getProperty(HostTxtEntry.PROP_ACTION) : null;
+                    // actions look up other entries, which may be pending
+                    if (action != null)
+                        importPending(router, pendingDests, pendingProps, log, addressbook);
                     if (key == null && !he.hasValidRemoveSig()) {
                         if (log != null) {
                             log.append("Bad signature of action " + action + " for key " +
@@ -453,18 +460,19 @@ public class Daemon {
                                     continue;
                                 }
                             } // action != null
-                            boolean success = router.put(key, dest, props);
-                            if (log != null) {
-                                if (success)
-                                    log.append("New address " + key +
-                                               " added to address book. From: " + addressbook.getLocation());
-                                else
-                                    log.append("Save to naming service " + router + " failed for new key " + key);
+                            if (action == null) {
+                                // imported and logged in importPending()
+                                pendingDests.put(key, dest);
+                                pendingProps.put(key, props);
+                            } else {
+                                boolean success = router.put(key, dest, props);
+                                logPut(log, router, key, success, addressbook);
                             }
                             // now update the published addressbook
                             if (published != null) {
                                 if (publishedNS == null)
                                     publishedNS = new SingleFileNamingService(I2PAppContext.getGlobalContext(), published.getAbsolutePath());
+                                boolean success;
                                 if (allowExistingKeyInPublished)
                                     success = publishedNS.put(key, dest, props);
                                 else
@@ -641,6 +649,7 @@ public class Daemon {
                     invalid++;
                 }
             }
+            importPending(router, pendingDests, pendingProps, log, addressbook);
             if (DEBUG && log != null && total > 0) {
                 log.append("Merge of " + addressbook.getLocation() + " into " + router +
                            " took " + (System.currentTimeMillis() - start) + " ms with " +
@@ -656,6 +665,35 @@ public class Daemon {
         subscriptions.write();
     }
 
+    /**
+     *  Add the pending new entries with one importAll(), log the results, and clear them.
+     *
+     *  @param log may be null
+     *  @since 0.9.28
+     */
+    private static void importPending(NamingService router, Map<String, Destination> dests,
+                                      Map<String, Properties> props, Log log, AddressBook addressbook) {
+        if (dests.isEmpty())
+            return;
+        Set<String> added = router.importAll(dests, props);
+        for (String key : dests.keySet()) {
+            logPut(log, router, key, added.contains(key), addressbook);
+        }
+        dests.clear();
+        props.clear();
+    }
+
+    /** @since 0.9.28 */
+    private static void logPut(Log log, NamingService router, String key, boolean success, AddressBook addressbook) {
+        if (log != null) {
+            if (success)
+                log.append("New address " + key +
+                           " added to address book. From: " + addressbook.getLocation());
+            else
+                log.append("Save to naming service " + router + " failed for new key " + key);
+        }
+    }
+
     /** @since 0.9.26 */
     private static void logInner(Log log, String action, String name, AddressBook addressbook) {
         if (log != null) {
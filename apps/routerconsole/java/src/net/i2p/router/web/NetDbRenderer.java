@@ -36,6 +36,7 @@ import net.i2p.router.RouterContext;
 import net.i2p.router.TunnelPoolSettings;
 import net.i2p.router.util.HashDistance;   // debug
 import net.i2p.router.networkdb.kademlia.FloodfillNetworkDatabaseFacade;
+import net.i2p.router.networkdb.RouterInfoMemoryUsage;
 import net.i2p.util.Log;
 import net.i2p.util.ObjectCounter;
 import net.i2p.util.Translate;
@@ -478,6 +479,25 @@ class NetDbRenderer {
             }
         }
         buf.append("</table>\n");
+
+        // memory table
+        RouterInfoMemoryUsage mem = _context.netDb().getRouterInfoMemoryUsage();
+        if (mem != null && mem.getCount() > 0) {
+            buf.append("<br><table>\n");
+            buf.append("<tr><th align=\"left\">" + _t("Memory") + "</th><th>" + _t("Count") + "</th></tr>\n");
+            buf.append("<tr><td>").append(_t("Router Infos")).append("</td><td align=\"center\">").append(mem.getCount()).append("</td></tr>\n");
+            if (mem.getCompactCount() > 0) {
+                buf.append("<tr><td>").append(_t("Compact")).append("</td><td align=\"center\">").append(mem.getCompactCount()).append("</td></tr>\n");
+                buf.append("<tr><td>").append(_t("Cached")).append("</td><td align=\"center\">").append(mem.getCachedCount()).append("</td></tr>\n");
+                long lookups = mem.getCacheHits() + mem.getCacheMisses();
+                if (lookups > 0)
+                    buf.append("<tr><td>").append(_t("Cache hit rate")).append("</td><td align=\"center\">")
+                       .append(mem.getCacheHits() * 100 / lookups).append("%</td></tr>\n");
+            }
+            buf.append("<tr><td>").append(_t("Estimated heap")).append("</td><td align=\"center\">")
+               .append(DataHelper.formatSize2(mem.getHeapSize())).append("B</td></tr>\n");
+            buf.append("</table>\n");
+        }
         buf.append("</td><td style=\"vertical-align: top;\">");
         out.write(buf.toString());
         buf.setLength(0);
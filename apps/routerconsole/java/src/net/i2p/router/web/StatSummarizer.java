@@ -245,6 +245,13 @@ public class StatSummarizer implements Runnable {
         return true;
     }
 
+    /**
+     *  Export the graph data for viewstat.jsp?format=xml, as RRD XML.
+     *  As of 0.9.28, non-persistent graphs are not RRDs,
+     *  but are exported in the same format.
+     *
+     *  @return false if no graph for the rate
+     */
     public boolean getXML(Rate rate, OutputStream out) throws IOException {
         try {
             try {
@@ -259,7 +266,7 @@ public class StatSummarizer implements Runnable {
     private boolean locked_getXML(Rate rate, OutputStream out) throws IOException {
         for (SummaryListener lsnr : _listeners) {
             if (lsnr.getRate().equals(rate)) {
-                lsnr.getData().exportXml(out);
+                lsnr.exportXml(out);
                 out.write(DataHelper.getUTF8("<!-- Rate: " + lsnr.getRate().getRateStat().getName() + " for period " + lsnr.getRate().getPeriod() + " -->\n"));
                 out.write(DataHelper.getUTF8("<!-- Average data source name: " + lsnr.getName() + " event count data source name: " + lsnr.getEventName() + " -->\n"));
                 return true;
@@ -7,6 +7,7 @@ import java.io.OutputStream;
 import net.i2p.I2PAppContext;
 import net.i2p.data.DataHelper;
 import net.i2p.stat.Rate;
+import net.i2p.stat.RateHistory;
 import net.i2p.stat.RateStat;
 import net.i2p.stat.RateSummaryListener;
 import net.i2p.util.Log;
@@ -26,10 +27,15 @@ import org.jrobin.core.Sample;
  *  Creates and updates the in-memory or on-disk RRD database,
  *  and provides methods to generate graphs of the data
  *
+ *  As of 0.9.28, when not persistent, the data is kept in a RateHistory
+ *  ring buffer instead of an RrdDb with a memory backend.
+ *
  *  @since 0.6.1.13
  */
 class SummaryListener implements RateSummaryListener {
     static final String PROP_PERSISTENT = "routerconsole.graphPersistent";
+    /** keep the non-persistent history outside the heap @since 0.9.28 */
+    static final String PROP_OFF_HEAP = "routerconsole.graphOffHeap";
     /** note that .jrb files are NOT compatible with .rrd files */
     static final String RRD_DIR = "rrd";
     private static final String RRD_PREFIX = "rrd-";
@@ -46,6 +52,8 @@ class SummaryListener implements RateSummaryListener {
     private String _eventName;
     private RrdDb _db;
     private Sample _sample;
+    /** instead of _db if not persistent, @since 0.9.28 */
+    private volatile RateHistory _history;
     private SummaryRenderer _renderer;
     private int _rows;
     
@@ -65,7 +73,11 @@ class SummaryListener implements RateSummaryListener {
         long now = now();
         long when = now / 1000;
         //System.out.println("add to " + getRate().getRateStat().getName() + " on " + System.currentTimeMillis() + " / " + now + " / " + when);
-        if (_db != null) {
+        RateHistory history = _history;
+        if (history != null) {
+            double val = eventCount > 0 ? (totalValue / eventCount) : 0d;
+            history.add(now, val, eventCount);
+        } else if (_db != null) {
             // add one value to the db (the average value for the period)
             try {
                 _sample.setTime(when);
@@ -118,46 +130,42 @@ class SummaryListener implements RateSummaryListener {
         String baseName = rs.getName() + "." + period;
         _name = createName(_context, baseName);
         _eventName = createName(_context, baseName + ".events");
+        if (!_isPersistent) {
+            _rows = MIN_ROWS;
+            _history = new RateHistory(period, _rows, _context.getBooleanProperty(PROP_OFF_HEAP));
+            _renderer = new SummaryRenderer(_context, this);
+            _rate.setSummaryListener(this);
+            if (_log.shouldLog(Log.INFO))
+                _log.info("New history " + baseName + " with " + _rows + " rows consuming " + _history.getSize() + " bytes");
+            return true;
+        }
         File rrdFile = null;
         try {
             RrdBackendFactory factory = RrdBackendFactory.getFactory(getBackendName());
-            String rrdDefName;
-            if (_isPersistent) {
-                // generate full path for persistent RRD files
-                File rrdDir = new SecureFile(_context.getRouterDir(), RRD_DIR);
-                rrdFile = new File(rrdDir, RRD_PREFIX + _name + RRD_SUFFIX);
-                rrdDefName = rrdFile.getAbsolutePath();
-                if (rrdFile.exists()) {
-                    _db = new RrdDb(rrdDefName, factory);
-                    Archive arch = _db.getArchive(CF, STEPS);
-                    if (arch == null)
-                        throw new IOException("No average CF in " + rrdDefName);
-                    _rows = arch.getRows();
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("Existing RRD " + baseName + " (" + rrdDefName + ") with " + _rows + " rows consuming " + _db.getRrdBackend().getLength() + " bytes");
-                } else {
-                    rrdDir.mkdir();
-                }
+            // generate full path for persistent RRD files
+            File rrdDir = new SecureFile(_context.getRouterDir(), RRD_DIR);
+            rrdFile = new File(rrdDir, RRD_PREFIX + _name + RRD_SUFFIX);
+            String rrdDefName = rrdFile.getAbsolutePath();
+            if (rrdFile.exists()) {
+                _db = new RrdDb(rrdDefName, factory);
+                Archive arch = _db.getArchive(CF, STEPS);
+                if (arch == null)
+                    throw new IOException("No average CF in " + rrdDefName);
+                _rows = arch.getRows();
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Existing RRD " + baseName + " (" + rrdDefName + ") with " + _rows + " rows consuming " + _db.getRrdBackend().getLength() + " bytes");
             } else {
-                rrdDefName = _name;
-            }
-            if (_db == null) {
-                // not persistent or not previously existing
+                rrdDir.mkdir();
                 RrdDef def = new RrdDef(rrdDefName, now()/1000, period/1000);
                 // for info on the heartbeat, xff, steps, etc, see the rrdcreate man page, aka
                 // http://www.jrobin.org/support/man/rrdcreate.html
                 long heartbeat = period*10/1000;
                 def.addDatasource(_name, "GAUGE", heartbeat, Double.NaN, Double.NaN);
                 def.addDatasource(_eventName, "GAUGE", heartbeat, 0, Double.NaN);
-                if (_isPersistent) {
-                    _rows = (int) Math.max(MIN_ROWS, Math.min(MAX_ROWS, THREE_MONTHS / period));
-                } else {
-                    _rows = MIN_ROWS;
-                }
+                _rows = (int) Math.max(MIN_ROWS, Math.min(MAX_ROWS, THREE_MONTHS / period));
                 def.addArchive(CF, XFF, STEPS, _rows);
                 _db = new RrdDb(def, factory);
-                if (_isPersistent)
-                    SecureFileOutputStream.setPerms(new File(rrdDefName));
+                SecureFileOutputStream.setPerms(rrdFile);
                 if (_log.shouldLog(Log.INFO))
                     _log.info("New RRD " + baseName + " (" + rrdDefName + ") with " + _rows + " rows consuming " + _db.getRrdBackend().getLength() + " bytes");
             }
@@ -170,7 +178,7 @@ class SummaryListener implements RateSummaryListener {
         } catch (RrdException re) {
             _log.error("Error starting RRD for stat " + baseName, re);
             // corrupt file?
-            if (_isPersistent && rrdFile != null)
+            if (rrdFile != null)
                 rrdFile.delete();
         } catch (IOException ioe) {
             _log.error("Error starting RRD for stat " + baseName, ioe);
@@ -181,6 +189,11 @@ class SummaryListener implements RateSummaryListener {
     }
 
     public void stopListening() {
+        if (_history != null) {
+            _rate.setSummaryListener(null);
+            _history = null;
+            return;
+        }
         if (_db == null) return;
         try {
             _db.close();
@@ -219,14 +232,14 @@ class SummaryListener implements RateSummaryListener {
     public void renderPng(OutputStream out, int width, int height, boolean hideLegend, boolean hideGrid,
                           boolean hideTitle, boolean showEvents, int periodCount,
                           int end, boolean showCredit, SummaryListener lsnr2, String titleOverride) throws IOException {
-        if (_renderer == null || _db == null)
+        if (_renderer == null || (_db == null && _history == null))
             throw new IOException("No RRD, check logs for previous errors");
         _renderer.render(out, width, height, hideLegend, hideGrid, hideTitle, showEvents, periodCount,
                          end, showCredit, lsnr2, titleOverride); 
     }
 
     public void renderPng(OutputStream out) throws IOException {
-        if (_renderer == null || _db == null)
+        if (_renderer == null || (_db == null && _history == null))
             throw new IOException("No RRD, check logs for previous errors");
         _renderer.render(out);
     }
@@ -235,8 +248,78 @@ class SummaryListener implements RateSummaryListener {
 
     String getEventName() { return _eventName; }
 
+    /** null if not persistent */
     RrdDb getData() { return _db; }
 
+    /**
+     *  @return null if persistent
+     *  @since 0.9.28
+     */
+    RateHistory getHistory() { return _history; }
+
+    /**
+     *  The RRD's XML. For a history, the same XML as the memory RRD we used before.
+     *  @since 0.9.28 moved from StatSummarizer
+     */
+    void exportXml(OutputStream out) throws IOException {
+        RateHistory history = _history;
+        if (history != null) {
+            exportXml(history, out);
+        } else if (_db != null) {
+            _db.exportXml(out);
+        } else {
+            throw new IOException("No RRD, check logs for previous errors");
+        }
+    }
+
+    /**
+     *  Copy the history into a temporary memory RRD, defined as before 0.9.28,
+     *  and export that, so the XML format is unchanged.
+     *  @since 0.9.28
+     */
+    private void exportXml(RateHistory history, OutputStream out) throws IOException {
+        long period = history.getPeriod();
+        int rows = history.getRows();
+        long last = history.getLastTime();
+        long first = last > 0 ? last - ((rows - 1) * period) : now();
+        RrdDb db = null;
+        try {
+            RrdDef def = new RrdDef(_name, (first - period) / 1000, period / 1000);
+            long heartbeat = period*10/1000;
+            def.addDatasource(_name, "GAUGE", heartbeat, Double.NaN, Double.NaN);
+            def.addDatasource(_eventName, "GAUGE", heartbeat, 0, Double.NaN);
+            def.addArchive(CF, XFF, STEPS, rows);
+            db = new RrdDb(def, RrdBackendFactory.getFactory(RrdMemoryBackendFactory.NAME));
+            if (last > 0) {
+                Sample sample = db.createSample();
+                for (long t = first; t <= last; t += period) {
+                    double val = history.getAverageValue(t);
+                    if (Double.isNaN(val))
+                        continue;
+                    sample.setTime(t / 1000);
+                    sample.setValue(_name, val);
+                    sample.setValue(_eventName, history.getEventCount(t));
+                    sample.update();
+                }
+            }
+            db.exportXml(out);
+        } catch (RrdException re) {
+            IOException ioe = new IOException("Error exporting history");
+            ioe.initCause(re);
+            throw ioe;
+        } finally {
+            if (db != null) {
+                try {
+                    db.close();
+                } catch (IOException ioe) {}
+                // close() does not release resources for memory backend
+                try {
+                    ((RrdMemoryBackendFactory)RrdBackendFactory.getFactory(RrdMemoryBackendFactory.NAME)).delete(db.getPath());
+                } catch (RrdException re) {}
+            }
+        }
+    }
+
     long now() { return _context.clock().now(); }
     
     /** @since 0.8.7 */
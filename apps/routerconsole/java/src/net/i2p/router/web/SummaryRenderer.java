@@ -18,10 +18,12 @@ import net.i2p.I2PAppContext;
 import net.i2p.data.DataHelper;
 import net.i2p.router.RouterContext;
 import net.i2p.router.util.EventLog;
+import net.i2p.stat.RateHistory;
 import net.i2p.util.Log;
 import net.i2p.util.SystemVersion;
 
 import org.jrobin.core.RrdException;
+import org.jrobin.data.Plottable;
 import org.jrobin.graph.RrdGraph;
 import org.jrobin.graph.RrdGraphDef;
 
@@ -160,8 +162,10 @@ class SummaryRenderer {
                     title = name + ' ' + _t("averaged for {0}", p);
                 def.setTitle(title);
             }
-            String path = _listener.getData().getPath();
-            String dsNames[] = _listener.getData().getDsNames();
+            RateHistory history = _listener.getHistory();
+            String path = history == null ? _listener.getData().getPath() : null;
+            String dsNames[] = history == null ? _listener.getData().getDsNames()
+                                               : new String[] { _listener.getName(), _listener.getEventName() };
             String plotName = null;
             String descr = null;
             if (showEvents) {
@@ -182,7 +186,10 @@ class SummaryRenderer {
             //if (started > start && started < end)
             //    def.vrule(started / 1000, RESTART_BAR_COLOR, _t("Restart"), 4.0f);
 
-            def.datasource(plotName, path, plotName, SummaryListener.CF, _listener.getBackendName());
+            if (history != null)
+                def.datasource(plotName, new HistoryPlottable(history, showEvents));
+            else
+                def.datasource(plotName, path, plotName, SummaryListener.CF, _listener.getBackendName());
             if (descr.length() > 0) {
                 def.area(plotName, Color.BLUE, descr + "\\r");
             } else {
@@ -195,11 +202,17 @@ class SummaryRenderer {
             }
             String plotName2 = null;
             if (lsnr2 != null) {
-                String dsNames2[] = lsnr2.getData().getDsNames();
-                plotName2 = dsNames2[0];
-                String path2 = lsnr2.getData().getPath();
                 String descr2 = _t(lsnr2.getRate().getRateStat().getDescription());
-                def.datasource(plotName2, path2, plotName2, SummaryListener.CF, lsnr2.getBackendName());
+                RateHistory history2 = lsnr2.getHistory();
+                if (history2 != null) {
+                    plotName2 = lsnr2.getName();
+                    def.datasource(plotName2, new HistoryPlottable(history2, false));
+                } else {
+                    String dsNames2[] = lsnr2.getData().getDsNames();
+                    plotName2 = dsNames2[0];
+                    String path2 = lsnr2.getData().getPath();
+                    def.datasource(plotName2, path2, plotName2, SummaryListener.CF, lsnr2.getBackendName());
+                }
                 def.line(plotName2, Color.RED, descr2 + "\\r", 3);
                 if (!hideLegend) {
                     def.gprint(plotName2, SummaryListener.CF, _t("avg") + ": %.2f %s");
@@ -284,6 +297,27 @@ class SummaryRenderer {
         }
     }
 
+    /**
+     *  Values straight from the ring buffer, no RrdDb
+     *  @since 0.9.28
+     */
+    private static class HistoryPlottable extends Plottable {
+        private final RateHistory _history;
+        private final boolean _events;
+
+        public HistoryPlottable(RateHistory history, boolean events) {
+            _history = history;
+            _events = events;
+        }
+
+        /** @param timestamp seconds */
+        @Override
+        public double getValue(long timestamp) {
+            long time = timestamp * 1000;
+            return _events ? _history.getEventCount(time) : _history.getAverageValue(time);
+        }
+    }
+
     private static final boolean IS_WIN = SystemVersion.isWindows();
 
     /** translate a string */
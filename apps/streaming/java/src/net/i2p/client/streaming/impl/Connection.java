@@ -247,6 +247,31 @@ class Connection {
         }
     }
 
+    /**
+     *  @return the number of unacked packets that have been resent
+     *  @since 0.9.28
+     */
+    int getActiveResends() {
+        return _activeResends.get();
+    }
+
+    /**
+     *  How many more packets packetSendChoke() would accept right now,
+     *  without waiting, with the same limits.
+     *
+     *  @return 0 if the window is full
+     *  @since 0.9.28
+     */
+    int getSendWindowAvailable() {
+        synchronized (_outboundPackets) {
+            int wsz = _options.getWindowSize();
+            if (_activeResends.get() >= (wsz + 1) / 2)
+                return 0;
+            long ahead = Math.max(MAX_WINDOW_SIZE, 2 * wsz) - (_lastSendId.get() - _highestAckedThrough);
+            return (int) Math.max(0, Math.min(wsz - _outboundPackets.size(), ahead));
+        }
+    }
+
     /**
      *  Notify all threads waiting in packetSendChoke()
      */
@@ -345,7 +370,38 @@ class Connection {
     
     void sendPacket(PacketLocal packet) {
         if (packet == null) return;
-        
+        prepareSend(packet);
+        if (_outboundQueue.enqueue(packet)) {        
+            _unackedPacketsReceived.set(0);
+            _lastSendTime = _context.clock().now();
+            resetActivityTimer();
+        }        
+    }
+
+    /**
+     *  Send several new data packets together, in one PacketQueue batch.
+     *  See sendPacket().
+     *
+     *  @param packets non-empty, in sequence order
+     *  @since 0.9.28
+     */
+    void sendPackets(List<PacketLocal> packets) {
+        for (PacketLocal packet : packets) {
+            prepareSend(packet);
+        }
+        if (_outboundQueue.enqueue(packets) > 0) {
+            _unackedPacketsReceived.set(0);
+            _lastSendTime = _context.clock().now();
+            resetActivityTimer();
+        }
+    }
+
+    /**
+     *  Set the flags, and schedule the resend unless it's a plain ack.
+     *
+     *  @since 0.9.28 split out of sendPacket()
+     */
+    private void prepareSend(PacketLocal packet) {
         setNextSendTime(-1);
         if (_options.getRequireFullySigned()) {
             packet.setFlag(Packet.FLAG_SIGNATURE_INCLUDED);
@@ -402,12 +458,6 @@ class Connection {
 
         // warning, getStatLog() can be null
         //_context.statManager().getStatLog().addData(Packet.toId(_sendStreamId), "stream.rtt", _options.getRTT(), _options.getWindowSize());
-        
-        if (_outboundQueue.enqueue(packet)) {        
-            _unackedPacketsReceived.set(0);
-            _lastSendTime = _context.clock().now();
-            resetActivityTimer();
-        }        
 
         /*
         if (ackOnly) {
@@ -462,6 +512,7 @@ class Connection {
         }
         
         List<PacketLocal> acked = null;
+        List<PacketLocal> retx = null;
         synchronized (_outboundPackets) {
             if (!_outboundPackets.isEmpty()) {  // short circuit iterator
               for (Iterator<Map.Entry<Long, PacketLocal>> iter = _outboundPackets.entrySet().iterator(); iter.hasNext(); ) {
@@ -476,7 +527,11 @@ class Connection {
                                 nacked = true;
                                 PacketLocal nackedPacket = e.getValue();
                                 // this will do a fast retransmit if appropriate
-                                nackedPacket.incrementNACKs();
+                                if (nackedPacket.incrementNACKs()) {
+                                    if (retx == null)
+                                        retx = new ArrayList<PacketLocal>(nacks.length);
+                                    retx.add(nackedPacket);
+                                }
                                 break; // NACKed
                             }
                         }
@@ -531,6 +586,13 @@ class Connection {
         }
         if ((acked != null) && (!acked.isEmpty()) )
             _ackSinceCongestion.set(true);
+        if (retx != null) {
+            // outside the lock, see ResendPacketEvent.retransmit()
+            if (retx.size() == 1)
+                retx.get(0).getResendEvent().reschedule(0);
+            else
+                _timer.addEvent(new BatchResendEvent(retx), 0);
+        }
         return acked;
     }
 
@@ -1308,6 +1370,15 @@ class Connection {
     class ResendPacketEvent extends SimpleTimer2.TimedEvent {
         private final PacketLocal _packet;
         private long _nextSend;
+        // for batchSent(), set in retransmit()
+        private int _batchSends;
+        private boolean _batchFast;
+        private long _batchTimeout;
+        /**
+         *  Held by the timer or a BatchResendEvent while in retransmit(),
+         *  and by the batch until batchSent(), so only one of them resends the packet
+         */
+        private final AtomicBoolean _retransmitting = new AtomicBoolean();
 
         public ResendPacketEvent(PacketLocal packet, long delay) {
             super(_timer);
@@ -1321,6 +1392,14 @@ class Connection {
 
         public void timeReached() { retransmit(); }
 
+        /**
+         *  Retransmit the packet if we need to.
+         *  @return true if the packet was sent, false if it was not
+         */
+        private boolean retransmit() {
+            return retransmit(null);
+        }
+
         /**
          * Retransmit the packet if we need to.  
          *
@@ -1330,9 +1409,32 @@ class Connection {
          *
          * don't synchronize this, deadlock with ackPackets->ackReceived->SimpleTimer2.cancel
          *
-         * @return true if the packet was sent, false if it was not
+         * @param batch if non-null, don't send the packet, add this event to the batch
+         *              instead, and the caller must send it and then call batchSent()
+         * @return true if the packet was sent or added to the batch, false if it was not
+         *              or if another thread is retransmitting it
          */
-        private boolean retransmit() {
+        private boolean retransmit(List<ResendPacketEvent> batch) {
+            if (!_retransmitting.compareAndSet(false, true))
+                return false;
+            int before = batch != null ? batch.size() : 0;
+            boolean batched = false;
+            try {
+                boolean rv = doRetransmit(batch);
+                // held until batchSent()
+                batched = batch != null && batch.size() > before;
+                return rv;
+            } finally {
+                if (!batched)
+                    _retransmitting.set(false);
+            }
+        }
+
+        /**
+         *  The body of retransmit(), call only while holding _retransmitting
+         *  @since 0.9.28 split out of retransmit()
+         */
+        private boolean doRetransmit(List<ResendPacketEvent> batch) {
             if (_packet.getAckTime() > 0) 
                 return false;
             
@@ -1458,35 +1560,21 @@ class Connection {
                     // set this before enqueue() as it passes it on to the router
                     _nextSend = timeout + _context.clock().now();
 
-                    if (_outboundQueue.enqueue(_packet)) {
-                        // first resend for this packet ?
-                        if (numSends == 2)
-                            _activeResends.incrementAndGet();
-                        if (_log.shouldLog(Log.INFO))
-                            _log.info("Resent packet " +
-                                  (fastRetransmit ? "(fast) " : "(timeout) ") +
-                                  _packet +
-                                  " next resend in " + timeout + "ms" +
-                                  " activeResends: " + _activeResends + 
-                                  " (wsize "
-                                  + newWindowSize + " lifetime " 
-                                  + (_context.clock().now() - _packet.getCreatedOn()) + "ms)");
-                        _unackedPacketsReceived.set(0);
-                        _lastSendTime = _context.clock().now();
-                        // timer reset added 0.9.1
-                        resetActivityTimer();
+                    if (batch != null) {
+                        // the caller sends it, then calls batchSent()
+                        _batchSends = numSends;
+                        _batchFast = fastRetransmit;
+                        _batchTimeout = timeout;
+                        batch.add(this);
+                    } else if (_outboundQueue.enqueue(_packet)) {
+                        resent(numSends, fastRetransmit, timeout);
                     }
 
                     forceReschedule(timeout);
                 }
                 
-                // acked during resending (... or somethin') ????????????
-                if ( (_packet.getAckTime() > 0) && (_packet.getNumSends() > 1) ) {
-                    _activeResends.decrementAndGet();
-                    synchronized (_outboundPackets) {
-                        _outboundPackets.notifyAll();
-                    }
-                }
+                if (batch == null)
+                    checkAcked();
 
                 return true;
             } else {
@@ -1496,5 +1584,105 @@ class Connection {
                 return false;
             }
         }
+
+        /**
+         *  Bookkeeping after the packet was resent
+         *  @since 0.9.28 split out of retransmit()
+         */
+        private void resent(int numSends, boolean fastRetransmit, long timeout) {
+            // first resend for this packet ?
+            if (numSends == 2)
+                _activeResends.incrementAndGet();
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Resent packet " +
+                      (fastRetransmit ? "(fast) " : "(timeout) ") +
+                      _packet +
+                      " next resend in " + timeout + "ms" +
+                      " activeResends: " + _activeResends + 
+                      " (wsize "
+                      + getOptions().getWindowSize() + " lifetime " 
+                      + (_context.clock().now() - _packet.getCreatedOn()) + "ms)");
+            _unackedPacketsReceived.set(0);
+            _lastSendTime = _context.clock().now();
+            // timer reset added 0.9.1
+            resetActivityTimer();
+        }
+
+        /**
+         *  acked during resending (... or somethin') ????????????
+         *  @since 0.9.28 split out of retransmit()
+         */
+        private void checkAcked() {
+            if ( (_packet.getAckTime() > 0) && (_packet.getNumSends() > 1) ) {
+                _activeResends.decrementAndGet();
+                synchronized (_outboundPackets) {
+                    _outboundPackets.notifyAll();
+                }
+            }
+        }
+
+        /**
+         *  Call after the batch containing this event's packet was sent
+         *  by PacketQueue.enqueue(List).
+         *  The queue increments the send count of each packet it sends.
+         *  @since 0.9.28
+         */
+        void batchSent() {
+            try {
+                if (_packet.getNumSends() >= _batchSends)
+                    resent(_batchSends, _batchFast, _batchTimeout);
+                checkAcked();
+            } finally {
+                _retransmitting.set(false);
+            }
+        }
+    }
+
+    /**
+     *  Fast retransmit of several packets nacked in the same ack,
+     *  sent together through PacketQueue.enqueue(List).
+     *
+     *  @since 0.9.28
+     */
+    private class BatchResendEvent implements SimpleTimer.TimedEvent {
+        private final List<PacketLocal> _packets;
+        /** send count of each packet when nacked */
+        private final int[] _sends;
+
+        /** @param packets in sequence order, with non-null resend events */
+        public BatchResendEvent(List<PacketLocal> packets) {
+            _packets = packets;
+            _sends = new int[packets.size()];
+            for (int i = 0; i < _sends.length; i++) {
+                _sends[i] = packets.get(i).getNumSends();
+            }
+        }
+
+        public void timeReached() {
+            List<ResendPacketEvent> batch = new ArrayList<ResendPacketEvent>(_packets.size());
+            for (int i = 0; i < _sends.length; i++) {
+                PacketLocal packet = _packets.get(i);
+                // its own timer already resent it
+                if (packet.getNumSends() != _sends[i])
+                    continue;
+                ResendPacketEvent evt = (ResendPacketEvent) packet.getResendEvent();
+                // if its own timer is resending it right now, leave it to the timer
+                evt.retransmit(batch);
+            }
+            if (batch.isEmpty())
+                return;
+            List<PacketLocal> toSend = new ArrayList<PacketLocal>(batch.size());
+            for (ResendPacketEvent evt : batch) {
+                toSend.add(evt._packet);
+            }
+            try {
+                _outboundQueue.enqueue(toSend);
+            } finally {
+                // releases each event for its own timer
+                for (ResendPacketEvent evt : batch) {
+                    evt.batchSent();
+                }
+            }
+        }
     }
 }
@@ -1,5 +1,8 @@
 package net.i2p.client.streaming.impl;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import net.i2p.I2PAppContext;
 import net.i2p.data.ByteArray;
 import net.i2p.util.Log;
@@ -107,6 +110,46 @@ class ConnectionDataReceiver implements MessageOutputStream.DataReceiver {
     }
     
     
+    /**
+     * How many full data packets may be handed to writeData(buf, off, size, packetSize)
+     * at once, i.e. how many the outbound window will take without waiting.
+     * The SYN is always sent by itself, and so is anything after the close.
+     *
+     * @return 0 or 1 to send one at a time
+     * @since 0.9.28
+     */
+    public int getBatchSize() {
+        Connection con = _connection;
+        if (con.getAckedPackets() <= 0 && con.getUnackedPacketsSent() <= 0)
+            return 1;
+        if (con.getOutputStream().getClosed())
+            return 1;
+        return con.getSendWindowAvailable();
+    }
+
+    /**
+     * Send data that fills several packets. They are all built first,
+     * then sent together in one PacketQueue batch.
+     * Call only with a size from getBatchSize().
+     *
+     * This is called from MessageOutputStream, i.e. data from the client.
+     *
+     * @param buf data to be sent
+     * @param off offset into the buffer to start writing from
+     * @param size total bytes, more than packetSize
+     * @param packetSize bytes per packet, the last one may be smaller
+     * @return the status of the last packet
+     * @since 0.9.28
+     */
+    public MessageOutputStream.WriteStatus writeData(byte[] buf, int off, int size, int packetSize) {
+        List<PacketLocal> packets = new ArrayList<PacketLocal>((size + packetSize - 1) / packetSize);
+        for (int done = 0; done < size; done += packetSize) {
+            packets.add(buildPacket(buf, off + done, Math.min(packetSize, size - done), false));
+        }
+        _connection.sendPackets(packets);
+        return packets.get(packets.size() - 1);
+    }
+    
     /**
      * Send some data through the connection, attaching any appropriate flags
      * onto the packet.
@@ -109,6 +109,7 @@ class MessageOutputStream extends OutputStream {
         long begin = _context.clock().now();
         while (remaining > 0) {
             WriteStatus ws = null;
+            int batch;
             if (_closed.get()) throw new IOException("closed underneath us");
             // we do any waiting outside the synchronized() block because we
             // want to allow other threads to flushAvailable() whenever they want.  
@@ -127,6 +128,20 @@ class MessageOutputStream extends OutputStream {
                     if (_passiveFlushDelay > 0) {
                         _flusher.enqueue();
                     }
+                } else if (_valid == 0 && remaining >= 2 * _buf.length &&
+                           (batch = Math.min(remaining / _buf.length, _dataReceiver.getBatchSize())) > 1) {
+                    // several full packets straight from b,
+                    // as many as the window will take, sent together
+                    int toWrite = batch * _buf.length;
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("write() batch of " + batch + " packets");
+                    ws = _dataReceiver.writeData(b, cur, toWrite, _buf.length);
+                    remaining -= toWrite;
+                    cur += toWrite;
+                    _written += toWrite;
+                    throwAnyError();
+
+                    locked_updateBufferSize();
                 } else {
                     // buffer whatever we can fit then flush,
                     // repeating until we've pushed all of the
@@ -538,6 +553,24 @@ class MessageOutputStream extends OutputStream {
          */
         public WriteStatus writeData(byte buf[], int off, int size);
         public boolean writeInProcess();
+
+        /**
+         * How many full packets may be given to writeData(buf, off, size, packetSize) now
+         *
+         * @return 0 or 1 to send one at a time
+         * @since 0.9.28
+         */
+        public int getBatchSize();
+
+        /**
+         * Nonblocking write of several packets, sent together
+         *
+         * @param size total bytes, more than packetSize
+         * @param packetSize bytes per packet
+         * @return the status of the last packet
+         * @since 0.9.28
+         */
+        public WriteStatus writeData(byte buf[], int off, int size, int packetSize);
     }
     
     /** Define a way to detect the status of a write */
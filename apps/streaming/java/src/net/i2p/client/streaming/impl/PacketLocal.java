@@ -178,14 +178,18 @@ class PacketLocal extends Packet implements MessageOutputStream.WriteStatus {
     /**
      *  Will force a fast restransmit on the 3rd call (FAST_RETRANSMIT_THRESHOLD)
      *  but only if it's the lowest unacked (see Connection.ResendPacketEvent)
+     *
+     *  As of 0.9.28, the caller does the retransmit, so that several packets
+     *  nacked in the same ack may be resent together.
+     *
+     *  @return true if a fast retransmit is due
      */
-    public void incrementNACKs() { 
+    public boolean incrementNACKs() { 
         final int cnt = _nackCount.incrementAndGet();
         SimpleTimer2.TimedEvent evt = _resendEvent;
         if (cnt >= Connection.FAST_RETRANSMIT_THRESHOLD && evt != null && (!_retransmitted) &&
             (_numSends.get() == 1 || _lastSend < _context.clock().now() - 4*1000)) {  // Don't fast retx if we recently resent it
             _retransmitted = true;
-            evt.reschedule(0);
             // the predicate used to be '+', changing to '-' --zab
             
             if (_log.shouldLog(Log.DEBUG)) {
@@ -194,12 +198,14 @@ class PacketLocal extends Packet implements MessageOutputStream.WriteStatus {
                     toString(), cnt, _retransmitted, _numSends.get(), _lastSend, _context.clock().now());
                     _log.debug(log);
             }
+            return true;
         } else if (_log.shouldLog(Log.DEBUG)) {
             final String log = String.format("%s nack but no retransmit.  Criteria: nacks=%d, retransmitted=%b,"+
                     " numSends=%d, lastSend=%d, now=%d",
                     toString(), cnt, _retransmitted, _numSends.get(), _lastSend, _context.clock().now());
                     _log.debug(log);
         }
+        return false;
     }
     public int getNACKs() { return _nackCount.get(); }
     
@@ -3,6 +3,7 @@ package net.i2p.client.streaming.impl;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -72,6 +73,50 @@ class PacketQueue implements SendMessageStatusListener, Closeable {
     public boolean enqueue(PacketLocal packet) {
         if (_dead)
             return false;
+        ByteArray ba = _cache.acquire();
+        boolean sent = send(packet, ba.getData());
+        _cache.release(ba);
+        return sent;
+    }
+
+    /**
+     * Send several packets for the same connection back-to-back,
+     * using a single buffer, so that they reach the I2CP writer together
+     * and it is woken and flushed once for the whole batch.
+     * Packets already acked are skipped.
+     * Stops at the first failure, as that disconnects the connection.
+     *
+     * @param packets all for the same connection, in send order
+     * @return the number of packets sent
+     * @since 0.9.28
+     */
+    public int enqueue(List<PacketLocal> packets) {
+        if (_dead)
+            return 0;
+        ByteArray ba = _cache.acquire();
+        byte buf[] = ba.getData();
+        int sent = 0;
+        for (PacketLocal packet : packets) {
+            if (send(packet, buf))
+                sent++;
+            else if (packet.getAckTime() <= 0)
+                break;
+            if (_dead)
+                break;
+        }
+        _cache.release(ba);
+        _context.statManager().addRateData("stream.con.packetsPerBatch", sent);
+        return sent;
+    }
+
+    /**
+     * Write the packet into buf and send it through the session.
+     *
+     * @param buf at least 36KB, caller must release
+     * @return true if sent
+     * @since 0.9.28 split out of enqueue()
+     */
+    private boolean send(PacketLocal packet, byte[] buf) {
         // this updates the ack/nack field
         packet.prepare();
         
@@ -88,9 +133,6 @@ class PacketQueue implements SendMessageStatusListener, Closeable {
             return false;
         }
     
-        ByteArray ba = _cache.acquire();
-        byte buf[] = ba.getData();
-
         long begin = 0;
         long end = 0;
         boolean sent = false;
@@ -184,8 +226,6 @@ class PacketQueue implements SendMessageStatusListener, Closeable {
                 _log.warn("Unable to send the packet " + packet, ise);
         }
         
-        _cache.release(ba);
-        
         if (!sent) {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Send failed for " + packet);
@@ -4,6 +4,9 @@ import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import net.i2p.I2PAppContext;
 import net.i2p.client.I2PSession;
 import net.i2p.util.SimpleTimer2;
@@ -31,4 +34,91 @@ public class ConnectionTest {
     public void test() {
         //Connection conn = new Connection(I2PAppContext.getGlobalContext(), manager, session, chooser, timer, queue, handler, opts, false);
     }
+
+    /**
+     *  Packets nacked together are resent once each, in one batch,
+     *  even when their own resend timers fire at the same time.
+     */
+    @Test
+    public void testBatchResend() throws Exception {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        SimpleTimer2 realTimer = new SimpleTimer2(ctx);
+        try {
+            CountingQueue realQueue = new CountingQueue(ctx, realTimer);
+            Connection conn = new Connection(ctx, manager, session, new SchedulerChooser(ctx), realTimer,
+                                             realQueue, new ConnectionPacketHandler(ctx), null, false);
+            List<PacketLocal> packets = new ArrayList<PacketLocal>();
+            for (int i = 1; i <= 6; i++) {
+                PacketLocal packet = new PacketLocal(ctx, null, conn);
+                packet.setSequenceNum(i);
+                conn.sendPacket(packet);
+                packets.add(packet);
+            }
+            assertEquals(6, realQueue.getSent());
+
+            long[] nacks = new long[] { 2, 3, 4 };
+            for (int i = 1; i < Connection.FAST_RETRANSMIT_THRESHOLD; i++) {
+                conn.ackPackets(5, nacks);
+            }
+            // 1 and 5 acked, 6 still outstanding
+            assertTrue(packets.get(0).writeSuccessful());
+            assertTrue(packets.get(4).writeSuccessful());
+            // race the batch against the packets' own timers
+            for (long n : nacks) {
+                packets.get((int) n - 1).getResendEvent().forceReschedule(0);
+            }
+            conn.ackPackets(5, nacks);
+
+            for (int i = 0; i < 100 && realQueue.getSent() < 9; i++) {
+                Thread.sleep(50);
+            }
+            // any duplicates
+            Thread.sleep(500);
+            assertEquals(9, realQueue.getSent());
+            for (long n : nacks) {
+                assertEquals(2, packets.get((int) n - 1).getNumSends());
+            }
+            assertEquals(3, conn.getActiveResends());
+
+            conn.ackPackets(5, null);
+            assertFalse(packets.get(5).writeSuccessful());
+            assertEquals(0, conn.getActiveResends());
+        } finally {
+            realTimer.stop();
+        }
+    }
+
+    /** counts the packets instead of sending them */
+    private static class CountingQueue extends PacketQueue {
+        private int _sent;
+
+        public CountingQueue(I2PAppContext ctx, SimpleTimer2 timer) {
+            super(ctx, timer);
+        }
+
+        @Override
+        public boolean enqueue(PacketLocal packet) {
+            if (packet.getAckTime() > 0)
+                return false;
+            packet.incrementSends();
+            synchronized (this) {
+                _sent++;
+            }
+            return true;
+        }
+
+        @Override
+        public int enqueue(List<PacketLocal> packets) {
+            int rv = 0;
+            for (PacketLocal packet : packets) {
+                if (enqueue(packet))
+                    rv++;
+            }
+            return rv;
+        }
+
+        public synchronized int getSent() {
+            return _sent;
+        }
+    }
 }
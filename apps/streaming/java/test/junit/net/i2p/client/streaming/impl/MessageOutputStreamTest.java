@@ -23,13 +23,35 @@ public class MessageOutputStreamTest extends TestCase {
 
     @Test
     public void test() throws Exception {
-        Receiver receiver = new Receiver();
+        Receiver receiver = new Receiver(1);
         MessageOutputStream out = new MessageOutputStream(_context, _st2, receiver, 100);
         byte buf[] = new byte[128*1024];
         _context.random().nextBytes(buf);
         out.write(buf);
         out.flush();
         byte read[] = receiver.getData();
+        assertEquals(0, receiver.getBatches());
+        check(buf, read);
+    }
+
+    /** full packets straight from the caller's buffer, several at a time */
+    @Test
+    public void testBatched() throws Exception {
+        Receiver receiver = new Receiver(8);
+        MessageOutputStream out = new MessageOutputStream(_context, _st2, receiver, 100);
+        byte buf[] = new byte[128*1024];
+        _context.random().nextBytes(buf);
+        // start with a partial buffer, then a large write
+        out.write(buf, 0, 50);
+        out.write(buf, 50, buf.length - 50);
+        out.flush();
+        byte read[] = receiver.getData();
+        assertTrue(receiver.getBatches() > 0);
+        check(buf, read);
+    }
+
+    private static void check(byte[] buf, byte[] read) {
+        assertEquals(buf.length, read.length);
         int firstOff = -1;
         for (int k = 0; k < buf.length; k++) {
             if (buf[k] != read[k]) {
@@ -47,15 +69,26 @@ public class MessageOutputStreamTest extends TestCase {
 
     private class Receiver implements MessageOutputStream.DataReceiver {
         private ByteArrayOutputStream _data;
-        public Receiver() {
+        private final int _batchSize;
+        private int _batches;
+        public Receiver(int batchSize) {
             _data = new ByteArrayOutputStream();
+            _batchSize = batchSize;
         }
         public MessageOutputStream.WriteStatus writeData(byte[] buf, int off, int size) {
             _data.write(buf, off, size);
             return new DummyWriteStatus();
         }
         public boolean writeInProcess() { return false; }
+        public int getBatchSize() { return _batchSize; }
+        public MessageOutputStream.WriteStatus writeData(byte[] buf, int off, int size, int packetSize) {
+            assertTrue(size > packetSize);
+            assertTrue(size <= _batchSize * packetSize);
+            _batches++;
+            return writeData(buf, off, size);
+        }
         public byte[] getData() { return _data.toByteArray(); }
+        public int getBatches() { return _batches; }
     }
 
     private static class DummyWriteStatus implements MessageOutputStream.WriteStatus {        
@@ -20,6 +20,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -40,7 +41,9 @@ import net.i2p.util.SecureFileOutputStream;
 import net.i2p.util.SystemVersion;
 import net.i2p.util.VersionComparator;
 
+import net.metanotion.io.CachedRAIFile;
 import net.metanotion.io.RAIFile;
+import net.metanotion.io.RandomAccessInterface;
 import net.metanotion.io.Serializer;
 import net.metanotion.io.block.BlockFile;
 import net.metanotion.io.data.IntBytes;
@@ -72,6 +75,8 @@ import net.metanotion.util.skiplist.SkipList;
  *            or there could be collisions with the same first 4 bytes of the hash.
  *         Each property key is a hostname.
  *         Each property value is the empty string.
+ *     As of 0.9.28, the keys are also kept in an in-memory Bloom filter,
+ *     so that lookups of hashes not in the database do not read the skiplist.
  *
  * For each host database, there is a skiplist containing
  * the hosts for that database.
@@ -99,10 +104,16 @@ import net.metanotion.util.skiplist.SkipList;
 public class BlockfileNamingService extends DummyNamingService {
 
     private final BlockFile _bf;
-    private final RAIFile _raf;
+    private final RandomAccessInterface _raf;
     private final List<String> _lists;
     private final List<InvalidEntry> _invalid;
     private final Map<String, String> _negativeCache;
+    /** lower case hostname to dests found in all lists, @since 0.9.28 */
+    private final Map<String, List<Destination>> _positiveCache;
+    /** built at the first reverse lookup, null to rebuild @since 0.9.28 */
+    private volatile ReverseFilter _reverseFilter;
+    /** after an error building the filter, don't retry until then @since 0.9.28 */
+    private volatile long _reverseFilterRetry;
     private volatile boolean _isClosed;
     private final boolean _readOnly;
     private String _version = "0";
@@ -120,6 +131,14 @@ public class BlockfileNamingService extends DummyNamingService {
     private static final String HOSTS_DB = "hostsdb.blockfile";
     private static final String FALLBACK_LIST = "hosts.txt";
     private static final String PROP_FORCE = "i2p.naming.blockfile.writeInAppContext";
+    /** KB, 0 to disable the page cache @since 0.9.28 */
+    private static final String PROP_PAGE_CACHE = "i2p.naming.blockfile.pageCache";
+    /** bytes, for new databases only @since 0.9.28 */
+    private static final String PROP_PAGE_SIZE = "i2p.naming.blockfile.pageSize";
+    /** memory-map read-only databases @since 0.9.28 */
+    private static final String PROP_MMAP = "i2p.naming.blockfile.mmap";
+    /** entries, 0 to disable @since 0.9.28 */
+    private static final String PROP_LOOKUP_CACHE = "i2p.naming.blockfile.lookupCache";
 
     private static final String INFO_SKIPLIST = "%%__INFO__%%";
     private static final String REVERSE_SKIPLIST = "%%__REVERSE__%%";
@@ -138,8 +157,16 @@ public class BlockfileNamingService extends DummyNamingService {
     
     private static final String DUMMY = "";
     private static final int NEGATIVE_CACHE_SIZE = 32;
+    /** @since 0.9.28 */
+    private static final int DEFAULT_POSITIVE_CACHE_SIZE = SystemVersion.isAndroid() ? 64 : 1024;
     private static final int MAX_VALUE_LENGTH = 4096;
     private static final int MAX_DESTS_PER_HOST = 8;
+    /** entries per lock hold in getEntries() @since 0.9.28 */
+    private static final int ITERATION_CHUNK = 64;
+    /** entries per lock hold in importAll() @since 0.9.28 */
+    private static final int IMPORT_CHUNK = 256;
+    /** after a reverse filter error @since 0.9.28 */
+    private static final long REVERSE_FILTER_RETRY = 10*60*1000;
 
     /**
      *  Opens the database at hostsdb.blockfile or creates a new
@@ -149,6 +176,13 @@ public class BlockfileNamingService extends DummyNamingService {
      *  unless the property i2p.naming.blockfile.writeInAppContext is true.
      *  Not designed for multiple instantiations or simultaneous use by multple JVMs.
      *
+     *  As of 0.9.28, the database is read and written through a page cache,
+     *  i2p.naming.blockfile.pageCache KB (0 to disable), and a new database
+     *  is created with i2p.naming.blockfile.pageSize byte pages (default 1024).
+     *  If i2p.naming.blockfile.mmap is true, a read-only database is memory-mapped instead.
+     *  Up to i2p.naming.blockfile.lookupCache (default 1024) hostnames found
+     *  are cached in memory (0 to disable).
+     *
      *  @throws RuntimeException on fatal error
      */
     public BlockfileNamingService(I2PAppContext context) {
@@ -156,8 +190,10 @@ public class BlockfileNamingService extends DummyNamingService {
         _lists = new ArrayList<String>();
         _invalid = new ArrayList<InvalidEntry>();
         _negativeCache = new LHMCache<String, String>(NEGATIVE_CACHE_SIZE);
+        int sz = context.getProperty(PROP_LOOKUP_CACHE, DEFAULT_POSITIVE_CACHE_SIZE);
+        _positiveCache = sz > 0 ? new LHMCache<String, List<Destination>>(sz) : null;
         BlockFile bf = null;
-        RAIFile raf = null;
+        RandomAccessInterface raf = null;
         boolean readOnly = false;
         File f = new File(_context.getRouterDir(), HOSTS_DB);
         if (f.exists()) {
@@ -168,7 +204,7 @@ public class BlockfileNamingService extends DummyNamingService {
                 // *** Open readonly if not in router context (unless forced)
                 readOnly = (!f.canWrite()) ||
                            ((!context.isRouterContext()) && (!context.getBooleanProperty(PROP_FORCE)));
-                raf = new RAIFile(f, true, !readOnly);
+                raf = openFile(f, !readOnly);
                 bf = initExisting(raf);
                 if (readOnly && context.isRouterContext())
                     _log.logAlways(Log.WARN, "Read-only hosts database in router context");
@@ -199,7 +235,7 @@ public class BlockfileNamingService extends DummyNamingService {
             try {
                 // closing a BlockFile does not close the underlying file,
                 // so we must create and retain a RAF so we may close it later
-                raf = new RAIFile(f, true, true);
+                raf = openFile(f, true);
                 SecureFileOutputStream.setPerms(f);
                 bf = initNew(raf);
             } catch (IOException ioe) {
@@ -214,23 +250,56 @@ public class BlockfileNamingService extends DummyNamingService {
         _bf = bf;
         _raf = raf;
         _readOnly = readOnly;
-        if (_needsUpgrade)
+        if (_needsUpgrade) {
             upgrade();
+            flush();
+        }
         _context.addShutdownTask(new Shutdown());
     }
 
+    /**
+     *  @since 0.9.28
+     */
+    private RandomAccessInterface openFile(File f, boolean write) throws IOException {
+        int cache = _context.getProperty(PROP_PAGE_CACHE, SystemVersion.isAndroid() ? 256 : 2048);
+        boolean mmap = !write && _context.getBooleanProperty(PROP_MMAP);
+        if (cache <= 0 && !mmap)
+            return new RAIFile(f, true, write);
+        return new CachedRAIFile(f, true, write, (cache * 1024) / CachedRAIFile.PAGE_SIZE, mmap);
+    }
+
+    /**
+     *  Write the cached pages, if any.
+     *  Called after every change, so a crash loses no more than without the cache.
+     *  Caller must sync.
+     *
+     *  @since 0.9.28
+     */
+    private void flush() {
+        try {
+            _bf.flush();
+        } catch (IOException ioe) {
+            _log.error("DB flush error", ioe);
+        }
+    }
+
     /**
      *  Create a new database and initialize it from the local files
      *  privatehosts.txt, userhosts.txt, and hosts.txt,
      *  creating a skiplist in the database for each.
      */
-    private BlockFile initNew(RAIFile f) throws IOException {
+    private BlockFile initNew(RandomAccessInterface f) throws IOException {
         long start = _context.clock().now();
         _version = VERSION;
         _destSerializer = _destSerializerV4;
         _isVersion4 = true;
         try {
-            BlockFile rv = new BlockFile(f, true);
+            int pageSize = _context.getProperty(PROP_PAGE_SIZE, BlockFile.PAGESIZE);
+            if (!BlockFile.isValidPageSize(pageSize)) {
+                _log.logAlways(Log.WARN, "Invalid " + PROP_PAGE_SIZE + ' ' + pageSize + ", using " + BlockFile.PAGESIZE);
+                pageSize = BlockFile.PAGESIZE;
+            }
+            BlockFile rv = new BlockFile(f, true, pageSize);
             SkipList<String, Properties> hdr = rv.makeIndex(INFO_SKIPLIST, _stringSerializer, _infoSerializer);
             Properties info = new Properties();
             info.setProperty(PROP_VERSION, VERSION);
@@ -288,6 +357,7 @@ public class BlockfileNamingService extends DummyNamingService {
                 _log.info("DB init took " + DataHelper.formatDuration(_context.clock().now() - start));
             if (total <= 0)
                 _log.logAlways(Log.WARN, "No hosts.txt files found, Initialized hosts database with zero entries");
+            rv.flush();
             return rv;
         } catch (RuntimeException e) {
             _log.error("Failed to initialize database", e);
@@ -298,7 +368,7 @@ public class BlockfileNamingService extends DummyNamingService {
     /**
      *  Read the info block of an existing database.
      */
-    private BlockFile initExisting(RAIFile raf) throws IOException {
+    private BlockFile initExisting(RandomAccessInterface raf) throws IOException {
         long start = _context.clock().now();
         try {
             BlockFile bf = new BlockFile(raf, false);
@@ -663,6 +733,70 @@ public class BlockfileNamingService extends DummyNamingService {
      */
     private void addReverseEntry(String key, Destination dest) {
         addReverseEntry(_bf, key, dest, _log);
+        addReverseFilter(getReverseKey(dest));
+    }
+
+    /**
+     *  Add to the reverse lookup filter, if built.
+     *  Caller must synchronize.
+     *  @since 0.9.28
+     */
+    private void addReverseFilter(Integer idx) {
+        ReverseFilter rf = _reverseFilter;
+        if (rf == null)
+            return;
+        rf.add(idx.intValue());
+        if (rf.isFull()) {
+            // rebuild larger at the next lookup
+            _reverseFilter = null;
+        }
+    }
+
+    /**
+     *  Get the reverse lookup filter, building it from the reverse skiplist if necessary.
+     *  Lock-free unless it must be built.
+     *  After an error, the callers look in the skiplist without the filter,
+     *  and it isn't built again for REVERSE_FILTER_RETRY.
+     *
+     *  @return null if closed, version 1 database with no reverse skiplist, or error
+     *  @since 0.9.28
+     */
+    private ReverseFilter getReverseFilter() {
+        ReverseFilter rv = _reverseFilter;
+        if (rv != null)
+            return rv;
+        if (_reverseFilterRetry > _context.clock().now())
+            return null;
+        synchronized(_bf) {
+            rv = _reverseFilter;
+            if (rv != null || _isClosed || _reverseFilterRetry > _context.clock().now())
+                return rv;
+            try {
+                long start = System.currentTimeMillis();
+                SkipList<Integer, Properties> rev = _bf.getIndex(REVERSE_SKIPLIST, _hashIndexSerializer, _infoSerializer);
+                if (rev == null)
+                    return null;
+                // room to grow before rebuilding
+                rv = new ReverseFilter(2 * rev.size());
+                for (SkipIterator<Integer, Properties> iter = rev.iterator(); iter.hasNext(); ) {
+                    rv.add(iter.nextKey().intValue());
+                    iter.next();
+                }
+                _reverseFilter = rv;
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Built reverse lookup filter with " + rv.getCount() + " entries, " +
+                              rv.getSize() + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+            } catch (IOException ioe) {
+                _log.error("DB reverse filter error", ioe);
+                _reverseFilterRetry = _context.clock().now() + REVERSE_FILTER_RETRY;
+                return null;
+            } catch (RuntimeException e) {
+                _log.error("DB reverse filter error", e);
+                _reverseFilterRetry = _context.clock().now() + REVERSE_FILTER_RETRY;
+                return null;
+            }
+        }
+        return rv;
     }
 
     /**
@@ -700,6 +834,45 @@ public class BlockfileNamingService extends DummyNamingService {
         }
     }
 
+    /**
+     *  Batch version of addReverseEntry(), one read and write per reverse key.
+     *  Caller must synchronize.
+     *  Fails without exception on error (logs only).
+     *  Returns without logging if no reverse skiplist (version 1).
+     *
+     *  @param entries reverse key to hostnames, sorted
+     *  @since 0.9.28
+     */
+    private void addReverseEntries(Map<Integer, List<String>> entries) {
+        try {
+            SkipList<Integer, Properties> rev = _bf.getIndex(REVERSE_SKIPLIST, _hashIndexSerializer, _infoSerializer);
+            if (rev == null)
+                return;
+            for (Map.Entry<Integer, List<String>> e : entries.entrySet()) {
+                Integer idx = e.getKey();
+                Properties props = rev.get(idx);
+                boolean changed = false;
+                if (props == null) {
+                    props = new Properties();
+                    changed = true;
+                }
+                for (String key : e.getValue()) {
+                    if (props.getProperty(key) == null) {
+                        props.put(key, "");
+                        changed = true;
+                    }
+                }
+                if (changed)
+                    rev.put(idx, props);
+                addReverseFilter(idx);
+            }
+        } catch (IOException ioe) {
+            _log.error("DB add reverse error", ioe);
+        } catch (RuntimeException e) {
+            _log.error("DB add reverse error", e);
+        }
+    }
+
     /**
      *  Caller must synchronize.
      *  Fails without exception on error (logs only)
@@ -794,6 +967,11 @@ public class BlockfileNamingService extends DummyNamingService {
             if (_negativeCache.get(key) != null)
                 return null;
         }
+        if (listname == null && storedOptions == null) {
+            List<Destination> cached = getPositiveCache(key);
+            if (cached != null)
+                return cached.get(0);
+        }
         synchronized(_bf) {
             if (_isClosed)
                 return null;
@@ -808,6 +986,8 @@ public class BlockfileNamingService extends DummyNamingService {
                         d = de.dest;
                         if (storedOptions != null && de.props != null)
                             storedOptions.putAll(de.props);
+                        if (listname == null)
+                            putPositiveCache(key, de);
                         break;
                     }
                 } catch (IOException ioe) {
@@ -854,6 +1034,11 @@ public class BlockfileNamingService extends DummyNamingService {
         String listname = null;
         if (lookupOptions != null)
             listname = lookupOptions.getProperty("list");
+        if (listname == null && storedOptions == null) {
+            List<Destination> cached = getPositiveCache(key);
+            if (cached != null)
+                return new ArrayList<Destination>(cached);
+        }
 
         List<Destination> rv = null;
         synchronized(_bf) {
@@ -876,6 +1061,8 @@ public class BlockfileNamingService extends DummyNamingService {
                             if (storedOptions != null)
                                 storedOptions.add(de.props);
                         }
+                        if (listname == null)
+                            putPositiveCache(key, de);
                         break;
                     }
                 } catch (IOException ioe) {
@@ -945,6 +1132,7 @@ public class BlockfileNamingService extends DummyNamingService {
         synchronized(_bf) {
             if (_isClosed)
                 return false;
+            removePositiveCache(key);
             try {
                 SkipList<String, DestEntry> sl = _bf.getIndex(listname, _stringSerializer, _destSerializer);
                 if (sl == null)
@@ -971,8 +1159,126 @@ public class BlockfileNamingService extends DummyNamingService {
             } catch (RuntimeException re) {
                 _log.error("DB add error", re);
                 return false;
+            } finally {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Batch version of put(), single dest per hostname.
+     * This does not prevent adding b32. Caller must check.
+     *
+     * The entries are sorted and inserted into each list in key order,
+     * holding the lock for a chunk of entries at a time.
+     * The reverse index is updated for each chunk under the same lock,
+     * sorted by reverse key, with one read and write per reverse key.
+     * The database is flushed once at the end.
+     *
+     * @param options hostname to options, may be null, see put()
+     * @return the hostnames added
+     * @since 0.9.28
+     */
+    @Override
+    public Set<String> importAll(Map<String, Destination> entries, Map<String, Properties> options) {
+        if (_readOnly) {
+            _log.error("Add entry failed, read-only hosts database");
+            return Collections.emptySet();
+        }
+        if (entries.isEmpty())
+            return Collections.emptySet();
+        String date = Long.toString(_context.clock().now());
+        // list name to sorted lower case hostname to entry
+        Map<String, Map<String, ImportEntry>> lists = new HashMap<String, Map<String, ImportEntry>>(4);
+        for (Map.Entry<String, Destination> e : entries.entrySet()) {
+            String hostname = e.getKey();
+            Properties opts = options != null ? options.get(hostname) : null;
+            String listname = FALLBACK_LIST;
+            Properties props = new Properties();
+            props.setProperty(PROP_ADDED, date);
+            if (opts != null) {
+                props.putAll(opts);
+                String list = opts.getProperty("list");
+                if (list != null) {
+                    listname = list;
+                    props.remove("list");
+                }
+            }
+            Map<String, ImportEntry> sorted = lists.get(listname);
+            if (sorted == null) {
+                sorted = new TreeMap<String, ImportEntry>();
+                lists.put(listname, sorted);
             }
+            sorted.put(hostname.toLowerCase(Locale.US), new ImportEntry(hostname, e.getValue(), props, opts));
         }
+        synchronized(_negativeCache) {
+            _negativeCache.clear();
+        }
+
+        Set<String> rv = new HashSet<String>(entries.size());
+        // reverse key to hostnames, for the current chunk
+        Map<Integer, List<String>> reverse = new TreeMap<Integer, List<String>>();
+        try {
+            for (Map.Entry<String, Map<String, ImportEntry>> e : lists.entrySet()) {
+                String listname = e.getKey();
+                Iterator<Map.Entry<String, ImportEntry>> iter = e.getValue().entrySet().iterator();
+                while (iter.hasNext()) {
+                    synchronized(_bf) {
+                        if (_isClosed)
+                            return rv;
+                        SkipList<String, DestEntry> sl = _bf.getIndex(listname, _stringSerializer, _destSerializer);
+                        if (sl == null)
+                            sl = _bf.makeIndex(listname, _stringSerializer, _destSerializer);
+                        try {
+                            for (int i = 0; i < IMPORT_CHUNK && iter.hasNext(); i++) {
+                                Map.Entry<String, ImportEntry> ee = iter.next();
+                                String key = ee.getKey();
+                                ImportEntry ie = ee.getValue();
+                                removePositiveCache(key);
+                                synchronized(_negativeCache) {
+                                    _negativeCache.remove(key);
+                                }
+                                boolean changed = !_listeners.isEmpty() && sl.get(key) != null;
+                                addEntry(sl, key, ie.dest, ie.props);
+                                removeCache(ie.hostname);
+                                Integer idx = getReverseKey(ie.dest);
+                                List<String> names = reverse.get(idx);
+                                if (names == null) {
+                                    names = new ArrayList<String>(1);
+                                    reverse.put(idx, names);
+                                }
+                                names.add(key);
+                                for (NamingServiceListener nsl : _listeners) { 
+                                    if (changed)
+                                        nsl.entryChanged(this, ie.hostname, ie.dest, ie.options);
+                                    else
+                                        nsl.entryAdded(this, ie.hostname, ie.dest, ie.options);
+                                }
+                                rv.add(ie.hostname);
+                            }
+                        } finally {
+                            // reverse entries for this chunk, before other lookups see the forward entries
+                            addReverseEntries(reverse);
+                            reverse.clear();
+                        }
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            _log.error("DB add error", ioe);
+        } catch (RuntimeException re) {
+            _log.error("DB add error", re);
+        } finally {
+            // lookups between chunks may have negatively cached a name from a later chunk
+            synchronized(_negativeCache) {
+                _negativeCache.clear();
+            }
+            synchronized(_bf) {
+                if (!_isClosed)
+                    flush();
+            }
+        }
+        return rv;
     }
 
     /**
@@ -1017,6 +1323,7 @@ public class BlockfileNamingService extends DummyNamingService {
         synchronized(_bf) {
             if (_isClosed)
                 return false;
+            removePositiveCache(key);
             try {
                 SkipList<String, DestEntry> sl = _bf.getIndex(listname, _stringSerializer, _destSerializer);
                 if (sl == null)
@@ -1047,6 +1354,8 @@ public class BlockfileNamingService extends DummyNamingService {
             } catch (RuntimeException re) {
                 _log.error("DB add error", re);
                 return false;
+            } finally {
+                flush();
             }
         }
     }
@@ -1072,6 +1381,7 @@ public class BlockfileNamingService extends DummyNamingService {
         synchronized(_bf) {
             if (_isClosed)
                 return false;
+            removePositiveCache(key);
             try {
                 SkipList<String, DestEntry> sl = _bf.getIndex(listname, _stringSerializer, _destSerializer);
                 if (sl == null)
@@ -1096,6 +1406,8 @@ public class BlockfileNamingService extends DummyNamingService {
             } catch (RuntimeException re) {
                 _log.error("DB remove error", re);
                 return false;
+            } finally {
+                flush();
             }
         }
     }
@@ -1146,54 +1458,19 @@ public class BlockfileNamingService extends DummyNamingService {
             _log.debug("Searching " + listname + " beginning with " + beginWith +
                        " starting with " + startsWith + " search string " + search +
                        " limit=" + limit + " skip=" + skip);
-        synchronized(_bf) {
-            if (_isClosed)
-                return Collections.emptyMap();
-            try {
-                SkipList<String, DestEntry> sl = _bf.getIndex(listname, _stringSerializer, _destSerializer);
-                if (sl == null) {
-                    if (_log.shouldLog(Log.WARN))
-                        _log.warn("No skiplist found for lookup in " + listname);
-                    return Collections.emptyMap();
-                }
-                SkipIterator<String, DestEntry> iter;
-                if (beginWith != null)
-                    iter = sl.find(beginWith);
-                else
-                    iter = sl.iterator();
-                Map<String, Destination> rv = new TreeMap<String, Destination>();
-                for (int i = 0; i < skip && iter.hasNext(); i++) {
-                    // don't bother validating here
-                    iter.next();
-                }
-                for (int i = 0; i < limit && iter.hasNext(); ) {
-                    String key = iter.nextKey();
-                    if (startsWith != null) {
-                        if (startsWith.equals("[0-9]")) {
-                            if (key.charAt(0) > '9')
-                                break;
-                        } else if (!key.startsWith(startsWith)) {
-                            break;
-                        }
-                    }
-                    DestEntry de = iter.next();
-                    if (!validate(key, de, listname))
-                        continue;
-                    if (search != null && key.indexOf(search) < 0)
-                        continue;
-                    rv.put(key, de.dest);
-                    i++;
-                }
-                return rv;
-            } catch (IOException ioe) {
-                _log.error("DB lookup error", ioe);
-                return Collections.emptyMap();
-            } catch (RuntimeException re) {
-                _log.error("DB lookup error", re);
-                return Collections.emptyMap();
-            } finally {
-                deleteInvalid();
+        try {
+            Map<String, DestEntry> entries = getEntries(listname, beginWith, startsWith, search, skip, limit, true);
+            Map<String, Destination> rv = new TreeMap<String, Destination>();
+            for (Map.Entry<String, DestEntry> e : entries.entrySet()) {
+                rv.put(e.getKey(), e.getValue().dest);
             }
+            return rv;
+        } catch (IOException ioe) {
+            _log.error("DB lookup error", ioe);
+            return Collections.emptyMap();
+        } catch (RuntimeException re) {
+            _log.error("DB lookup error", re);
+            return Collections.emptyMap();
         }
     }
 
@@ -1240,54 +1517,19 @@ public class BlockfileNamingService extends DummyNamingService {
                 skip = Integer.parseInt(sk);
             } catch (NumberFormatException nfe) {}
         }
-        synchronized(_bf) {
-            if (_isClosed)
-                return Collections.emptyMap();
-            try {
-                SkipList<String, DestEntry> sl = _bf.getIndex(listname, _stringSerializer, _destSerializer);
-                if (sl == null) {
-                    if (_log.shouldLog(Log.WARN))
-                        _log.warn("No skiplist found for lookup in " + listname);
-                    return Collections.emptyMap();
-                }
-                SkipIterator<String, DestEntry> iter;
-                if (beginWith != null)
-                    iter = sl.find(beginWith);
-                else
-                    iter = sl.iterator();
-                Map<String, String> rv = new TreeMap<String, String>();
-                for (int i = 0; i < skip && iter.hasNext(); i++) {
-                    // don't bother validating here
-                    iter.next();
-                }
-                for (int i = 0; i < limit && iter.hasNext(); ) {
-                    String key = iter.nextKey();
-                    if (startsWith != null) {
-                        if (startsWith.equals("[0-9]")) {
-                            if (key.charAt(0) > '9')
-                                break;
-                        } else if (!key.startsWith(startsWith)) {
-                            break;
-                        }
-                    }
-                    DestEntry de = iter.next();
-                    if (!validate(key, de, listname))
-                        continue;
-                    if (search != null && key.indexOf(search) < 0)
-                        continue;
-                    rv.put(key, de.dest.toBase64());
-                    i++;
-                }
-                return rv;
-            } catch (IOException ioe) {
-                _log.error("DB lookup error", ioe);
-                return Collections.emptyMap();
-            } catch (RuntimeException re) {
-                _log.error("DB lookup error", re);
-                return Collections.emptyMap();
-            } finally {
-                deleteInvalid();
+        try {
+            Map<String, DestEntry> entries = getEntries(listname, beginWith, startsWith, search, skip, limit, true);
+            Map<String, String> rv = new TreeMap<String, String>();
+            for (Map.Entry<String, DestEntry> e : entries.entrySet()) {
+                rv.put(e.getKey(), e.getValue().dest.toBase64());
             }
+            return rv;
+        } catch (IOException ioe) {
+            _log.error("DB lookup error", ioe);
+            return Collections.emptyMap();
+        } catch (RuntimeException re) {
+            _log.error("DB lookup error", re);
+            return Collections.emptyMap();
         }
     }
 
@@ -1334,48 +1576,93 @@ public class BlockfileNamingService extends DummyNamingService {
                 skip = Integer.parseInt(sk);
             } catch (NumberFormatException nfe) {}
         }
-        synchronized(_bf) {
-            if (_isClosed)
-                return Collections.emptySet();
-            try {
-                SkipList<String, DestEntry> sl = _bf.getIndex(listname, _stringSerializer, _destSerializer);
-                if (sl == null) {
-                    if (_log.shouldLog(Log.WARN))
-                        _log.warn("No skiplist found for lookup in " + listname);
-                    return Collections.emptySet();
-                }
-                SkipIterator<String, DestEntry> iter;
-                if (beginWith != null)
-                    iter = sl.find(beginWith);
-                else
-                    iter = sl.iterator();
-                Set<String> rv = new HashSet<String>();
-                for (int i = 0; i < skip && iter.hasNext(); i++) {
-                    iter.next();
-                }
-                for (int i = 0; i < limit && iter.hasNext(); ) {
-                    String key = iter.nextKey();
-                    if (startsWith != null) {
-                        if (startsWith.equals("[0-9]")) {
-                            if (key.charAt(0) > '9')
-                                break;
-                        } else if (!key.startsWith(startsWith)) {
-                            break;
+        try {
+            Map<String, DestEntry> entries = getEntries(listname, beginWith, startsWith, search, skip, limit, false);
+            return new HashSet<String>(entries.keySet());
+        } catch (IOException ioe) {
+            _log.error("DB lookup error", ioe);
+            return Collections.emptySet();
+        } catch (RuntimeException re) {
+            _log.error("DB lookup error", re);
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     *  Iterate through a list a chunk at a time, holding the lock only for each chunk,
+     *  so that lookups and changes are not blocked for the whole iteration.
+     *  Each chunk resumes the iteration after the last key of the previous one,
+     *  so entries added or removed between chunks may or may not be returned.
+     *
+     *  Search, startsWith, and beginWith values must be lower case.
+     *
+     *  @param beginWith may be null
+     *  @param startsWith may be null, "[0-9]" allowed
+     *  @param search may be null
+     *  @param validate if false, entries are returned without validation
+     *  @return non-null, sorted, empty if closed or the list is not found
+     *  @since 0.9.28
+     */
+    private Map<String, DestEntry> getEntries(String listname, String beginWith, String startsWith,
+                                              String search, int skip, int limit,
+                                              boolean validate) throws IOException {
+        Map<String, DestEntry> rv = new TreeMap<String, DestEntry>();
+        if (limit <= 0)
+            return rv;
+        String from = beginWith;
+        boolean resume = false;
+        int skipped = 0;
+        while (true) {
+            synchronized(_bf) {
+                if (_isClosed)
+                    return rv;
+                try {
+                    SkipList<String, DestEntry> sl = _bf.getIndex(listname, _stringSerializer, _destSerializer);
+                    if (sl == null) {
+                        if (_log.shouldLog(Log.WARN))
+                            _log.warn("No skiplist found for lookup in " + listname);
+                        return rv;
+                    }
+                    SkipIterator<String, DestEntry> iter;
+                    if (from != null)
+                        iter = sl.find(from);
+                    else
+                        iter = sl.iterator();
+                    if (resume && iter.hasNext() && iter.nextKey().equals(from))
+                        iter.next();
+                    for (int i = 0; i < ITERATION_CHUNK; i++) {
+                        if (!iter.hasNext())
+                            return rv;
+                        String key = iter.nextKey();
+                        from = key;
+                        if (skipped < skip) {
+                            // don't bother validating here
+                            iter.next();
+                            skipped++;
+                            continue;
                         }
+                        if (startsWith != null) {
+                            if (startsWith.equals("[0-9]")) {
+                                if (key.charAt(0) > '9')
+                                    return rv;
+                            } else if (!key.startsWith(startsWith)) {
+                                return rv;
+                            }
+                        }
+                        DestEntry de = iter.next();
+                        if (validate && !validate(key, de, listname))
+                            continue;
+                        if (search != null && key.indexOf(search) < 0)
+                            continue;
+                        rv.put(key, de);
+                        if (rv.size() >= limit)
+                            return rv;
                     }
-                    if (search != null && key.indexOf(search) < 0)
-                        continue;
-                    rv.add(key);
-                    i++;
+                } finally {
+                    deleteInvalid();
                 }
-                return rv;
-            } catch (IOException ioe) {
-                _log.error("DB lookup error", ioe);
-                return Collections.emptySet();
-            } catch (RuntimeException re) {
-                _log.error("DB lookup error", re);
-                return Collections.emptySet();
             }
+            resume = true;
         }
     }
 
@@ -1393,6 +1680,9 @@ public class BlockfileNamingService extends DummyNamingService {
      */
     @Override
     public String reverseLookup(Hash h) {
+        ReverseFilter rf = getReverseFilter();
+        if (rf != null && !rf.mightContain(getReverseKey(h).intValue()))
+            return null;
         List<String> ls;
         synchronized(_bf) {
             if (_isClosed)
@@ -1416,6 +1706,9 @@ public class BlockfileNamingService extends DummyNamingService {
      */
     @Override
     public List<String> reverseLookupAll(Hash h) {
+        ReverseFilter rf = getReverseFilter();
+        if (rf != null && !rf.mightContain(getReverseKey(h).intValue()))
+            return null;
         synchronized(_bf) {
             if (_isClosed)
                 return null;
@@ -1626,6 +1919,7 @@ public class BlockfileNamingService extends DummyNamingService {
         for (InvalidEntry ie : _invalid) {
             String key = ie.key;
             String list = ie.list;
+            removePositiveCache(key);
             try {
                 SkipList<String, DestEntry> sl = _bf.getIndex(list, _stringSerializer, _destSerializer);
                 if (sl == null) {
@@ -1645,6 +1939,7 @@ public class BlockfileNamingService extends DummyNamingService {
             }
         }
         _invalid.clear();
+        flush();
     }
 
   /****
@@ -1695,13 +1990,61 @@ public class BlockfileNamingService extends DummyNamingService {
             } catch (IOException ioe) {
             }
             _isClosed = true;
+            _reverseFilter = null;
         }
         synchronized(_negativeCache) {
             _negativeCache.clear();
         }
+        if (_positiveCache != null) {
+            synchronized(_positiveCache) {
+                _positiveCache.clear();
+            }
+        }
         clearCache();
     }
 
+    /**
+     *  @param key lower case
+     *  @return dests or null, do not modify
+     *  @since 0.9.28
+     */
+    private List<Destination> getPositiveCache(String key) {
+        if (_positiveCache == null)
+            return null;
+        synchronized(_positiveCache) {
+            return _positiveCache.get(key);
+        }
+    }
+
+    /**
+     *  Caller must sync on _bf, so the entry cannot be stale.
+     *  @param key lower case
+     *  @param de validated
+     *  @since 0.9.28
+     */
+    private void putPositiveCache(String key, DestEntry de) {
+        if (_positiveCache == null)
+            return;
+        List<Destination> dests = de.destList != null ? new ArrayList<Destination>(de.destList)
+                                                       : Collections.singletonList(de.dest);
+        synchronized(_positiveCache) {
+            _positiveCache.put(key, dests);
+        }
+    }
+
+    /**
+     *  Caller must sync on _bf.
+     *  @param key lower case
+     *  @since 0.9.28
+     */
+    private void removePositiveCache(String key) {
+        if (_positiveCache == null)
+            return;
+        synchronized(_positiveCache) {
+            _positiveCache.remove(key);
+        }
+    }
+
     /** for logging errors in the static serializers below */
     private static void logError(String msg, Throwable t) {
         I2PAppContext.getGlobalContext().logManager().getLog(BlockfileNamingService.class).error(msg, t);
@@ -2040,6 +2383,25 @@ public class BlockfileNamingService extends DummyNamingService {
         }
     }
 
+    /**
+     *  Used to sort entries in importAll()
+     *  @since 0.9.28
+     */
+    private static class ImportEntry {
+        public final String hostname;
+        public final Destination dest;
+        public final Properties props;
+        /** as passed in, for the listeners, may be null */
+        public final Properties options;
+
+        public ImportEntry(String h, Destination d, Properties p, Properties o) {
+            hostname = h;
+            dest = d;
+            props = p;
+            options = o;
+        }
+    }
+
     /**
      *  BlockfileNamingService [force]
      *  force = force writable
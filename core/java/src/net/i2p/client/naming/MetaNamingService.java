@@ -154,6 +154,21 @@ public class MetaNamingService extends DummyNamingService {
         return rv;
     }
 
+    /**
+     *  Stores in the last service
+     *  @since 0.9.28
+     */
+    @Override
+    public Set<String> importAll(Map<String, Destination> entries, Map<String, Properties> options) {
+        if (_services.isEmpty())
+            return Collections.emptySet();
+        Set<String> rv = _services.get(_services.size() - 1).importAll(entries, options);
+        for (String hostname : rv) {
+            putCache(hostname, entries.get(hostname));
+        }
+        return rv;
+    }
+
     /**
      *  Removes from all services
      */
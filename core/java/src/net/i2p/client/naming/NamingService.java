@@ -12,6 +12,7 @@ import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -429,6 +430,29 @@ public abstract class NamingService {
         return rv;
     }
 
+    /**
+     *  Put all the entries, each with its own options,
+     *  e.g. the new entries from an addressbook subscription.
+     *  Existing entries are replaced, as in put().
+     *  This implementation calls put() for each entry.
+     *  Subclasses may override if a more efficient implementation is available.
+     *
+     *  @param entries hostname to Destination
+     *  @param options hostname to NamingService-specific options, can be null,
+     *                 and need not contain every hostname
+     *  @return the hostnames successfully added, non-null
+     *  @since 0.9.28
+     */
+    public Set<String> importAll(Map<String, Destination> entries, Map<String, Properties> options) {
+        Set<String> rv = new HashSet<String>(entries.size());
+        for (Map.Entry<String, Destination> entry : entries.entrySet()) {
+            String hostname = entry.getKey();
+            if (put(hostname, entry.getValue(), options != null ? options.get(hostname) : null))
+                rv.add(hostname);
+        }
+        return rv;
+    }
+
     /**
      *  Fails if entry did not previously exist.
      *  Warning - unimplemented in any subclass.
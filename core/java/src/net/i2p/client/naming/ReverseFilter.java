@@ -0,0 +1,112 @@
+package net.i2p.client.naming;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of the reverse index keys in a BlockfileNamingService,
+ * i.e. the first 4 bytes of each destination hash,
+ * so that reverse lookups of destinations not in the database
+ * are answered without taking the database lock or reading the database.
+ *
+ * Keys cannot be removed, so removed entries remain as false positives
+ * until the filter is rebuilt.
+ *
+ * The caller must synchronize add().
+ * mightContain() may be called at any time without synchronization.
+ *
+ * @since 0.9.28
+ */
+class ReverseFilter {
+    private final AtomicLongArray _bits;
+    private final int _mask;
+    private final int _capacity;
+    private int _count;
+
+    /** about 0.6% false positives at capacity */
+    private static final int BITS_PER_ENTRY = 12;
+    private static final int HASHES = 4;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int MAX_BITS = 1 << 30;
+
+    /**
+     *  @param capacity expected number of keys, isFull() after that
+     */
+    public ReverseFilter(int capacity) {
+        _capacity = Math.max(capacity, MIN_CAPACITY);
+        long want = (long) _capacity * BITS_PER_ENTRY;
+        int bits = 64;
+        while (bits < want && bits < MAX_BITS) {
+            bits <<= 1;
+        }
+        _bits = new AtomicLongArray(bits / 64);
+        _mask = bits - 1;
+    }
+
+    /**
+     *  Caller must synch
+     */
+    public void add(int key) {
+        long h = mix(key);
+        int h1 = (int) h;
+        int h2 = ((int) (h >>> 32)) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & _mask;
+            int word = bit >>> 6;
+            // only one writer, so no CAS needed
+            _bits.set(word, _bits.get(word) | (1L << bit));
+        }
+        _count++;
+    }
+
+    /**
+     *  @return false if definitely not added
+     */
+    public boolean mightContain(int key) {
+        long h = mix(key);
+        int h1 = (int) h;
+        int h2 = ((int) (h >>> 32)) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & _mask;
+            if ((_bits.get(bit >>> 6) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     *  The keys are already hash bytes, but we need 64 bits from 32
+     *  for the two hash functions.
+     *  This is the MurmurHash3 64-bit finalizer.
+     */
+    private static long mix(int key) {
+        long h = key & 0xffffffffL;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     *  @return true if more keys were added than the capacity,
+     *          and the filter should be rebuilt larger
+     */
+    public boolean isFull() {
+        return _count > _capacity;
+    }
+
+    /**
+     *  Keys added, including duplicates
+     */
+    public int getCount() {
+        return _count;
+    }
+
+    /**
+     *  @return bytes in the filter
+     */
+    public int getSize() {
+        return _bits.length() * 8;
+    }
+}
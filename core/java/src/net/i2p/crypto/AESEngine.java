@@ -182,7 +182,47 @@ public class AESEngine {
     public void decryptBlock(byte payload[], int inIndex, SessionKey sessionKey, byte rv[], int outIndex) {
         System.arraycopy(payload, inIndex, rv, outIndex, rv.length - outIndex);
     }
-    
+
+    /**
+     * Add one layer of tunnel encryption, in place.
+     * The 16 byte IV at offset is encrypted with the IV key, used as the IV
+     * for a CBC encryption of the rest of the message with the layer key,
+     * and then encrypted with the IV key again.
+     *
+     * This implementation works block by block, see extension for the real thing.
+     *
+     * @param data IV followed by the message
+     * @param offset index into data where the IV begins
+     * @param length length of IV plus message, (length - 16) must be a multiple of 16
+     * @param layerKey key for the message
+     * @param ivKey key for the IV
+     * @since 0.9.28
+     */
+    public void encryptTunnelLayer(byte data[], int offset, int length, SessionKey layerKey, SessionKey ivKey) {
+        encryptBlock(data, offset, ivKey, data, offset);
+        encrypt(data, offset + 16, data, offset + 16, layerKey, data, offset, length - 16);
+        encryptBlock(data, offset, ivKey, data, offset);
+    }
+
+    /**
+     * Remove one layer of tunnel encryption, in place.
+     * The reverse of encryptTunnelLayer().
+     *
+     * This implementation works block by block, see extension for the real thing.
+     *
+     * @param data IV followed by the message
+     * @param offset index into data where the IV begins
+     * @param length length of IV plus message, (length - 16) must be a multiple of 16
+     * @param layerKey key for the message
+     * @param ivKey key for the IV
+     * @since 0.9.28
+     */
+    public void decryptTunnelLayer(byte data[], int offset, int length, SessionKey layerKey, SessionKey ivKey) {
+        decryptBlock(data, offset, ivKey, data, offset);
+        decrypt(data, offset + 16, data, offset + 16, layerKey, data, offset, length - 16);
+        decryptBlock(data, offset, ivKey, data, offset);
+    }
+
 /******
     public static void main(String args[]) {
         I2PAppContext ctx = new I2PAppContext();
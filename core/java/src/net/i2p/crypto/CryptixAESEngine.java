@@ -10,6 +10,7 @@ package net.i2p.crypto;
  */
 
 import java.security.InvalidKeyException;
+import java.util.concurrent.atomic.AtomicLong;
 
 // for using system version
 import java.security.GeneralSecurityException;
@@ -26,6 +27,7 @@ import net.i2p.data.DataHelper;
 import net.i2p.data.SessionKey;
 import net.i2p.util.Log;
 import net.i2p.util.SimpleByteCache;
+import net.i2p.util.SimpleTimer;
 import net.i2p.util.SystemVersion;
 
 /** 
@@ -41,10 +43,33 @@ public final class CryptixAESEngine extends AESEngine {
     // keys are now cached in the SessionKey objects
     //private CryptixAESKeyCache _cache;
     
-    /** see test results below */
-    private static final int MIN_SYSTEM_AES_LENGTH = 704;
+    /**
+     *  For encrypt() and decrypt() only.
+     *  Was 704 when we did a Cipher.getInstance() and init() for every call,
+     *  see test results below.
+     *  With the ciphers kept in the key, CBC encrypt ns/op from
+     *  AESTunnelLayerBench 200000 2000, Java 17, one core with AES-NI
+     *  (a second run had the same crossover):
+     *<pre>
+     *  length  Cryptix  System
+     *    16      629      708
+     *    32     1201      498
+     *    48     1690      617
+     *   128     2207      340
+     *   704    11657     1148
+     *</pre>
+     *  The tunnel layer methods always use the system AES if available.
+     */
+    private static final int MIN_SYSTEM_AES_LENGTH = 32;
     private static final boolean USE_SYSTEM_AES = hasAESNI() && CryptoCheck.isUnlimited();
 
+    private static final String STAT_CACHE_HIT = "crypto.aes.cipherCacheHit";
+    private static final String STAT_CACHE_MISS = "crypto.aes.cipherCacheMiss";
+    /** counted here and published by StatPublisher, to stay off the stat locks @since 0.9.28 */
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private static final long STAT_PUBLISH_TIME = 60*1000;
+
     /**
      *  Do we have AES-NI support in the processor and JVM?
      *  Only on 64-bit x86 Java 7 fast JVMs, with AES-NI support.
@@ -68,6 +93,13 @@ public final class CryptixAESEngine extends AESEngine {
     public CryptixAESEngine(I2PAppContext context) {
         super(context);
         //_cache = new CryptixAESKeyCache();
+        if (USE_SYSTEM_AES) {
+            context.statManager().createRateStat(STAT_CACHE_HIT, "AES operations per minute with the key's ciphers already initialized",
+                                                 "Encryption", new long[] { 60*60*1000 });
+            context.statManager().createRateStat(STAT_CACHE_MISS, "AES operations per minute that initialized a key's ciphers",
+                                                 "Encryption", new long[] { 60*60*1000 });
+            context.simpleTimer2().addPeriodicEvent(new StatPublisher(), STAT_PUBLISH_TIME);
+        }
     }
     
     /**
@@ -104,11 +136,9 @@ public final class CryptixAESEngine extends AESEngine {
 
         if (USE_SYSTEM_AES && length >= MIN_SYSTEM_AES_LENGTH) {
             try {
-                SecretKeySpec key = new SecretKeySpec(sessionKey.getData(), "AES");
-                IvParameterSpec ivps = new IvParameterSpec(iv, ivOffset, 16);
-                Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-                cipher.init(Cipher.ENCRYPT_MODE, key, ivps, _context.random());
-                cipher.doFinal(payload, payloadIndex, length, out, outIndex);
+                KeyCiphers kc = getCiphers(sessionKey);
+                count(kc);
+                kc.cbc(Cipher.ENCRYPT_MODE, iv, ivOffset, payload, payloadIndex, out, outIndex, length);
                 return;
             } catch (GeneralSecurityException gse) {
                 if (_log.shouldLog(Log.WARN))
@@ -116,6 +146,15 @@ public final class CryptixAESEngine extends AESEngine {
             }
         }
 
+        cryptixEncrypt(payload, payloadIndex, out, outIndex, sessionKey, iv, ivOffset, length);
+    }
+
+    /**
+     *  CBC with Cryptix, no argument checking.
+     *  @param length must be a multiple of 16
+     *  @since 0.9.28 pulled out of encrypt()
+     */
+    private void cryptixEncrypt(byte payload[], int payloadIndex, byte out[], int outIndex, SessionKey sessionKey, byte iv[], int ivOffset, int length) {
         int numblock = length / 16;
         
         DataHelper.xor(iv, ivOffset, payload, payloadIndex, out, outIndex, 16);
@@ -151,11 +190,9 @@ public final class CryptixAESEngine extends AESEngine {
 
         if (USE_SYSTEM_AES && length >= MIN_SYSTEM_AES_LENGTH) {
             try {
-                SecretKeySpec key = new SecretKeySpec(sessionKey.getData(), "AES");
-                IvParameterSpec ivps = new IvParameterSpec(iv, ivOffset, 16);
-                Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-                cipher.init(Cipher.DECRYPT_MODE, key, ivps, _context.random());
-                cipher.doFinal(payload, payloadIndex, length, out, outIndex);
+                KeyCiphers kc = getCiphers(sessionKey);
+                count(kc);
+                kc.cbc(Cipher.DECRYPT_MODE, iv, ivOffset, payload, payloadIndex, out, outIndex, length);
                 return;
             } catch (GeneralSecurityException gse) {
                 if (_log.shouldLog(Log.WARN))
@@ -163,6 +200,15 @@ public final class CryptixAESEngine extends AESEngine {
             }
         }
 
+        cryptixDecrypt(payload, payloadIndex, out, outIndex, sessionKey, iv, ivOffset, length);
+    }
+
+    /**
+     *  CBC with Cryptix, no argument checking.
+     *  @param length must be a multiple of 16 (will overrun to next mod 16 if not)
+     *  @since 0.9.28 pulled out of decrypt()
+     */
+    private void cryptixDecrypt(byte payload[], int payloadIndex, byte out[], int outIndex, SessionKey sessionKey, byte iv[], int ivOffset, int length) {
         int numblock = length / 16;
         if (length % 16 != 0) {
             // may not work, it will overrun payload length and could AIOOBE
@@ -201,6 +247,209 @@ public final class CryptixAESEngine extends AESEngine {
         SimpleByteCache.release(cur);
     }
     
+    /**
+     *  Add one layer of tunnel encryption, in place.
+     *  Uses the key's initialized system Ciphers if available,
+     *  so the whole message is encrypted in a single call,
+     *  otherwise Cryptix.
+     *
+     *  @param data IV followed by the message
+     *  @param offset index into data where the IV begins
+     *  @param length length of IV plus message, (length - 16) must be a multiple of 16
+     *  @since 0.9.28
+     */
+    @Override
+    public void encryptTunnelLayer(byte data[], int offset, int length, SessionKey layerKey, SessionKey ivKey) {
+        int len = length - 16;
+        if (USE_SYSTEM_AES) {
+            KeyCiphers ivc = getCiphers(ivKey);
+            KeyCiphers layerc = getCiphers(layerKey);
+            count(ivc, layerc);
+            boolean started = false;
+            try {
+                ivc.ecb(Cipher.ENCRYPT_MODE, data, offset);
+                started = true;
+                layerc.cbc(Cipher.ENCRYPT_MODE, data, offset, data, offset + 16, data, offset + 16, len);
+                ivc.ecb(Cipher.ENCRYPT_MODE, data, offset);
+                return;
+            } catch (GeneralSecurityException gse) {
+                if (started) {
+                    // the data is partially processed, we can't fall back
+                    _log.error("Java tunnel encrypt fail", gse);
+                    throw new IllegalStateException("tunnel encrypt fail", gse);
+                }
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Java tunnel encrypt fail", gse);
+            }
+        }
+        encryptBlock(data, offset, ivKey, data, offset);
+        cryptixEncrypt(data, offset + 16, data, offset + 16, layerKey, data, offset, len);
+        encryptBlock(data, offset, ivKey, data, offset);
+    }
+
+    /**
+     *  Remove one layer of tunnel encryption, in place.
+     *  Uses the key's initialized system Ciphers if available,
+     *  so the whole message is decrypted in a single call,
+     *  otherwise Cryptix.
+     *
+     *  @param data IV followed by the message
+     *  @param offset index into data where the IV begins
+     *  @param length length of IV plus message, (length - 16) must be a multiple of 16
+     *  @since 0.9.28
+     */
+    @Override
+    public void decryptTunnelLayer(byte data[], int offset, int length, SessionKey layerKey, SessionKey ivKey) {
+        int len = length - 16;
+        if (USE_SYSTEM_AES) {
+            KeyCiphers ivc = getCiphers(ivKey);
+            KeyCiphers layerc = getCiphers(layerKey);
+            count(ivc, layerc);
+            boolean started = false;
+            try {
+                ivc.ecb(Cipher.DECRYPT_MODE, data, offset);
+                started = true;
+                layerc.cbc(Cipher.DECRYPT_MODE, data, offset, data, offset + 16, data, offset + 16, len);
+                ivc.ecb(Cipher.DECRYPT_MODE, data, offset);
+                return;
+            } catch (GeneralSecurityException gse) {
+                if (started) {
+                    // the data is partially processed, we can't fall back
+                    _log.error("Java tunnel decrypt fail", gse);
+                    throw new IllegalStateException("tunnel decrypt fail", gse);
+                }
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Java tunnel decrypt fail", gse);
+            }
+        }
+        decryptBlock(data, offset, ivKey, data, offset);
+        cryptixDecrypt(data, offset + 16, data, offset + 16, layerKey, data, offset, len);
+        decryptBlock(data, offset, ivKey, data, offset);
+    }
+
+    /**
+     *  The system ciphers for the key, created on first use and stored in the key,
+     *  so that they live as long as the tunnel or session holding the key,
+     *  however many keys are in use.
+     *
+     *  @since 0.9.28
+     */
+    private static KeyCiphers getCiphers(SessionKey key) {
+        KeyCiphers rv = (KeyCiphers) key.getPreparedCiphers();
+        if (rv == null) {
+            // harmless race, the loser's ciphers are dropped
+            rv = new KeyCiphers(key);
+            key.setPreparedCiphers(rv);
+        }
+        return rv;
+    }
+
+    /**
+     *  Count one hit or miss for an operation,
+     *  a miss if the key's ciphers were not yet initialized.
+     *
+     *  @since 0.9.28
+     */
+    private void count(KeyCiphers kc) {
+        if (kc.isNew())
+            _misses.incrementAndGet();
+        else
+            _hits.incrementAndGet();
+    }
+
+    /**
+     *  Count one hit or miss for a tunnel layer operation,
+     *  a miss if either key's ciphers were not yet initialized.
+     *
+     *  @since 0.9.28
+     */
+    private void count(KeyCiphers ivc, KeyCiphers layerc) {
+        // no short circuit, mark both as used
+        boolean missed = ivc.isNew() | layerc.isNew();
+        if (missed)
+            _misses.incrementAndGet();
+        else
+            _hits.incrementAndGet();
+    }
+
+    /**
+     *  Publish the hit and miss counts since the last run
+     *
+     *  @since 0.9.28
+     */
+    private class StatPublisher implements SimpleTimer.TimedEvent {
+        public void timeReached() {
+            _context.statManager().addRateData(STAT_CACHE_HIT, _hits.getAndSet(0));
+            _context.statManager().addRateData(STAT_CACHE_MISS, _misses.getAndSet(0));
+        }
+    }
+
+    /**
+     *  The system ciphers for a single key, created lazily.
+     *  Cipher is not thread-safe, so each use is synchronized on this.
+     *  Threads only contend when working with the same key at the same time.
+     *  ECB ciphers are initialized once and reused as-is.
+     *  CBC ciphers must be reinitialized with each IV, but we save
+     *  the provider lookup, and the provider skips the key expansion
+     *  if the key is unchanged.
+     *
+     *  @since 0.9.28
+     */
+    private static class KeyCiphers {
+        private final SecretKeySpec _spec;
+        private Cipher _ecbEnc, _ecbDec, _cbcEnc, _cbcDec;
+        private volatile boolean _used;
+
+        public KeyCiphers(SessionKey key) {
+            _spec = new SecretKeySpec(key.getData(), "AES");
+        }
+
+        /**
+         *  @return true the first time only
+         */
+        public boolean isNew() {
+            if (_used)
+                return false;
+            _used = true;
+            return true;
+        }
+
+        /**
+         *  One block in place.
+         *  @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+         */
+        public synchronized void ecb(int mode, byte data[], int offset) throws GeneralSecurityException {
+            Cipher c = mode == Cipher.ENCRYPT_MODE ? _ecbEnc : _ecbDec;
+            if (c == null) {
+                c = Cipher.getInstance("AES/ECB/NoPadding");
+                c.init(mode, _spec);
+                if (mode == Cipher.ENCRYPT_MODE)
+                    _ecbEnc = c;
+                else
+                    _ecbDec = c;
+            }
+            c.doFinal(data, offset, 16, data, offset);
+        }
+
+        /**
+         *  @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+         *  @param length must be a multiple of 16
+         */
+        public synchronized void cbc(int mode, byte iv[], int ivOffset, byte in[], int inOffset,
+                                     byte out[], int outOffset, int length) throws GeneralSecurityException {
+            Cipher c = mode == Cipher.ENCRYPT_MODE ? _cbcEnc : _cbcDec;
+            if (c == null) {
+                c = Cipher.getInstance("AES/CBC/NoPadding");
+                if (mode == Cipher.ENCRYPT_MODE)
+                    _cbcEnc = c;
+                else
+                    _cbcDec = c;
+            }
+            c.init(mode, _spec, new IvParameterSpec(iv, ivOffset, 16));
+            c.doFinal(in, inOffset, length, out, outOffset);
+        }
+    }
+
     /** encrypt exactly 16 bytes using the session key
      * @param payload plaintext data, 16 bytes starting at inIndex
      * @param sessionKey private session key
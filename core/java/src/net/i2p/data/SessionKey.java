@@ -19,6 +19,7 @@ package net.i2p.data;
  */
 public class SessionKey extends SimpleDataStructure {
     private Object _preparedKey;
+    private volatile Object _preparedCiphers;
 
     public final static int KEYSIZE_BYTES = 32;
     /** A key with all zeroes in the data */
@@ -46,6 +47,7 @@ public class SessionKey extends SimpleDataStructure {
     public void setData(byte[] data) {
         super.setData(data);
         _preparedKey = null;
+        _preparedCiphers = null;
     }
     
     /** 
@@ -54,4 +56,16 @@ public class SessionKey extends SimpleDataStructure {
      */
     public Object getPreparedKey() { return _preparedKey; }
     public void setPreparedKey(Object obj) { _preparedKey = obj; }
+
+    /** 
+     * retrieve the system ciphers for the session key, as created by the AES engine,
+     * so they are kept as long as the key is
+     * @since 0.9.28
+     */
+    public Object getPreparedCiphers() { return _preparedCiphers; }
+
+    /** 
+     * @since 0.9.28
+     */
+    public void setPreparedCiphers(Object obj) { _preparedCiphers = obj; }
 }
@@ -1,6 +1,7 @@
 package net.i2p.stat;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Properties;
 
 import net.i2p.data.DataHelper;
@@ -14,6 +15,8 @@ import net.i2p.data.DataHelper;
  */
 public class Rate {
     //private final static Log _log = new Log(Rate.class);
+    // As of 0.9.28, the current and lifetime totals do not include
+    // events added through the RateStat until fold() is called
     private float _currentTotalValue;
     // was long, save space
     private int _currentEventCount;
@@ -36,22 +39,31 @@ public class Rate {
     private long _creationDate;
     // was long, save space
     private int _period;
+    /** shared with the other rates of the RateStat, null if standalone */
+    private final RateAccumulator _acc;
+    /** accumulator totals when last folded */
+    private long _accCount;
+    private long _accValue;
+    private long _accTime;
 
     /** locked during coalesce and addData */
     // private final Object _lock = new Object();
 
     /** in the current (partial) period, what is the total value acrued through all events? */
     public synchronized double getCurrentTotalValue() {
+        fold();
         return _currentTotalValue;
     }
 
     /** in the current (partial) period, how many events have occurred? */
     public synchronized long getCurrentEventCount() {
+        fold();
         return _currentEventCount;
     }
 
     /** in the current (partial) period, how much of the time has been spent doing the events? */
     public synchronized long getCurrentTotalEventTime() {
+        fold();
         return _currentTotalEventTime;
     }
 
@@ -90,16 +102,19 @@ public class Rate {
 
     /** since rate creation, what was the total value acrued through all events?  */
     public synchronized double getLifetimeTotalValue() {
+        fold();
         return _lifetimeTotalValue;
     }
 
     /** since rate creation, how many events have occurred? */
     public synchronized long getLifetimeEventCount() {
+        fold();
         return _lifetimeEventCount;
     }
 
     /** since rate creation, how much of the time was spent doing the events? */
     public synchronized long getLifetimeTotalEventTime() {
+        fold();
         return _lifetimeTotalEventTime;
     }
 
@@ -128,12 +143,68 @@ public class Rate {
      * @throws IllegalArgumentException if the period is invalid
      */
     public Rate(long period) throws IllegalArgumentException {
+        this(period, null);
+    }
+
+    /**
+     * For RateStat. Events added to the accumulator after this are in this rate.
+     *
+     * @param acc may be null
+     * @throws IllegalArgumentException if the period is invalid
+     * @since 0.9.28
+     */
+    Rate(long period, RateAccumulator acc) throws IllegalArgumentException {
         if (period <= 0 || period > Integer.MAX_VALUE)
             throw new IllegalArgumentException();
 
         _creationDate = now();
         _lastCoalesceDate = _creationDate;
         _period = (int) period;
+        _acc = acc;
+        discardAccumulated();
+    }
+
+    /**
+     * Add the events from the accumulator since the last call
+     * to the current and lifetime totals.
+     * Caller must synchronize.
+     *
+     * @since 0.9.28
+     */
+    private void fold() {
+        if (_acc == null)
+            return;
+        long count = _acc.getCount();
+        long value = _acc.getValue();
+        long time = _acc.getTime();
+        long dc = count - _accCount;
+        long dv = value - _accValue;
+        long dt = time - _accTime;
+        if (dc == 0 && dv == 0 && dt == 0)
+            return;
+        _accCount = count;
+        _accValue = value;
+        _accTime = time;
+        _currentTotalValue += dv;
+        _currentEventCount += dc;
+        _currentTotalEventTime += dt;
+        _lifetimeTotalValue += dv;
+        _lifetimeEventCount += dc;
+        _lifetimeTotalEventTime += dt;
+    }
+
+    /**
+     * Ignore the events in the accumulator so far, as they are overwritten by a load.
+     * Caller must synchronize.
+     *
+     * @since 0.9.28
+     */
+    private void discardAccumulated() {
+        if (_acc == null)
+            return;
+        _accCount = _acc.getCount();
+        _accValue = _acc.getValue();
+        _accTime = _acc.getTime();
     }
 
     /**
@@ -216,6 +287,7 @@ public class Rate {
         long now = now();
         double correctedTotalValue; // for summaryListener which divides by rounded EventCount
         synchronized (this) {
+            fold();
             long measuredPeriod = now - _lastCoalesceDate;
             if (measuredPeriod < _period - SLACK) {
                 // no need to coalesce (assuming we only try to do so once per minute)
@@ -281,6 +353,7 @@ public class Rate {
      * What was the average value across the events since the stat was created?
      */
     public synchronized double getLifetimeAverageValue() {
+        fold();
         if ((_lifetimeTotalValue != 0) && (_lifetimeEventCount > 0))
             return _lifetimeTotalValue / _lifetimeEventCount;
        
@@ -339,6 +412,7 @@ public class Rate {
      * @return ratio, or 0 if event times aren't used
      */
     public synchronized double getLifetimeEventSaturation() {
+        fold();
         if ((_lastEventCount > 0) && (_lifetimeTotalEventTime > 0)) {
             double eventTime = (double) _lifetimeTotalEventTime / (double) _lifetimeEventCount;
             double maxEvents = _period / eventTime;
@@ -407,6 +481,7 @@ public class Rate {
      * Warning- returns ratio, not percentage (i.e. it is not multiplied by 100 here)
      */
     public synchronized double getPercentageOfLifetimeValue() {
+        fold();
         if ((_lastTotalValue != 0) && (_lifetimeTotalValue != 0)) {
             double lifetimePeriodValue = _period * (_lifetimeTotalValue / (now() - _creationDate));
             return _lastTotalValue / lifetimePeriodValue;
@@ -432,6 +507,7 @@ public class Rate {
      */
     public synchronized RateAverages computeAverages(RateAverages out, boolean useLifetime) {
         out.reset();
+        fold();
         
         final long total = _currentEventCount + _lastEventCount;
         out.setTotalEventCount(total);
@@ -453,6 +529,7 @@ public class Rate {
     }
 
     public synchronized void store(String prefix, StringBuilder buf) throws IOException {
+        fold();
         PersistenceHelper.addTime(buf, prefix, ".period", "Length of the period:", _period);
         PersistenceHelper.addDate(buf, prefix, ".creationDate",
                               "When was this rate created?", _creationDate);
@@ -517,6 +594,7 @@ public class Rate {
         _lifetimeTotalValue = (float)PersistenceHelper.getDouble(props, prefix, ".lifetimeTotalValue");
         _lifetimeEventCount = PersistenceHelper.getLong(props, prefix, ".lifetimeEventCount");
         _lifetimeTotalEventTime = PersistenceHelper.getLong(props, prefix, ".lifetimeTotalEventTime");
+        discardAccumulated();
 
         if (treatAsCurrent) _lastCoalesceDate = now();
 
@@ -524,6 +602,70 @@ public class Rate {
         coalesce();
     }
 
+    /**
+     * Size of the data written by store(ByteBuffer)
+     * @since 0.9.28
+     */
+    public static final int BINARY_SIZE = 4 + 8 + 8 + (3 * (4 + 4 + 4)) + 4 + 8 + 8;
+
+    /**
+     * Write the same data as store(String, StringBuilder), except the current date,
+     * in a fixed-width binary form of BINARY_SIZE bytes, at the buffer's position.
+     *
+     * @since 0.9.28
+     */
+    public synchronized void store(ByteBuffer buf) {
+        fold();
+        buf.putInt(_period);
+        buf.putLong(_creationDate);
+        buf.putLong(_lastCoalesceDate);
+        buf.putFloat(_currentTotalValue);
+        buf.putInt(_currentEventCount);
+        buf.putInt(_currentTotalEventTime);
+        buf.putFloat(_lastTotalValue);
+        buf.putInt(_lastEventCount);
+        buf.putInt(_lastTotalEventTime);
+        buf.putFloat(_extremeTotalValue);
+        buf.putInt(_extremeEventCount);
+        buf.putInt(_extremeTotalEventTime);
+        buf.putFloat(_lifetimeTotalValue);
+        buf.putLong(_lifetimeEventCount);
+        buf.putLong(_lifetimeTotalEventTime);
+    }
+
+    /**
+     * Load this rate from the buffer, as written by store(ByteBuffer).
+     * Unlike load(Properties, ...), the period is not changed,
+     * it must be the same as the stored one.
+     *
+     * @param treatAsCurrent as in load(Properties, ...)
+     * @throws IllegalArgumentException if the stored period is different
+     * @since 0.9.28
+     */
+    public synchronized void load(ByteBuffer buf, boolean treatAsCurrent) throws IllegalArgumentException {
+        int period = buf.getInt();
+        if (period != _period)
+            throw new IllegalArgumentException("Stored period " + period + " does not match " + _period);
+        _creationDate = buf.getLong();
+        _lastCoalesceDate = buf.getLong();
+        _currentTotalValue = buf.getFloat();
+        _currentEventCount = buf.getInt();
+        _currentTotalEventTime = buf.getInt();
+        _lastTotalValue = buf.getFloat();
+        _lastEventCount = buf.getInt();
+        _lastTotalEventTime = buf.getInt();
+        _extremeTotalValue = buf.getFloat();
+        _extremeEventCount = buf.getInt();
+        _extremeTotalEventTime = buf.getInt();
+        _lifetimeTotalValue = buf.getFloat();
+        _lifetimeEventCount = buf.getLong();
+        _lifetimeTotalEventTime = buf.getLong();
+        discardAccumulated();
+
+        if (treatAsCurrent) _lastCoalesceDate = now();
+        coalesce();
+    }
+
     /**
      * This is used in StatSummarizer and SummaryListener.
      * We base it on the stat we are tracking, not the stored data.
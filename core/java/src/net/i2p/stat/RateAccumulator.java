@@ -0,0 +1,102 @@
+package net.i2p.stat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Running totals of the events added to a RateStat, shared by all its Rates,
+ * so an event is one update here instead of a synchronized update of every Rate.
+ * Each Rate remembers the totals when it last folded them in,
+ * and the difference is its current period.
+ *
+ * The totals are in three fields until an update loses a race.
+ * Then striped cells are added, a cache line per stripe, and each thread
+ * updates the stripe picked by its thread ID. Only the getters add them up.
+ * Like LongAdder, which is Java 8.
+ *
+ * Totals read while events are being added may be a few events apart.
+ *
+ * @since 0.9.28
+ */
+class RateAccumulator {
+    private volatile long _count;
+    private volatile long _value;
+    private volatile long _time;
+    /** null until contended */
+    private volatile AtomicLongArray _stripes;
+
+    private static final AtomicLongFieldUpdater<RateAccumulator> COUNT =
+        AtomicLongFieldUpdater.newUpdater(RateAccumulator.class, "_count");
+    private static final AtomicLongFieldUpdater<RateAccumulator> VALUE =
+        AtomicLongFieldUpdater.newUpdater(RateAccumulator.class, "_value");
+    private static final AtomicLongFieldUpdater<RateAccumulator> TIME =
+        AtomicLongFieldUpdater.newUpdater(RateAccumulator.class, "_time");
+
+    /** longs per stripe, 64 bytes */
+    private static final int STRIDE = 8;
+    private static final int STRIPES;
+    static {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int n = 2;
+        while (n < cpus && n < 64) {
+            n <<= 1;
+        }
+        STRIPES = n;
+    }
+
+    public void add(long value, long eventTime) {
+        AtomicLongArray stripes = _stripes;
+        if (stripes == null) {
+            long count = _count;
+            if (COUNT.compareAndSet(this, count, count + 1)) {
+                if (value != 0)
+                    VALUE.getAndAdd(this, value);
+                if (eventTime != 0)
+                    TIME.getAndAdd(this, eventTime);
+                return;
+            }
+            stripes = initStripes();
+        }
+        int i = (((int) Thread.currentThread().getId()) & (STRIPES - 1)) * STRIDE;
+        stripes.getAndIncrement(i);
+        if (value != 0)
+            stripes.getAndAdd(i + 1, value);
+        if (eventTime != 0)
+            stripes.getAndAdd(i + 2, eventTime);
+    }
+
+    private synchronized AtomicLongArray initStripes() {
+        AtomicLongArray rv = _stripes;
+        if (rv == null) {
+            rv = new AtomicLongArray(STRIPES * STRIDE);
+            _stripes = rv;
+        }
+        return rv;
+    }
+
+    /** total events */
+    public long getCount() {
+        return _count + sum(0);
+    }
+
+    /** total value */
+    public long getValue() {
+        return _value + sum(1);
+    }
+
+    /** total event time */
+    public long getTime() {
+        return _time + sum(2);
+    }
+
+    private long sum(int offset) {
+        AtomicLongArray stripes = _stripes;
+        if (stripes == null)
+            return 0;
+        long rv = 0;
+        for (int i = offset; i < STRIPES * STRIDE; i += STRIDE) {
+            rv += stripes.get(i);
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,136 @@
+package net.i2p.stat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-size ring of the average value and event count of a Rate
+ * for each of its most recent periods, filled in as it is coalesced,
+ * for example by a RateSummaryListener.
+ *
+ * All the rows are in a single buffer, optionally off-heap,
+ * allocated when created, so the memory used is fixed at 8 bytes per row,
+ * with no per-row objects.
+ * Values are stored as floats and event counts as ints.
+ *
+ * Periods that were never added, e.g. while the router was down or
+ * the clock jumped, are NaN.
+ *
+ * @since 0.9.28
+ */
+public class RateHistory {
+    private final long _period;
+    private final int _rows;
+    private final ByteBuffer _buf;
+    /** period number of the most recent row, or -1 if none */
+    private long _last = -1;
+
+    private static final int ROW_LEN = 8;
+
+    /**
+     * @param period ms
+     * @param rows how many periods to keep
+     * @param offHeap if true, use a direct buffer
+     */
+    public RateHistory(long period, int rows, boolean offHeap) {
+        if (period <= 0 || rows <= 0)
+            throw new IllegalArgumentException();
+        _period = period;
+        _rows = rows;
+        _buf = offHeap ? ByteBuffer.allocateDirect(rows * ROW_LEN) : ByteBuffer.allocate(rows * ROW_LEN);
+        // rows before the first one added
+        for (int i = 0; i < rows; i++) {
+            put(i, Float.NaN, -1);
+        }
+    }
+
+    /**
+     * Add the data for the period ending about now.
+     * Rates are coalesced a little early or late, so the time
+     * is rounded to the nearest period.
+     * Times before the most recent period are ignored.
+     *
+     * @param time ms, when the rate was coalesced
+     */
+    public synchronized void add(long time, double averageValue, long eventCount) {
+        long step = (time + (_period / 2)) / _period;
+        if (step < _last)
+            return;
+        if (_last >= 0) {
+            // mark any skipped periods
+            long from = Math.max(_last + 1, step - _rows + 1);
+            for (long s = from; s < step; s++) {
+                put(s, Float.NaN, -1);
+            }
+        }
+        put(step, (float) averageValue, (int) Math.min(eventCount, Integer.MAX_VALUE));
+        _last = step;
+    }
+
+    private void put(long step, float value, int events) {
+        int off = (int) (step % _rows) * ROW_LEN;
+        _buf.putFloat(off, value);
+        _buf.putInt(off + 4, events);
+    }
+
+    /**
+     * @return offset of the row for the period containing time, or -1 if not in the history
+     */
+    private int offset(long time) {
+        if (_last < 0 || time <= 0)
+            return -1;
+        // the row for step s covers ((s - 1) * period, s * period]
+        long step = (time + _period - 1) / _period;
+        if (step > _last || step <= _last - _rows)
+            return -1;
+        return (int) (step % _rows) * ROW_LEN;
+    }
+
+    /**
+     * @param time ms
+     * @return the average value for the period containing time, or NaN
+     */
+    public synchronized double getAverageValue(long time) {
+        int off = offset(time);
+        if (off < 0)
+            return Double.NaN;
+        return _buf.getFloat(off);
+    }
+
+    /**
+     * @param time ms
+     * @return the event count for the period containing time, or NaN
+     */
+    public synchronized double getEventCount(long time) {
+        int off = offset(time);
+        if (off < 0)
+            return Double.NaN;
+        int rv = _buf.getInt(off + 4);
+        return rv >= 0 ? rv : Double.NaN;
+    }
+
+    /**
+     * @return end of the most recent period added, in ms, or 0 if none
+     */
+    public synchronized long getLastTime() {
+        return _last >= 0 ? _last * _period : 0;
+    }
+
+    public long getPeriod() {
+        return _period;
+    }
+
+    public int getRows() {
+        return _rows;
+    }
+
+    /**
+     * @return bytes in the buffer
+     */
+    public int getSize() {
+        return _rows * ROW_LEN;
+    }
+
+    public boolean isOffHeap() {
+        return _buf.isDirect();
+    }
+}
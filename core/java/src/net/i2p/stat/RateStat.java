@@ -2,6 +2,7 @@ package net.i2p.stat;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import static java.util.Arrays.*;
 import java.util.Properties;
 
@@ -17,6 +18,8 @@ public class RateStat {
     private final String _description;
     /** actual rate objects for this statistic */
     protected final Rate[] _rates;
+    /** events for all the rates, @since 0.9.28 */
+    private final RateAccumulator _acc;
     /** component we tell about events as they occur */
     private StatLog _statLog;
 
@@ -31,9 +34,10 @@ public class RateStat {
         System.arraycopy(periods, 0, periodsCopy, 0, periods.length);
         sort(periodsCopy);
         
+        _acc = new RateAccumulator();
         _rates = new Rate[periodsCopy.length];
         for (int i = 0; i < periodsCopy.length; i++) {
-            Rate rate = new Rate(periodsCopy[i]);
+            Rate rate = new Rate(periodsCopy[i], _acc);
             rate.setRateStat(this);
             _rates[i] = rate;
         }
@@ -42,11 +46,12 @@ public class RateStat {
     
     /** 
      * update all of the rates for the various periods with the given value.  
+     * As of 0.9.28, this is a single lock-free update,
+     * the rates pick it up when they are read or coalesced.
      */
     public void addData(long value, long eventDuration) {
         if (_statLog != null) _statLog.addData(_groupName, _statName, value, eventDuration);
-        for (Rate r: _rates)
-            r.addData(value, eventDuration);
+        _acc.add(value, eventDuration);
     }
 
     /** 
@@ -56,8 +61,7 @@ public class RateStat {
      */
     public void addData(long value) {
         if (_statLog != null) _statLog.addData(_groupName, _statName, value, 0);
-        for (Rate r: _rates)
-            r.addData(value);
+        _acc.add(value, 0);
     }
 
     /** coalesce all the stats */
@@ -220,6 +224,40 @@ public class RateStat {
         }
     }
 
+    /**
+     * Size of the data written by store(ByteBuffer)
+     * @since 0.9.28
+     */
+    public int getBinarySize() {
+        return _rates.length * Rate.BINARY_SIZE;
+    }
+
+    /**
+     * Write all the rates in a fixed-width binary form, in order of period,
+     * at the buffer's position.
+     *
+     * @since 0.9.28
+     */
+    public void store(ByteBuffer buf) {
+        for (Rate r : _rates) {
+            r.store(buf);
+        }
+    }
+
+    /**
+     * Load all the rates from the buffer, as written by store(ByteBuffer).
+     * This RateStat must have the same periods as the stored one.
+     *
+     * @param treatAsCurrent as in load(Properties, ...)
+     * @throws IllegalArgumentException if the periods are different
+     * @since 0.9.28
+     */
+    public void load(ByteBuffer buf, boolean treatAsCurrent) throws IllegalArgumentException {
+        for (Rate r : _rates) {
+            r.load(buf, treatAsCurrent);
+        }
+    }
+
 /*********
     public static void main(String args[]) {
         RateStat rs = new RateStat("moo", "moo moo moo", "cow trueisms", new long[] { 60 * 1000, 60 * 60 * 1000,
@@ -76,6 +76,35 @@ class FileLogWriter extends LogWriter {
         }
     }
 
+    /**
+     *  Write the chars directly, with no String copy.
+     *  The batch may take the file a little over the size limit before rotation.
+     *
+     *  @since 0.9.28
+     */
+    @Override
+    protected synchronized void writeBatch(char[] buf, int len) {
+        if (_currentOut == null) {
+            rotateFile();
+            if (_currentOut == null)
+                return; // hosed
+        }
+
+        try {
+            _currentOut.write(buf, 0, len);
+            // may be a little off if a lot of multi-byte chars, but unlikely
+            _numBytesInCurrentFile += len;
+        } catch (Throwable t) {
+            if (!_write)
+                return;
+            if (++_diskFullMessageCount < MAX_DISKFULL_MESSAGES)
+                System.err.println("Error writing log, disk full? " + t);
+        }
+        if (_numBytesInCurrentFile >= _manager.getFileSize()) {
+            rotateFile();
+        }
+    }
+
     /**
      *  @since 0.9.19
      */
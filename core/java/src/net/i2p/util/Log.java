@@ -110,9 +110,7 @@ public class Log {
 
     public void log(int priority, String msg) {
         if (priority >= _minPriority) {
-            _manager.addRecord(new LogRecord(_class, _name, 
-                                             Thread.currentThread().getName(), priority,
-                                             msg, null));
+            _manager.addRecord(_class, _name, priority, msg, null);
         }
     }
 
@@ -121,9 +119,7 @@ public class Log {
         //if (t != null && t instanceof RuntimeException && !(t instanceof IllegalArgumentException))
         //    priority = CRIT;
         if (priority >= _minPriority) {
-            _manager.addRecord(new LogRecord(_class, _name, 
-                                             Thread.currentThread().getName(), priority,
-                                             msg, t));
+            _manager.addRecord(_class, _name, priority, msg, t);
         }
     }
 
@@ -133,9 +129,7 @@ public class Log {
      *  @since 0.8.2
      */
     public void logAlways(int priority, String msg) {
-            _manager.addRecord(new LogRecord(_class, _name, 
-                                             Thread.currentThread().getName(), priority,
-                                             msg, null));
+            _manager.addRecord(_class, _name, priority, msg, null);
     }
 
     public void debug(String msg) {
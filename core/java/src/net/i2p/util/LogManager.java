@@ -65,6 +65,12 @@ public class LogManager implements Flushable {
     private static final String PROP_DUP = "logger.dropDuplicates";
     /** @since 0.9.18 */
     private static final String PROP_FLUSH = "logger.flushInterval";
+    /**
+     *  Use a ring of preallocated records instead of the queue.
+     *  Read at startup only.
+     *  @since 0.9.28
+     */
+    private static final String PROP_RING = "logger.ringBuffer";
     public final static String PROP_RECORD_PREFIX = "logger.record.";
 
     public final static String DEFAULT_FORMAT = DATE + " " + PRIORITY + " [" + THREAD + "] " + CLASS + ": " + MESSAGE;
@@ -92,6 +98,8 @@ public class LogManager implements Flushable {
     private static final int MAX_BUFFER = 1024;
     /** Ordered list of LogRecord elements that have not been written out yet */
     private final LinkedBlockingQueue<LogRecord> _records;
+    /** used instead of _records if non-null @since 0.9.28 */
+    private final LogRecordRing _ring;
     /** List of explicit overrides of log levels (LogLimit objects) */
     private final Set<LogLimit> _limits;
     /** String (scope) or Log.LogScope to Log object */
@@ -128,6 +136,7 @@ public class LogManager implements Flushable {
     private int _logBufferSize = MAX_BUFFER;
     private boolean _dropOnOverflow;
     private boolean _dropDuplicates;
+    private boolean _useRing;
     private final AtomicLong _droppedRecords = new AtomicLong();
     // in seconds
     private int _flushInterval = (int) (LogWriter.FLUSH_INTERVAL / 1000);
@@ -145,6 +154,8 @@ public class LogManager implements Flushable {
         String location = context.getProperty(CONFIG_LOCATION_PROP, CONFIG_LOCATION_DEFAULT);
         setConfig(location);
         _records = new LinkedBlockingQueue<LogRecord>(_logBufferSize);
+        // AndroidLogWriter doesn't batch
+        _ring = (_useRing && !SystemVersion.isAndroid()) ? new LogRecordRing(_logBufferSize) : null;
         _consoleBuffer = new LogConsoleBuffer(_consoleBufferSize);
         // If we aren't in the router context, delay creating the LogWriter until required,
         // so it doesn't create a log directory and log files unless there is output.
@@ -274,6 +285,48 @@ public class LogManager implements Flushable {
         return _writer.currentFile();
     }
 
+    /**
+     * Used by Log to add records to the queue or ring.
+     * With the ring, no record is created.
+     * This is generally nonblocking but may block when under
+     * massive logging load as a way of throttling logging threads.
+     *
+     * @since 0.9.28
+     */
+    void addRecord(Class<?> src, String name, int priority, String msg, Throwable t) {
+        if (_ring == null) {
+            addRecord(new LogRecord(src, name, Thread.currentThread().getName(), priority, msg, t));
+            return;
+        }
+        if ((!_context.isRouterContext()) && _writer == null)
+            startLogWriter();
+
+        String threadName = Thread.currentThread().getName();
+        boolean success = _ring.offer(src, name, threadName, priority, msg, t);
+        if (!success) {
+            if (_dropOnOverflow) {
+                _droppedRecords.incrementAndGet();
+                return;
+            }
+            // block as a way of slowing down out-of-control loggers (a little)
+            do {
+                synchronized (_writer) {
+                    _writer.notifyAll();
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ie) {
+                    _droppedRecords.incrementAndGet();
+                    return;
+                }
+            } while (!_ring.offer(src, name, threadName, priority, msg, t));
+        } else if (_flushInterval <= 0) {
+            synchronized (_writer) {
+                _writer.notifyAll();
+            }
+        }
+    }
+
     /**
      * Used by Log to add records to the queue.
      * This is generally nonblocking and unsyncrhonized but may block when under
@@ -287,6 +340,7 @@ public class LogManager implements Flushable {
         if (!success) {
             if (_dropOnOverflow) {
                 // TODO use the counter in a periodic drop msg
+                // (it's in the logger.dropped stat as of 0.9.28)
                 _droppedRecords.incrementAndGet();
                 return;
             }
@@ -430,6 +484,7 @@ public class LogManager implements Flushable {
         } catch (NumberFormatException nfe) {}
 
         _dropOnOverflow = Boolean.parseBoolean(config.getProperty(PROP_DROP));
+        _useRing = Boolean.parseBoolean(config.getProperty(PROP_RING));
         String str = config.getProperty(PROP_DUP);
         _dropDuplicates = str == null || Boolean.parseBoolean(str);
 
@@ -708,6 +763,30 @@ public class LogManager implements Flushable {
         return _records;
     }
 
+    /**
+     *  For the LogWriter
+     *  @return null if using the queue
+     *  @since 0.9.28
+     */
+    LogRecordRing getRing() {
+        return _ring;
+    }
+
+    /**
+     *  Records dropped as the queue or ring was full, since startup
+     *  @since 0.9.28
+     */
+    long getDroppedRecords() {
+        return _droppedRecords.get();
+    }
+
+    /**
+     *  @since 0.9.28
+     */
+    private boolean isQueueEmpty() {
+        return _ring != null ? _ring.isEmpty() : _records.isEmpty();
+    }
+
     public char[] getFormat() {
         return _format;
     }
@@ -754,7 +833,7 @@ public class LogManager implements Flushable {
     public void flush() {
         if (_writer != null) {
             int i = 50;
-            while ((!_records.isEmpty()) && i-- > 0) {
+            while ((!isQueueEmpty()) && i-- > 0) {
                 synchronized (_writer) {
                     _writer.notifyAll();
                 }
@@ -778,6 +857,8 @@ public class LogManager implements Flushable {
             }
         }
         _records.clear();
+        if (_ring != null)
+            _ring.clear();
         _limits.clear();
         _logs.clear();
         _consoleBuffer.clear();
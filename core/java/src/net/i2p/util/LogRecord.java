@@ -12,17 +12,33 @@ package net.i2p.util;
 /**
  * Keep track of a log entry, unformatted.
  *
+ * As of 0.9.28, records in a LogRecordRing are preallocated and reused,
+ * so the fields are not final. Records in the LogManager's queue are never changed.
  */
 class LogRecord {
-    private final long _date;
-    private final Class<?> _source;
-    private final String _name;
-    private final String _threadName;
-    private final int _priority;
-    private final String _message;
-    private final Throwable _throwable;
+    private long _date;
+    private Class<?> _source;
+    private String _name;
+    private String _threadName;
+    private int _priority;
+    private String _message;
+    private Throwable _throwable;
 
     public LogRecord(Class<?> src, String name, String threadName, int priority, String msg, Throwable t) {
+        set(src, name, threadName, priority, msg, t);
+    }
+
+    /**
+     *  An empty record, for LogRecordRing
+     *  @since 0.9.28
+     */
+    LogRecord() {}
+
+    /**
+     *  Reuse this record, for LogRecordRing
+     *  @since 0.9.28
+     */
+    void set(Class<?> src, String name, String threadName, int priority, String msg, Throwable t) {
         _date = Clock.getInstance().now();
         _source = src;
         _name = name;
@@ -32,6 +48,33 @@ class LogRecord {
         _throwable = t;
     }
 
+    /**
+     *  Copy another record into this one, so the other may be reused
+     *  @since 0.9.28
+     */
+    void copyFrom(LogRecord r) {
+        _date = r._date;
+        _source = r._source;
+        _name = r._name;
+        _threadName = r._threadName;
+        _priority = r._priority;
+        _message = r._message;
+        _throwable = r._throwable;
+    }
+
+    /**
+     *  Release the references, so a free record in a LogRecordRing
+     *  doesn't keep the message and throwable from being collected
+     *  @since 0.9.28
+     */
+    void clear() {
+        _source = null;
+        _name = null;
+        _threadName = null;
+        _message = null;
+        _throwable = null;
+    }
+
     public long getDate() {
         return _date;
     }
@@ -42,23 +42,38 @@ class LogRecordFormatter {
         if (rec.getThrowable() != null)
             size += 512;
         StringBuilder buf = new StringBuilder(size);
+        formatRecord(manager, rec, showDate ? getWhen(manager, rec) : null, buf);
+        return buf.toString();
+    }
+
+    /**
+     *  Append the formatted record to buf, for LogWriter batches.
+     *  The same as formatRecord() but with no intermediate strings
+     *  except for a throwable.
+     *
+     *  @param when the formatted date, may be cached by the caller; if null, skip any date in the format
+     *  @since 0.9.28
+     */
+    static void formatRecord(LogManager manager, LogRecord rec, String when, StringBuilder buf) {
         char format[] = manager.getFormat();
         for (int i = 0; i < format.length; ++i) {
             switch (format[i]) {
             case LogManager.DATE:
-                if (showDate)
-                    buf.append(getWhen(manager, rec));
+                if (when != null)
+                    buf.append(when);
                 else if (i+1 < format.length && format[i+1] == ' ')
                     i++;  // skip following space
                 break;
             case LogManager.CLASS:
-                buf.append(getWhere(rec));
+                String src = (rec.getSource() != null ? rec.getSource().getName() : rec.getSourceName());
+                if (src == null) src = "<none>";
+                append(buf, src, MAX_WHERE_LENGTH);
                 break;
             case LogManager.THREAD:
-                buf.append(getThread(rec));
+                append(buf, rec.getThreadName(), MAX_THREAD_LENGTH);
                 break;
             case LogManager.PRIORITY:
-                buf.append(getPriority(rec, manager.getContext()));
+                appendPriority(buf, rec, manager.getContext());
                 break;
             case LogManager.MESSAGE:
                 String msg = getWhat(rec);
@@ -78,11 +93,6 @@ class LogRecordFormatter {
             pw.flush();
             buf.append(sw.toString());
         }
-        return buf.toString();
-    }
-
-    private static String getThread(LogRecord logRecord) {
-        return toString(logRecord.getThreadName(), MAX_THREAD_LENGTH);
     }
 
     public static String getWhen(LogManager manager, LogRecord logRecord) {
@@ -99,34 +109,34 @@ class LogRecordFormatter {
     /** */
     private static final String BUNDLE_NAME = "net.i2p.router.web.messages";
 
-    /** translate @since 0.7.14 */
-    private static String getPriority(LogRecord rec, I2PAppContext ctx) {
+    /** translate @since 0.7.14, appended @since 0.9.28 */
+    private static void appendPriority(StringBuilder buf, LogRecord rec, I2PAppContext ctx) {
         int len;
         if (Translate.getLanguage(ctx).equals("de"))
             len = 8;  // KRITISCH
         else
             len = MAX_PRIORITY_LENGTH;
-        return toString(Translate.getString(Log.toLevelString(rec.getPriority()), ctx, BUNDLE_NAME), len);
+        append(buf, Translate.getString(Log.toLevelString(rec.getPriority()), ctx, BUNDLE_NAME), len);
     }
 
     private static String getWhat(LogRecord rec) {
         return rec.getMessage();
     }
 
-    private static String getWhere(LogRecord rec) {
-        String src = (rec.getSource() != null ? rec.getSource().getName() : rec.getSourceName());
-        if (src == null) src = "<none>";
-        return toString(src, MAX_WHERE_LENGTH);
-    }
-
-    /** truncates or pads to the specified size */
-    private static String toString(String str, int size) {
-        StringBuilder buf = new StringBuilder();
+    /**
+     *  Truncates or pads to the specified size.
+     *  Replaces toString(String, int).
+     *  @since 0.9.28
+     */
+    private static void append(StringBuilder buf, String str, int size) {
         if (str == null) str = "";
-        if (str.length() > size) str = str.substring(str.length() - size);
-        buf.append(str);
-        while (buf.length() < size)
+        int len = str.length();
+        if (len > size)
+            buf.append(str, len - size, len);
+        else
+            buf.append(str);
+        for (int i = len; i < size; i++) {
             buf.append(' ');
-        return buf.toString();
+        }
     }
 }
@@ -0,0 +1,113 @@
+package net.i2p.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size ring of preallocated LogRecords, used by the LogManager
+ * instead of its queue when logger.ringBuffer=true,
+ * so that logging creates no record or queue node per message.
+ *
+ * Any number of threads may add records, one thread at a time removes them.
+ * A logging thread claims a slot by advancing the tail, fills in the record,
+ * and then publishes it by setting the sequence number of the slot.
+ * The reader takes the published records in order, and frees each slot
+ * by advancing the head.
+ *
+ * @since 0.9.28
+ */
+class LogRecordRing {
+    private final LogRecord[] _records;
+    /** sequence number of the record published in each slot */
+    private final AtomicLongArray _published;
+    private final int _mask;
+    /** next sequence number to claim */
+    private final AtomicLong _tail = new AtomicLong();
+    /** next sequence number to read */
+    private volatile long _head;
+
+    private static final int MIN_SIZE = 16;
+
+    /**
+     *  @param size rounded up to a power of 2
+     */
+    public LogRecordRing(int size) {
+        int sz = MIN_SIZE;
+        while (sz < size && sz < (1 << 30)) {
+            sz <<= 1;
+        }
+        _records = new LogRecord[sz];
+        _published = new AtomicLongArray(sz);
+        for (int i = 0; i < sz; i++) {
+            _records[i] = new LogRecord();
+            _published.set(i, -1);
+        }
+        _mask = sz - 1;
+    }
+
+    /**
+     *  Nonblocking.
+     *  @return false if full
+     */
+    public boolean offer(Class<?> src, String name, String threadName, int priority, String msg, Throwable t) {
+        while (true) {
+            long tail = _tail.get();
+            if (tail - _head >= _records.length)
+                return false;
+            if (_tail.compareAndSet(tail, tail + 1)) {
+                int i = (int) tail & _mask;
+                _records[i].set(src, name, threadName, priority, msg, t);
+                _published.lazySet(i, tail);
+                return true;
+            }
+        }
+    }
+
+    /**
+     *  Reader only, caller must synch on this ring.
+     *  The record is valid until remove().
+     *
+     *  @return the oldest record, or null if none or the oldest is not published yet
+     */
+    public LogRecord peek() {
+        long head = _head;
+        int i = (int) head & _mask;
+        if (_published.get(i) != head)
+            return null;
+        return _records[i];
+    }
+
+    /**
+     *  Reader only, caller must synch on this ring.
+     *  Free the record returned by peek().
+     */
+    public void remove() {
+        long head = _head;
+        _records[(int) head & _mask].clear();
+        _head = head + 1;
+    }
+
+    /**
+     *  Includes records claimed but not yet published
+     */
+    public int size() {
+        return (int) Math.max(0, _tail.get() - _head);
+    }
+
+    public boolean isEmpty() {
+        return _tail.get() == _head;
+    }
+
+    public int getCapacity() {
+        return _records.length;
+    }
+
+    /**
+     *  Drop all the published records
+     */
+    public synchronized void clear() {
+        while (peek() != null) {
+            remove();
+        }
+    }
+}
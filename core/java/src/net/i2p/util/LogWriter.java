@@ -10,6 +10,9 @@ package net.i2p.util;
  */
 
 import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+
+import net.i2p.stat.StatManager;
 
 /**
  * Log writer thread that pulls log records from the LogManager and writes them to
@@ -33,6 +36,26 @@ abstract class LogWriter implements Runnable {
     // ms
     private volatile long _flushInterval = FLUSH_INTERVAL;
 
+    // the rest are for the LogRecordRing, and only used while synched on it
+    /** formatted records not yet written */
+    private final StringBuilder _batch = new StringBuilder(BATCH_SIZE + 1024);
+    private char[] _batchChars = new char[BATCH_SIZE + 1024];
+    /** copy of the last record, as the ring reuses it */
+    private final LogRecord _ringLast = new LogRecord();
+    /** start and end offsets in _batch of the most recent records, for the console buffer */
+    private int[] _consoleStarts;
+    private int[] _consoleEnds;
+    private int _consoleCount;
+    private long _lastWhenDate = -1;
+    private String _lastWhen;
+
+    private boolean _statsCreated;
+    private long _lastDropped;
+
+    /** write the batch when it gets this big, in chars */
+    private static final int BATCH_SIZE = 64*1024;
+    private static final long[] RATES = { 60*1000, 10*60*1000, 60*60*1000 };
+
     public LogWriter(LogManager manager) {
         _manager = manager;
         _lastReadConfig = Clock.getInstance().now();
@@ -56,6 +79,19 @@ abstract class LogWriter implements Runnable {
      * @param line the String to write.
      */
     protected abstract void writeRecord(int priority, String line);
+
+    /**
+     * Write a batch of formatted records.
+     * This implementation copies them to a String and calls writeRecord(int, String),
+     * override to write the chars directly.
+     *
+     * @param buf formatted records, may be reused after return
+     * @param len number of chars in buf
+     * @since 0.9.28
+     */
+    protected void writeBatch(char[] buf, int len) {
+        writeRecord(Log.INFO, new String(buf, 0, len));
+    }
     protected abstract void flushWriter();
     protected abstract void closeWriter();
 
@@ -92,10 +128,18 @@ abstract class LogWriter implements Runnable {
 
     public void flushRecords(boolean shouldWait) {
         try {
+            LogRecordRing ring = _manager.getRing();
+            if (ring != null) {
+                // we still wait below
+                flushRing(ring);
+                return;
+            }
             // zero copy, drain the manager queue directly
             Queue<LogRecord> records = _manager.getQueue();
             if (records == null) return;
             if (!records.isEmpty()) {
+                int depth = records.size();
+                long begin = System.currentTimeMillis();
                 if (_last != null && _firstTimestamp < _manager.getContext().clock().now() - 30*60*1000)
                     _last = null;
                 LogRecord rec;
@@ -117,11 +161,14 @@ abstract class LogWriter implements Runnable {
                     writeDupMessage(dupCount, _last);
                 }
                 flushWriter();
+                updateStats(depth, System.currentTimeMillis() - begin);
             }
         } catch (Throwable t) {
             t.printStackTrace();
         } finally {
-            if (shouldWait) {
+            // Don't wait if it filled up while we were writing,
+            // the loggers' wakeups may have been missed and they may be blocked
+            if (shouldWait && !isHalfFull()) {
                 try { 
                     synchronized (this) {
                         this.wait(_flushInterval); 
@@ -132,6 +179,181 @@ abstract class LogWriter implements Runnable {
         }
     }
 
+    /**
+     *  @since 0.9.28
+     */
+    private boolean isHalfFull() {
+        LogRecordRing ring = _manager.getRing();
+        if (ring != null)
+            return ring.size() >= ring.getCapacity() / 2;
+        Queue<LogRecord> records = _manager.getQueue();
+        if (!(records instanceof BlockingQueue))
+            return false;
+        BlockingQueue<LogRecord> bq = (BlockingQueue<LogRecord>) records;
+        return bq.size() >= bq.remainingCapacity();
+    }
+
+    /**
+     *  Drain the ring, formatting the records into a single buffer
+     *  and writing it in batches of up to BATCH_SIZE chars.
+     *  Same as the queue draining in flushRecords() otherwise.
+     *
+     *  @since 0.9.28
+     */
+    private void flushRing(LogRecordRing ring) {
+        // the writer thread and flush at shutdown
+        synchronized (ring) {
+            if (ring.isEmpty())
+                return;
+            int depth = ring.size();
+            long begin = System.currentTimeMillis();
+            if (_last != null && _firstTimestamp < _manager.getContext().clock().now() - 30*60*1000)
+                _last = null;
+            int consoleSize = Math.max(4, _manager.getConsoleBufferSize());
+            if (_consoleStarts == null || _consoleStarts.length != consoleSize) {
+                _consoleStarts = new int[consoleSize];
+                _consoleEnds = new int[consoleSize];
+            }
+            _batch.setLength(0);
+            _consoleCount = 0;
+            LogRecord rec;
+            int dupCount = 0;
+            while ((rec = ring.peek()) != null) {
+                if (_manager.shouldDropDuplicates() && rec.equals(_last)) {
+                    dupCount++;
+                } else {
+                    if (dupCount > 0) {
+                        batchDupMessage(dupCount, _last);
+                        dupCount = 0;
+                    }
+                    batchRecord(rec);
+                    _firstTimestamp = rec.getDate();
+                }
+                _ringLast.copyFrom(rec);
+                _last = _ringLast;
+                ring.remove();
+                if (_batch.length() >= BATCH_SIZE)
+                    writeBatch();
+            }
+            if (dupCount > 0) {
+                batchDupMessage(dupCount, _last);
+            }
+            writeBatch();
+            flushWriter();
+            updateStats(depth, System.currentTimeMillis() - begin);
+        }
+    }
+
+    /**
+     *  Format the record into the batch.
+     *  Same as writeRecord(LogRecord) otherwise, except that the console buffer
+     *  is only given the last few records of the batch, in writeBatch().
+     *
+     *  @since 0.9.28
+     */
+    private void batchRecord(LogRecord rec) {
+        int start = _batch.length();
+        long date = rec.getDate();
+        if (date != _lastWhenDate) {
+            _lastWhen = LogRecordFormatter.getWhen(_manager, rec);
+            _lastWhenDate = date;
+        }
+        LogRecordFormatter.formatRecord(_manager, rec, _lastWhen, _batch);
+        int end = _batch.length();
+        int i = _consoleCount++ % _consoleStarts.length;
+        _consoleStarts[i] = start;
+        _consoleEnds[i] = end;
+
+        if (rec.getPriority() >= Log.CRIT)
+            _manager.getBuffer().addCritical(_batch.substring(start, end));
+        if (_manager.getDisplayOnScreenLevel() <= rec.getPriority()) {
+            if (_manager.displayOnScreen()) {
+                // wrapper and android logs already do time stamps, so reformat without the date
+                if (_manager.getContext().hasWrapper())
+                    System.out.print(LogRecordFormatter.formatRecord(_manager, rec, false));
+                else
+                    System.out.print(_batch.substring(start, end));
+            }
+        }
+    }
+
+    /**
+     *  @since 0.9.28
+     */
+    private void batchDupMessage(int dupCount, LogRecord lastRecord) {
+        String dmsg = dupMessage(dupCount, lastRecord, false);
+        _batch.append(dmsg);
+        // keep the console buffer in order
+        addConsoleRecords();
+        displayDupMessage(dupCount, lastRecord, dmsg);
+    }
+
+    /**
+     *  Write the batch, add the last few records to the console buffer,
+     *  and empty the batch.
+     *
+     *  @since 0.9.28
+     */
+    private void writeBatch() {
+        int len = _batch.length();
+        if (len <= 0)
+            return;
+        if (_batchChars.length < len)
+            _batchChars = new char[len + 1024];
+        _batch.getChars(0, len, _batchChars, 0);
+        writeBatch(_batchChars, len);
+        addConsoleRecords();
+        _batch.setLength(0);
+        // don't keep a huge buffer after a huge record
+        if (_batch.capacity() > 4 * BATCH_SIZE) {
+            _batch.setLength(BATCH_SIZE);
+            _batch.trimToSize();
+            _batch.setLength(0);
+            _batchChars = new char[BATCH_SIZE + 1024];
+        }
+    }
+
+    /**
+     *  Add the last few records in the batch to the console buffer.
+     *  The buffer only keeps that many, so the others aren't copied out of the batch.
+     *
+     *  @since 0.9.28
+     */
+    private void addConsoleRecords() {
+        LogConsoleBuffer buffer = _manager.getBuffer();
+        int sz = _consoleStarts.length;
+        for (int j = Math.max(0, _consoleCount - sz); j < _consoleCount; j++) {
+            int i = j % sz;
+            buffer.add(_batch.substring(_consoleStarts[i], _consoleEnds[i]));
+        }
+        _consoleCount = 0;
+    }
+
+    /**
+     *  Stats on the queue or ring depth at each drain, the time
+     *  to drain it, and records dropped since the last drain.
+     *  Do not log here, deadlock of LogWriter.
+     *
+     *  @param time ms
+     *  @since 0.9.28
+     */
+    private void updateStats(int depth, long time) {
+        StatManager sm = _manager.getContext().statManager();
+        if (!_statsCreated) {
+            sm.createRateStat("logger.queueDepth", "Log records waiting when the log writer runs", "Router", RATES);
+            sm.createRateStat("logger.writeTime", "Time to format and write the waiting log records (ms)", "Router", RATES);
+            sm.createRateStat("logger.dropped", "Log records dropped as the buffer was full", "Router", RATES);
+            _statsCreated = true;
+        }
+        sm.addRateData("logger.queueDepth", depth);
+        sm.addRateData("logger.writeTime", time);
+        long dropped = _manager.getDroppedRecords();
+        if (dropped > _lastDropped) {
+            sm.addRateData("logger.dropped", dropped - _lastDropped);
+            _lastDropped = dropped;
+        }
+    }
+
     /**
      *  Write a msg with the date stamp of the last duplicate
      *  @since 0.9.21
@@ -139,6 +361,14 @@ abstract class LogWriter implements Runnable {
     private void writeDupMessage(int dupCount, LogRecord lastRecord) {
         String dmsg = dupMessage(dupCount, lastRecord, false);
         writeRecord(lastRecord.getPriority(), dmsg);
+        displayDupMessage(dupCount, lastRecord, dmsg);
+    }
+
+    /**
+     *  Display and add to the console buffer a msg written by writeDupMessage() or batchDupMessage()
+     *  @since 0.9.28 split out of writeDupMessage()
+     */
+    private void displayDupMessage(int dupCount, LogRecord lastRecord, String dmsg) {
         if (_manager.getDisplayOnScreenLevel() <= lastRecord.getPriority() && _manager.displayOnScreen())
             System.out.print(dmsg);
         dmsg = dupMessage(dupCount, lastRecord, true);
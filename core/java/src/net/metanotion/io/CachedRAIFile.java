@@ -0,0 +1,451 @@
+package net.metanotion.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * I2P
+ * A RandomAccessInterface with an LRU cache of file pages,
+ * so that reading and writing the many small fields of a BlockFile
+ * does not go to the OS for each one.
+ *
+ * Writes go to the cached pages only. Dirty pages are written back
+ * when they are evicted, on flush(), and on close().
+ * The file length is changed immediately by setLength().
+ *
+ * Optionally, a read-only file may be memory-mapped instead,
+ * and then there is no cache.
+ *
+ * Not thread-safe, like RAIFile.
+ *
+ * @since 0.9.28
+ */
+public class CachedRAIFile implements RandomAccessInterface, DataInput, DataOutput, Flushable {
+	private final File f;
+	private final RandomAccessFile delegate;
+	private final boolean w;
+	private final int maxPages;
+	/** page number to page, in access order */
+	private final LinkedHashMap<Long, Page> cache;
+	/** the page most recently returned by getPage() */
+	private long lastPageNum = -1;
+	private Page lastPage;
+	/** an evicted page to reuse */
+	private Page spare;
+	/** non-null if memory-mapped */
+	private ByteBuffer mapped;
+	private long pos;
+	/** including cached writes */
+	private long len;
+	/** on disk */
+	private long diskLen;
+	private final byte[] scratch = new byte[8];
+
+	/** cache pages, not BlockFile pages */
+	public static final int PAGE_SIZE = 4096;
+	private static final int MIN_PAGES = 4;
+
+	private static class Page {
+		public final byte[] data = new byte[PAGE_SIZE];
+		public boolean dirty;
+	}
+
+	/**
+	 *  @param read must be true
+	 *  @param pages max number of 4 KB pages to cache, minimum 4
+	 *  @param mmap if true and not writable, memory-map the file and don't cache
+	 */
+	public CachedRAIFile(File file, boolean read, boolean write, int pages, boolean mmap) throws IOException {
+		this.f = file;
+		this.w = write;
+		this.delegate = new RandomAccessFile(file, write ? "rw" : "r");
+		this.maxPages = Math.max(MIN_PAGES, pages);
+		this.cache = new LinkedHashMap<Long, Page>(Math.min(this.maxPages, 1024), 0.75f, true);
+		this.len = delegate.length();
+		this.diskLen = len;
+		if (mmap && !write && len <= Integer.MAX_VALUE) {
+			FileChannel fc = delegate.getChannel();
+			this.mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, len);
+		}
+	}
+
+	/**
+	 *  @return true if memory-mapped
+	 */
+	public boolean isMapped() {
+		return mapped != null;
+	}
+
+	public boolean canWrite() {
+		return this.w;
+	}
+
+	@Override
+	public String toString() {
+		return this.f.getAbsolutePath();
+	}
+
+	/**
+	 *  @return the page, cached
+	 */
+	private Page getPage(long pageNum) throws IOException {
+		if (pageNum == lastPageNum)
+			return lastPage;
+		Long key = Long.valueOf(pageNum);
+		Page p = cache.get(key);
+		if (p == null) {
+			if (spare != null) {
+				p = spare;
+				spare = null;
+			} else {
+				p = new Page();
+			}
+			long start = pageNum * PAGE_SIZE;
+			int n = (int) Math.max(0, Math.min(PAGE_SIZE, diskLen - start));
+			if (n > 0) {
+				delegate.seek(start);
+				delegate.readFully(p.data, 0, n);
+			}
+			if (n < PAGE_SIZE)
+				Arrays.fill(p.data, n, PAGE_SIZE, (byte) 0);
+			cache.put(key, p);
+			if (cache.size() > maxPages)
+				evict();
+		}
+		lastPageNum = pageNum;
+		lastPage = p;
+		return p;
+	}
+
+	/**
+	 *  Write back and remove the least recently used page
+	 */
+	private void evict() throws IOException {
+		Iterator<Map.Entry<Long, Page>> iter = cache.entrySet().iterator();
+		Map.Entry<Long, Page> e = iter.next();
+		// write before removing, so it isn't lost if the write fails
+		writePage(e.getKey().longValue(), e.getValue());
+		iter.remove();
+		spare = e.getValue();
+	}
+
+	private void writePage(long pageNum, Page p) throws IOException {
+		if (!p.dirty)
+			return;
+		long start = pageNum * PAGE_SIZE;
+		int n = (int) Math.min(PAGE_SIZE, len - start);
+		if (n > 0) {
+			delegate.seek(start);
+			delegate.write(p.data, 0, n);
+			if (start + n > diskLen)
+				diskLen = start + n;
+		}
+		p.dirty = false;
+	}
+
+	/**
+	 *  Write back all the dirty pages, in file order
+	 */
+	public void flush() throws IOException {
+		if (mapped != null)
+			return;
+		List<Map.Entry<Long, Page>> dirty = new ArrayList<Map.Entry<Long, Page>>();
+		for (Map.Entry<Long, Page> e : cache.entrySet()) {
+			if (e.getValue().dirty)
+				dirty.add(e);
+		}
+		if (dirty.isEmpty())
+			return;
+		Collections.sort(dirty, new PageComparator());
+		for (Map.Entry<Long, Page> e : dirty) {
+			writePage(e.getKey().longValue(), e.getValue());
+		}
+	}
+
+	private static class PageComparator implements Comparator<Map.Entry<Long, Page>> {
+		public int compare(Map.Entry<Long, Page> l, Map.Entry<Long, Page> r) {
+			return l.getKey().compareTo(r.getKey());
+		}
+	}
+
+	public long getFilePointer()		throws IOException { return pos; }
+	public long length()				throws IOException { return len; }
+
+	public int read() throws IOException {
+		if (pos >= len)
+			return -1;
+		int rv;
+		if (mapped != null) {
+			rv = mapped.get((int) pos) & 0xff;
+		} else {
+			Page p = getPage(pos / PAGE_SIZE);
+			rv = p.data[(int) (pos % PAGE_SIZE)] & 0xff;
+		}
+		pos++;
+		return rv;
+	}
+
+	public int read(byte[] b) throws IOException { return read(b, 0, b.length); }
+
+	public int read(byte[] b, int off, int n) throws IOException {
+		if (n <= 0)
+			return 0;
+		if (pos >= len)
+			return -1;
+		n = (int) Math.min(n, len - pos);
+		if (mapped != null) {
+			mapped.position((int) pos);
+			mapped.get(b, off, n);
+			pos += n;
+			return n;
+		}
+		int done = 0;
+		while (done < n) {
+			Page p = getPage(pos / PAGE_SIZE);
+			int poff = (int) (pos % PAGE_SIZE);
+			int c = Math.min(n - done, PAGE_SIZE - poff);
+			System.arraycopy(p.data, poff, b, off + done, c);
+			done += c;
+			pos += c;
+		}
+		return n;
+	}
+
+	public void seek(long pos) throws IOException {
+		if (pos < 0)
+			throw new IOException("Negative seek offset");
+		this.pos = pos;
+	}
+
+	/**
+	 *  Changes the length on disk immediately.
+	 */
+	public void setLength(long newLength) throws IOException {
+		if (!w)
+			throw new IOException("Read only");
+		if (newLength < len) {
+			long lastPageNum = (newLength - 1) / PAGE_SIZE;
+			for (Iterator<Map.Entry<Long, Page>> iter = cache.entrySet().iterator(); iter.hasNext(); ) {
+				Map.Entry<Long, Page> e = iter.next();
+				long pn = e.getKey().longValue();
+				if (pn > lastPageNum || newLength == 0) {
+					iter.remove();
+				} else if (pn == lastPageNum) {
+					int n = (int) (newLength - (pn * PAGE_SIZE));
+					Arrays.fill(e.getValue().data, n, PAGE_SIZE, (byte) 0);
+				}
+			}
+			this.lastPageNum = -1;
+			this.lastPage = null;
+		}
+		delegate.setLength(newLength);
+		len = newLength;
+		diskLen = newLength;
+	}
+
+	/**
+	 *  Writes back the dirty pages and closes the file.
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			cache.clear();
+			lastPage = null;
+			mapped = null;
+			delegate.close();
+		}
+	}
+
+	// DataInput Methods
+	public boolean readBoolean()		throws IOException { return readUnsignedByte() != 0; }
+	public byte readByte()				throws IOException { return (byte) readUnsignedByte(); }
+	public char readChar()				throws IOException { return (char) readUnsignedShort(); }
+	public double readDouble()			throws IOException { return Double.longBitsToDouble(readLong()); }
+	public float readFloat()			throws IOException { return Float.intBitsToFloat(readInt()); }
+	public void readFully(byte[] b)		throws IOException { readFully(b, 0, b.length); }
+
+	public void readFully(byte[] b, int off, int n) throws IOException {
+		if (n <= 0)
+			return;
+		int rv = read(b, off, n);
+		if (rv != n)
+			throw new EOFException();
+	}
+
+	public int readInt() throws IOException {
+		readFully(scratch, 0, 4);
+		return ((scratch[0] & 0xff) << 24) | ((scratch[1] & 0xff) << 16) |
+		       ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+	}
+
+	/** same as RandomAccessFile */
+	public String readLine() throws IOException {
+		StringBuilder buf = new StringBuilder();
+		int c = -1;
+		boolean eol = false;
+		while (!eol) {
+			switch (c = read()) {
+			case -1:
+			case '\n':
+				eol = true;
+				break;
+			case '\r':
+				eol = true;
+				long cur = pos;
+				if (read() != '\n')
+					pos = cur;
+				break;
+			default:
+				buf.append((char) c);
+				break;
+			}
+		}
+		if (c == -1 && buf.length() == 0)
+			return null;
+		return buf.toString();
+	}
+
+	public long readLong() throws IOException {
+		long hi = readInt() & 0xffffffffL;
+		long lo = readInt() & 0xffffffffL;
+		return (hi << 32) | lo;
+	}
+
+	public short readShort()			throws IOException { return (short) readUnsignedShort(); }
+
+	public int readUnsignedByte() throws IOException {
+		int rv = read();
+		if (rv < 0)
+			throw new EOFException();
+		return rv;
+	}
+
+	public int readUnsignedShort() throws IOException {
+		readFully(scratch, 0, 2);
+		return ((scratch[0] & 0xff) << 8) | (scratch[1] & 0xff);
+	}
+
+	/**
+	 *  @throws IOException if the read value is negative
+	 */
+	public int readUnsignedInt()  throws IOException {
+		int rv = readInt();
+		if (rv < 0)
+			throw new IOException("Negative value for unsigned int: " + rv);
+		return rv;
+	}
+
+	/**
+	 *  Same as RAIFile, 4 byte length
+	 */
+	public String readUTF()				throws IOException {
+		int len = readInt();
+		if((len < 0) || (len >= 16777216)) { throw new IOException("Bad Length Encoding"); }
+		byte[] bytes = new byte[len];
+		int l = read(bytes);
+		if(l==-1) { throw new IOException("EOF while reading String"); }
+		String s = new String(bytes, "UTF-8");
+		return s;
+	}
+
+	/** same as RandomAccessFile, will not skip past the end */
+	public int skipBytes(int n) throws IOException {
+		if (n <= 0)
+			return 0;
+		long newpos = Math.min(pos + n, len);
+		int rv = (int) (newpos - pos);
+		pos = newpos;
+		return rv;
+	}
+
+	// DataOutput Methods
+	public void write(int b) throws IOException {
+		scratch[0] = (byte) b;
+		write(scratch, 0, 1);
+	}
+
+	public void write(byte[] b)			throws IOException { write(b, 0, b.length); }
+
+	public void write(byte[] b, int off, int n) throws IOException {
+		if (!w)
+			throw new IOException("Read only");
+		int done = 0;
+		while (done < n) {
+			Page p = getPage(pos / PAGE_SIZE);
+			int poff = (int) (pos % PAGE_SIZE);
+			int c = Math.min(n - done, PAGE_SIZE - poff);
+			System.arraycopy(b, off + done, p.data, poff, c);
+			p.dirty = true;
+			done += c;
+			pos += c;
+			// before the next getPage(), so an eviction writes all of this page
+			if (pos > len)
+				len = pos;
+		}
+	}
+
+	public void writeBoolean(boolean v)	throws IOException { write(v ? 1 : 0); }
+	public void writeByte(int v)		throws IOException { write(v); }
+
+	public void writeShort(int v) throws IOException {
+		scratch[0] = (byte) (v >> 8);
+		scratch[1] = (byte) v;
+		write(scratch, 0, 2);
+	}
+
+	public void writeChar(int v)		throws IOException { writeShort(v); }
+
+	public void writeInt(int v) throws IOException {
+		scratch[0] = (byte) (v >> 24);
+		scratch[1] = (byte) (v >> 16);
+		scratch[2] = (byte) (v >> 8);
+		scratch[3] = (byte) v;
+		write(scratch, 0, 4);
+	}
+
+	public void writeLong(long v) throws IOException {
+		writeInt((int) (v >> 32));
+		writeInt((int) v);
+	}
+
+	public void writeFloat(float v)		throws IOException { writeInt(Float.floatToIntBits(v)); }
+	public void writeDouble(double v)	throws IOException { writeLong(Double.doubleToLongBits(v)); }
+
+	public void writeBytes(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++) {
+			write(s.charAt(i));
+		}
+	}
+
+	public void writeChars(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++) {
+			writeChar(s.charAt(i));
+		}
+	}
+
+	/**
+	 *  Same as RAIFile, 4 byte length
+	 */
+	public void writeUTF(String str)	throws IOException {
+		byte[] string = str.getBytes("UTF-8");
+		if(string.length >= 16777216) { throw new IOException("String to long for encoding type"); }
+		writeInt(string.length);
+		write(string);
+	}
+}
@@ -30,6 +30,7 @@ package net.metanotion.io.block;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
@@ -65,11 +66,19 @@ import net.i2p.util.Log;
  *
  * Metaindex skiplist is on page 2
  *
- * Pages are 1 KB and are numbered starting from 1.
+ * Pages are 1 KB by default and are numbered starting from 1.
  * e.g. the Metaindex skiplist is at offset 1024 bytes
+ *
+ * As of 0.9.28, the page size may be set when the file is created,
+ * and is read from the block size in the superblock
+ * (zero in files created before version 1.2 means 1 KB).
+ * Files with larger pages may not be read by earlier versions.
  */
 public class BlockFile implements Closeable {
+	/** the default page size */
 	public static final int PAGESIZE = 1024;
+	/** @since 0.9.28 */
+	public static final int MAX_PAGESIZE = 64*1024;
 	public static final long OFFSET_MOUNTED = 20;
 	public final Log log = I2PAppContext.getGlobalContext().logManager().getLog(BlockFile.class);
 
@@ -88,6 +97,8 @@ public class BlockFile implements Closeable {
 	/** 2**32 pages of 1024 bytes each, more or less */
 	private static final long MAX_LEN = (2l << (32 + 10)) - 1;
 
+	/** @since 0.9.28 */
+	private int pageSize = PAGESIZE;
 	/** new BlockFile length, containing a superblock page and a metaindex page. */
 	private long fileLen = PAGESIZE * 2;
 	private int freeListStart = 0;
@@ -117,7 +128,7 @@ public class BlockFile implements Closeable {
 		file.writeShort(mounted);
 		file.writeShort(spanSize);
 		// added in version 1.2
-		file.writeInt(PAGESIZE);
+		file.writeInt(pageSize);
 	}
 
 	private void readSuperBlock() throws IOException {
@@ -127,7 +138,21 @@ public class BlockFile implements Closeable {
 		freeListStart	= file.readUnsignedInt();
 		mounted			= file.readUnsignedShort();
 		spanSize		= file.readUnsignedShort();
-		// assume 1024 page size
+		// added in version 1.2, zero before that
+		int ps = file.readInt();
+		if (ps == 0)
+			ps = PAGESIZE;
+		else if (!isValidPageSize(ps))
+			throw new IOException("Bad page size " + ps);
+		pageSize = ps;
+	}
+
+	/**
+	 *  A power of 2 from 1 KB to 64 KB
+	 *  @since 0.9.28
+	 */
+	public static boolean isValidPageSize(int ps) {
+		return ps >= PAGESIZE && ps <= MAX_PAGESIZE && (ps & (ps - 1)) == 0;
 	}
 
 	/**
@@ -171,25 +196,25 @@ public class BlockFile implements Closeable {
 		int curPage = page;
 		int dct = 0;
 		while(dct < data.length) {
-			int len = PAGESIZE - pageCounter;
+			int len = pageSize - pageCounter;
 			if(len <= 0) {
 				if(curNextPage==0) {
 					curNextPage = this.allocPage();
-					BlockFile.pageSeek(this.file, curNextPage);
+					pageSeek(curNextPage);
 					this.file.writeInt(MAGIC_CONT);
 					this.file.writeInt(0);
-					BlockFile.pageSeek(this.file, curPage);
+					pageSeek(curPage);
 					this.file.skipBytes(4);   // skip magic
 					this.file.writeInt(curNextPage);
 				}
-				BlockFile.pageSeek(this.file, curNextPage);
+				pageSeek(curNextPage);
 				curPage = curNextPage;
 				int magic = this.file.readInt();
 				if (magic != MAGIC_CONT)
 					throw new IOException("Bad SkipSpan continuation magic number 0x" + Integer.toHexString(magic) + " on page " + curNextPage);
 				curNextPage = this.file.readUnsignedInt();
 				pageCounter = BSkipSpan.CONT_HEADER_LEN;
-				len = PAGESIZE - pageCounter;
+				len = pageSize - pageCounter;
 			}
 			this.file.write(data, dct, Math.min(len, data.length - dct));
 			pageCounter += Math.min(len, data.length - dct);
@@ -215,18 +240,18 @@ public class BlockFile implements Closeable {
 		int curPage = page;
 		int dct = 0;
 		while(dct < arr.length) {
-			int len = PAGESIZE - pageCounter;
+			int len = pageSize - pageCounter;
 			if(len <= 0) {
 				if (curNextPage <= 0)
 					throw new IOException("not enough pages to read data still need " + (arr.length - dct));
-				BlockFile.pageSeek(this.file, curNextPage);
+				pageSeek(curNextPage);
 				int magic = this.file.readInt();
 				if (magic != MAGIC_CONT)
 					throw new IOException("Bad SkipSpan continuation magic number 0x" + Integer.toHexString(magic) + " on page " + curNextPage);
 				curPage = curNextPage;
 				curNextPage = this.file.readUnsignedInt();
 				pageCounter = BSkipSpan.CONT_HEADER_LEN;
-				len = PAGESIZE - pageCounter;
+				len = pageSize - pageCounter;
 			}
 			int res = this.file.read(arr, dct, Math.min(len, arr.length - dct));
 			if(res == -1) { throw new IOException(); }
@@ -254,18 +279,18 @@ public class BlockFile implements Closeable {
 		int curPage = page;
 		int dct = 0;
 		while(dct < length) {
-			int len = PAGESIZE - pageCounter;
+			int len = pageSize - pageCounter;
 			if(len <= 0) {
 				if (curNextPage <= 0)
 					throw new IOException("not enough pages to skip");
-				BlockFile.pageSeek(this.file, curNextPage);
+				pageSeek(curNextPage);
 				int magic = this.file.readInt();
 				if (magic != MAGIC_CONT)
 					throw new IOException("Bad SkipSpan continuation magic number 0x" + Integer.toHexString(magic) + " on page " + curNextPage);
 				curPage = curNextPage;
 				curNextPage = this.file.readUnsignedInt();
 				pageCounter = BSkipSpan.CONT_HEADER_LEN;
-				len = PAGESIZE - pageCounter;
+				len = pageSize - pageCounter;
 			}
 			int res = Math.min(len, length - dct);
 			this.file.skipBytes(res);
@@ -290,12 +315,24 @@ public class BlockFile implements Closeable {
 	public BlockFile(File f, boolean init) throws IOException { this(new RAIFile(f, true, true), init); }
 
 	/** Use this constructor with a readonly RAI and init = false for a readonly blockfile */
-	public BlockFile(RandomAccessInterface rai, boolean init) throws IOException {
+	public BlockFile(RandomAccessInterface rai, boolean init) throws IOException { this(rai, init, PAGESIZE); }
+
+	/**
+	 *  Use this constructor with a readonly RAI and init = false for a readonly blockfile
+	 *
+	 *  @param pageSize for a new file, ignored if init is false, see isValidPageSize()
+	 *  @since 0.9.28
+	 */
+	public BlockFile(RandomAccessInterface rai, boolean init, int pageSize) throws IOException {
 		if(rai==null) { throw new NullPointerException(); }
 		
 		file = rai;
 
 		if(init) {
+			if (!isValidPageSize(pageSize))
+				throw new IllegalArgumentException("Bad page size " + pageSize);
+			this.pageSize = pageSize;
+			fileLen = pageSize * 2L;
 			file.setLength(fileLen);
 			writeSuperBlock();
 			BSkipList.init(this, METAINDEX_PAGE, spanSize);
@@ -320,8 +357,10 @@ public class BlockFile implements Closeable {
 		if(fileLen != file.length())
 			throw new IOException("Expected file length " + fileLen +
 		                              " but actually " + file.length());
-		if (rai.canWrite())
+		if (rai.canWrite()) {
 			mount();
+			flush();
+		}
 
 		metaIndex = new BSkipList<String, Integer>(spanSize, this, METAINDEX_PAGE, new StringBytes(), new IntBytes());
 	}
@@ -334,22 +373,54 @@ public class BlockFile implements Closeable {
 		return _wasMounted;
 	}
 
+	/**
+	 *  @return bytes
+	 *  @since 0.9.28
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
 	/**
 	 *  Go to any page but the superblock.
 	 *  Page 1 is the superblock, must use file.seek(0) to get there.
 	 *  @param page >= 2
+	 *  @deprecated assumes the default page size, use pageSeek(int)
 	 */
+	@Deprecated
 	public static void pageSeek(RandomAccessInterface file, int page) throws IOException {
 		if (page < METAINDEX_PAGE)
 			throw new IOException("Negative page or superblock access attempt: " + page);
 		file.seek((page - 1L) * PAGESIZE );
 	}
 
+	/**
+	 *  Go to any page but the superblock.
+	 *  Page 1 is the superblock, must use file.seek(0) to get there.
+	 *  @param page >= 2
+	 *  @since 0.9.28
+	 */
+	public void pageSeek(int page) throws IOException {
+		if (page < METAINDEX_PAGE)
+			throw new IOException("Negative page or superblock access attempt: " + page);
+		file.seek((page - 1L) * pageSize);
+	}
+
+	/**
+	 *  Write any cached data to the file.
+	 *  A no-op unless the RAI is Flushable, e.g. CachedRAIFile.
+	 *  @since 0.9.28
+	 */
+	public void flush() throws IOException {
+		if (file instanceof Flushable)
+			((Flushable) file).flush();
+	}
+
 	public int allocPage() throws IOException {
 		if(freeListStart != 0) {
 			try {
 				if (flb == null)
-					flb = new FreeListBlock(file, freeListStart);
+					flb = new FreeListBlock(this, freeListStart);
 				if(!flb.isEmpty()) {
 					if (log.shouldLog(Log.DEBUG))
 						log.debug("Alloc from " + flb);
@@ -369,10 +440,10 @@ public class BlockFile implements Closeable {
 			}
 		}
 		long offset = file.length();
-		fileLen = offset + PAGESIZE;
+		fileLen = offset + pageSize;
 		file.setLength(fileLen);
 		writeSuperBlock();
-		return (int) ((offset / PAGESIZE) + 1);
+		return (int) ((offset / pageSize) + 1);
 	}
 
 	/**
@@ -388,7 +459,7 @@ public class BlockFile implements Closeable {
 		try {
 			if(freeListStart == 0) {
 				freeListStart = page;
-				FreeListBlock.initPage(file, page);
+				FreeListBlock.initPage(this, page);
 				writeSuperBlock();
 				if (log.shouldLog(Log.DEBUG))
 					log.debug("Freed page " + page + " as new FLB");
@@ -396,12 +467,12 @@ public class BlockFile implements Closeable {
 			}
 			try {
 				if (flb == null)
-					flb = new FreeListBlock(file, freeListStart);
+					flb = new FreeListBlock(this, freeListStart);
 				if(flb.isFull()) {
 					// Make the free page a new FLB
 					if (log.shouldLog(Log.DEBUG))
 						log.debug("Full: " + flb);
-					FreeListBlock.initPage(file, page);
+					FreeListBlock.initPage(this, page);
 					if(flb.getNextPage() == 0) {
 						// Put it at the tail.
 						// Next free will make a new FLB at the head,
@@ -409,7 +480,7 @@ public class BlockFile implements Closeable {
 						flb.setNextPage(page);
 					} else {
 						// Put it at the head
-						flb = new FreeListBlock(file, page);
+						flb = new FreeListBlock(this, page);
 						flb.setNextPage(freeListStart);
 						freeListStart = page;
 						writeSuperBlock();
@@ -424,7 +495,7 @@ public class BlockFile implements Closeable {
 			} catch (IOException ioe) {
 				log.error("Discarding corrupt free list block page " + freeListStart, ioe);
 				freeListStart = page;
-				FreeListBlock.initPage(file, page);
+				FreeListBlock.initPage(this, page);
 				writeSuperBlock();
 				flb = null;
 			}
@@ -579,6 +650,7 @@ public class BlockFile implements Closeable {
 	 *
 	 *  Note (I2P)
 	 *  Does NOT close the RAF / RAI.
+	 *  As of 0.9.28, flushes it.
 	 */
 	public void close() throws IOException {
 		// added I2P
@@ -600,6 +672,7 @@ public class BlockFile implements Closeable {
 		if (file.canWrite()) {
 			file.seek(BlockFile.OFFSET_MOUNTED);
 			file.writeShort(0);
+			flush();
 		}
 	}
 
@@ -657,7 +730,7 @@ public class BlockFile implements Closeable {
 		if(freeListStart != 0) {
 			try {
 			       if (flb == null)
-					flb = new FreeListBlock(file, freeListStart);
+					flb = new FreeListBlock(this, freeListStart);
 				flb.flbck(true);
 			} catch (IOException ioe) {
 				log.error("Free list error", ioe);
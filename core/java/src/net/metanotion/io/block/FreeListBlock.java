@@ -55,26 +55,33 @@ class FreeListBlock {
 	private static final long MAGIC = 0x2366724c69737423l;  // "#frList#"
 	private static final long MAGIC_FREE = 0x7e2146524545217el;  // "~!FREE!~"
 	private static final int HEADER_LEN = 16;
-	private static final int MAX_SIZE = (BlockFile.PAGESIZE - HEADER_LEN) / 4;
+	// as of 0.9.28, depends on the page size
+	private final int maxSize;
 
 	public final int page;
 	private int nextPage;
 	private int len;
 	private final int[] branches;
+	private final BlockFile bf;
 	private final RandomAccessInterface file;
 
-	public FreeListBlock(RandomAccessInterface file, int startPage) throws IOException {
-		this.file = file;
+	/**
+	 *  @param bf as of 0.9.28, was a RandomAccessInterface
+	 */
+	public FreeListBlock(BlockFile bf, int startPage) throws IOException {
+		this.bf = bf;
+		this.file = bf.file;
 		this.page = startPage;
-		BlockFile.pageSeek(file, startPage);
+		maxSize = (bf.getPageSize() - HEADER_LEN) / 4;
+		bf.pageSeek(startPage);
 		long magic = file.readLong();
 		if (magic != MAGIC)
 			throw new IOException("Bad freelist magic number 0x" + Long.toHexString(magic) + " on page " + startPage);
 		nextPage = file.readUnsignedInt();
 		len = file.readUnsignedInt();
-		if (len > MAX_SIZE)
+		if (len > maxSize)
 			throw new IOException("Bad freelist size " + len);
-		branches = new int[MAX_SIZE];
+		branches = new int[maxSize];
 		if(len > 0) {
 			int good = 0;
 			for(int i=0;i<len;i++) {
@@ -92,7 +99,7 @@ class FreeListBlock {
 	}
 
 	public void writeBlock() throws IOException {
-		BlockFile.pageSeek(file, page);
+		bf.pageSeek(page);
 		file.writeLong(MAGIC);
 		file.writeInt(nextPage);
 		file.writeInt(len);
@@ -103,7 +110,7 @@ class FreeListBlock {
 	 *  Write the length only
 	 */
 	private void writeLen() throws IOException {
-		BlockFile.pageSeek(file, page);
+		bf.pageSeek(page);
 		file.skipBytes(12);
 		file.writeInt(len);
 	}
@@ -117,7 +124,7 @@ class FreeListBlock {
 	 */
 	public void setNextPage(int nxt) throws IOException {
 		nextPage = nxt;
-		BlockFile.pageSeek(file, page);
+		bf.pageSeek(page);
 		file.skipBytes(8);
 		file.writeInt(nxt);
 	}
@@ -126,7 +133,7 @@ class FreeListBlock {
 	 *  Write the length and new page only
 	 */
 	private void writeFreePage() throws IOException {
-		BlockFile.pageSeek(file, page);
+		bf.pageSeek(page);
 		file.skipBytes(12);
 		file.writeInt(len);
 		if (len > 1)
@@ -139,7 +146,7 @@ class FreeListBlock {
 	}
 
 	public boolean isFull() {
-		return len >= MAX_SIZE;
+		return len >= maxSize;
 	}
 
 	/**
@@ -147,7 +154,7 @@ class FreeListBlock {
 	 *  @throws IllegalStateException if full
 	 */
 	public void addPage(int freePage) throws IOException {
-		if (len >= MAX_SIZE)
+		if (len >= maxSize)
 			throw new IllegalStateException("full");
 		if (getMagic(freePage) == MAGIC_FREE) {
 			Log log = I2PAppContext.getGlobalContext().logManager().getLog(BlockFile.class);
@@ -180,21 +187,24 @@ class FreeListBlock {
 	}
 
 	private void markFree(int freePage) throws IOException {
-		BlockFile.pageSeek(file, freePage);
+		bf.pageSeek(freePage);
 		file.writeLong(MAGIC_FREE);
 	}
 
 	private long getMagic(int freePage) throws IOException {
-		BlockFile.pageSeek(file, freePage);
+		bf.pageSeek(freePage);
 		long magic = file.readLong();
 		return magic;
 	}
 
-	public static void initPage(RandomAccessInterface file, int page) throws IOException {
-		BlockFile.pageSeek(file, page);
-		file.writeLong(MAGIC);
-		file.writeInt(0);
-		file.writeInt(0);
+	/**
+	 *  @param bf as of 0.9.28, was a RandomAccessInterface
+	 */
+	public static void initPage(BlockFile bf, int page) throws IOException {
+		bf.pageSeek(page);
+		bf.file.writeLong(MAGIC);
+		bf.file.writeInt(0);
+		bf.file.writeInt(0);
 	}
 
 	/**
@@ -205,12 +215,12 @@ class FreeListBlock {
 		Log log = I2PAppContext.getGlobalContext().logManager().getLog(BlockFile.class);
 		log.info(toString());
 		if (nextPage > 0)
-			(new FreeListBlock(file, nextPage)).flbck(fix);
+			(new FreeListBlock(bf, nextPage)).flbck(fix);
 		return true;
 	}
 
 	@Override
 	public String toString() {
-		return "FLB with " + len + " / " + MAX_SIZE + " page " + page + " next page " + nextPage;
+		return "FLB with " + len + " / " + maxSize + " page " + page + " next page " + nextPage;
 	}
 }
@@ -79,7 +79,7 @@ public class BSkipLevels<K extends Comparable<? super K>, V> extends SkipLevels<
 		this.bf = bf;
 		this.bsl = bsl;
 
-		BlockFile.pageSeek(bf.file, levelPage);
+		bf.pageSeek(levelPage);
 		long magic = bf.file.readLong();
 		if (magic != MAGIC)
 			throw new IOException("Bad SkipLevels magic number 0x" + Long.toHexString(magic) + " on page " + levelPage);
@@ -193,7 +193,7 @@ public class BSkipLevels<K extends Comparable<? super K>, V> extends SkipLevels<
 	}
 
 	public static void init(BlockFile bf, int page, int spanPage, int maxHeight) throws IOException {
-		BlockFile.pageSeek(bf.file, page);
+		bf.pageSeek(page);
 		bf.file.writeLong(MAGIC);
 		bf.file.writeShort((short) maxHeight);
 		bf.file.writeShort(0);
@@ -207,7 +207,7 @@ public class BSkipLevels<K extends Comparable<? super K>, V> extends SkipLevels<
 			return;
 		}
 		try {
-			BlockFile.pageSeek(bf.file, levelPage);
+			bf.pageSeek(levelPage);
 			bf.file.writeLong(MAGIC);
 			bf.file.writeShort((short) levels.length);
 			int i = 0;
@@ -74,7 +74,7 @@ public class BSkipList<K extends Comparable<? super K>, V> extends SkipList<K, V
 		this.skipPage = skipPage;
 		this.bf = bf;
 
-		BlockFile.pageSeek(bf.file, skipPage);
+		bf.pageSeek(skipPage);
 		long magic = bf.file.readLong();
 		if (magic != MAGIC)
 			throw new IOException("Bad SkipList magic number 0x" + Long.toHexString(magic) + " on page " + skipPage);
@@ -129,7 +129,7 @@ public class BSkipList<K extends Comparable<? super K>, V> extends SkipList<K, V
 			return;
 		}
 		try {
-			BlockFile.pageSeek(bf.file, skipPage);
+			bf.pageSeek(skipPage);
 			bf.file.writeLong(MAGIC);
 			bf.file.writeInt(firstSpanPage);
 			bf.file.writeInt(firstLevelPage);
@@ -169,7 +169,7 @@ public class BSkipList<K extends Comparable<? super K>, V> extends SkipList<K, V
 	public static void init(BlockFile bf, int page, int spanSize) throws IOException {
 		int firstSpan = bf.allocPage();
 		int firstLevel = bf.allocPage();
-		BlockFile.pageSeek(bf.file, page);
+		bf.pageSeek(page);
 		bf.file.writeLong(MAGIC);
 		bf.file.writeInt(firstSpan);
 		bf.file.writeInt(firstLevel);
@@ -194,8 +194,6 @@ public class BSkipList<K extends Comparable<? super K>, V> extends SkipList<K, V
 			s /= P;
 		}
 		int max = Math.max(hob, super.maxLevels());
-		// 252
-		//int cells = (BlockFile.PAGESIZE - BSkipLevels.HEADER_LEN) / 4;
 		return Math.min(BSkipLevels.MAX_SIZE, max);
 	}
 
@@ -228,6 +226,12 @@ public class BSkipList<K extends Comparable<? super K>, V> extends SkipList<K, V
 		int[] search = new int[1];
 		SkipSpan<K, V> ss = stack.getSpan(stack.levels.length - 1, key, search);
 		if(search[0] < 0) { search[0] = -1 * (search[0] + 1); }
+		// I2P - past the last key in the span, start at the next span,
+		// or hasNext() would return false
+		if (search[0] >= ss.nKeys && ss.next != null) {
+			ss = ss.next;
+			search[0] = 0;
+		}
 		return new IBSkipIterator<K, V>(ss, search[0]);
 	}
 
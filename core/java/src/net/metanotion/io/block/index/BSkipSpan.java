@@ -78,7 +78,7 @@ public class BSkipSpan<K extends Comparable<? super K>, V> extends SkipSpan<K, V
 	protected boolean isKilled;
 
 	public static void init(BlockFile bf, int page, int spanSize) throws IOException {
-		BlockFile.pageSeek(bf.file, page);
+		bf.pageSeek(page);
 		bf.file.writeInt(MAGIC);
 		bf.file.writeInt(0);
 		bf.file.writeInt(0);
@@ -123,7 +123,7 @@ public class BSkipSpan<K extends Comparable<? super K>, V> extends SkipSpan<K, V
 	private int freeContinuationPages(int curPage) throws IOException {
 		int rv = 0;
 		while(curPage > 0) {
-			BlockFile.pageSeek(bf.file, curPage);
+			bf.pageSeek(curPage);
 			int magic = bf.file.readInt();
 			if (magic != BlockFile.MAGIC_CONT)
 				throw new IOException("Bad SkipSpan magic number 0x" + Integer.toHexString(magic) + " on page " + curPage);
@@ -149,7 +149,7 @@ public class BSkipSpan<K extends Comparable<? super K>, V> extends SkipSpan<K, V
 			return;
 		}
 		try {
-			BlockFile.pageSeek(bf.file, page);
+			bf.pageSeek(page);
 			bf.file.writeInt(MAGIC);
 			bf.file.writeInt(overflowPage);
 			prevPage = (prev != null) ? ((BSkipSpan) prev).page : 0;
@@ -173,17 +173,17 @@ public class BSkipSpan<K extends Comparable<? super K>, V> extends SkipSpan<K, V
 			byte[] valData;
 
 			for(int i=0;i<nKeys;i++) {
-				if((pageCounter[0] + 4) > BlockFile.PAGESIZE) {
+				if((pageCounter[0] + 4) > bf.getPageSize()) {
 					if(curNextPage[0] == 0) {
 						curNextPage[0] = bf.allocPage();
-						BlockFile.pageSeek(bf.file, curNextPage[0]);
+						bf.pageSeek(curNextPage[0]);
 						bf.file.writeInt(BlockFile.MAGIC_CONT);
 						bf.file.writeInt(0);
-						BlockFile.pageSeek(bf.file, curPage);
+						bf.pageSeek(curPage);
 						bf.file.skipBytes(4);  // skip magic
 						bf.file.writeInt(curNextPage[0]);
 					}
-					BlockFile.pageSeek(bf.file, curNextPage[0]);
+					bf.pageSeek(curNextPage[0]);
 					curPage = curNextPage[0];
 					bf.file.skipBytes(4);  // skip magic
 					curNextPage[0] = bf.file.readUnsignedInt();
@@ -213,12 +213,12 @@ public class BSkipSpan<K extends Comparable<? super K>, V> extends SkipSpan<K, V
 				curPage = bf.writeMultiPageData(keyData, curPage, pageCounter, curNextPage);
 				curPage = bf.writeMultiPageData(valData, curPage, pageCounter, curNextPage);
 			}
-			BlockFile.pageSeek(bf.file, this.page);
+			bf.pageSeek(this.page);
 			bf.file.skipBytes(4);  // skip magic
 			this.overflowPage = bf.file.readUnsignedInt();
 			if (curNextPage[0] != 0) {
 				// free extra continuation pages
-				BlockFile.pageSeek(bf.file, curPage);
+				bf.pageSeek(curPage);
 				bf.file.skipBytes(4);  // skip magic
 				bf.file.writeInt(0);
 				if (curPage == this.page)
@@ -257,7 +257,7 @@ public class BSkipSpan<K extends Comparable<? super K>, V> extends SkipSpan<K, V
 
 		bsl.spanHash.put(Integer.valueOf(spanPage), bss);
 
-		BlockFile.pageSeek(bf.file, spanPage);
+		bf.pageSeek(spanPage);
 
 		int magic = bf.file.readInt();
 		if (magic != MAGIC)
@@ -303,8 +303,8 @@ public class BSkipSpan<K extends Comparable<? super K>, V> extends SkipSpan<K, V
 //		System.out.println("Span Load " + sz + " nKeys " + nKeys + " page " + curPage);
 		int fail = 0;
 		for(int i=0;i<this.nKeys;i++) {
-			if((pageCounter[0] + 4) > BlockFile.PAGESIZE) {
-				BlockFile.pageSeek(this.bf.file, curNextPage[0]);
+			if((pageCounter[0] + 4) > bf.getPageSize()) {
+				this.bf.pageSeek(curNextPage[0]);
 				int magic = bf.file.readInt();
 				if (magic != BlockFile.MAGIC_CONT) {
 					bf.log.error("Lost " + (this.nKeys - i) + " entries - Bad SkipSpan magic number 0x" + Integer.toHexString(magic) + " on page " + curNextPage[0]);
@@ -364,12 +364,12 @@ public class BSkipSpan<K extends Comparable<? super K>, V> extends SkipSpan<K, V
 		try {
 			this.nKeys = firstBadEntry;
 			// zero overflow page pointer
-			BlockFile.pageSeek(this.bf.file, lastGoodPage);
+			this.bf.pageSeek(lastGoodPage);
 			bf.file.skipBytes(4);  // skip magic
 			bf.file.writeInt(0);
 			// write new number of keys
 			if (lastGoodPage != this.page) {					
-				BlockFile.pageSeek(this.bf.file, this.page);
+				this.bf.pageSeek(this.page);
 				bf.file.skipBytes(18);
 			} else {
 				bf.file.skipBytes(10);
@@ -141,7 +141,7 @@ public class IBSkipSpan<K extends Comparable<? super K>, V> extends BSkipSpan<K,
 	private void seekData() throws IOException {
 		if (isKilled)
 			throw new IOException("Already killed! " + this);
-		BlockFile.pageSeek(this.bf.file, this.page);
+		this.bf.pageSeek(this.page);
 		int magic = bf.file.readInt();
 		if (magic != MAGIC)
 			throw new IOException("Bad SkipSpan magic number 0x" + Integer.toHexString(magic) + " on page " + this.page);
@@ -171,8 +171,8 @@ public class IBSkipSpan<K extends Comparable<? super K>, V> extends BSkipSpan<K,
 		int fail = 0;
 		//System.out.println("Span Load " + sz + " nKeys " + nKeys + " page " + curPage);
 		for(int i=0;i<this.nKeys;i++) {
-			if((pageCounter[0] + 4) > BlockFile.PAGESIZE) {
-				BlockFile.pageSeek(this.bf.file, curNextPage[0]);
+			if((pageCounter[0] + 4) > bf.getPageSize()) {
+				this.bf.pageSeek(curNextPage[0]);
 				int magic = bf.file.readInt();
 				if (magic != BlockFile.MAGIC_CONT) {
 					bf.log.error("Lost " + (this.nKeys - i) + " entries - Bad SkipSpan magic number 0x" + Integer.toHexString(magic) + " on page " + curNextPage[0]);
@@ -0,0 +1,320 @@
+package net.i2p.client.naming;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Certificate;
+import net.i2p.data.DataFormatException;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+import net.i2p.data.PublicKey;
+import net.i2p.data.SigningPublicKey;
+import net.i2p.util.FileUtil;
+import net.i2p.util.RandomSource;
+
+/**
+ *  Bulk import of a generated hosts.txt into a new hostsdb.blockfile,
+ *  and random lookups in it, without the page cache,
+ *  with the page cache, with the page cache and larger pages,
+ *  and read-only memory-mapped.
+ *  Then random lookups, and lookups from a small hot set,
+ *  while another thread repeatedly gets all the entries.
+ *  Then adding the hosts to an empty database with put() for each,
+ *  compared with one importAll().
+ *  Then reverse lookups of the hosts, and of random hashes not in the database.
+ *
+ *  Each run is in a new context with a temporary router directory.
+ *  All the lookups are checked.
+ *
+ *  Usage: BlockfileBench [hosts] [lookups]
+ *
+ *  @since 0.9.28
+ */
+public class BlockfileBench {
+
+    public static void main(String args[]) throws Exception {
+        int hosts = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "blockfilebench-" + System.nanoTime());
+        dir.mkdirs();
+        try {
+            List<String> names = writeHosts(new File(dir, "hosts.txt"), hosts);
+            System.out.println(hosts + " hosts, " + lookups + " lookups");
+            // warmup
+            run(dir, names, lookups / 4, 0, 1024, false, false);
+            run(dir, names, lookups, 0, 1024, false, true);
+            run(dir, names, lookups, 2048, 1024, false, true);
+            run(dir, names, lookups, 2048, 4096, false, true);
+            run(dir, names, lookups, 2048, 4096, true, true);
+            runConcurrent(dir, names, lookups, false);
+            runConcurrent(dir, names, lookups, true);
+            runImport(dir, names, false);
+            runImport(dir, names, true);
+            runReverse(dir, names, lookups);
+        } finally {
+            FileUtil.rmdir(dir, false);
+        }
+    }
+
+    private static List<String> writeHosts(File f, int count) throws IOException {
+        List<String> rv = new ArrayList<String>(count);
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+            for (int i = 0; i < count; i++) {
+                String name = "host" + i + ".i2p";
+                out.write(name + '=' + randomDest().toBase64() + '\n');
+                rv.add(name);
+            }
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+        }
+        return rv;
+    }
+
+    private static Destination randomDest() {
+        byte[] pub = new byte[PublicKey.KEYSIZE_BYTES];
+        byte[] spub = new byte[SigningPublicKey.KEYSIZE_BYTES];
+        RandomSource.getInstance().nextBytes(pub);
+        RandomSource.getInstance().nextBytes(spub);
+        Destination rv = new Destination();
+        rv.setPublicKey(new PublicKey(pub));
+        rv.setSigningPublicKey(new SigningPublicKey(spub));
+        rv.setCertificate(Certificate.NULL_CERT);
+        return rv;
+    }
+
+    /**
+     *  @param cacheKB 0 for none
+     *  @param mmap reopen read-only and memory-mapped for the lookups
+     */
+    private static void run(File dir, List<String> names, int lookups, int cacheKB, int pageSize,
+                            boolean mmap, boolean print) {
+        File db = new File(dir, "hostsdb.blockfile");
+        db.delete();
+        Properties props = new Properties();
+        props.setProperty("i2p.dir.config", dir.getAbsolutePath());
+        props.setProperty("i2p.dir.router", dir.getAbsolutePath());
+        props.setProperty("i2p.naming.blockfile.writeInAppContext", "true");
+        props.setProperty("i2p.naming.blockfile.pageCache", Integer.toString(cacheKB));
+        props.setProperty("i2p.naming.blockfile.pageSize", Integer.toString(pageSize));
+        I2PAppContext ctx = new I2PAppContext(props);
+        long start = System.nanoTime();
+        BlockfileNamingService bns = new BlockfileNamingService(ctx);
+        long importTime = System.nanoTime() - start;
+        if (mmap) {
+            bns.shutdown();
+            props.remove("i2p.naming.blockfile.writeInAppContext");
+            props.setProperty("i2p.naming.blockfile.mmap", "true");
+            ctx = new I2PAppContext(props);
+            bns = new BlockfileNamingService(ctx);
+        }
+
+        List<String> shuffled = new ArrayList<String>(names);
+        Collections.shuffle(shuffled);
+        int sz = shuffled.size();
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            String name = shuffled.get(i % sz);
+            if (bns.lookup(name) == null)
+                throw new RuntimeException("Lookup of " + name + " failed");
+        }
+        long lookupTime = System.nanoTime() - start;
+        bns.shutdown();
+        if (!print)
+            return;
+        String desc;
+        if (mmap)
+            desc = "mmap, " + pageSize + " byte pages: ";
+        else if (cacheKB > 0)
+            desc = cacheKB + " KB cache, " + pageSize + " byte pages: ";
+        else
+            desc = "no cache, " + pageSize + " byte pages: ";
+        System.out.println(desc + "import " + (names.size() * 1000000000L / importTime) + " hosts/sec, " +
+                           "lookup " + (lookups * 1000000000L / lookupTime) + " lookups/sec, " +
+                           (db.length() / 1024) + " KB");
+    }
+
+    /**
+     *  Lookups while another thread iterates through the whole list
+     *
+     *  @param hot if true, look up only the first 500 names
+     */
+    private static void runConcurrent(File dir, List<String> names, int lookups, boolean hot) throws InterruptedException {
+        File db = new File(dir, "hostsdb.blockfile");
+        db.delete();
+        Properties props = new Properties();
+        props.setProperty("i2p.dir.config", dir.getAbsolutePath());
+        props.setProperty("i2p.dir.router", dir.getAbsolutePath());
+        props.setProperty("i2p.naming.blockfile.writeInAppContext", "true");
+        I2PAppContext ctx = new I2PAppContext(props);
+        final BlockfileNamingService bns = new BlockfileNamingService(ctx);
+        final int expected = names.size();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger iterations = new AtomicInteger();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (!done.get()) {
+                    Map<String, Destination> entries = bns.getEntries();
+                    if (entries.size() != expected)
+                        throw new RuntimeException("getEntries() returned " + entries.size() + ", expected " + expected);
+                    iterations.incrementAndGet();
+                }
+            }
+        }, "Iterator");
+        t.start();
+
+        List<String> shuffled = new ArrayList<String>(names);
+        Collections.shuffle(shuffled);
+        int sz = hot ? Math.min(500, shuffled.size()) : shuffled.size();
+        long max = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            String name = shuffled.get(i % sz);
+            long before = System.nanoTime();
+            if (bns.lookup(name) == null)
+                throw new RuntimeException("Lookup of " + name + " failed");
+            max = Math.max(max, System.nanoTime() - before);
+        }
+        long lookupTime = System.nanoTime() - start;
+        done.set(true);
+        t.join();
+        bns.shutdown();
+        System.out.println((hot ? "hot set of " + sz : "all " + sz) + " hosts, concurrent with " +
+                           iterations.get() + " getEntries(): " +
+                           "lookup " + (lookups * 1000000000L / lookupTime) + " lookups/sec, " +
+                           "max " + (max / 1000000) + " ms");
+    }
+
+    /**
+     *  Add to an empty database, as the addressbook does for subscriptions
+     *
+     *  @param batch use importAll() instead of put() for each
+     */
+    private static void runImport(File dir, List<String> names, boolean batch) throws IOException {
+        File empty = new File(dir, "empty");
+        FileUtil.rmdir(empty, false);
+        empty.mkdirs();
+        // a new database only searches the lists that had a file
+        new File(empty, "hosts.txt").createNewFile();
+        Properties props = new Properties();
+        props.setProperty("i2p.dir.config", empty.getAbsolutePath());
+        props.setProperty("i2p.dir.router", empty.getAbsolutePath());
+        props.setProperty("i2p.naming.blockfile.writeInAppContext", "true");
+        I2PAppContext ctx = new I2PAppContext(props);
+        BlockfileNamingService bns = new BlockfileNamingService(ctx);
+        // the generated dests, in file order
+        Map<String, Destination> dests = new HashMap<String, Destination>(names.size());
+        Map<String, Properties> options = new HashMap<String, Properties>(names.size());
+        Properties hosts = new Properties();
+        DataHelper.loadProps(hosts, new File(dir, "hosts.txt"));
+        for (String name : names) {
+            Destination d = new Destination();
+            try {
+                d.fromBase64(hosts.getProperty(name));
+            } catch (DataFormatException dfe) {
+                throw new IOException(dfe);
+            }
+            dests.put(name, d);
+            Properties opts = new Properties();
+            opts.setProperty("s", "http://bench.i2p/hosts.txt");
+            options.put(name, opts);
+        }
+
+        long start = System.nanoTime();
+        int added;
+        if (batch) {
+            added = bns.importAll(dests, options).size();
+        } else {
+            added = 0;
+            for (Map.Entry<String, Destination> e : dests.entrySet()) {
+                if (bns.put(e.getKey(), e.getValue(), options.get(e.getKey())))
+                    added++;
+            }
+        }
+        long time = System.nanoTime() - start;
+        if (added != names.size())
+            throw new RuntimeException("Added " + added + ", expected " + names.size());
+        for (String name : names) {
+            Destination d = dests.get(name);
+            if (!d.equals(bns.lookup(name)))
+                throw new RuntimeException("Lookup of " + name + " failed");
+            if (!name.equals(bns.reverseLookup(d)))
+                throw new RuntimeException("Reverse lookup of " + name + " failed");
+        }
+        bns.shutdown();
+        System.out.println((batch ? "importAll(): " : "put():       ") +
+                           (names.size() * 1000000000L / time) + " hosts/sec");
+    }
+
+    /**
+     *  Reverse lookups, as when rendering lists of tunnels or peers.
+     *  Most of the hashes are not in the database.
+     */
+    private static void runReverse(File dir, List<String> names, int lookups) throws IOException {
+        File db = new File(dir, "hostsdb.blockfile");
+        db.delete();
+        Properties props = new Properties();
+        props.setProperty("i2p.dir.config", dir.getAbsolutePath());
+        props.setProperty("i2p.dir.router", dir.getAbsolutePath());
+        props.setProperty("i2p.naming.blockfile.writeInAppContext", "true");
+        I2PAppContext ctx = new I2PAppContext(props);
+        BlockfileNamingService bns = new BlockfileNamingService(ctx);
+        Properties hosts = new Properties();
+        DataHelper.loadProps(hosts, new File(dir, "hosts.txt"));
+        List<Hash> known = new ArrayList<Hash>(names.size());
+        for (String name : names) {
+            Destination d = new Destination();
+            try {
+                d.fromBase64(hosts.getProperty(name));
+            } catch (DataFormatException dfe) {
+                throw new IOException(dfe);
+            }
+            known.add(d.calculateHash());
+        }
+        List<Hash> unknown = new ArrayList<Hash>(lookups);
+        for (int i = 0; i < lookups; i++) {
+            byte[] b = new byte[Hash.HASH_LENGTH];
+            RandomSource.getInstance().nextBytes(b);
+            unknown.add(new Hash(b));
+        }
+
+        // the first one may build the index
+        long start = System.nanoTime();
+        bns.reverseLookup(unknown.get(0));
+        long firstTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < known.size(); i++) {
+            if (!names.get(i).equals(bns.reverseLookup(known.get(i))))
+                throw new RuntimeException("Reverse lookup of " + names.get(i) + " failed");
+        }
+        long hitTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        int found = 0;
+        for (Hash h : unknown) {
+            if (bns.reverseLookup(h) != null)
+                found++;
+        }
+        long missTime = System.nanoTime() - start;
+        bns.shutdown();
+        if (found > 0)
+            throw new RuntimeException("Found " + found + " random hashes");
+        System.out.println("reverse lookup: first " + (firstTime / 1000000) + " ms, " +
+                           (known.size() * 1000000000L / hitTime) + " hits/sec, " +
+                           (lookups * 1000000000L / missTime) + " misses/sec");
+    }
+}
@@ -0,0 +1,98 @@
+package net.i2p.client.naming;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ *  No false negatives, few false positives, and when it must be rebuilt.
+ *
+ *  @since 0.9.28
+ */
+public class ReverseFilterTest {
+
+    @Test
+    public void testAddMightContain() {
+        ReverseFilter rf = new ReverseFilter(2000);
+        Random rand = new Random(28);
+        Set<Integer> added = new HashSet<Integer>();
+        for (int i = 0; i < 2000; i++) {
+            int key = rand.nextInt();
+            rf.add(key);
+            added.add(Integer.valueOf(key));
+        }
+        assertEquals(2000, rf.getCount());
+        // no false negatives
+        for (Integer key : added) {
+            assertTrue(rf.mightContain(key.intValue()));
+        }
+        // few false positives at capacity
+        int fp = 0;
+        int tries = 100000;
+        for (int i = 0; i < tries; i++) {
+            int key = rand.nextInt();
+            if (!added.contains(Integer.valueOf(key)) && rf.mightContain(key))
+                fp++;
+        }
+        assertTrue("false positives: " + fp, fp < tries / 50);
+    }
+
+    @Test
+    public void testEmpty() {
+        ReverseFilter rf = new ReverseFilter(100);
+        for (int i = -1000; i < 1000; i++) {
+            assertFalse(rf.mightContain(i));
+        }
+        assertEquals(0, rf.getCount());
+        assertFalse(rf.isFull());
+    }
+
+    /** adjacent keys, as the keys are the first 4 bytes of a hash, not well mixed here */
+    @Test
+    public void testSequentialKeys() {
+        ReverseFilter rf = new ReverseFilter(5000);
+        for (int i = 0; i < 5000; i++) {
+            rf.add(i);
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(rf.mightContain(i));
+        }
+        int fp = 0;
+        for (int i = 5000; i < 105000; i++) {
+            if (rf.mightContain(i))
+                fp++;
+        }
+        assertTrue("false positives: " + fp, fp < 2000);
+    }
+
+    @Test
+    public void testIsFull() {
+        ReverseFilter rf = new ReverseFilter(2000);
+        for (int i = 0; i < 2000; i++) {
+            rf.add(i * 7919);
+            assertFalse(rf.isFull());
+        }
+        // duplicates count
+        rf.add(0);
+        assertTrue(rf.isFull());
+        assertEquals(2001, rf.getCount());
+    }
+
+    /** small capacities are rounded up */
+    @Test
+    public void testMinCapacity() {
+        ReverseFilter small = new ReverseFilter(10);
+        ReverseFilter min = new ReverseFilter(1024);
+        assertEquals(min.getSize(), small.getSize());
+        for (int i = 0; i < 1024; i++) {
+            small.add(i);
+        }
+        assertFalse(small.isFull());
+        small.add(1024);
+        assertTrue(small.isFull());
+    }
+}
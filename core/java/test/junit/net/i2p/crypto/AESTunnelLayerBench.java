@@ -0,0 +1,211 @@
+package net.i2p.crypto;
+
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by jrandom in 2003 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't  make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ */
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.data.SessionKey;
+
+/**
+ *  Compare the block-by-block tunnel layer crypto formerly
+ *  in HopProcessor and OutboundGatewayProcessor
+ *  with AESEngine.encryptTunnelLayer() and decryptTunnelLayer().
+ *
+ *  Each run uses the layer and IV keys of the next of several tunnels,
+ *  as a router with many tunnels does. A busy transit router
+ *  has thousands of tunnels, so test with a realistic count.
+ *  To test the system AES path, the jcpuid library must be in java.library.path.
+ *
+ *  Then compare Cryptix and system CBC encryption, as in AESEngine.encrypt(),
+ *  over a range of lengths, with a cipher per key reinitialized with each IV,
+ *  to find the crossover for CryptixAESEngine.MIN_SYSTEM_AES_LENGTH.
+ *
+ *  Usage: AESTunnelLayerBench [runs [tunnels]]
+ *
+ *  @since 0.9.28
+ */
+public class AESTunnelLayerBench {
+    private static final int SIZE = 1024;
+    private static final int WARMUP = 20000;
+
+    public static void main(String args[]) {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        int runs = 200000;
+        if (args.length > 0)
+            runs = Integer.parseInt(args[0]);
+        final int KEYS = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        AESEngine aes = ctx.aes();
+        SessionKey[] layerKeys = new SessionKey[KEYS];
+        SessionKey[] ivKeys = new SessionKey[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            layerKeys[i] = ctx.keyGenerator().generateSessionKey();
+            ivKeys[i] = ctx.keyGenerator().generateSessionKey();
+        }
+        byte[] orig = new byte[SIZE];
+        ctx.random().nextBytes(orig);
+        byte[] a = new byte[SIZE];
+        byte[] b = new byte[SIZE];
+        System.arraycopy(orig, 0, a, 0, SIZE);
+        System.arraycopy(orig, 0, b, 0, SIZE);
+
+        for (int i = 0; i < KEYS; i++) {
+            encryptPerBlock(aes, a, layerKeys[i], ivKeys[i]);
+            aes.encryptTunnelLayer(b, 0, SIZE, layerKeys[i], ivKeys[i]);
+        }
+        if (!DataHelper.eq(a, b))
+            throw new RuntimeException("encrypt mismatch");
+        for (int i = KEYS - 1; i >= 0; i--) {
+            decryptPerBlock(aes, a, layerKeys[i], ivKeys[i]);
+            aes.decryptTunnelLayer(b, 0, SIZE, layerKeys[i], ivKeys[i]);
+        }
+        if (!DataHelper.eq(a, orig) || !DataHelper.eq(b, orig))
+            throw new RuntimeException("decrypt mismatch");
+        System.out.println("Per-block and bulk results match");
+
+        for (int i = 0; i < WARMUP; i++) {
+            encryptPerBlock(aes, a, layerKeys[i % KEYS], ivKeys[i % KEYS]);
+            decryptPerBlock(aes, a, layerKeys[i % KEYS], ivKeys[i % KEYS]);
+            aes.encryptTunnelLayer(b, 0, SIZE, layerKeys[i % KEYS], ivKeys[i % KEYS]);
+            aes.decryptTunnelLayer(b, 0, SIZE, layerKeys[i % KEYS], ivKeys[i % KEYS]);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            encryptPerBlock(aes, a, layerKeys[i % KEYS], ivKeys[i % KEYS]);
+        }
+        long blockEnc = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            decryptPerBlock(aes, a, layerKeys[i % KEYS], ivKeys[i % KEYS]);
+        }
+        long blockDec = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            aes.encryptTunnelLayer(b, 0, SIZE, layerKeys[i % KEYS], ivKeys[i % KEYS]);
+        }
+        long bulkEnc = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            aes.decryptTunnelLayer(b, 0, SIZE, layerKeys[i % KEYS], ivKeys[i % KEYS]);
+        }
+        long bulkDec = System.nanoTime() - start;
+
+        System.out.println(runs + " runs of " + SIZE + " byte tunnel messages, " + KEYS + " tunnels");
+        report("Per-block encrypt", blockEnc, runs);
+        report("Bulk encrypt     ", bulkEnc, runs);
+        report("Per-block decrypt", blockDec, runs);
+        report("Bulk decrypt     ", bulkDec, runs);
+
+        try {
+            compareLengths(aes, layerKeys, runs);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static final int[] LENGTHS = { 16, 32, 48, 64, 96, 128, 256, 512, 704, 1024 };
+
+    private static void compareLengths(AESEngine aes, SessionKey[] keys, int runs) throws Exception {
+        int nkeys = keys.length;
+        Cipher[] ciphers = new Cipher[nkeys];
+        SecretKeySpec[] specs = new SecretKeySpec[nkeys];
+        for (int i = 0; i < nkeys; i++) {
+            specs[i] = new SecretKeySpec(keys[i].getData(), "AES");
+            ciphers[i] = Cipher.getInstance("AES/CBC/NoPadding");
+        }
+        byte[] iv = new byte[16];
+        byte[] in = new byte[SIZE];
+        byte[] out = new byte[SIZE];
+        byte[] out2 = new byte[SIZE];
+        I2PAppContext.getGlobalContext().random().nextBytes(in);
+        System.out.println("CBC encrypt by length, " + nkeys + " keys, ns/op");
+        System.out.println("length\tCryptix\tSystem");
+        for (int len : LENGTHS) {
+            cryptixCBC(aes, in, out, keys[0], iv, len);
+            systemCBC(ciphers[0], specs[0], in, out2, iv, len);
+            if (!DataHelper.eq(out, 0, out2, 0, len))
+                throw new RuntimeException("CBC mismatch at length " + len);
+            for (int i = 0; i < WARMUP; i++) {
+                cryptixCBC(aes, in, out, keys[i % nkeys], iv, len);
+                systemCBC(ciphers[i % nkeys], specs[i % nkeys], in, out2, iv, len);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                cryptixCBC(aes, in, out, keys[i % nkeys], iv, len);
+            }
+            long cryptix = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                systemCBC(ciphers[i % nkeys], specs[i % nkeys], in, out2, iv, len);
+            }
+            long system = System.nanoTime() - start;
+            System.out.println(len + "\t" + (cryptix / runs) + '\t' + (system / runs));
+        }
+    }
+
+    /** as in CryptixAESEngine.encrypt() below MIN_SYSTEM_AES_LENGTH */
+    private static void cryptixCBC(AESEngine aes, byte[] in, byte[] out, SessionKey key, byte[] iv, int len) {
+        DataHelper.xor(iv, 0, in, 0, out, 0, 16);
+        aes.encryptBlock(out, 0, key, out, 0);
+        for (int off = 16; off < len; off += 16) {
+            DataHelper.xor(out, off - 16, in, off, out, off, 16);
+            aes.encryptBlock(out, off, key, out, off);
+        }
+    }
+
+    /** as in CryptixAESEngine.encrypt() at or above MIN_SYSTEM_AES_LENGTH */
+    private static void systemCBC(Cipher cipher, SecretKeySpec spec, byte[] in, byte[] out, byte[] iv, int len) throws Exception {
+        synchronized (cipher) {
+            cipher.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(iv, 0, 16));
+            cipher.doFinal(in, 0, len, out, 0);
+        }
+    }
+
+    private static void report(String name, long ns, int runs) {
+        System.out.println(name + ": " + (ns / 1000000) + " ms total, " +
+                           (ns / runs) + " ns/msg, " +
+                           (((long) runs) * SIZE * 1000 / Math.max(1, ns)) + " MBps");
+    }
+
+    /** as formerly in HopProcessor */
+    private static void encryptPerBlock(AESEngine aes, byte[] data, SessionKey layerKey, SessionKey ivKey) {
+        aes.encryptBlock(data, 0, ivKey, data, 0);
+        for (int off = 16; off < SIZE; off += 16) {
+            for (int j = 0; j < 16; j++) {
+                data[off + j] ^= data[(off - 16) + j];
+            }
+            aes.encryptBlock(data, off, layerKey, data, off);
+        }
+        aes.encryptBlock(data, 0, ivKey, data, 0);
+    }
+
+    /** as formerly in OutboundGatewayProcessor */
+    private static void decryptPerBlock(AESEngine aes, byte[] data, SessionKey layerKey, SessionKey ivKey) {
+        byte[] prev = new byte[16];
+        byte[] cur = new byte[16];
+        aes.decryptBlock(data, 0, ivKey, data, 0);
+        System.arraycopy(data, 0, prev, 0, 16);
+        for (int off = 16; off < SIZE; off += 16) {
+            System.arraycopy(data, off, cur, 0, 16);
+            aes.decryptBlock(data, off, layerKey, data, off);
+            for (int j = 0; j < 16; j++) {
+                data[off + j] ^= prev[j];
+            }
+            byte[] xf = prev;
+            prev = cur;
+            cur = xf;
+        }
+        aes.decryptBlock(data, 0, ivKey, data, 0);
+    }
+}
@@ -109,4 +109,34 @@ public class CryptixAESEngineTest extends TestCase{
         aes.decryptBlock(data, 0, key, data, 0);
         assertTrue(DataHelper.eq(data,orig));
     }
+    
+    /**
+     *  Compare against the old block-by-block tunnel crypto
+     */
+    public static void testTunnelLayer() {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        SessionKey layerKey = ctx.keyGenerator().generateSessionKey();
+        SessionKey ivKey = ctx.keyGenerator().generateSessionKey();
+        byte orig[] = new byte[1024];
+        ctx.random().nextBytes(orig);
+        byte data[] = new byte[1024];
+        System.arraycopy(orig, 0, data, 0, 1024);
+        byte expected[] = new byte[1024];
+        System.arraycopy(orig, 0, expected, 0, 1024);
+        CryptixAESEngine aes = new CryptixAESEngine(ctx);
+
+        aes.encryptBlock(expected, 0, ivKey, expected, 0);
+        for (int off = 16; off < 1024; off += 16) {
+            for (int j = 0; j < 16; j++) {
+                expected[off + j] ^= expected[off - 16 + j];
+            }
+            aes.encryptBlock(expected, off, layerKey, expected, off);
+        }
+        aes.encryptBlock(expected, 0, ivKey, expected, 0);
+
+        aes.encryptTunnelLayer(data, 0, 1024, layerKey, ivKey);
+        assertTrue(DataHelper.eq(data, expected));
+        aes.decryptTunnelLayer(data, 0, 1024, layerKey, ivKey);
+        assertTrue(DataHelper.eq(data, orig));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,101 @@
+package net.i2p.stat;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+/**
+ *  Rows by period, rounding, gaps, and wraparound.
+ *
+ *  @since 0.9.28
+ */
+public class RateHistoryTest extends TestCase {
+    private static final long P = 60*1000;
+
+    /** coalesced a little early or late */
+    @Test
+    public void testRounding() {
+        RateHistory h = new RateHistory(P, 10, false);
+        h.add(10 * P - 1000, 1.5, 3);
+        assertEquals(10 * P, h.getLastTime());
+        assertEquals(1.5, h.getAverageValue(10 * P), 0);
+        assertEquals(3.0, h.getEventCount(10 * P), 0);
+        h.add(11 * P + 20000, 2.5, 4);
+        assertEquals(11 * P, h.getLastTime());
+        assertEquals(2.5, h.getAverageValue(11 * P), 0);
+        // more than half a period late is the next one
+        h.add(12 * P + 31000, 3.5, 5);
+        assertEquals(13 * P, h.getLastTime());
+        assertEquals(3.5, h.getAverageValue(13 * P), 0);
+        assertTrue(Double.isNaN(h.getAverageValue(12 * P)));
+    }
+
+    @Test
+    public void testSkipped() {
+        RateHistory h = new RateHistory(P, 10, false);
+        h.add(10 * P, 1, 1);
+        h.add(14 * P, 2, 2);
+        for (long s = 11; s <= 13; s++) {
+            assertTrue(Double.isNaN(h.getAverageValue(s * P)));
+            assertTrue(Double.isNaN(h.getEventCount(s * P)));
+        }
+        assertEquals(1.0, h.getAverageValue(10 * P), 0);
+        assertEquals(2.0, h.getAverageValue(14 * P), 0);
+        // never added
+        assertTrue(Double.isNaN(h.getAverageValue(9 * P)));
+        assertTrue(Double.isNaN(h.getEventCount(9 * P)));
+    }
+
+    /** earlier than the most recent row */
+    @Test
+    public void testOld() {
+        RateHistory h = new RateHistory(P, 10, false);
+        h.add(10 * P, 1, 1);
+        h.add(9 * P, 2, 2);
+        assertEquals(10 * P, h.getLastTime());
+        assertEquals(1.0, h.getAverageValue(10 * P), 0);
+        assertTrue(Double.isNaN(h.getAverageValue(9 * P)));
+    }
+
+    @Test
+    public void testWraparound() {
+        RateHistory h = new RateHistory(P, 4, false);
+        for (long s = 1; s <= 10; s++) {
+            h.add(s * P, s, s);
+        }
+        for (long s = 7; s <= 10; s++) {
+            assertEquals((double) s, h.getAverageValue(s * P), 0);
+            assertEquals((double) s, h.getEventCount(s * P), 0);
+        }
+        assertTrue(Double.isNaN(h.getAverageValue(6 * P)));
+        // a gap longer than the history
+        h.add(20 * P, 20, 20);
+        assertEquals(20.0, h.getAverageValue(20 * P), 0);
+        for (long s = 10; s < 20; s++) {
+            assertTrue(Double.isNaN(h.getAverageValue(s * P)));
+        }
+    }
+
+    /** the row for period s covers ((s - 1) * P, s * P] */
+    @Test
+    public void testOffsetBounds() {
+        RateHistory h = new RateHistory(P, 4, true);
+        assertTrue(h.isOffHeap());
+        assertEquals(32, h.getSize());
+        assertTrue(Double.isNaN(h.getAverageValue(P)));
+        assertEquals(0, h.getLastTime());
+        for (long s = 1; s <= 6; s++) {
+            h.add(s * P, s, s);
+        }
+        assertTrue(Double.isNaN(h.getAverageValue(0)));
+        assertTrue(Double.isNaN(h.getAverageValue(-P)));
+        assertEquals(6.0, h.getAverageValue(6 * P), 0);
+        assertEquals(6.0, h.getAverageValue(5 * P + 1), 0);
+        assertEquals(5.0, h.getAverageValue(5 * P), 0);
+        assertTrue(Double.isNaN(h.getAverageValue(6 * P + 1)));
+        // oldest row kept
+        assertEquals(3.0, h.getAverageValue(3 * P), 0);
+        assertEquals(3.0, h.getAverageValue(2 * P + 1), 0);
+        assertTrue(Double.isNaN(h.getAverageValue(2 * P)));
+    }
+}
@@ -0,0 +1,102 @@
+package net.i2p.stat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+
+/**
+ *  Many threads adding data to the same stat through StatManager.addRateData(),
+ *  compared with updating each synchronized Rate of the RateStat,
+ *  as RateStat.addData() formerly did.
+ *
+ *  After each run the lifetime event counts of all the rates are checked.
+ *
+ *  Usage: RateStatBench [seconds per run] [max threads]
+ *
+ *  @since 0.9.28
+ */
+public class RateStatBench {
+    private static final long[] PERIODS = { 60*1000, 10*60*1000, 60*60*1000 };
+
+    public static void main(String args[]) throws Exception {
+        final long runTime = 1000L * (args.length > 0 ? Integer.parseInt(args[0]) : 2);
+        final int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        StatManager sm = ctx.statManager();
+        sm.createRequiredRateStat("bench.perRate", "per rate", "Bench", PERIODS);
+        sm.createRequiredRateStat("bench.accumulated", "accumulated", "Bench", PERIODS);
+        System.out.println(PERIODS.length + " periods, " + (runTime / 1000) + " seconds per run, " +
+                           Runtime.getRuntime().availableProcessors() + " processors");
+
+        // warmup
+        run(sm, "bench.perRate", 2, runTime / 2, true, false);
+        run(sm, "bench.accumulated", 2, runTime / 2, false, false);
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long before = run(sm, "bench.perRate", threads, runTime, true, true);
+            long after = run(sm, "bench.accumulated", threads, runTime, false, true);
+            System.out.println(threads + " threads: synchronized rates " + before +
+                               "/sec, accumulated " + after + "/sec");
+        }
+    }
+
+    /**
+     *  @return adds per second
+     */
+    private static long run(StatManager sm, String name, int threads, final long runTime,
+                            final boolean perRate, boolean check) throws InterruptedException {
+        final RateStat rs = sm.getRate(name);
+        final Rate[] rates = new Rate[PERIODS.length];
+        for (int i = 0; i < PERIODS.length; i++) {
+            rates[i] = rs.getRate(PERIODS[i]);
+        }
+        final StatManager fsm = sm;
+        final String fname = name;
+        final AtomicLong adds = new AtomicLong();
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final CountDownLatch doneSignal = new CountDownLatch(threads);
+        long[] countBefore = new long[rates.length];
+        for (int i = 0; i < rates.length; i++) {
+            countBefore[i] = rates[i].getLifetimeEventCount();
+        }
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        startSignal.await();
+                    } catch (InterruptedException ie) {}
+                    long n = 0;
+                    long end = System.currentTimeMillis() + runTime;
+                    while (true) {
+                        if ((n & 0x3ff) == 0 && System.currentTimeMillis() >= end)
+                            break;
+                        if (perRate) {
+                            // as RateStat.addData() formerly did
+                            for (int j = 0; j < rates.length; j++) {
+                                rates[j].addData(n & 0xff, 1);
+                            }
+                        } else {
+                            fsm.addRateData(fname, n & 0xff, 1);
+                        }
+                        n++;
+                    }
+                    adds.addAndGet(n);
+                    doneSignal.countDown();
+                }
+            }, "Adder " + i);
+            t.start();
+        }
+        long start = System.nanoTime();
+        startSignal.countDown();
+        doneSignal.await();
+        long time = System.nanoTime() - start;
+        if (check) {
+            for (int i = 0; i < rates.length; i++) {
+                long count = rates[i].getLifetimeEventCount() - countBefore[i];
+                if (count != adds.get())
+                    throw new RuntimeException("Rate " + PERIODS[i] + " has " + count + " events, expected " + adds.get());
+            }
+        }
+        return adds.get() * 1000000000L / time;
+    }
+}
@@ -0,0 +1,147 @@
+package net.i2p.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.stat.Rate;
+import net.i2p.stat.RateStat;
+
+/**
+ *  Many threads debug logging through the LogManager queue,
+ *  compared with logger.ringBuffer=true, each in a new context
+ *  logging to a file in a temporary directory.
+ *
+ *  Each run ends when all the records are in the file, and the lines are counted.
+ *  Reports the throughput, the collections during the run, and the logger stats.
+ *
+ *  Usage: LogBench [records per thread] [threads]
+ *
+ *  @since 0.9.28
+ */
+public class LogBench {
+
+    public static void main(String args[]) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        System.out.println(threads + " threads, " + count + " records each");
+        // warmup
+        run(false, count / 4, threads, false);
+        run(true, count / 4, threads, false);
+        for (int i = 0; i < 2; i++) {
+            run(false, count, threads, true);
+            run(true, count, threads, true);
+        }
+    }
+
+    private static void run(boolean ring, final int count, int threads, boolean print) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "logbench-" + System.nanoTime());
+        dir.mkdirs();
+        File log = new File(dir, "log.txt");
+        Properties cfg = new Properties();
+        cfg.setProperty("logger.defaultLevel", "DEBUG");
+        cfg.setProperty("logger.displayOnScreen", "false");
+        cfg.setProperty("logger.dropDuplicates", "false");
+        cfg.setProperty(LogManager.PROP_FILENAME, log.getAbsolutePath());
+        cfg.setProperty(LogManager.PROP_FILESIZE, "1g");
+        cfg.setProperty("logger.ringBuffer", Boolean.toString(ring));
+        DataHelper.storeProps(cfg, new File(dir, "logger.config"));
+        Properties props = new Properties();
+        props.setProperty("i2p.dir.config", dir.getAbsolutePath());
+        props.setProperty("i2p.dir.router", dir.getAbsolutePath());
+        I2PAppContext ctx = new I2PAppContext(props);
+        LogManager mgr = ctx.logManager();
+        final Log l = mgr.getLog(LogBench.class);
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final CountDownLatch doneSignal = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        startSignal.await();
+                    } catch (InterruptedException ie) {}
+                    for (int j = 0; j < count; j++) {
+                        if (l.shouldLog(Log.DEBUG))
+                            l.debug("Bench record " + j);
+                    }
+                    doneSignal.countDown();
+                }
+            }, "Logger " + i);
+            t.start();
+        }
+        long gcs = gcCount();
+        long gcTime = gcTime();
+        long start = System.nanoTime();
+        startSignal.countDown();
+        doneSignal.await();
+        // until written
+        while (true) {
+            mgr.flush();
+            if (ring ? mgr.getRing().isEmpty() : mgr.getQueue().isEmpty())
+                break;
+        }
+        long time = System.nanoTime() - start;
+        gcs = gcCount() - gcs;
+        gcTime = gcTime() - gcTime;
+        mgr.shutdown();
+        // the writer thread may still be writing the last records
+        Thread.sleep(500);
+        long expected = (long) count * threads;
+        long lines = countLines(log);
+        FileUtil.rmdir(dir, false);
+        if (lines != expected)
+            throw new RuntimeException("Wrote " + lines + " lines, expected " + expected);
+        if (!print)
+            return;
+        System.out.println((ring ? "Ring:  " : "Queue: ") + (expected * 1000000000L / time) + " records/sec, " +
+                           gcs + " collections, " + gcTime + " ms GC, " +
+                           "average depth " + lifetimeAverage(ctx, "logger.queueDepth") +
+                           ", average write time " + lifetimeAverage(ctx, "logger.writeTime") + " ms");
+    }
+
+    private static long countLines(File f) throws IOException {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            long rv = 0;
+            while (in.readLine() != null) {
+                rv++;
+            }
+            return rv;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    private static String lifetimeAverage(I2PAppContext ctx, String name) {
+        RateStat rs = ctx.statManager().getRate(name);
+        if (rs == null)
+            return "-";
+        Rate r = rs.getRate(60*1000);
+        return Long.toString(Math.round(r.getLifetimeAverageValue()));
+    }
+
+    private static long gcCount() {
+        long rv = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            rv += gc.getCollectionCount();
+        }
+        return rv;
+    }
+
+    private static long gcTime() {
+        long rv = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            rv += gc.getCollectionTime();
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,100 @@
+package net.i2p.util;
+
+import junit.framework.TestCase;
+
+/**
+ *  Many writers and one reader, as in the LogManager.
+ *
+ *  @since 0.9.28
+ */
+public class LogRecordRingTest extends TestCase {
+    private static final int THREADS = 4;
+    private static final int RECORDS = 50000;
+
+    /**
+     *  Several writers and one reader, through a small ring so it is often full.
+     *  Every record must be read once, and each writer's in the order written.
+     */
+    public void testConcurrent() throws Exception {
+        final LogRecordRing ring = new LogRecordRing(64);
+        Thread[] writers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final String name = Integer.toString(t);
+            writers[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < RECORDS; i++) {
+                        while (!ring.offer(LogRecordRingTest.class, null, name, Log.INFO, Integer.toString(i), null)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }, "writer " + t);
+            writers[t].start();
+        }
+
+        int[] next = new int[THREADS];
+        int total = 0;
+        long timeout = System.currentTimeMillis() + 60*1000;
+        while (total < THREADS * RECORDS) {
+            assertTrue("timed out after " + total, System.currentTimeMillis() < timeout);
+            synchronized (ring) {
+                LogRecord rec = ring.peek();
+                if (rec == null) {
+                    Thread.yield();
+                    continue;
+                }
+                int t = Integer.parseInt(rec.getThreadName());
+                assertEquals("writer " + t, next[t], Integer.parseInt(rec.getMessage()));
+                assertEquals(Log.INFO, rec.getPriority());
+                next[t]++;
+                ring.remove();
+            }
+            total++;
+        }
+        for (int t = 0; t < THREADS; t++) {
+            writers[t].join();
+            assertEquals(RECORDS, next[t]);
+        }
+        assertTrue(ring.isEmpty());
+        assertNull(ring.peek());
+    }
+
+    public void testFull() {
+        LogRecordRing ring = new LogRecordRing(1);
+        assertEquals(16, ring.getCapacity());
+        assertEquals(32, new LogRecordRing(17).getCapacity());
+        for (int i = 0; i < 16; i++) {
+            assertTrue(ring.offer(LogRecordRingTest.class, null, "t", Log.WARN, Integer.toString(i), null));
+        }
+        assertEquals(16, ring.size());
+        assertFalse(ring.offer(LogRecordRingTest.class, null, "t", Log.WARN, "16", null));
+        assertEquals(16, ring.size());
+        assertEquals("0", ring.peek().getMessage());
+        ring.remove();
+        assertTrue(ring.offer(LogRecordRingTest.class, null, "t", Log.WARN, "16", null));
+        assertFalse(ring.offer(LogRecordRingTest.class, null, "t", Log.WARN, "17", null));
+        for (int i = 1; i <= 16; i++) {
+            assertEquals(Integer.toString(i), ring.peek().getMessage());
+            ring.remove();
+        }
+        assertNull(ring.peek());
+        assertTrue(ring.isEmpty());
+    }
+
+    public void testClear() {
+        LogRecordRing ring = new LogRecordRing(16);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(ring.offer(LogRecordRingTest.class, null, "t", Log.ERROR, Integer.toString(i), null));
+        }
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        assertEquals(0, ring.size());
+        assertNull(ring.peek());
+        // the full ring is available again
+        for (int i = 0; i < 16; i++) {
+            assertTrue(ring.offer(LogRecordRingTest.class, null, "t", Log.ERROR, Integer.toString(i), null));
+        }
+        assertFalse(ring.offer(LogRecordRingTest.class, null, "t", Log.ERROR, "16", null));
+        assertEquals("0", ring.peek().getMessage());
+    }
+}
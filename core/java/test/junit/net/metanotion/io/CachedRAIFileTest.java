@@ -0,0 +1,245 @@
+package net.metanotion.io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Check the cached file against the bytes on disk and an in-memory copy.
+ *
+ *  @since 0.9.28
+ */
+public class CachedRAIFileTest {
+    private static final int PAGE = CachedRAIFile.PAGE_SIZE;
+    /** the minimum */
+    private static final int PAGES = 4;
+
+    private File _file;
+
+    @Before
+    public void setUp() throws IOException {
+        _file = File.createTempFile("cachedRAIFileTest", ".dat");
+    }
+
+    @After
+    public void tearDown() {
+        _file.delete();
+    }
+
+    @Test
+    public void testPageBoundaries() throws IOException {
+        CachedRAIFile f = open();
+        byte[] b = pattern(3 * PAGE, 1);
+        f.write(b);
+        // fields that cross a page boundary
+        f.seek(PAGE - 2);
+        f.writeInt(0x01020304);
+        f.seek(2 * PAGE - 5);
+        f.writeLong(0x1122334455667788L);
+        f.seek(PAGE - 2);
+        assertEquals(0x01020304, f.readInt());
+        f.seek(2 * PAGE - 5);
+        assertEquals(0x1122334455667788L, f.readLong());
+        // a read across two boundaries
+        f.seek(PAGE - 10);
+        byte[] r = new byte[PAGE + 20];
+        f.readFully(r);
+        f.close();
+
+        byte[] expect = b.clone();
+        put(expect, PAGE - 2, new byte[] { 1, 2, 3, 4 });
+        put(expect, 2 * PAGE - 5, new byte[] { 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, (byte) 0x88 });
+        assertTrue(Arrays.equals(Arrays.copyOfRange(expect, PAGE - 10, 2 * PAGE + 10), r));
+        assertTrue(Arrays.equals(expect, readDisk()));
+    }
+
+    @Test
+    public void testShrinkDirty() throws IOException {
+        CachedRAIFile f = open();
+        f.write(pattern(3 * PAGE, 2));
+        // all dirty, nothing written yet
+        assertEquals(0, _file.length());
+        f.setLength(PAGE + 100);
+        assertEquals(PAGE + 100, f.length());
+        assertEquals(PAGE + 100, _file.length());
+        f.seek(PAGE + 100);
+        assertEquals(-1, f.read());
+        f.close();
+        assertTrue(Arrays.equals(pattern(PAGE + 100, 2), readDisk()));
+    }
+
+    /** the bytes cut off by the shrink must not come back */
+    @Test
+    public void testShrinkGrowDirty() throws IOException {
+        CachedRAIFile f = open();
+        f.write(pattern(3 * PAGE, 3));
+        f.setLength(PAGE + 100);
+        f.setLength(3 * PAGE);
+        assertEquals(3 * PAGE, f.length());
+        byte[] expect = new byte[3 * PAGE];
+        put(expect, 0, pattern(PAGE + 100, 3));
+        byte[] r = new byte[3 * PAGE];
+        f.seek(0);
+        f.readFully(r);
+        assertTrue(Arrays.equals(expect, r));
+        // dirty a page past the old end
+        f.seek(2 * PAGE + 10);
+        f.write(9);
+        expect[2 * PAGE + 10] = 9;
+        f.close();
+        assertTrue(Arrays.equals(expect, readDisk()));
+    }
+
+    @Test
+    public void testShrinkToZero() throws IOException {
+        CachedRAIFile f = open();
+        f.write(pattern(PAGE + 1, 4));
+        f.setLength(0);
+        assertEquals(0, f.length());
+        f.seek(0);
+        assertEquals(-1, f.read());
+        f.write(7);
+        f.close();
+        assertTrue(Arrays.equals(new byte[] { 7 }, readDisk()));
+    }
+
+    /** dirty pages are written when evicted, before close */
+    @Test
+    public void testEviction() throws IOException {
+        CachedRAIFile f = open();
+        int pages = 3 * PAGES;
+        byte[] b = pattern(pages * PAGE, 5);
+        f.write(b);
+        // only the last PAGES pages may still be unwritten
+        byte[] disk = readDisk();
+        assertTrue(disk.length >= (pages - PAGES) * PAGE);
+        assertTrue(Arrays.equals(Arrays.copyOf(b, (pages - PAGES) * PAGE),
+                                 Arrays.copyOf(disk, (pages - PAGES) * PAGE)));
+        // read back the evicted pages, then change one
+        byte[] r = new byte[b.length];
+        f.seek(0);
+        f.readFully(r);
+        assertTrue(Arrays.equals(b, r));
+        f.seek(PAGE);
+        f.writeInt(-1);
+        put(b, PAGE, new byte[] { -1, -1, -1, -1 });
+        // push it out again
+        f.seek(0);
+        f.readFully(r);
+        f.flush();
+        assertTrue(Arrays.equals(b, readDisk()));
+        f.close();
+        assertTrue(Arrays.equals(b, readDisk()));
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        CachedRAIFile f = open();
+        byte[] b = pattern(2 * PAGE + 33, 6);
+        f.write(b);
+        f.writeUTF("foo");
+        f.close();
+
+        f = open();
+        assertEquals(b.length + 4 + 3, f.length());
+        f.seek(b.length);
+        assertEquals("foo", f.readUTF());
+        f.seek(PAGE);
+        f.writeLong(42);
+        put(b, PAGE, new byte[] { 0, 0, 0, 0, 0, 0, 0, 42 });
+        f.close();
+
+        for (int i = 0; i < 2; i++) {
+            boolean mmap = i == 1;
+            f = new CachedRAIFile(_file, true, false, PAGES, mmap);
+            assertEquals(mmap, f.isMapped());
+            byte[] r = new byte[b.length];
+            f.readFully(r);
+            assertTrue(Arrays.equals(b, r));
+            assertEquals("foo", f.readUTF());
+            assertEquals(-1, f.read());
+            try {
+                f.write(1);
+                fail("read only");
+            } catch (IOException expected) {}
+            f.close();
+        }
+    }
+
+    /** random writes, reads, and length changes, against a copy in memory */
+    @Test
+    public void testRandom() throws IOException {
+        Random rand = new Random(28);
+        CachedRAIFile f = open();
+        byte[] model = new byte[0];
+        for (int i = 0; i < 5000; i++) {
+            int op = rand.nextInt(20);
+            if (op == 0) {
+                int len = rand.nextInt(12 * PAGE);
+                f.setLength(len);
+                model = Arrays.copyOf(model, len);
+            } else if (op == 1) {
+                f.close();
+                assertTrue(Arrays.equals(model, readDisk()));
+                f = open();
+            } else if (op < 10) {
+                int off = rand.nextInt(model.length + PAGE);
+                // sometimes more than the cache holds
+                byte[] b = new byte[1 + rand.nextInt((PAGES + 2) * PAGE)];
+                rand.nextBytes(b);
+                f.seek(off);
+                f.write(b);
+                if (off + b.length > model.length)
+                    model = Arrays.copyOf(model, off + b.length);
+                put(model, off, b);
+            } else {
+                if (model.length == 0)
+                    continue;
+                int off = rand.nextInt(model.length);
+                int len = Math.min(model.length - off, 1 + rand.nextInt(2 * PAGE));
+                byte[] r = new byte[len];
+                f.seek(off);
+                f.readFully(r);
+                assertTrue(Arrays.equals(Arrays.copyOfRange(model, off, off + len), r));
+            }
+            assertEquals(model.length, f.length());
+        }
+        f.close();
+        assertTrue(Arrays.equals(model, readDisk()));
+    }
+
+    private CachedRAIFile open() throws IOException {
+        return new CachedRAIFile(_file, true, true, PAGES, false);
+    }
+
+    private byte[] readDisk() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(_file, "r");
+        try {
+            byte[] rv = new byte[(int) raf.length()];
+            raf.readFully(rv);
+            return rv;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] pattern(int len, int seed) {
+        byte[] rv = new byte[len];
+        for (int i = 0; i < len; i++) {
+            rv[i] = (byte) (i * 31 + seed);
+        }
+        return rv;
+    }
+
+    private static void put(byte[] dest, int off, byte[] src) {
+        System.arraycopy(src, 0, dest, off, src.length);
+    }
+}
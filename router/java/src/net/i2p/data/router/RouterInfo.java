@@ -609,6 +609,21 @@ public class RouterInfo extends DatabaseEntry {
         //_log.debug("Read routerInfo: " + toString());
     }
     
+    /**
+     *  For a RouterInfo that was validated before it was serialized,
+     *  e.g. by an in-memory store that keeps only the serialized form.
+     *  This does NOT validate the signature, but isValid() will return true
+     *  without checking it.
+     *
+     *  @throws IllegalStateException if RouterInfo was already read in
+     *  @since 0.9.28
+     */
+    public void readValidatedBytes(InputStream in) throws DataFormatException, IOException {
+        readBytes(in, false);
+        _isValid = true;
+        _validated = true;
+    }
+    
     /**
      *  This does NOT validate the signature
      */
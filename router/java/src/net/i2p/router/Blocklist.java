@@ -176,8 +176,7 @@ public class Blocklist {
                     return;
                 FloodfillNetworkDatabaseFacade fndf = (FloodfillNetworkDatabaseFacade) _context.netDb();
                 int count = 0;
-                for (RouterInfo ri : fndf.getKnownRouterData()) {
-                    Hash peer = ri.getIdentity().getHash();
+                for (Hash peer : fndf.getAllRouters()) {
                     if (isBlocklisted(peer))
                         count++;
                 }
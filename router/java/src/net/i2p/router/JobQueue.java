@@ -11,13 +11,14 @@ package net.i2p.router;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.BlockingQueue;
@@ -37,6 +38,9 @@ import net.i2p.util.SystemVersion;
  * Manage the pending jobs according to whatever algorithm is appropriate, giving
  * preference to earlier scheduled jobs.
  *
+ * Jobs scheduled in the future are kept in a TimedJobWheel (since 0.9.28),
+ * and moved to the ready queue by the QueuePumper thread.
+ *
  * For use by the router only. Not to be used by applications or plugins.
  */
 public class JobQueue {
@@ -49,18 +53,34 @@ public class JobQueue {
     private final static AtomicInteger _runnerId = new AtomicInteger(0);
     /** list of jobs that are ready to run ASAP */
     private final BlockingQueue<Job> _readyJobs;
-    /** SortedSet of jobs that are scheduled for running in the future, earliest first */
-    private final Set<Job> _timedJobs;
+    /** jobs that are scheduled for running in the future */
+    private final TimedJobWheel _timedJobs;
     /** job name to JobStat for that job */
     private final ConcurrentHashMap<String, JobStats> _jobStats;
     private final QueuePumper _pumper;
+    /** non-null if in work-stealing mode, replaces _readyJobs after startup */
+    private volatile JobQueuePool _pool;
     /** will we allow the # job runners to grow beyond 1? */
     private volatile boolean _allowParallelOperation;
     /** have we been killed or are we alive? */
     private volatile boolean _alive;
     
+    /** the pumper waits on this, notify it if a job is scheduled before _nextPumperRun */
     private final Object _jobLock;
     private volatile long _nextPumperRun;
+    /**
+     *  Job to where it is queued, for jobs in _timedJobs or ready to run.
+     *  Only changed while holding the job's lock from getJobLock().
+     *  Removed when a runner takes the job, see dequeued().
+     *  @since 0.9.28
+     */
+    private final ConcurrentHashMap<Job, QueueState> _queued;
+    /** see getJobLock() */
+    private final Object[] _jobLocks;
+    private static final int JOB_LOCKS = 64;
+
+    /** @since 0.9.28 */
+    private enum QueueState { READY, TIMED }
     
     /** how many when we go parallel */
     private static final int RUNNERS;
@@ -78,6 +98,24 @@ public class JobQueue {
     private final static int DEFAULT_MAX_RUNNERS = 1;
     /** router.config parameter to override the max runners */
     private final static String PROP_MAX_RUNNERS = "router.maxJobRunners";
+
+    /**
+     *  Run the jobs in a work-stealing JobQueuePool after startup, default false.
+     *  Requires restart.
+     *  @since 0.9.28
+     */
+    private final static String PROP_WORK_STEALING = "router.jobQueue.workStealing";
+    /**
+     *  Threads for the JobQueuePool, default the greater of the runners or the number of cores
+     *  @since 0.9.28
+     */
+    private final static String PROP_POOL_THREADS = "router.jobQueue.poolThreads";
+    /**
+     *  Comma-separated simple class names of jobs that the JobQueuePool
+     *  must run one at a time and in order, default none
+     *  @since 0.9.28
+     */
+    private final static String PROP_ORDERED_JOBS = "router.jobQueue.orderedJobs";
     
     /** how frequently should we check and update the max runners */
     private final static long MAX_LIMIT_UPDATE_DELAY = 60*1000;
@@ -150,6 +188,18 @@ public class JobQueue {
                                               "How many scheduled jobs are there?",
                                               "JobQueue",
                                               new long[] { 60*1000l, 60*60*1000l, 24*60*60*1000l });
+        _context.statManager().createRateStat("jobQueue.pumpedJobs",
+                                              "How many scheduled jobs made ready in one pass?",
+                                              "JobQueue",
+                                              new long[] { 60*1000l, 60*60*1000l });
+        _context.statManager().createRateStat("jobQueue.poolSteals",
+                                              "How many jobs were stolen by idle JobQueuePool workers?",
+                                              "JobQueue",
+                                              new long[] { 60*1000l, 60*60*1000l });
+        _context.statManager().createRateStat("jobQueue.pumpLatency",
+                                              "How late the pumper made scheduled jobs ready (ms, max per pass)",
+                                              "JobQueue",
+                                              new long[] { 60*1000l, 60*60*1000l });
         // following are for JobQueueRunner
         _context.statManager().createRateStat("jobQueue.jobRun", "How long jobs take", "JobQueue", new long[] { 60*60*1000l, 24*60*60*1000l });
         _context.statManager().createRateStat("jobQueue.jobRunSlow", "How long jobs that take over a second take", "JobQueue", new long[] { 60*60*1000l, 24*60*60*1000l });
@@ -158,8 +208,13 @@ public class JobQueue {
         //_context.statManager().createRateStat("jobQueue.jobRunnerInactive", "How long are runners inactive?", "JobQueue", new long[] { 60*1000l, 60*60*1000l, 24*60*60*1000l });
 
         _readyJobs = new LinkedBlockingQueue<Job>();
-        _timedJobs = new TreeSet<Job>(new JobComparator());
+        _timedJobs = new TimedJobWheel(_context.clock().now());
         _jobLock = new Object();
+        _queued = new ConcurrentHashMap<Job, QueueState>(256);
+        _jobLocks = new Object[JOB_LOCKS];
+        for (int i = 0; i < JOB_LOCKS; i++) {
+            _jobLocks[i] = new Object();
+        }
         _queueRunners = new ConcurrentHashMap<Integer,JobQueueRunner>(RUNNERS);
         _jobStats = new ConcurrentHashMap<String,JobStats>();
         _pumper = new QueuePumper();
@@ -187,41 +242,49 @@ public class JobQueue {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Scheduling job far in the future: " + (new Date(start)) + ' ' + job);
         }
-        synchronized (_jobLock) {
-            if (_readyJobs.contains(job))
+        // No global lock here any more, the checks and changes for this job
+        // are done under its own lock, so they are atomic against other adds of
+        // the same job and against the pumper, and _jobLock is only taken
+        // to wake up the pumper.
+        numReady = getReadyCount();
+        boolean notify = false;
+        synchronized (getJobLock(job)) {
+            QueueState state = _queued.get(job);
+            if (state == QueueState.READY) {
                 alreadyExists = true;
-            numReady = _readyJobs.size();
-            if (!alreadyExists) {
-                //if (_timedJobs.contains(job))
-                //    alreadyExists = true;
-                // Always remove and re-add, since it needs to be
-                // re-sorted in the TreeSet.
-                boolean removed = _timedJobs.remove(job);
-                if (removed && _log.shouldLog(Log.WARN))
-                    _log.warn("Rescheduling job: " + job);
-            }
-
-            if ((!alreadyExists) && shouldDrop(job, numReady)) {
-                job.dropped();
-                dropped = true;
             } else {
-                if (!alreadyExists) {
-                    if (start <= now) {
-                        // don't skew us - its 'start after' its been queued, or later
-                        job.getTiming().setStartAfter(now);
-                        if (job instanceof JobImpl)
-                            ((JobImpl)job).madeReady();
-                        _readyJobs.offer(job);
-                    } else {
-                        _timedJobs.add(job);
-                        // only notify for _timedJobs, as _readyJobs does not use that lock
-                        // only notify if sooner, to reduce contention
-                        if (start < _nextPumperRun)
-                            _jobLock.notifyAll();
-                    }
+                // Always remove and re-add, since it may have been rescheduled
+                if (state == QueueState.TIMED) {
+                    _queued.remove(job);
+                    // false if the pumper has it, it will see the state change and leave it
+                    if (_timedJobs.remove(job) && _log.shouldLog(Log.WARN))
+                        _log.warn("Rescheduling job: " + job);
+                }
+                if (shouldDrop(job, numReady)) {
+                    job.dropped();
+                    dropped = true;
+                } else if (start <= now) {
+                    // don't skew us - its 'start after' its been queued, or later
+                    job.getTiming().setStartAfter(now);
+                    if (job instanceof JobImpl)
+                        ((JobImpl)job).madeReady();
+                    _queued.put(job, QueueState.READY);
+                    offerReady(job);
+                } else {
+                    _queued.put(job, QueueState.TIMED);
+                    _timedJobs.add(job);
+                    // only notify if sooner, to reduce contention
+                    // This must be after the add(), see QueuePumper
+                    notify = start < _nextPumperRun;
                 }
             }
         }
+        if (notify) {
+            // only notify for _timedJobs, as _readyJobs does not use that lock
+            synchronized (_jobLock) {
+                _jobLock.notifyAll();
+            }
+        }
         
         _context.statManager().addRateData("jobQueue.readyJobs", numReady);
         _context.statManager().addRateData("jobQueue.queuedJobs", _timedJobs.size());
@@ -243,11 +306,83 @@ public class JobQueue {
     }
     
     public void removeJob(Job job) {
-        synchronized (_jobLock) {
-            _readyJobs.remove(job);
-            _timedJobs.remove(job);
+        synchronized (getJobLock(job)) {
+            QueueState state = _queued.remove(job);
+            if (state == QueueState.READY) {
+                JobQueuePool pool = _pool;
+                if (pool != null)
+                    pool.remove(job);
+                _readyJobs.remove(job);
+            } else if (state == QueueState.TIMED) {
+                _timedJobs.remove(job);
+            }
         }
     }
+
+    /**
+     *  The lock for the checks and changes to one job's place in the queue.
+     *  Striped, so unrelated jobs may share a lock, but it is never held for long.
+     *  @since 0.9.28
+     */
+    private Object getJobLock(Job job) {
+        int h = job.hashCode();
+        h ^= h >>> 16;
+        return _jobLocks[h & (JOB_LOCKS - 1)];
+    }
+
+    /**
+     *  A job from _timedJobs.expire(), make it ready or put it back,
+     *  unless it was removed or re-added after expire() took it out of the wheel.
+     *  @return true if made ready
+     *  @since 0.9.28
+     */
+    private boolean pumpJob(Job job, long now) {
+        synchronized (getJobLock(job)) {
+            if (_queued.get(job) != QueueState.TIMED || _timedJobs.contains(job))
+                return false;
+            if (job.getTiming().getStartAfter() > now) {
+                // start time was changed without re-adding it
+                _timedJobs.add(job);
+                return false;
+            }
+            if (job instanceof JobImpl)
+                ((JobImpl)job).madeReady();
+            _queued.put(job, QueueState.READY);
+            offerReady(job);
+            return true;
+        }
+    }
+
+    /**
+     *  A runner took a ready job off the queue.
+     *  It is no longer queued, so it may be added again from here on,
+     *  before it starts to run.
+     *
+     *  @return false if it was removed after it was made ready, don't run it
+     *  @since 0.9.28
+     */
+    boolean dequeued(Job job) {
+        synchronized (getJobLock(job)) {
+            if (_queued.get(job) != QueueState.READY)
+                return false;
+            _queued.remove(job);
+            return true;
+        }
+    }
+
+    /**
+     *  Put a ready job in the JobQueuePool if we have one,
+     *  else in the queue for the JobQueueRunners.
+     *  Caller must have called madeReady().
+     *  @since 0.9.28
+     */
+    private void offerReady(Job job) {
+        JobQueuePool pool = _pool;
+        if (pool != null)
+            pool.offer(job);
+        else
+            _readyJobs.offer(job);
+    }
     
     /**
      * Returns <code>true</code> if a given job is waiting or running;
@@ -257,11 +392,12 @@ public class JobQueue {
      */
     @Deprecated
     public boolean isJobActive(Job job) {
-        synchronized (_jobLock) {
-            if (_readyJobs.contains(job) || _timedJobs.contains(job))
-                return true;
-        }
-        for (JobQueueRunner runner: _queueRunners.values())
+        if (_readyJobs.contains(job) || _timedJobs.contains(job))
+            return true;
+        JobQueuePool pool = _pool;
+        if (pool != null && pool.contains(job))
+            return true;
+        for (Runner runner : getRunners())
             if (runner.getCurrentJob() == job)
                 return true;
         return false;
@@ -278,12 +414,20 @@ public class JobQueue {
     }
     
     public int getReadyCount() { 
+            JobQueuePool pool = _pool;
+            if (pool != null)
+                return pool.getReadyCount() + _readyJobs.size();
             return _readyJobs.size();
     }
 
     public long getMaxLag() { 
             // first job is the one that has been waiting the longest
-            Job j = _readyJobs.peek();
+            JobQueuePool pool = _pool;
+            Job j = null;
+            if (pool != null)
+                j = pool.peek();
+            if (j == null)
+                j = _readyJobs.peek();
             if (j == null) return 0;
             JobTiming jt = j.getTiming();
             // PoisonJob timing is null, prevent NPE at shutdown
@@ -356,18 +500,28 @@ public class JobQueue {
     /** @deprecated do you really want to do this? */
     @Deprecated
     public void restart() {
+        _timedJobs.clear();
+        _readyJobs.clear();
+        _queued.clear();
+        JobQueuePool pool = _pool;
+        if (pool != null)
+            pool.clear();
         synchronized (_jobLock) {
-            _timedJobs.clear();
-            _readyJobs.clear();
             _jobLock.notifyAll();
         }
     }
     
     void shutdown() { 
         _alive = false; 
+        _timedJobs.clear();
+        _readyJobs.clear();
+        _queued.clear();
+        JobQueuePool pool = _pool;
+        if (pool != null) {
+            pool.shutdown();
+            _pool = null;
+        }
         synchronized (_jobLock) {
-            _timedJobs.clear();
-            _readyJobs.clear();
             _jobLock.notifyAll();
         }
         // The JobQueueRunners are NOT daemons,
@@ -428,7 +582,7 @@ public class JobQueue {
      */
     public long getLastJobBegin() { 
         long when = -1;
-        for (JobQueueRunner runner : _queueRunners.values()) {
+        for (Runner runner : getRunners()) {
             long cur = runner.getLastBegin();
             if (cur > when)
                 cur = when;
@@ -440,7 +594,7 @@ public class JobQueue {
      */
     public long getLastJobEnd() { 
         long when = -1;
-        for (JobQueueRunner runner : _queueRunners.values()) {
+        for (Runner runner : getRunners()) {
             long cur = runner.getLastEnd();
             if (cur > when)
                 cur = when;
@@ -454,7 +608,7 @@ public class JobQueue {
     public Job getLastJob() { 
         Job j = null;
         long when = -1;
-        for (JobQueueRunner cur : _queueRunners.values()) {
+        for (Runner cur : getRunners()) {
             if (cur.getLastBegin() > when) {
                 j = cur.getCurrentJob();
                 when = cur.getLastBegin();
@@ -473,7 +627,8 @@ public class JobQueue {
                 Job j = _readyJobs.take();
                 if (j.getJobId() == POISON_ID)
                     break;
-                return j;
+                if (dequeued(j))
+                    return j;
             } catch (InterruptedException ie) {}
         }
         if (_log.shouldLog(Log.WARN))
@@ -494,6 +649,11 @@ public class JobQueue {
             // so dont do anything
             if ( (!_queueRunners.isEmpty()) && (!_allowParallelOperation) ) return;
 
+            if (_allowParallelOperation && _context.getBooleanProperty(PROP_WORK_STEALING)) {
+                startPool();
+                return;
+            }
+
             // we've already enabled parallel operation, so grow to however many are
             // specified
             if (_queueRunners.size() < numThreads) {
@@ -518,6 +678,57 @@ public class JobQueue {
             }
     }
         
+    /**
+     *  Switch from the startup JobQueueRunner to a JobQueuePool.
+     *  The startup runner finishes the job it is running, if any, then exits.
+     *  @since 0.9.28
+     */
+    private void startPool() {
+        if (_pool != null)
+            return;
+        int threads = _context.getProperty(PROP_POOL_THREADS,
+                                           Math.max(RUNNERS, Runtime.getRuntime().availableProcessors()));
+        Set<String> ordered = new HashSet<String>();
+        String names = _context.getProperty(PROP_ORDERED_JOBS);
+        if (names != null) {
+            for (String name : DataHelper.split(names, "[,; \r\n\t]")) {
+                if (name.length() > 0)
+                    ordered.add(name);
+            }
+        }
+        _pool = new JobQueuePool(_context, threads, ordered);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Work-stealing job queue started with " + threads + " threads, ordered jobs: " + ordered);
+        for (JobQueueRunner runner : _queueRunners.values()) {
+            runner.stopRunning();
+        }
+        // move anything waiting that the startup runner hasn't gotten to
+        Job j;
+        while ((j = _readyJobs.poll()) != null) {
+            if (j.getJobId() == POISON_ID)
+                continue;
+            _pool.offer(j);
+        }
+        // wake up the startup runner if it's waiting in getNext()
+        Job poison = new PoisonJob();
+        for (int i = 0; i < _queueRunners.size(); i++) {
+            _readyJobs.offer(poison);
+        }
+    }
+
+    /**
+     *  All the JobQueueRunners and JobQueuePool workers.
+     *  @since 0.9.28
+     */
+    private Collection<Runner> getRunners() {
+        JobQueuePool pool = _pool;
+        if (pool == null)
+            return Collections.<Runner>unmodifiableCollection(_queueRunners.values());
+        List<Runner> rv = new ArrayList<Runner>(_queueRunners.values());
+        rv.addAll(pool.getRunners());
+        return rv;
+    }
+
     void removeRunner(int id) { _queueRunners.remove(Integer.valueOf(id)); }
     
     /**
@@ -527,6 +738,8 @@ public class JobQueue {
      *
      */
     private final class QueuePumper implements Runnable, Clock.ClockUpdateListener, RouterClock.ClockShiftListener {
+        private long _lastSteals;
+
         public QueuePumper() { 
             _context.clock().addUpdateListener(this);
             ((RouterClock) _context.clock()).addShiftListener(this);
@@ -534,69 +747,49 @@ public class JobQueue {
 
         public void run() {
             try {
+                List<Job> ready = new ArrayList<Job>(16);
                 while (_alive) {
                     long now = _context.clock().now();
-                    long timeToWait = -1;
+                    _timedJobs.expire(now, ready);
+                    if (!ready.isEmpty()) {
+                        long maxLate = 0;
+                        int count = 0;
+                        for (int i = 0; i < ready.size(); i++) {
+                            Job j = ready.get(i);
+                            long late = now - j.getTiming().getStartAfter();
+                            if (pumpJob(j, now)) {
+                                count++;
+                                if (late > maxLate)
+                                    maxLate = late;
+                            }
+                        }
+                        ready.clear();
+                        if (count > 0) {
+                            _context.statManager().addRateData("jobQueue.pumpedJobs", count);
+                            _context.statManager().addRateData("jobQueue.pumpLatency", maxLate);
+                        }
+                    }
+                    JobQueuePool pool = _pool;
+                    if (pool != null) {
+                        long steals = pool.getStealCount();
+                        if (steals > _lastSteals) {
+                            _context.statManager().addRateData("jobQueue.poolSteals", steals - _lastSteals);
+                            _lastSteals = steals;
+                        }
+                    }
                     try {
                         synchronized (_jobLock) {
-                            Job lastJob = null;
-                            long lastTime = Long.MIN_VALUE;
-                            for (Iterator<Job> iter = _timedJobs.iterator(); iter.hasNext(); ) {
-                                Job j = iter.next();
-                                // find jobs due to start before now
-                                long timeLeft = j.getTiming().getStartAfter() - now;
-                                if (lastJob != null && lastTime > j.getTiming().getStartAfter()) {
-                                    _log.error("Job " + lastJob + " out of order with job " + j +
-                                             " difference of " + DataHelper.formatDuration(lastTime - j.getTiming().getStartAfter()));
-                                }
-                                lastJob = j;
-                                lastTime = lastJob.getTiming().getStartAfter();
-                                if (timeLeft <= 0) {
-                                    if (j instanceof JobImpl)
-                                        ((JobImpl)j).madeReady();
-
-                                    _readyJobs.offer(j);
-                                    iter.remove();
-                                } else {
-                                    //if ( (timeToWait <= 0) || (timeLeft < timeToWait) )
-                                    // _timedJobs is now a TreeSet, so once we hit one that is
-                                    // not ready yet, we can break
-                                    // NOTE: By not going through the whole thing, a single job changing
-                                    // setStartAfter() to some far-away time, without
-                                    // calling addJob(), could clog the whole queue forever.
-                                    // Hopefully nobody does that, and as a backup, we hope
-                                    // that the TreeSet will eventually resort it from other addJob() calls.
-                                        timeToWait = timeLeft;
-
-                                    // failsafe - remove and re-add, peek at the next job,
-                                    // break and go around again
-                                    if (timeToWait > 10*1000 && iter.hasNext()) {
-                                        if (_log.shouldLog(Log.INFO))
-                                            _log.info("Failsafe re-sort job " + j +
-                                                " with delay " + DataHelper.formatDuration(timeToWait));
-                                        iter.remove();
-                                        Job nextJob = iter.next();
-                                        _timedJobs.add(j);
-                                        long nextTimeLeft = nextJob.getTiming().getStartAfter() - now;
-                                        if (timeToWait > nextTimeLeft) {
-                                            _log.error("Job " + j + " out of order with job " + nextJob +
-                                                " difference of " + DataHelper.formatDuration(timeToWait - nextTimeLeft));
-                                            timeToWait = Math.max(10, nextTimeLeft);
-                                        }
-                                    }
-                                    break;
-                                }
-                            }
-                                if (timeToWait < 0)
-                                    timeToWait = 1000;
-                                else if (timeToWait < 10)
-                                    timeToWait = 10;
-                                else if (timeToWait > 10*1000)
-                                    timeToWait = 10*1000;
-                                //if (_log.shouldLog(Log.DEBUG))
-                                //    _log.debug("Waiting " + timeToWait + " before rechecking the timed queue");
-                                _nextPumperRun = _context.clock().now() + timeToWait;
-                                _jobLock.wait(timeToWait);
+                            // Tell addJob() to notify us while we look for the next job.
+                            // addJob() adds to the wheel before checking _nextPumperRun,
+                            // so either we see the new job, or it sees a time
+                            // later than its start and notifies us once we wait().
+                            _nextPumperRun = Long.MAX_VALUE;
+                            now = _context.clock().now();
+                            long timeToWait = _timedJobs.getNextDelay(now, 10*1000);
+                            //if (_log.shouldLog(Log.DEBUG))
+                            //    _log.debug("Waiting " + timeToWait + " before rechecking the timed queue");
+                            _nextPumperRun = now + timeToWait;
+                            _jobLock.wait(timeToWait);
                         } // synchronize (_jobLock)
                     } catch (InterruptedException ie) {}
                 } // while (_alive)
@@ -639,16 +832,31 @@ public class JobQueue {
      * completion.
      */
     private void updateJobTimings(long delta) {
-        synchronized (_jobLock) {
-            for (Job j : _timedJobs) {
-                j.getTiming().offsetChanged(delta);
+        List<Job> timed = new ArrayList<Job>(_timedJobs.size());
+        _timedJobs.getJobs(timed);
+        for (Job j : timed) {
+            j.getTiming().offsetChanged(delta);
+        }
+        // start times changed, put them in the right slots
+        for (Job j : timed) {
+            synchronized (getJobLock(j)) {
+                if (_timedJobs.contains(j))
+                    _timedJobs.add(j);
             }
-            for (Job j : _readyJobs) {
+        }
+        for (Job j : _readyJobs) {
+            j.getTiming().offsetChanged(delta);
+        }
+        JobQueuePool pool = _pool;
+        if (pool != null) {
+            List<Job> ready = new ArrayList<Job>(pool.getReadyCount());
+            pool.getReadyJobs(ready);
+            for (Job j : ready) {
                 j.getTiming().offsetChanged(delta);
             }
         }
         synchronized (_runnerLock) {
-            for (JobQueueRunner runner : _queueRunners.values()) {
+            for (Runner runner : getRunners()) {
                 Job job = runner.getCurrentJob();
                 if (job != null)
                     job.getTiming().offsetChanged(delta);
@@ -656,6 +864,75 @@ public class JobQueue {
         }
     }
     
+    /**
+     *  Run the job and update the stats.
+     *  Moved from JobQueueRunner, and shared with the JobQueuePool workers.
+     *  Exceptions thrown by the job are caught and logged, except OutOfMemoryError,
+     *  which the caller must handle.
+     *  Caller must have called dequeued().
+     *
+     *  @param runnerId for logging only
+     *  @since 0.9.28
+     */
+    void runJob(Job job, int runnerId) {
+        long now = _context.clock().now();
+
+        long enqueuedTime = 0;
+        if (job instanceof JobImpl) {
+            long when = ((JobImpl)job).getMadeReadyOn();
+            if (when <= 0) {
+                _log.error("Job was not made ready?! " + job, 
+                           new Exception("Not made ready?!"));
+            } else {
+                enqueuedTime = now - when;
+            }
+        }
+
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Runner " + runnerId + " running job " + job.getJobId() + ": " + job.getName());
+        long origStartAfter = job.getTiming().getStartAfter();
+        long doStart = _context.clock().now();
+        job.getTiming().start();
+        try {
+            job.runJob();
+        } catch (OutOfMemoryError oom) {
+            throw oom;
+        } catch (Throwable t) {
+            _log.log(Log.CRIT, "Error processing job [" + job.getName() 
+                                   + "] on thread " + runnerId + ": " + t.getMessage(), t);
+            //if (_log.shouldLog(Log.ERROR))
+            //    _log.error("The above job was enqueued by: ", job.getAddedBy());
+        }
+        job.getTiming().end();
+        long duration = job.getTiming().getActualEnd() - job.getTiming().getActualStart();
+        long beforeUpdate = _context.clock().now();
+        updateStats(job, doStart, origStartAfter, duration);
+        long diff = _context.clock().now() - beforeUpdate;
+
+        long lag = doStart - origStartAfter;
+        if (lag < 0) lag = 0;
+        
+        //_context.statManager().addRateData("jobQueue.jobRunnerInactive", betweenJobs, betweenJobs);
+        _context.statManager().addRateData("jobQueue.jobRun", duration, duration);
+        _context.statManager().addRateData("jobQueue.jobLag", lag);
+        _context.statManager().addRateData("jobQueue.jobWait", enqueuedTime, enqueuedTime);
+
+        if (duration > 1000) {
+            _context.statManager().addRateData("jobQueue.jobRunSlow", duration, duration);
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Duration of " + duration + " (lag "+ (doStart-origStartAfter) 
+                          + ") on job " + job);
+        }
+        
+        if (diff > 100) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Updating statistics for the job took too long [" + diff + "ms]");
+        }
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Job duration " + duration + "ms for " + job.getName() 
+                       + " with lag of " + (doStart-origStartAfter) + "ms");
+    }
+
     /**
      * calculate and update the job timings
      * if it was lagged too much or took too long to run, spit out
@@ -719,6 +996,17 @@ public class JobQueue {
     /** job ID counter changed from int to long so it won't wrap negative */
     private static final int POISON_ID = -99999;
 
+    /**
+     *  A JobQueueRunner or JobQueuePool worker, for the console and the watchdog.
+     *  @since 0.9.28
+     */
+    interface Runner {
+        public Job getCurrentJob();
+        public Job getLastJob();
+        public long getLastBegin();
+        public long getLastEnd();
+    }
+
     private static class PoisonJob implements Job {
         public String getName() { return null; }
         public long getJobId() { return POISON_ID; }
@@ -731,6 +1019,7 @@ public class JobQueue {
     /**
      *  Comparator for the _timedJobs TreeSet.
      *  Ensure different jobs with the same timing are different so they aren't removed.
+     *  As of 0.9.28, only used to sort the timed jobs for getJobs().
      *  @since 0.8.9
      */
     private static class JobComparator implements Comparator<Job>, Serializable {
@@ -768,7 +1057,8 @@ public class JobQueue {
      */
     public int getJobs(Collection<Job> readyJobs, Collection<Job> timedJobs,
                        Collection<Job> activeJobs, Collection<Job> justFinishedJobs) {
-        for (JobQueueRunner runner :_queueRunners.values()) {
+        Collection<Runner> runners = getRunners();
+        for (Runner runner : runners) {
             Job job = runner.getCurrentJob();
             if (job != null) {
                 activeJobs.add(job);
@@ -778,11 +1068,19 @@ public class JobQueue {
                     justFinishedJobs.add(job);
             }
         }
-        synchronized (_jobLock) {
-            readyJobs.addAll(_readyJobs); 
-            timedJobs.addAll(_timedJobs);
+        readyJobs.addAll(_readyJobs); 
+        JobQueuePool pool = _pool;
+        if (pool != null)
+            pool.getReadyJobs(readyJobs);
+        List<Job> timed = new ArrayList<Job>(_timedJobs.size());
+        _timedJobs.getJobs(timed);
+        try {
+            Collections.sort(timed, new JobComparator());
+        } catch (IllegalArgumentException iae) {
+            // start times changed during the sort, JobQueueHelper will flag it
         }
-        return _queueRunners.size();
+        timedJobs.addAll(timed);
+        return runners.size();
     }
 
     /**
@@ -0,0 +1,339 @@
+package net.i2p.router;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.util.Log;
+
+/**
+ *  Optional replacement for the JobQueueRunners and the single ready queue,
+ *  enabled with router.jobQueue.workStealing=true.
+ *
+ *  Ready jobs are run by a ForkJoinPool in async (FIFO) mode,
+ *  instead of all runners contending on one BlockingQueue.
+ *  A job made ready by a job running on a worker, which is the usual case
+ *  for jobs queued with no delay, is forked onto that worker's own deque,
+ *  and idle workers steal from busy ones.
+ *  Jobs made ready by other threads, such as the timed jobs from the
+ *  QueuePumper, go through the pool's shared submission queues.
+ *
+ *  Jobs of the classes listed in router.jobQueue.orderedJobs (simple class names,
+ *  comma separated) are run one at a time, in the order they were made ready.
+ *
+ *  A second queue of the waiting jobs, oldest first, is kept for
+ *  getMaxLag() and the console, so the lag and drop checks in JobQueue
+ *  work as before.
+ *
+ *  For use by JobQueue only.
+ *
+ *  @since 0.9.28
+ */
+class JobQueuePool {
+    private final RouterContext _context;
+    private final Log _log;
+    private final ForkJoinPool _pool;
+    /** ready jobs, oldest first, may contain started jobs until trimmed */
+    private final ConcurrentLinkedQueue<Task> _waiting;
+    /** unclaimed ready jobs, for contains() and remove() */
+    private final ConcurrentHashMap<Job, Task> _tasks;
+    private final AtomicInteger _readyCount = new AtomicInteger();
+    /** id to worker, for the console */
+    private final ConcurrentHashMap<Integer, Worker> _workers;
+    private final AtomicInteger _workerId = new AtomicInteger();
+    private final Set<String> _orderedNames;
+    /** job class to its SerialQueue, or to NOT_ORDERED */
+    private final ConcurrentHashMap<Class<?>, SerialQueue> _serialQueues;
+    private final SerialQueue NOT_ORDERED = new SerialQueue();
+
+    /**
+     *  @param threads target parallelism
+     *  @param orderedNames simple class names of jobs to be run one at a time
+     */
+    public JobQueuePool(RouterContext context, int threads, Set<String> orderedNames) {
+        _context = context;
+        _log = context.logManager().getLog(JobQueuePool.class);
+        _waiting = new ConcurrentLinkedQueue<Task>();
+        _tasks = new ConcurrentHashMap<Job, Task>(64);
+        _workers = new ConcurrentHashMap<Integer, Worker>(threads);
+        _orderedNames = orderedNames;
+        _serialQueues = new ConcurrentHashMap<Class<?>, SerialQueue>(16);
+        _pool = new ForkJoinPool(threads, new WorkerFactory(), null, true);
+    }
+
+    /**
+     *  Run the job as soon as possible.
+     *  Caller must have called madeReady().
+     */
+    public void offer(Job job) {
+        Task task = new Task(job);
+        _tasks.put(job, task);
+        _waiting.offer(task);
+        _readyCount.incrementAndGet();
+        SerialQueue sq = getSerialQueue(job);
+        if (sq != NOT_ORDERED)
+            sq.offer(task);
+        else
+            execute(task);
+    }
+
+    /**
+     *  Fork onto the current worker's deque if called from one of our workers,
+     *  so other workers may steal it, else submit to the pool.
+     */
+    private void execute(Runnable r) {
+        Thread t = Thread.currentThread();
+        if (t instanceof Worker && ((Worker) t).getPool() == _pool)
+            ForkJoinTask.adapt(r).fork();
+        else
+            _pool.execute(r);
+    }
+
+    private SerialQueue getSerialQueue(Job job) {
+        Class<?> cls = job.getClass();
+        SerialQueue rv = _serialQueues.get(cls);
+        if (rv == null) {
+            rv = _orderedNames.contains(cls.getSimpleName()) ? new SerialQueue() : NOT_ORDERED;
+            SerialQueue old = _serialQueues.putIfAbsent(cls, rv);
+            if (old != null)
+                rv = old;
+        }
+        return rv;
+    }
+
+    public boolean contains(Job job) {
+        Task t = _tasks.get(job);
+        return t != null && !t.isClaimed();
+    }
+
+    /**
+     *  The job will not be run.
+     *  @return true if it was waiting
+     */
+    public boolean remove(Job job) {
+        Task t = _tasks.get(job);
+        if (t != null && t.claim()) {
+            _tasks.remove(job, t);
+            _readyCount.decrementAndGet();
+            trim();
+            return true;
+        }
+        return false;
+    }
+
+    public int getReadyCount() {
+        return Math.max(0, _readyCount.get());
+    }
+
+    /**
+     *  @return the longest waiting job, or null
+     */
+    public Job peek() {
+        trim();
+        for (Task t : _waiting) {
+            if (!t.isClaimed())
+                return t.job;
+        }
+        return null;
+    }
+
+    /**
+     *  @param out out parameter, oldest first
+     */
+    public void getReadyJobs(Collection<Job> out) {
+        for (Task t : _waiting) {
+            if (!t.isClaimed())
+                out.add(t.job);
+        }
+    }
+
+    public Collection<? extends JobQueue.Runner> getRunners() {
+        return _workers.values();
+    }
+
+    public int getPoolSize() {
+        return _pool.getPoolSize();
+    }
+
+    public long getStealCount() {
+        return _pool.getStealCount();
+    }
+
+    /**
+     *  Drop all the waiting jobs, they will not be run.
+     */
+    public void clear() {
+        Task t;
+        while ((t = _waiting.poll()) != null) {
+            if (t.claim()) {
+                _tasks.remove(t.job, t);
+                _readyCount.decrementAndGet();
+            }
+        }
+    }
+
+    public void shutdown() {
+        clear();
+        _pool.shutdownNow();
+        _workers.clear();
+    }
+
+    /**
+     *  Remove started and removed tasks from the head of _waiting
+     */
+    private void trim() {
+        Task t;
+        while ((t = _waiting.peek()) != null && t.isClaimed()) {
+            _waiting.remove(t);
+        }
+    }
+
+    /**
+     *  A job waiting to run.
+     *  It is claimed exactly once, by the worker that runs it, or by remove().
+     */
+    private final class Task implements Runnable {
+        public final Job job;
+        private final AtomicBoolean _claimed = new AtomicBoolean();
+
+        public Task(Job j) {
+            job = j;
+        }
+
+        public boolean claim() {
+            return _claimed.compareAndSet(false, true);
+        }
+
+        public boolean isClaimed() {
+            return _claimed.get();
+        }
+
+        public void run() {
+            runIfUnclaimed();
+        }
+
+        /**
+         *  @return true if run, false if it was removed
+         */
+        public boolean runIfUnclaimed() {
+            if (!claim())
+                return false;
+            _tasks.remove(job, this);
+            _readyCount.decrementAndGet();
+            trim();
+            // false if removed by JobQueue.removeJob() after we claimed it
+            if (!_context.jobQueue().dequeued(job))
+                return false;
+            Thread t = Thread.currentThread();
+            if (t instanceof Worker) {
+                ((Worker) t).runJob(job);
+            } else {
+                // shouldn't happen
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Not a worker thread: " + t);
+                _context.jobQueue().runJob(job, -1);
+            }
+            return true;
+        }
+    }
+
+    /**
+     *  Jobs of one class, run one at a time, in order.
+     *  At most one SerialQueue task is in the pool at a time.
+     */
+    private final class SerialQueue implements Runnable {
+        private final ConcurrentLinkedQueue<Task> _queue = new ConcurrentLinkedQueue<Task>();
+        private final AtomicBoolean _scheduled = new AtomicBoolean();
+
+        public void offer(Task task) {
+            _queue.offer(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!_queue.isEmpty() && _scheduled.compareAndSet(false, true))
+                execute(this);
+        }
+
+        /** run one job, then go to the back of the line */
+        public void run() {
+            try {
+                Task t;
+                while ((t = _queue.poll()) != null) {
+                    if (t.runIfUnclaimed())
+                        break;
+                }
+            } finally {
+                _scheduled.set(false);
+                schedule();
+            }
+        }
+    }
+
+    private class WorkerFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            return new Worker(pool, _workerId.incrementAndGet());
+        }
+    }
+
+    /**
+     *  The pool equivalent of a JobQueueRunner
+     */
+    private class Worker extends ForkJoinWorkerThread implements JobQueue.Runner {
+        private final int _id;
+        private volatile Job _currentJob;
+        private volatile Job _lastJob;
+        private volatile long _lastBegin;
+        private volatile long _lastEnd;
+
+        public Worker(ForkJoinPool pool, int id) {
+            super(pool);
+            _id = id;
+            setName("JobQueue FJ " + id);
+            setPriority(NORM_PRIORITY + 1);
+        }
+
+        public Job getCurrentJob() { return _currentJob; }
+        public Job getLastJob() { return _lastJob; }
+        public long getLastBegin() { return _lastBegin; }
+        public long getLastEnd() { return _lastEnd; }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            _workers.put(Integer.valueOf(_id), this);
+        }
+
+        @Override
+        protected void onTermination(Throwable exception) {
+            _workers.remove(Integer.valueOf(_id));
+            super.onTermination(exception);
+        }
+
+        void runJob(Job job) {
+            _currentJob = job;
+            _lastJob = null;
+            _lastBegin = _context.clock().now();
+            try {
+                _context.jobQueue().runJob(job, _id);
+            } catch (OutOfMemoryError oom) {
+                // We can't get to the I2PThread OOM listeners from here
+                try {
+                    _log.log(Log.CRIT, "OOM running job " + job.getName(), oom);
+                    _context.router().shutdown(Router.EXIT_OOM);
+                } catch (Throwable t) {}
+            } catch (Throwable t) {
+                _log.log(Log.CRIT, "error running?", t);
+            }
+            _lastJob = job;
+            _currentJob = null;
+            _lastEnd = _context.clock().now();
+        }
+    }
+}
@@ -5,7 +5,7 @@ import net.i2p.util.Log;
 import net.i2p.util.SystemVersion;
 
 /** a do run run run a do run run */
-class JobQueueRunner extends I2PThread {
+class JobQueueRunner extends I2PThread implements JobQueue.Runner {
     private final Log _log;
     private final RouterContext _context;
     private volatile boolean _keepRunning;
@@ -37,7 +37,6 @@ class JobQueueRunner extends I2PThread {
     public long getLastEnd() { return _lastEnd; }
     public void run() {
         //_state = 2;
-        long lastActive = _context.clock().now();
         while ( (_keepRunning) && (_context.jobQueue().isAlive()) ) { 
             //_state = 3;
             try {
@@ -45,74 +44,17 @@ class JobQueueRunner extends I2PThread {
                 //_state = 4;
                 if (job == null) {
                     //_state = 5;
-                    if (_context.router().isAlive())
+                    if (_keepRunning && _context.router().isAlive())
                         if (_log.shouldLog(Log.ERROR))
                             _log.error("getNext returned null - dead?");
                     continue;
                 }
-                long now = _context.clock().now();
-
-                long enqueuedTime = 0;
-                if (job instanceof JobImpl) {
-                    //_state = 6;
-                    long when = ((JobImpl)job).getMadeReadyOn();
-                    if (when <= 0) {
-                        //_state = 7;
-                        _log.error("Job was not made ready?! " + job, 
-                                   new Exception("Not made ready?!"));
-                    } else {
-                        //_state = 8;
-                        enqueuedTime = now - when;
-                    }
-                }
-
                 _currentJob = job;
                 _lastJob = null;
-                //_state = 9;
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("Runner " + _id + " running job " + job.getJobId() + ": " + job.getName());
-                long origStartAfter = job.getTiming().getStartAfter();
-                long doStart = _context.clock().now();
-                //_state = 10;
-                job.getTiming().start();
                 runCurrentJob();
-                job.getTiming().end();
-                //_state = 11;
-                long duration = job.getTiming().getActualEnd() - job.getTiming().getActualStart();
-                long beforeUpdate = _context.clock().now();
-                //_state = 12;
-                _context.jobQueue().updateStats(job, doStart, origStartAfter, duration);
-                //_state = 13;
-                long diff = _context.clock().now() - beforeUpdate;
-
-                long lag = doStart - origStartAfter;
-                if (lag < 0) lag = 0;
-                
-                //_context.statManager().addRateData("jobQueue.jobRunnerInactive", betweenJobs, betweenJobs);
-                _context.statManager().addRateData("jobQueue.jobRun", duration, duration);
-                _context.statManager().addRateData("jobQueue.jobLag", lag);
-                _context.statManager().addRateData("jobQueue.jobWait", enqueuedTime, enqueuedTime);
-
-                if (duration > 1000) {
-                    _context.statManager().addRateData("jobQueue.jobRunSlow", duration, duration);
-                    if (_log.shouldLog(Log.WARN))
-                        _log.warn("Duration of " + duration + " (lag "+ (doStart-origStartAfter) 
-                                  + ") on job " + _currentJob);
-                }
-                
-                //_state = 14;
-                
-                if (diff > 100) {
-                    if (_log.shouldLog(Log.WARN))
-                        _log.warn("Updating statistics for the job took too long [" + diff + "ms]");
-                }
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("Job duration " + duration + "ms for " + job.getName() 
-                               + " with lag of " + (doStart-origStartAfter) + "ms");
-                lastActive = _context.clock().now();
                 _lastJob = _currentJob;
                 _currentJob = null;
-                _lastEnd = lastActive;
+                _lastEnd = _context.clock().now();
                 //_state = 15;
                 
                 //if ( (jobNum % 10) == 0)
@@ -122,7 +64,7 @@ class JobQueueRunner extends I2PThread {
             }
         }
         //_state = 16;
-        if (_context.router().isAlive())
+        if (_keepRunning && _context.router().isAlive())
             _log.log(Log.CRIT, "Queue runner " + _id + " exiting");
         _context.jobQueue().removeRunner(_id);
         //_state = 17;
@@ -132,7 +74,8 @@ class JobQueueRunner extends I2PThread {
         try {
             //_state = 18;
             _lastBegin = _context.clock().now();
-            _currentJob.runJob();
+            // timing, stats, and job exceptions are handled in JobQueue
+            _context.jobQueue().runJob(_currentJob, _id);
             //_state = 19;
         } catch (OutOfMemoryError oom) {
             try {
@@ -141,12 +84,6 @@ class JobQueueRunner extends I2PThread {
                 else
                     fireOOM(oom);
             } catch (Throwable t) {}
-        } catch (Throwable t) {
-            //_state = 21;
-            _log.log(Log.CRIT, "Error processing job [" + _currentJob.getName() 
-                                   + "] on thread " + _id + ": " + t.getMessage(), t);
-            //if (_log.shouldLog(Log.ERROR))
-            //    _log.error("The above job was enqueued by: ", _currentJob.getAddedBy());
         }
     }
 }
@@ -18,6 +18,7 @@ import net.i2p.data.Destination;
 import net.i2p.data.Hash;
 import net.i2p.data.LeaseSet;
 import net.i2p.data.router.RouterInfo;
+import net.i2p.router.networkdb.RouterInfoMemoryUsage;
 import net.i2p.router.networkdb.reseed.ReseedChecker;
 
 /**
@@ -134,6 +135,14 @@ public abstract class NetworkDatabaseFacade implements Service {
     /** public for NetDbRenderer in routerconsole */
     public Set<RouterInfo> getRouters() { return Collections.emptySet(); }
 
+    /**
+     *  Public for NetDbRenderer in routerconsole.
+     *
+     *  @return null if unsupported
+     *  @since 0.9.28
+     */
+    public RouterInfoMemoryUsage getRouterInfoMemoryUsage() { return null; }
+
     /** @since 0.9 */
     public ReseedChecker reseedChecker() { return null; };
 
@@ -31,4 +31,12 @@ public interface PeerManagerFacade extends Service {
     public void setCapabilities(Hash peer, String caps);
     public void removeCapabilities(Hash peer);
     public Hash selectRandomByCapability(char capability);
+
+    /**
+     *  Incremented each time a peer gains the floodfill capability,
+     *  so callers caching the floodfills can tell when they may be missing one.
+     *
+     *  @since 0.9.28
+     */
+    public int getFloodfillAddCount();
 }
@@ -0,0 +1,214 @@
+package net.i2p.router;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  The scheduled jobs for the JobQueue, in a hashed timing wheel.
+ *
+ *  A job is filed in the slot for its start time, modulo the size of the wheel,
+ *  so add and remove are O(1) and lock only that slot.
+ *  Jobs further out than one revolution share slots with nearer jobs,
+ *  and stay in place until their round comes up.
+ *
+ *  The JobQueue pumper calls expire() to collect all the jobs in the
+ *  slots that have gone by. If a job's start time was changed without
+ *  re-adding it, it is handed back when its old slot goes by, and the
+ *  pumper re-adds it, so it may run up to one revolution late,
+ *  but it never gets stuck.
+ *
+ *  The wheel does not know if a job is being re-added at the same time
+ *  it is expired. JobQueue makes that atomic with a lock per job.
+ *
+ *  For use by JobQueue only.
+ *
+ *  @since 0.9.28
+ */
+class TimedJobWheel {
+
+    /** granularity, a job may be up to this late */
+    static final long TICK_MS = 5;
+    /** power of 2, one revolution is about 10 seconds */
+    private static final int SLOTS = 2048;
+    private static final int MASK = SLOTS - 1;
+
+    private final Slot[] _slots;
+    /** job to slot index, for remove() and size() */
+    private final ConcurrentHashMap<Job, Integer> _slotOf;
+    /**
+     *  Last tick that expire() has processed or is processing.
+     *  Only written by expire(), while holding the lock for that tick's slot.
+     */
+    private volatile long _lastTick;
+
+    private static final class Slot {
+        final Set<Job> jobs = new HashSet<Job>(4);
+        /**
+         *  Earliest tick of any job in here, or Long.MAX_VALUE.
+         *  Not lowered on remove, so it may be too early, that's just a spurious wakeup.
+         */
+        volatile long minTick = Long.MAX_VALUE;
+    }
+
+    /**
+     *  @param now the current time
+     */
+    public TimedJobWheel(long now) {
+        _slots = new Slot[SLOTS];
+        for (int i = 0; i < SLOTS; i++) {
+            _slots[i] = new Slot();
+        }
+        _slotOf = new ConcurrentHashMap<Job, Integer>(256);
+        _lastTick = (now / TICK_MS) - 1;
+    }
+
+    /**
+     *  Schedule the job at its current start time.
+     *  If already present, it is moved.
+     *
+     *  @return true if it was already present
+     */
+    public boolean add(Job job) {
+        boolean rv = remove(job);
+        long tick = job.getTiming().getStartAfter() / TICK_MS;
+        while (true) {
+            // don't put it in a slot that expire() has already passed
+            long t = Math.max(tick, _lastTick + 1);
+            int idx = (int) (t & MASK);
+            Slot slot = _slots[idx];
+            synchronized (slot) {
+                if (t <= _lastTick)
+                    continue;
+                slot.jobs.add(job);
+                if (t < slot.minTick)
+                    slot.minTick = t;
+                _slotOf.put(job, Integer.valueOf(idx));
+                return rv;
+            }
+        }
+    }
+
+    /**
+     *  @return true if it was present
+     */
+    public boolean remove(Job job) {
+        Integer idx = _slotOf.remove(job);
+        if (idx == null)
+            return false;
+        Slot slot = _slots[idx.intValue()];
+        synchronized (slot) {
+            return slot.jobs.remove(job);
+        }
+    }
+
+    public boolean contains(Job job) {
+        return _slotOf.containsKey(job);
+    }
+
+    public int size() {
+        return _slotOf.size();
+    }
+
+    /**
+     *  Collect the jobs in all the slots that have gone by,
+     *  and remove them from the wheel.
+     *  Jobs whose start time was changed to a later round without re-adding them
+     *  are also removed and returned, the caller must check the start time
+     *  and add them again.
+     *  Single caller only (the pumper).
+     *
+     *  @param now the current time
+     *  @param out out parameter, the removed jobs are added to it
+     *  @return number of jobs added to out
+     */
+    public int expire(long now, Collection<Job> out) {
+        // only process a tick when all of it is in the past,
+        // so that everything in the slot for the current round is ready
+        long endTick = (now / TICK_MS) - 1;
+        long lastTick = _lastTick;
+        if (endTick < lastTick) {
+            // clock went backwards
+            lastTick = endTick;
+            _lastTick = lastTick;
+        }
+        long startTick = Math.max(lastTick + 1, endTick - MASK);
+        int rv = 0;
+        for (long t = startTick; t <= endTick; t++) {
+            int idx = (int) (t & MASK);
+            Slot slot = _slots[idx];
+            synchronized (slot) {
+                _lastTick = t;
+                if (slot.jobs.isEmpty())
+                    continue;
+                long min = Long.MAX_VALUE;
+                for (Iterator<Job> iter = slot.jobs.iterator(); iter.hasNext(); ) {
+                    Job j = iter.next();
+                    long start = j.getTiming().getStartAfter();
+                    long tick = start / TICK_MS;
+                    // the second case is a start time changed without re-adding it
+                    if (start <= now || (tick & MASK) != idx) {
+                        iter.remove();
+                        _slotOf.remove(j, Integer.valueOf(idx));
+                        out.add(j);
+                        rv++;
+                    } else if (tick < min) {
+                        // a later round
+                        min = tick;
+                    }
+                }
+                slot.minTick = min;
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  When expire() should be called next.
+     *  This is a hint only, add() must wake up the pumper
+     *  if the new job is sooner than this.
+     *
+     *  @param now the current time
+     *  @param max maximum delay
+     *  @return delay from now, min TICK_MS, max max
+     */
+    public long getNextDelay(long now, long max) {
+        long lastTick = _lastTick;
+        long maxTicks = Math.min(SLOTS, max / TICK_MS);
+        for (long t = lastTick + 1; t <= lastTick + maxTicks; t++) {
+            if (_slots[(int) (t & MASK)].minTick <= t) {
+                // ready after the end of the tick
+                long rv = ((t + 1) * TICK_MS) - now;
+                return Math.max(TICK_MS, Math.min(max, rv));
+            }
+        }
+        return max;
+    }
+
+    /**
+     *  Unsorted
+     *
+     *  @param out out parameter
+     */
+    public void getJobs(Collection<Job> out) {
+        for (int i = 0; i < SLOTS; i++) {
+            Slot slot = _slots[i];
+            synchronized (slot) {
+                out.addAll(slot.jobs);
+            }
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < SLOTS; i++) {
+            Slot slot = _slots[i];
+            synchronized (slot) {
+                slot.jobs.clear();
+                slot.minTick = Long.MAX_VALUE;
+            }
+        }
+        _slotOf.clear();
+    }
+}
@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
@@ -21,7 +22,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.I2PAppContext;
@@ -72,7 +75,11 @@ import net.i2p.util.SimpleTimer;
  *
  * Should the tag threshold and quantity be adaptive?
  *
- * Todo: Switch to ConcurrentHashMaps and ReadWriteLocks, only get write lock during cleanup
+ * The inbound tag index is a ConcurrentHashMap, so consumeTag() is lock-free
+ * except for a per-TagSet lock, and inbound TagSets are expired from
+ * buckets by expiration time rather than by scanning every tag.
+ *
+ * Todo: Switch outbound to ConcurrentHashMaps and ReadWriteLocks, only get write lock during cleanup
  *
  */
 public class TransientSessionKeyManager extends SessionKeyManager {
@@ -80,7 +87,14 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     /** Map allowing us to go from the targeted PublicKey to the OutboundSession used */
     private final Map<PublicKey, OutboundSession> _outboundSessions;
     /** Map allowing us to go from a SessionTag to the containing TagSet */
-    private final Map<SessionTag, TagSet> _inboundTagSets;
+    private final ConcurrentHashMap<SessionTag, TagSet> _inboundTagSets;
+    /**
+     *  Inbound TagSets by expiration bucket (expiration / EXPIRE_BUCKET_MS),
+     *  so that cleanup only touches what has expired.
+     *  Synchronize on this.
+     *  @since 0.9.28
+     */
+    private final TreeMap<Long, List<TagSet>> _inboundExpiration;
     protected final I2PAppContext _context;
     private volatile boolean _alive;
     /** for debugging */
@@ -88,6 +102,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     private final AtomicInteger _sentTagSetID = new AtomicInteger();
     private final int _tagsToSend;
     private final int _lowThreshold;
+    private final int _maxInboundTags;
 
     /** 
      * Let outbound session tags sit around for this long before expiring them.
@@ -109,6 +124,20 @@ public class TransientSessionKeyManager extends SessionKeyManager {
      */
     private static final long SESSION_TAG_EXPIRATION_WINDOW = 90 * 1000;
 
+    /**
+     * Granularity of inbound expiration, same as the cleanup interval
+     * @since 0.9.28
+     */
+    private static final long EXPIRE_BUCKET_MS = 60 * 1000;
+
+    /**
+     * Rough heap usage for each inbound tag: the SessionTag and its data,
+     * the index entry, and the entry in the TagSet, with compressed oops.
+     * For the HTML report only.
+     * @since 0.9.28
+     */
+    private static final int INBOUND_TAG_BYTES = 16 + 48 + 32 + 40;
+
     /**
      * a few MB? how about 24 MB!
      * This is the max size of _inboundTagSets.
@@ -171,15 +200,27 @@ public class TransientSessionKeyManager extends SessionKeyManager {
      *  @since 0.9.2
      */
     public TransientSessionKeyManager(I2PAppContext context, int tagsToSend, int lowThreshold) {
+        this(context, tagsToSend, lowThreshold, MAX_INBOUND_SESSION_TAGS);
+    }
+
+    /** 
+     *  For unit tests only
+     *
+     *  @param maxInboundTags clean up when over this many inbound tags
+     *  @since 0.9.28
+     */
+    TransientSessionKeyManager(I2PAppContext context, int tagsToSend, int lowThreshold, int maxInboundTags) {
         super(context);
         if (tagsToSend <= 0 || tagsToSend > 128 || lowThreshold <= 0 || lowThreshold > 128)
             throw new IllegalArgumentException();
         _tagsToSend = tagsToSend;
         _lowThreshold = lowThreshold;
+        _maxInboundTags = maxInboundTags;
         _log = context.logManager().getLog(TransientSessionKeyManager.class);
         _context = context;
         _outboundSessions = new HashMap<PublicKey, OutboundSession>(64);
-        _inboundTagSets = new HashMap<SessionTag, TagSet>(128);
+        _inboundTagSets = new ConcurrentHashMap<SessionTag, TagSet>(128);
+        _inboundExpiration = new TreeMap<Long, List<TagSet>>();
         context.statManager().createRateStat("crypto.sessionTagsExpired", "How many tags/sessions are expired?", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
         context.statManager().createRateStat("crypto.sessionTagsRemaining", "How many tags/sessions are remaining after a cleanup?", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
          _alive = true;
@@ -189,8 +230,9 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     @Override
     public void shutdown() {
          _alive = false;
-        synchronized (_inboundTagSets) {
-            _inboundTagSets.clear();
+        _inboundTagSets.clear();
+        synchronized (_inboundExpiration) {
+            _inboundExpiration.clear();
         }
         synchronized (_outboundSessions) {
             _outboundSessions.clear();
@@ -212,9 +254,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
 
     /** TagSet - used only by HTML */
     private Set<TagSet> getInboundTagSets() {
-        synchronized (_inboundTagSets) {
-            return new HashSet<TagSet>(_inboundTagSets.values());
-        }
+        return new HashSet<TagSet>(_inboundTagSets.values());
     }
 
     /** OutboundSession - used only by HTML */
@@ -527,7 +567,9 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         }
         TagSet old = null;
         SessionTag dupTag = null;
-        synchronized (_inboundTagSets) {
+        // Nobody else has tagSet yet, but after the first put() a consumer
+        // may be removing tags from it, so lock it.
+        synchronized (tagSet) {
             for (SessionTag tag : sessionTags) {
                 old = _inboundTagSets.put(tag, tagSet);
                 if (old != null) {
@@ -544,14 +586,10 @@ public class TransientSessionKeyManager extends SessionKeyManager {
 
         if (old != null) {
             // drop both old and tagSet tags
-            synchronized (_inboundTagSets) {
-                for (SessionTag tag : old.getTags()) {
-                    _inboundTagSets.remove(tag);
-                }
-                for (SessionTag tag : sessionTags) {
-                    _inboundTagSets.remove(tag);
-                }
-            }
+            // tagSet was not added to an expiration bucket
+            removeTags(old);
+            removeTags(tagSet);
+            removeExpiration(Collections.singleton(old));
 
             if (_log.shouldLog(Log.WARN)) {
                 _log.warn("Multiple tags matching!  tagSet: " + tagSet + " and old tagSet: " + old + " tag: " + dupTag + "/" + dupTag);
@@ -560,7 +598,19 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             }
         }
         
-        int overage = _inboundTagSets.size() - MAX_INBOUND_SESSION_TAGS;
+        if (old == null) {
+            Long bucket = Long.valueOf(tagSet.getDate() / EXPIRE_BUCKET_MS);
+            synchronized (_inboundExpiration) {
+                List<TagSet> sets = _inboundExpiration.get(bucket);
+                if (sets == null) {
+                    sets = new ArrayList<TagSet>(4);
+                    _inboundExpiration.put(bucket, sets);
+                }
+                sets.add(tagSet);
+            }
+        }
+
+        int overage = _inboundTagSets.size() - _maxInboundTags;
         if (overage > 0)
             clearExcess(overage);
 
@@ -586,36 +636,34 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         int tags = 0;
         int toRemove = overage * 2;
         _log.logAlways(Log.WARN, "TOO MANY SESSION TAGS! Starting cleanup, overage = " + overage);
-        List<TagSet> removed = new ArrayList<TagSet>(toRemove);
-        synchronized (_inboundTagSets) {
-            for (TagSet set : _inboundTagSets.values()) {
-                int size = set.getTags().size();
-                if (size > 1000)
-                    absurd++;
-                if (size > 100)
-                    large++;
-                if (set.getDate() - now < 3*60*1000) {
-                    // expiration is 12 minutes, so these are older than 9 minutes
-                    old++;
-                    removed.add(set);
-                    continue;
-                } else if (set.getDate() - now > 8*60*1000) {
-                    // expiration is 12 minutes, so these were created in last 4 minutes
-                    recent++;
-                    continue;
-                }
-
-                if (removed.size() < toRemove)
-                    removed.add(set);
-            }
-            for (int i = 0; i < removed.size(); i++) {
-                TagSet cur = removed.get(i);
-                for (SessionTag tag : cur.getTags()) {
-                    _inboundTagSets.remove(tag);
-                    tags++;
-                }
+        Set<TagSet> removed = new HashSet<TagSet>(toRemove);
+        // weakly consistent iteration
+        for (TagSet set : _inboundTagSets.values()) {
+            if (removed.contains(set))
+                continue;
+            int size = set.getTags().size();
+            if (size > 1000)
+                absurd++;
+            if (size > 100)
+                large++;
+            if (set.getDate() - now < 3*60*1000) {
+                // expiration is 12 minutes, so these are older than 9 minutes
+                old++;
+                removed.add(set);
+                continue;
+            } else if (set.getDate() - now > 8*60*1000) {
+                // expiration is 12 minutes, so these were created in last 4 minutes
+                recent++;
+                continue;
             }
+
+            if (removed.size() < toRemove)
+                removed.add(set);
+        }
+        for (TagSet cur : removed) {
+            tags += removeTags(cur);
         }
+        removeExpiration(removed);
         _log.logAlways(Log.WARN, "TOO MANY SESSION TAGS!  removed " + removed.size() 
                      + " tag sets arbitrarily, with " + tags + " tags,"
                      + "where there are " + old + " long lasting sessions, "
@@ -634,14 +682,13 @@ public class TransientSessionKeyManager extends SessionKeyManager {
      */
     @Override
     public SessionKey consumeTag(SessionTag tag) {
-        TagSet tagSet;
-        synchronized (_inboundTagSets) {
-            tagSet = _inboundTagSets.remove(tag);
-            if (tagSet == null) {
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("Cannot consume IB " + tag + " as it is not known");
-                return null;
-            }
+        TagSet tagSet = _inboundTagSets.remove(tag);
+        if (tagSet == null) {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Cannot consume IB " + tag + " as it is not known");
+            return null;
+        }
+        synchronized (tagSet) {
             tagSet.consume(tag);
         }
 
@@ -651,6 +698,78 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         return key;
     }
 
+    /**
+     *  Remove the remaining tags of an inbound TagSet from the index,
+     *  unless they were since reassigned to another TagSet,
+     *  and clear them from the TagSet, so it holds no tags
+     *  while it waits in its expiration bucket.
+     *
+     *  @return number of tags removed
+     *  @since 0.9.28
+     */
+    private int removeTags(TagSet tagSet) {
+        int rv = 0;
+        synchronized (tagSet) {
+            Set<SessionTag> tags = tagSet.getTags();
+            for (SessionTag tag : tags) {
+                if (_inboundTagSets.remove(tag, tagSet))
+                    rv++;
+            }
+            tags.clear();
+        }
+        return rv;
+    }
+
+    /**
+     *  Remove dropped inbound TagSets from their expiration buckets
+     *  before they expire.
+     *
+     *  @since 0.9.28
+     */
+    private void removeExpiration(Set<TagSet> tagSets) {
+        Set<Long> buckets = new HashSet<Long>();
+        for (TagSet ts : tagSets) {
+            buckets.add(Long.valueOf(ts.getDate() / EXPIRE_BUCKET_MS));
+        }
+        synchronized (_inboundExpiration) {
+            for (Long bucket : buckets) {
+                List<TagSet> sets = _inboundExpiration.get(bucket);
+                if (sets != null) {
+                    // TagSet does not override equals(), so this is by identity
+                    sets.removeAll(tagSets);
+                    if (sets.isEmpty())
+                        _inboundExpiration.remove(bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     *  For unit tests only
+     *
+     *  @return number of inbound tags in the index
+     *  @since 0.9.28
+     */
+    int getInboundTagCount() {
+        return _inboundTagSets.size();
+    }
+
+    /**
+     *  For unit tests only
+     *
+     *  @return number of inbound TagSets waiting in expiration buckets
+     *  @since 0.9.28
+     */
+    int getInboundTagSetCount() {
+        int rv = 0;
+        synchronized (_inboundExpiration) {
+            for (List<TagSet> sets : _inboundExpiration.values()) {
+                rv += sets.size();
+            }
+        }
+        return rv;
+    }
+
     private OutboundSession getSession(PublicKey target) {
         synchronized (_outboundSessions) {
             return _outboundSessions.get(target);
@@ -685,18 +804,21 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         int remaining = 0;
         long now = _context.clock().now();
 
-        synchronized (_inboundTagSets) {
-            for (Iterator<TagSet> iter = _inboundTagSets.values().iterator(); iter.hasNext();) {
-                TagSet ts = iter.next();
-                // for inbound tagsets, getDate() is the expire time
-                if (ts.getDate() <= now) {
-                    iter.remove();
-                    // bug, this counts inbound tags, not tag sets
-                    removed++;
-                }
+        // Only the buckets entirely in the past, so a TagSet may last
+        // up to EXPIRE_BUCKET_MS longer than its expiration.
+        List<TagSet> expired = new ArrayList<TagSet>();
+        synchronized (_inboundExpiration) {
+            for (Iterator<List<TagSet>> iter = _inboundExpiration.headMap(Long.valueOf(now / EXPIRE_BUCKET_MS)).values().iterator();
+                 iter.hasNext(); ) {
+                expired.addAll(iter.next());
+                iter.remove();
             }
-            remaining = _inboundTagSets.size();
         }
+        for (TagSet ts : expired) {
+            // bug, this counts inbound tags, not tag sets
+            removed += removeTags(ts);
+        }
+        remaining = _inboundTagSets.size();
         _context.statManager().addRateData("crypto.sessionTagsRemaining", remaining, 0);
         if (removed > 0 && _log.shouldLog(Log.DEBUG))
             _log.debug("Expired inbound: " + removed);
@@ -733,6 +855,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             sets.add(ts);
         }
         int total = 0;
+        int inboundSetCount = 0;
         long now = _context.clock().now();
         for (Map.Entry<SessionKey, Set<TagSet>> e : inboundSets.entrySet()) {
             SessionKey skey = e.getKey();
@@ -744,20 +867,24 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             for (TagSet ts : sets) {
                 int size = ts.getTags().size();
                 total += size;
+                inboundSetCount++;
                 buf.append("<li><b>ID: ").append(ts.getID());
                 long expires = ts.getDate() - now;
                 if (expires > 0)
                     buf.append(" Expires in:</b> ").append(DataHelper.formatDuration2(expires)).append(" with ");
                 else
                     buf.append(" Expired:</b> ").append(DataHelper.formatDuration2(0 - expires)).append(" ago with ");
-                buf.append(size).append('/').append(ts.getOriginalSize()).append(" tags remaining</li>");
+                buf.append(size).append('/').append(ts.getOriginalSize()).append(" tags remaining, using ~")
+                   .append(DataHelper.formatSize2((long) INBOUND_TAG_BYTES * size)).append("B</li>");
             }
             buf.append("</ul></td></tr>\n");
             out.write(buf.toString());
             buf.setLength(0);
         }
         buf.append("<tr><th colspan=\"2\">Total tags: ").append(total).append(" (");
-        buf.append(DataHelper.formatSize2(32*total)).append("B)</th></tr>\n" +
+        buf.append(DataHelper.formatSize2(32*total)).append("B), in ").append(inboundSetCount)
+           .append(" sets, using ~").append(DataHelper.formatSize2((long) INBOUND_TAG_BYTES * total))
+           .append("B heap</th></tr>\n" +
                    "</table>" +
                    "<h2><b>Outbound sessions</b></h2>" +
                    "<table>");
@@ -1143,7 +1270,8 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         }
 
         /**
-         *  Caller must synch.
+         *  For inbound only.
+         *  Caller must synch on this TagSet.
          */
         public void consume(SessionTag tag) {
             _sessionTags.remove(tag);
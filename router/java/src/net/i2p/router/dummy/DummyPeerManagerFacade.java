@@ -32,4 +32,5 @@ public class DummyPeerManagerFacade implements PeerManagerFacade {
     public void setCapabilities(Hash peer, String caps) {}
     public void removeCapabilities(Hash peer) {}
     public Hash selectRandomByCapability(char capability) { return null; }
+    public int getFloodfillAddCount() { return 0; }
 }
@@ -0,0 +1,52 @@
+package net.i2p.router.networkdb;
+
+/**
+ *  Counts and approximate heap usage of the RouterInfos in the netDb,
+ *  and the hit rate of the cache of inflated compact RouterInfos.
+ *  For NetDbRenderer in routerconsole.
+ *
+ *  @since 0.9.28
+ */
+public class RouterInfoMemoryUsage {
+    private final long _count;
+    private final long _compact;
+    private final long _cached;
+    private final long _bytes;
+    private final long _hits;
+    private final long _misses;
+
+    /**
+     *  @param count number of RouterInfos
+     *  @param compact how many are compact
+     *  @param cached how many compact ones are also in the inflated cache
+     *  @param bytes approximate heap usage
+     *  @param hits inflated cache hits
+     *  @param misses inflated cache misses
+     */
+    public RouterInfoMemoryUsage(long count, long compact, long cached, long bytes, long hits, long misses) {
+        _count = count;
+        _compact = compact;
+        _cached = cached;
+        _bytes = bytes;
+        _hits = hits;
+        _misses = misses;
+    }
+
+    /** number of RouterInfos */
+    public long getCount() { return _count; }
+
+    /** how many are compact */
+    public long getCompactCount() { return _compact; }
+
+    /** how many compact ones are also in the inflated cache */
+    public long getCachedCount() { return _cached; }
+
+    /** approximate heap usage in bytes */
+    public long getHeapSize() { return _bytes; }
+
+    /** inflated cache hits */
+    public long getCacheHits() { return _hits; }
+
+    /** inflated cache misses */
+    public long getCacheMisses() { return _misses; }
+}
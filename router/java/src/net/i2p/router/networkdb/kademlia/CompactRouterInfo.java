@@ -0,0 +1,150 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import net.i2p.data.DataFormatException;
+import net.i2p.data.Hash;
+import net.i2p.data.router.RouterAddress;
+import net.i2p.data.router.RouterInfo;
+
+/**
+ *  A RouterInfo held as its signed serialized bytes, plus the few fields
+ *  that are needed without parsing it.
+ *
+ *  A full RouterInfo is several thousand bytes of small objects
+ *  (keys, certificate, the address and option Properties),
+ *  about four times the size of its serialized form.
+ *
+ *  Instances are immutable. Identity equality only,
+ *  so a stale holder is never mistaken for its replacement.
+ *
+ *  For TransientDataStore only.
+ *
+ *  @since 0.9.28
+ */
+class CompactRouterInfo {
+    private final Hash _hash;
+    private final long _published;
+    private final String _caps;
+    /** space separated, e.g. "NTCP SSU" */
+    private final String _transports;
+    private final String _version;
+    private final byte[] _data;
+
+    /** fixed overhead of this object, its array, and the strings, approximately */
+    private static final int OVERHEAD = 16 + 6*8 + 16 + 2*40;
+
+    /**
+     *  @param ri must be signed and validated
+     *  @throws DataFormatException if it can't be serialized
+     */
+    public CompactRouterInfo(Hash key, RouterInfo ri) throws DataFormatException {
+        _hash = key;
+        _published = ri.getPublished();
+        _caps = ri.getCapabilities().intern();
+        _transports = transports(ri.getAddresses());
+        _version = ri.getVersion().intern();
+        byte[] data = ri.toByteArray();
+        if (data == null)
+            throw new DataFormatException("Unable to serialize " + key);
+        _data = data;
+    }
+
+    private static String transports(Collection<RouterAddress> addrs) {
+        if (addrs.isEmpty())
+            return "";
+        if (addrs.size() == 1)
+            return addrs.iterator().next().getTransportStyle().intern();
+        StringBuilder buf = new StringBuilder(16);
+        for (RouterAddress ra : addrs) {
+            if (buf.length() > 0)
+                buf.append(' ');
+            buf.append(ra.getTransportStyle());
+        }
+        return buf.toString().intern();
+    }
+
+    public Hash getHash() {
+        return _hash;
+    }
+
+    public long getPublished() {
+        return _published;
+    }
+
+    public String getCapabilities() {
+        return _caps;
+    }
+
+    /**
+     *  @return the transport styles of the addresses, space separated, may be empty
+     */
+    public String getTransports() {
+        return _transports;
+    }
+
+    /**
+     *  @return the router.version option, "0" if none
+     */
+    public String getVersion() {
+        return _version;
+    }
+
+    /**
+     *  Parse a new RouterInfo.
+     *  The signature is not checked again, it was validated before it was stored,
+     *  and the new RouterInfo is marked as valid.
+     *
+     *  @throws DataFormatException if the stored bytes are corrupt, shouldn't happen
+     */
+    public RouterInfo inflate() throws DataFormatException {
+        RouterInfo rv = new RouterInfo();
+        try {
+            rv.readValidatedBytes(new ByteArrayInputStream(_data));
+        } catch (IOException ioe) {
+            throw new DataFormatException("Inflate failed for " + _hash, ioe);
+        }
+        return rv;
+    }
+
+    /**
+     *  @return approximate heap usage in bytes
+     */
+    public int getHeapSize() {
+        return OVERHEAD + _data.length;
+    }
+
+    /**
+     *  Approximate heap usage of a full RouterInfo,
+     *  counting the identity, and the option strings of the
+     *  addresses and the RouterInfo itself.
+     *
+     *  @return approximate heap usage in bytes
+     */
+    public static int estimateHeapSize(RouterInfo ri) {
+        // RouterInfo, its list and properties objects, and the identity with
+        // its keys, certificate, padding and cached hash
+        int rv = 128 + 768;
+        if (ri.getSignature() != null)
+            rv += 32 + ri.getSignature().length();
+        for (RouterAddress ra : ri.getAddresses()) {
+            rv += 64 + estimateHeapSize(ra.getOptionsMap());
+        }
+        rv += estimateHeapSize(ri.getOptionsMap());
+        return rv;
+    }
+
+    /**
+     *  Map entry plus two strings per option
+     */
+    private static int estimateHeapSize(Map<Object, Object> opts) {
+        int rv = 64;
+        for (Map.Entry<Object, Object> e : opts.entrySet()) {
+            rv += 48 + 2*40 + 2 * (e.getKey().toString().length() + e.getValue().toString().length());
+        }
+        return rv;
+    }
+}
@@ -14,6 +14,7 @@ import java.util.Set;
 
 import net.i2p.data.DatabaseEntry;
 import net.i2p.data.Hash;
+import net.i2p.data.LeaseSet;
 
 public interface DataStore {
     public boolean isInitialized();
@@ -29,6 +30,12 @@ public interface DataStore {
     public Collection<DatabaseEntry> getEntries();
     /** @since 0.8.3 */
     public Set<Map.Entry<Hash, DatabaseEntry>> getMapEntries();
+    /** @since 0.9.28 */
+    public Set<Hash> getRouterInfoKeys();
+    /** @since 0.9.28 */
+    public Collection<LeaseSet> getLeaseSets();
+    /** @since 0.9.28 */
+    public void getRouterSummaries(RouterSummaryCollector collector);
     public void stop();
     public void restart();
     public void rescan();
@@ -9,10 +9,8 @@ package net.i2p.router.networkdb.kademlia;
  */
 
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
-import net.i2p.data.DatabaseEntry;
 import net.i2p.data.Hash;
 import net.i2p.data.LeaseSet;
 import net.i2p.router.JobImpl;
@@ -59,15 +57,11 @@ class ExpireLeasesJob extends JobImpl {
      */
     private Set<Hash> selectKeysToExpire() {
         Set<Hash> toExpire = new HashSet<Hash>(128);
-        for (Map.Entry<Hash, DatabaseEntry> entry : _facade.getDataStore().getMapEntries()) {
-            DatabaseEntry obj = entry.getValue();
-            if (obj.getType() == DatabaseEntry.KEY_TYPE_LEASESET) {
-                LeaseSet ls = (LeaseSet)obj;
-                if (!ls.isCurrent(Router.CLOCK_FUDGE_FACTOR))
-                    toExpire.add(entry.getKey());
-                else if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("Lease " + ls.getDestination().calculateHash() + " is current, no need to expire");
-            }
+        for (LeaseSet ls : _facade.getDataStore().getLeaseSets()) {
+            if (!ls.isCurrent(Router.CLOCK_FUDGE_FACTOR))
+                toExpire.add(ls.getHash());
+            else if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Lease " + ls.getDestination().calculateHash() + " is current, no need to expire");
         }
         return toExpire;
     }
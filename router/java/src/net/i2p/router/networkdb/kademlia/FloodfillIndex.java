@@ -0,0 +1,209 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.i2p.data.Hash;
+
+/**
+ *  The floodfill hashes, in a sorted array, so that the ones closest
+ *  to a routing key can be iterated in XOR order without sorting all of them.
+ *
+ *  Hashes in the same subtree of the implicit binary trie are contiguous
+ *  in the array, so we walk the trie, nearer half first, finding each split
+ *  with a binary search. The first k take about O(k * log(n)).
+ *
+ *  Note that it's the search key that is a routing key, the floodfills
+ *  are indexed by their router hash, so nothing changes at the
+ *  daily routing key rotation.
+ *
+ *  Copy-on-write. Changes are O(n), iterators work on a snapshot
+ *  and don't need any locking.
+ *
+ *  @since 0.9.28
+ */
+class FloodfillIndex {
+
+    private static final Hash[] EMPTY = new Hash[0];
+    private static final int BITS = Hash.HASH_LENGTH * 8;
+    private static final Comparator<Hash> COMPARATOR = new HashComparator();
+
+    /** sorted, unsigned */
+    private volatile Hash[] _sorted = EMPTY;
+
+    /**
+     *  @return true if added, false if already present
+     */
+    public synchronized boolean add(Hash h) {
+        Hash[] old = _sorted;
+        int idx = Arrays.binarySearch(old, h, COMPARATOR);
+        if (idx >= 0)
+            return false;
+        idx = -(idx + 1);
+        Hash[] rv = new Hash[old.length + 1];
+        System.arraycopy(old, 0, rv, 0, idx);
+        rv[idx] = h;
+        System.arraycopy(old, idx, rv, idx + 1, old.length - idx);
+        _sorted = rv;
+        return true;
+    }
+
+    /**
+     *  @return true if removed, false if not present
+     */
+    public synchronized boolean remove(Hash h) {
+        Hash[] old = _sorted;
+        int idx = Arrays.binarySearch(old, h, COMPARATOR);
+        if (idx < 0)
+            return false;
+        Hash[] rv = new Hash[old.length - 1];
+        System.arraycopy(old, 0, rv, 0, idx);
+        System.arraycopy(old, idx + 1, rv, idx, rv.length - idx);
+        _sorted = rv;
+        return true;
+    }
+
+    /**
+     *  Replace the contents
+     */
+    public synchronized void rebuild(Collection<Hash> all) {
+        Hash[] rv = all.toArray(new Hash[all.size()]);
+        Arrays.sort(rv, COMPARATOR);
+        _sorted = rv;
+    }
+
+    public boolean contains(Hash h) {
+        return Arrays.binarySearch(_sorted, h, COMPARATOR) >= 0;
+    }
+
+    public int size() {
+        return _sorted.length;
+    }
+
+    /**
+     *  All the hashes, closest to the key first.
+     *  Does not see later changes.
+     *
+     *  @param key the ROUTING key (NOT the original key)
+     */
+    public Iterator<Hash> iterator(Hash key) {
+        return new XORIterator(_sorted, key.getData());
+    }
+
+    /**
+     *  Depth-first walk of the trie, nearer half first.
+     *  The stack holds ranges and the bit they split on,
+     *  at most one per level plus one. For random hashes the
+     *  depth is about log2(n), so start small and grow if needed.
+     */
+    private static class XORIterator implements Iterator<Hash> {
+        private final Hash[] _array;
+        private final byte[] _key;
+        /** lo, hi, bit triples */
+        private int[] _stack = new int[3 * 24];
+        private int _top;
+        private Hash _next;
+
+        public XORIterator(Hash[] array, byte[] key) {
+            _array = array;
+            _key = key;
+            if (array.length > 0)
+                push(0, array.length, 0);
+        }
+
+        private void push(int lo, int hi, int bit) {
+            if (_top >= _stack.length)
+                _stack = Arrays.copyOf(_stack, _stack.length * 2);
+            _stack[_top++] = lo;
+            _stack[_top++] = hi;
+            _stack[_top++] = bit;
+        }
+
+        public boolean hasNext() {
+            if (_next != null)
+                return true;
+            while (_top > 0) {
+                int bit = _stack[--_top];
+                int hi = _stack[--_top];
+                int lo = _stack[--_top];
+                if (hi - lo == 1 || bit >= BITS) {
+                    // leaf (or duplicates, can't happen)
+                    _next = _array[lo];
+                    if (hi - lo > 1)
+                        push(lo + 1, hi, bit);
+                    return true;
+                }
+                int mid = split(lo, hi, bit);
+                boolean keyBit = bit(_key, bit);
+                // far half first, so the near half is on top
+                if (keyBit) {
+                    if (mid > lo)
+                        push(lo, mid, bit + 1);
+                    if (hi > mid)
+                        push(mid, hi, bit + 1);
+                } else {
+                    if (hi > mid)
+                        push(mid, hi, bit + 1);
+                    if (mid > lo)
+                        push(lo, mid, bit + 1);
+                }
+            }
+            return false;
+        }
+
+        public Hash next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Hash rv = _next;
+            _next = null;
+            return rv;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         *  All in the range have the same bits before this one,
+         *  so the zeros are all before the ones.
+         *
+         *  @return index of the first one with the bit set, or hi if none
+         */
+        private int split(int lo, int hi, int bit) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (bit(_array[mid].getData(), bit))
+                    hi = mid;
+                else
+                    lo = mid + 1;
+            }
+            return lo;
+        }
+
+        private static boolean bit(byte[] data, int bit) {
+            return (data[bit >> 3] & (0x80 >> (bit & 0x07))) != 0;
+        }
+    }
+
+    /**
+     *  Unsigned byte order, so that hashes in a subtree are contiguous
+     */
+    private static class HashComparator implements Comparator<Hash> {
+        public int compare(Hash l, Hash r) {
+            byte[] lb = l.getData();
+            byte[] rb = r.getData();
+            for (int i = 0; i < Hash.HASH_LENGTH; i++) {
+                int ld = lb[i] & 0xff;
+                int rd = rb[i] & 0xff;
+                if (ld < rd)
+                    return -1;
+                if (ld > rd)
+                    return 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -301,6 +301,10 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
         return caps.indexOf(FloodfillNetworkDatabaseFacade.CAPABILITY_FLOODFILL) >= 0;
     }
 
+    /**
+     *  If RouterInfos are compact, this parses all that aren't cached,
+     *  for periodic scans use getKnownRouterSummaries() or getAllRouters().
+     */
     public List<RouterInfo> getKnownRouterData() {
         List<RouterInfo> rv = new ArrayList<RouterInfo>();
         DataStore ds = getDataStore();
@@ -312,6 +316,18 @@ public class FloodfillNetworkDatabaseFacade extends KademliaNetworkDatabaseFacad
         }
         return rv;
     }
+
+    /**
+     *  The hash, caps, and version of every known router,
+     *  without parsing compact RouterInfos.
+     *
+     *  @since 0.9.28
+     */
+    public void getKnownRouterSummaries(RouterSummaryCollector collector) {
+        DataStore ds = getDataStore();
+        if (ds != null)
+            ds.getRouterSummaries(collector);
+    }
     
     /**
      * Lookup using exploratory tunnels.
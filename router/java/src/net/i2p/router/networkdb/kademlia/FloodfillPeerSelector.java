@@ -42,8 +42,97 @@ import net.i2p.util.Log;
  */
 class FloodfillPeerSelector extends PeerSelector {
 
+    /**
+     *  All the floodfills, plus possibly some that no longer are,
+     *  whose caps were changed without a store.
+     *  The peer manager's floodfill set is the authority.
+     *  @since 0.9.28
+     */
+    private final FloodfillIndex _index;
+    /** rebuild the index if it has this many more than the peer manager */
+    private static final int MAX_INDEX_STALE = 32;
+    /** the peer manager's floodfill add count at the last check */
+    private volatile int _lastAddCount;
+
     public FloodfillPeerSelector(RouterContext ctx) {
         super(ctx);
+        _index = new FloodfillIndex();
+    }
+
+    /**
+     *  Keep the index up to date
+     *  @since 0.9.28
+     */
+    @Override
+    void routerInfoStored(Hash key, RouterInfo ri) {
+        if (FloodfillNetworkDatabaseFacade.isFloodfill(ri))
+            _index.add(key);
+        else
+            _index.remove(key);
+    }
+
+    /**
+     *  Keep the index up to date
+     *  @since 0.9.28
+     */
+    @Override
+    void routerInfoRemoved(Hash key) {
+        _index.remove(key);
+    }
+
+    /**
+     *  Rebuild the index if it's missing some, or has too many stale entries.
+     *  It's missing some if the peer manager's caps were set without going
+     *  through the netdb store, e.g. at startup before the netdb was ready.
+     *  The sizes alone can't tell, as stale entries may hide missing ones,
+     *  so look for missing ones whenever the peer manager has added a floodfill.
+     *
+     *  @param ffs the peer manager's floodfills
+     *  @since 0.9.28
+     */
+    private void checkIndex(Set<Hash> ffs) {
+        int sz = ffs.size();
+        int isz = _index.size();
+        boolean rebuild = isz < sz || isz > sz + Math.max(MAX_INDEX_STALE, sz / 8);
+        int adds = _context.peerManager().getFloodfillAddCount();
+        if (adds != _lastAddCount) {
+            // any added after this are caught next time
+            _lastAddCount = adds;
+            if (!rebuild) {
+                for (Hash h : ffs) {
+                    if (!_index.contains(h)) {
+                        rebuild = true;
+                        break;
+                    }
+                }
+            }
+        }
+        if (rebuild) {
+            _index.rebuild(ffs);
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Rebuilt floodfill index, had " + isz + " now " + _index.size());
+        }
+    }
+
+    /**
+     *  The next floodfill that is not to be ignored or banlisted forever.
+     *
+     *  @param iter from the index
+     *  @param ffs the peer manager's floodfills
+     *  @param toIgnore can be null
+     *  @return null if none left
+     *  @since 0.9.28
+     */
+    private Hash nextFloodfill(Iterator<Hash> iter, Set<Hash> ffs, Set<Hash> toIgnore) {
+        while (iter.hasNext()) {
+            Hash h = iter.next();
+            if (!ffs.contains(h) ||
+                (toIgnore != null && toIgnore.contains(h)) ||
+                _context.banlist().isBanlistedForever(h))
+               continue;
+            return h;
+        }
+        return null;
     }
     
     /**
@@ -203,13 +292,14 @@ class FloodfillPeerSelector extends PeerSelector {
      *  @param kbuckets now unused
      */
     private List<Hash> selectFloodfillParticipantsIncludingUs(Hash key, int howMany, Set<Hash> toIgnore, KBucketSet<Hash> kbuckets) {
-        List<Hash> ffs = selectFloodfillParticipants(toIgnore, kbuckets);
-        TreeSet<Hash> sorted = new TreeSet<Hash>(new XORComparator<Hash>(key));
-        sorted.addAll(ffs);
+        // As of 0.9.28, walk the index in XOR order, instead of sorting all of them
+        Set<Hash> ffs = _context.peerManager().getPeersByCapability(FloodfillNetworkDatabaseFacade.CAPABILITY_FLOODFILL);
+        checkIndex(ffs);
+        Iterator<Hash> sorted = _index.iterator(key);
 
         List<Hash> rv = new ArrayList<Hash>(howMany);
-        List<Hash> okff = new ArrayList<Hash>(ffs.size());
-        List<Hash> badff = new ArrayList<Hash>(ffs.size());
+        List<Hash> okff = new ArrayList<Hash>(howMany);
+        List<Hash> badff = new ArrayList<Hash>(howMany);
         int found = 0;
         long now = _context.clock().now();
         long installed = _context.getProperty("router.firstInstalled", 0L);
@@ -233,10 +323,9 @@ class FloodfillPeerSelector extends PeerSelector {
         MaskedIPSet maskedIPs = new MaskedIPSet(limit * 3);
         // split sorted list into 3 sorted lists
         for (int i = 0; found < howMany && i < limit; i++) {
-            Hash entry = sorted.first();
+            Hash entry = nextFloodfill(sorted, ffs, toIgnore);
             if (entry == null)
-                break;  // shouldn't happen
-            sorted.remove(entry);
+                break;
             // put anybody in the same /16 at the end
             RouterInfo info = _context.netDb().lookupRouterInfoLocally(entry);
             MaskedIPSet entryIPs = new MaskedIPSet(_context, entry, info, 2);
@@ -43,6 +43,7 @@ import net.i2p.router.Router;
 import net.i2p.router.RouterContext;
 import net.i2p.router.crypto.FamilyKeyCrypto;
 import net.i2p.router.networkdb.PublishLocalRouterInfoJob;
+import net.i2p.router.networkdb.RouterInfoMemoryUsage;
 import net.i2p.router.networkdb.reseed.ReseedChecker;
 import net.i2p.router.peermanager.PeerProfile;
 import net.i2p.util.ConcurrentHashSet;
@@ -379,14 +380,8 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
     /** get the hashes for all known routers */
     public Set<Hash> getAllRouters() {
         if (!_initialized) return Collections.emptySet();
-        Set<Map.Entry<Hash, DatabaseEntry>> entries = _ds.getMapEntries();
-        Set<Hash> rv = new HashSet<Hash>(entries.size());
-        for (Map.Entry<Hash, DatabaseEntry> entry : entries) {
-            if (entry.getValue().getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
-                rv.add(entry.getKey());
-            }
-        }
-        return rv;
+        // don't parse compact routerinfos
+        return new HashSet<Hash>(_ds.getRouterInfoKeys());
     }
     
     /**
@@ -404,12 +399,8 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         return count.size();
 ****/
         if (_ds == null) return 0;
-        int rv = 0;
-        for (DatabaseEntry ds : _ds.getEntries()) {
-            if (ds.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO)
-                rv++;
-        }
-        return rv;
+        // don't parse compact routerinfos
+        return Math.max(0, _ds.size() - _ds.countLeaseSets());
     }
     
 /****
@@ -437,9 +428,8 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         if (_ds == null) return 0;
         //return _ds.countLeaseSets();
         int rv = 0;
-        for (DatabaseEntry ds : _ds.getEntries()) {
-            if (ds.getType() == DatabaseEntry.KEY_TYPE_LEASESET &&
-                ((LeaseSet)ds).getReceivedAsPublished())
+        for (LeaseSet ls : _ds.getLeaseSets()) {
+            if (ls.getReceivedAsPublished())
                 rv++;
         }
         return rv;
@@ -1055,6 +1045,7 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         //               + new Date(routerInfo.getPublished()));
     
         _context.peerManager().setCapabilities(key, routerInfo.getCapabilities());
+        _peerSelector.routerInfoStored(key, routerInfo);
         _ds.put(key, routerInfo, persist);
         if (rv == null)
             _kb.add(key);
@@ -1125,6 +1116,7 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
             // if we dont know the key, lets make sure it isn't a now-dead peer
             _kb.remove(dbEntry);
             _context.peerManager().removeCapabilities(dbEntry);
+            _peerSelector.routerInfoRemoved(dbEntry);
             return;
         }
 
@@ -1154,6 +1146,7 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
      */
     void dropAfterLookupFailed(Hash peer) {
         _context.peerManager().removeCapabilities(peer);
+        _peerSelector.routerInfoRemoved(peer);
         _kb.remove(peer);
         //if (removed) {
         //    if (_log.shouldLog(Log.INFO))
@@ -1231,15 +1224,15 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
     @Override
     public Set<LeaseSet> getLeases() {
         if (!_initialized) return null;
-        Set<LeaseSet> leases = new HashSet<LeaseSet>();
-        for (DatabaseEntry o : getDataStore().getEntries()) {
-            if (o.getType() == DatabaseEntry.KEY_TYPE_LEASESET)
-                leases.add((LeaseSet)o);
-        }
-        return leases;
+        return new HashSet<LeaseSet>(getDataStore().getLeaseSets());
     }
 
-    /** public for NetDbRenderer in routerconsole */
+    /**
+     *  public for NetDbRenderer in routerconsole
+     *
+     *  If RouterInfos are compact, this parses all that aren't cached,
+     *  it is for the console only, not for periodic use.
+     */
     @Override
     public Set<RouterInfo> getRouters() {
         if (!_initialized) return null;
@@ -1327,6 +1320,19 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         return _negativeCache.getBadDest(key) != null;
     }
 
+    /**
+     *  For NetDbRenderer in routerconsole.
+     *
+     *  @return null if not initialized
+     *  @since 0.9.28
+     */
+    @Override
+    public RouterInfoMemoryUsage getRouterInfoMemoryUsage() {
+        if (!_initialized || !(_ds instanceof TransientDataStore))
+            return null;
+        return ((TransientDataStore) _ds).getRouterInfoMemoryUsage();
+    }
+
     /**
      * Debug info, HTML formatted
      * @since 0.9.10
@@ -0,0 +1,497 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataFormatException;
+import net.i2p.data.DataHelper;
+import net.i2p.data.DatabaseEntry;
+import net.i2p.data.Hash;
+import net.i2p.data.router.RouterInfo;
+import net.i2p.util.FileUtil;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFile;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  All the persistent RouterInfos in a single append-only file,
+ *  instead of one file each in 64 subdirectories.
+ *  Enabled with router.networkDatabase.log=true.
+ *
+ *  Writes are appended in batches, with one sync per batch.
+ *  At startup the whole file is read sequentially.
+ *  An in-memory index of the live records is kept, and when more than
+ *  half the file is superseded or removed records, the live ones are
+ *  copied to a new file which replaces the old one.
+ *
+ *  File format: 8 byte magic, then records of:
+ *  <pre>
+ *    1 byte type (1 = store, 2 = remove)
+ *    32 byte hash
+ *    8 byte published date (0 for remove)
+ *    4 byte length of data (0 for remove)
+ *    the RouterInfo, as written by writeBytes()
+ *  </pre>
+ *  A partial record at the end, from a crash, is discarded.
+ *  A bad record elsewhere is skipped, and loading resumes at the
+ *  next valid record.
+ *
+ *  Methods are synchronized.
+ *  For PersistentDataStore only, and export and import from the command line.
+ *
+ *  @since 0.9.28
+ */
+class NetDbLog {
+    private final File _file;
+    private final Log _log;
+    /** hash to live record */
+    private final Map<Hash, Record> _index;
+    private RandomAccessFile _raf;
+    private long _size;
+    private long _liveBytes;
+    /** pending remove records */
+    private final ByteArrayOutputStream _pending;
+
+    static final String FILENAME = "routerInfos.log";
+    private static final byte[] MAGIC = DataHelper.getASCII("I2Pndb01");
+    private static final int TYPE_STORE = 1;
+    private static final int TYPE_REMOVE = 2;
+    private static final int RECORD_HEADER_LEN = 1 + Hash.HASH_LENGTH + 8 + 4;
+    /** RouterInfos are around 1 KB, allow lots of room */
+    private static final int MAX_DATA_LEN = 64*1024;
+    private static final long MIN_COMPACT_WASTE = 256*1024;
+    private static final int RESYNC_CHUNK = 64*1024;
+
+    private static class Record {
+        final long offset;
+        final int length;
+        final long published;
+
+        public Record(long offset, int length, long published) {
+            this.offset = offset;
+            this.length = length;
+            this.published = published;
+        }
+    }
+
+    /**
+     *  Opens the file, creating it if necessary.
+     *  Call load() before anything else.
+     */
+    public NetDbLog(I2PAppContext ctx, File file) throws IOException {
+        _file = file;
+        _log = ctx.logManager().getLog(NetDbLog.class);
+        _index = new HashMap<Hash, Record>(4096);
+        _pending = new ByteArrayOutputStream(256);
+        open();
+    }
+
+    private void open() throws IOException {
+        if (!_file.exists()) {
+            OutputStream out = new SecureFileOutputStream(_file);
+            try {
+                out.write(MAGIC);
+            } finally {
+                out.close();
+            }
+        }
+        _raf = new RandomAccessFile(_file, "rw");
+        _size = _raf.length();
+    }
+
+    public File getFile() {
+        return _file;
+    }
+
+    /**
+     *  Read the whole file sequentially and build the index.
+     *  A bad record is skipped, and reading resumes at the next valid record
+     *  after it. Anything after the last valid record is truncated.
+     *
+     *  @return hash to the serialized RouterInfo, for each live record
+     */
+    public synchronized Map<Hash, byte[]> load() throws IOException {
+        Map<Hash, byte[]> rv = new HashMap<Hash, byte[]>(4096);
+        _index.clear();
+        _liveBytes = 0;
+        _size = _raf.length();
+        byte[] magic = new byte[MAGIC.length];
+        if (_size < MAGIC.length)
+            throw new IOException("Not a netdb log: " + _file);
+        _raf.seek(0);
+        _raf.readFully(magic);
+        if (!DataHelper.eq(magic, MAGIC))
+            throw new IOException("Not a netdb log: " + _file);
+        byte[] header = new byte[RECORD_HEADER_LEN];
+        long pos = MAGIC.length;
+        int skipped = 0;
+        while (pos < _size) {
+            LogRecord r = readRecord(pos, header);
+            if (r == null) {
+                long next = resync(pos + 1, header);
+                if (next < 0) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Bad or partial record at end of " + _file + ", truncating at " + pos);
+                    break;
+                }
+                skipped++;
+                _log.error("Bad record in " + _file + " at " + pos + ", skipped " + (next - pos) + " bytes");
+                pos = next;
+                continue;
+            }
+            Record old;
+            if (r.data != null) {
+                old = _index.put(r.key, new Record(pos, r.data.length, r.published));
+                rv.put(r.key, r.data);
+                _liveBytes += RECORD_HEADER_LEN + r.data.length;
+                pos += RECORD_HEADER_LEN + r.data.length;
+            } else {
+                old = _index.remove(r.key);
+                rv.remove(r.key);
+                pos += RECORD_HEADER_LEN;
+            }
+            if (old != null)
+                _liveBytes -= RECORD_HEADER_LEN + old.length;
+        }
+        if (pos < _size) {
+            _raf.setLength(pos);
+            _size = pos;
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Loaded " + rv.size() + " RouterInfos from " + _file + ", size " + _size +
+                      ", live " + _liveBytes + ", skipped " + skipped + " bad records");
+        return rv;
+    }
+
+    /** a record read by load(), data is null for a remove */
+    private static class LogRecord {
+        final Hash key;
+        final long published;
+        final byte[] data;
+
+        public LogRecord(Hash key, long published, byte[] data) {
+            this.key = key;
+            this.published = published;
+            this.data = data;
+        }
+    }
+
+    /**
+     *  Read and check the record at pos.
+     *  For a store, the data must parse as a RouterInfo of exactly that length,
+     *  and the hash of its RouterIdentity must match the key, so that a bad length
+     *  is caught, and after a bad record we don't pick up
+     *  something that only looks like a header.
+     *  The signature is checked later, by PersistentDataStore.
+     *
+     *  @param header scratch buffer
+     *  @return null if there isn't a complete, valid record at pos
+     */
+    private LogRecord readRecord(long pos, byte[] header) throws IOException {
+        if (pos + RECORD_HEADER_LEN > _size)
+            return null;
+        _raf.seek(pos);
+        _raf.readFully(header);
+        int type = header[0] & 0xff;
+        // fromLong() throws on a negative
+        if (header[1 + Hash.HASH_LENGTH] < 0)
+            return null;
+        long published = DataHelper.fromLong(header, 1 + Hash.HASH_LENGTH, 8);
+        long len = DataHelper.fromLong(header, 1 + Hash.HASH_LENGTH + 8, 4);
+        byte[] data;
+        if (type == TYPE_STORE) {
+            if (len <= 0 || len > MAX_DATA_LEN || pos + RECORD_HEADER_LEN + len > _size)
+                return null;
+            data = new byte[(int) len];
+            _raf.readFully(data);
+            if (!check(header, data))
+                return null;
+        } else if (type == TYPE_REMOVE) {
+            if (published != 0 || len != 0)
+                return null;
+            data = null;
+        } else {
+            return null;
+        }
+        return new LogRecord(Hash.create(header, 1), published, data);
+    }
+
+    /**
+     *  @param header the record header, with the key at offset 1
+     *  @param data the serialized RouterInfo
+     *  @return true if it parses, with nothing left over, and the RouterIdentity hashes to the key
+     */
+    private static boolean check(byte[] header, byte[] data) {
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        RouterInfo ri = new RouterInfo();
+        try {
+            ri.readBytes(in, false);
+        } catch (DataFormatException dfe) {
+            return false;
+        } catch (IOException ioe) {
+            return false;
+        } catch (RuntimeException re) {
+            // unknown key types, etc.
+            return false;
+        }
+        return in.available() == 0 &&
+               DataHelper.eq(ri.getIdentity().calculateHash().getData(), 0, header, 1, Hash.HASH_LENGTH);
+    }
+
+    /**
+     *  Find the next valid record at or after from.
+     *
+     *  @param header scratch buffer
+     *  @return the position, or -1 if none
+     */
+    private long resync(long from, byte[] header) throws IOException {
+        byte[] buf = new byte[RESYNC_CHUNK];
+        long base = from;
+        while (base + RECORD_HEADER_LEN <= _size) {
+            int n = (int) Math.min(buf.length, _size - base);
+            _raf.seek(base);
+            _raf.readFully(buf, 0, n);
+            int last = n - RECORD_HEADER_LEN;
+            for (int i = 0; i <= last; i++) {
+                // quick check of the type byte before reading the whole record
+                if ((buf[i] == TYPE_STORE || buf[i] == TYPE_REMOVE) &&
+                    readRecord(base + i, header) != null)
+                    return base + i;
+            }
+            base += last + 1;
+        }
+        return -1;
+    }
+
+    /**
+     *  Append the RouterInfos that are newer than what we have,
+     *  and any pending removes, then sync.
+     *  LeaseSets are ignored.
+     *  The index is updated only after the write succeeds.
+     *  If it fails, the pending removes are kept for the next call.
+     *
+     *  @return the number written
+     */
+    public synchronized int write(Collection<? extends DatabaseEntry> entries) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(entries.size() * 1024 + _pending.size());
+        _pending.writeTo(buf);
+        Map<Hash, Record> added = new HashMap<Hash, Record>(entries.size());
+        for (DatabaseEntry e : entries) {
+            if (e.getType() != DatabaseEntry.KEY_TYPE_ROUTERINFO)
+                continue;
+            RouterInfo ri = (RouterInfo) e;
+            Hash key = ri.getIdentity().getHash();
+            long published = ri.getPublished();
+            Record old = added.get(key);
+            if (old == null)
+                old = _index.get(key);
+            if (old != null && old.published >= published)
+                continue;
+            byte[] data = ri.toByteArray();
+            if (data == null || data.length > MAX_DATA_LEN) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Not writing bad RouterInfo " + key);
+                continue;
+            }
+            long offset = _size + buf.size();
+            writeHeader(buf, TYPE_STORE, key, published, data.length);
+            buf.write(data);
+            added.put(key, new Record(offset, data.length, published));
+        }
+        if (buf.size() > 0) {
+            _raf.seek(_size);
+            _raf.write(buf.toByteArray());
+            _raf.getChannel().force(false);
+            _size += buf.size();
+        }
+        _pending.reset();
+        for (Map.Entry<Hash, Record> e : added.entrySet()) {
+            Record r = e.getValue();
+            Record old = _index.put(e.getKey(), r);
+            _liveBytes += RECORD_HEADER_LEN + r.length;
+            if (old != null)
+                _liveBytes -= RECORD_HEADER_LEN + old.length;
+        }
+        return added.size();
+    }
+
+    /**
+     *  Queues a remove record, it is written with the next batch.
+     */
+    public synchronized void remove(Hash key) {
+        Record old = _index.remove(key);
+        if (old == null)
+            return;
+        _liveBytes -= RECORD_HEADER_LEN + old.length;
+        try {
+            writeHeader(_pending, TYPE_REMOVE, key, 0, 0);
+        } catch (IOException ioe) {}
+    }
+
+    private static void writeHeader(OutputStream out, int type, Hash key, long published, int len) throws IOException {
+        byte[] b = new byte[RECORD_HEADER_LEN];
+        b[0] = (byte) type;
+        System.arraycopy(key.getData(), 0, b, 1, Hash.HASH_LENGTH);
+        DataHelper.toLong(b, 1 + Hash.HASH_LENGTH, 8, published);
+        DataHelper.toLong(b, 1 + Hash.HASH_LENGTH + 8, 4, len);
+        out.write(b);
+    }
+
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    /**
+     *  Copy the live records to a new file, if it's worth it.
+     *
+     *  @return true if compacted
+     */
+    public synchronized boolean maybeCompact() throws IOException {
+        long waste = _size - MAGIC.length - _liveBytes;
+        if (waste < MIN_COMPACT_WASTE || waste < _liveBytes)
+            return false;
+        long start = System.currentTimeMillis();
+        File tmp = new SecureFile(_file.getParentFile(), _file.getName() + ".tmp");
+        Map<Hash, Record> newIndex = new HashMap<Hash, Record>(_index.size());
+        OutputStream out = null;
+        boolean success = false;
+        try {
+            SecureFileOutputStream fos = new SecureFileOutputStream(tmp);
+            out = new BufferedOutputStream(fos, 64*1024);
+            out.write(MAGIC);
+            long offset = MAGIC.length;
+            byte[] data = new byte[4096];
+            for (Map.Entry<Hash, Record> e : _index.entrySet()) {
+                Record r = e.getValue();
+                if (data.length < r.length)
+                    data = new byte[r.length];
+                _raf.seek(r.offset + RECORD_HEADER_LEN);
+                _raf.readFully(data, 0, r.length);
+                writeHeader(out, TYPE_STORE, e.getKey(), r.published, r.length);
+                out.write(data, 0, r.length);
+                newIndex.put(e.getKey(), new Record(offset, r.length, r.published));
+                offset += RECORD_HEADER_LEN + r.length;
+            }
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            _raf.close();
+            if (!FileUtil.rename(tmp, _file))
+                throw new IOException("Unable to rename " + tmp + " to " + _file);
+            success = true;
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+            if (!success) {
+                tmp.delete();
+                if (!_raf.getChannel().isOpen())
+                    open();
+            }
+        }
+        open();
+        _index.clear();
+        _index.putAll(newIndex);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Compacted " + _file + " to " + _size + " bytes in " +
+                      (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     *  Writes any pending removes and closes the file.
+     */
+    public synchronized void close() {
+        try {
+            if (_pending.size() > 0) {
+                _raf.seek(_size);
+                _raf.write(_pending.toByteArray());
+                _size += _pending.size();
+                _pending.reset();
+            }
+            _raf.getChannel().force(false);
+            _raf.close();
+        } catch (IOException ioe) {
+            _log.error("Error closing " + _file, ioe);
+        }
+    }
+
+    /**
+     *  Parse a RouterInfo from load(), without checking the signature.
+     */
+    static RouterInfo parse(byte[] data) throws DataFormatException, IOException {
+        RouterInfo ri = new RouterInfo();
+        ri.readBytes(new ByteArrayInputStream(data), false);
+        return ri;
+    }
+
+    /**
+     *  Export to flat routerInfo-xxx.dat files, as used in reseed bundles,
+     *  or import from them.
+     *
+     *  Usage: NetDbLog export logfile dir | import dir logfile
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3 || !(args[0].equals("export") || args[0].equals("import"))) {
+            System.err.println("Usage: NetDbLog export logfile dir | import dir logfile");
+            System.exit(1);
+        }
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        if (args[0].equals("export")) {
+            NetDbLog log = new NetDbLog(ctx, new File(args[1]));
+            Map<Hash, byte[]> entries = log.load();
+            log.close();
+            File dir = new File(args[2]);
+            dir.mkdirs();
+            for (Map.Entry<Hash, byte[]> e : entries.entrySet()) {
+                File f = new File(dir, "routerInfo-" + e.getKey().toBase64() + ".dat");
+                OutputStream out = new SecureFileOutputStream(f);
+                try {
+                    out.write(e.getValue());
+                } finally {
+                    out.close();
+                }
+                f.setLastModified(parse(e.getValue()).getPublished());
+            }
+            System.out.println("Exported " + entries.size() + " RouterInfos to " + dir);
+        } else {
+            File[] files = new File(args[1]).listFiles(PersistentDataStore.RouterInfoFilter.getInstance());
+            if (files == null) {
+                System.err.println("Not a directory: " + args[1]);
+                System.exit(1);
+            }
+            List<RouterInfo> ris = new ArrayList<RouterInfo>(files.length);
+            for (File f : files) {
+                InputStream in = null;
+                try {
+                    in = new BufferedInputStream(new FileInputStream(f));
+                    RouterInfo ri = new RouterInfo();
+                    ri.readBytes(in, true);
+                    ris.add(ri);
+                } catch (DataFormatException dfe) {
+                    System.err.println("Skipping bad file " + f + ": " + dfe);
+                } finally {
+                    if (in != null) try { in.close(); } catch (IOException ioe) {}
+                }
+            }
+            NetDbLog log = new NetDbLog(ctx, new File(args[2]));
+            log.load();
+            int count = log.write(ris);
+            log.close();
+            System.out.println("Imported " + count + " of " + files.length + " RouterInfos to " + args[2]);
+        }
+    }
+}
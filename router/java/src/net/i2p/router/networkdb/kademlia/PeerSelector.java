@@ -208,4 +208,20 @@ class PeerSelector {
         // into a simple bucket selection algo + random select rather than an n*log(n) op)
         return selectNearestExplicit(key, maxNumRouters, peersToIgnore, kbuckets);
     }
+
+    /**
+     *  A router info was stored, after the peer manager's capabilities were updated.
+     *  Does nothing here, see FloodfillPeerSelector override.
+     *
+     *  @since 0.9.28
+     */
+    void routerInfoStored(Hash key, RouterInfo ri) {}
+
+    /**
+     *  A router info was removed, after the peer manager's capabilities were removed.
+     *  Does nothing here, see FloodfillPeerSelector override.
+     *
+     *  @since 0.9.28
+     */
+    void routerInfoRemoved(Hash key) {}
 }
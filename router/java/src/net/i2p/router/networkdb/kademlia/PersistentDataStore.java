@@ -10,6 +10,7 @@ package net.i2p.router.networkdb.kademlia;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
@@ -19,12 +20,18 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.i2p.data.Base64;
 import net.i2p.data.DatabaseEntry;
@@ -46,6 +53,11 @@ import net.i2p.util.SecureFileOutputStream;
  *
  * Public only for access to static methods by startup classes
  *
+ * As of 0.9.28, if router.networkDatabase.log=true, RouterInfos are
+ * written in batches to a single NetDbLog file instead. Any RouterInfo files
+ * found, e.g. after a reseed, are imported into the log and deleted.
+ * If the option is turned off again, the log is exported to files at startup.
+ *
  */
 public class PersistentDataStore extends TransientDataStore {
     private final File _dbDir;
@@ -55,9 +67,25 @@ public class PersistentDataStore extends TransientDataStore {
     private volatile boolean _initialized;
     private final boolean _flat;
     private final int _networkID;
+    /** null unless enabled */
+    private final NetDbLog _netDbLog;
+    /** total time in ReadRouterJob.call(), for the verifyRate stat */
+    private final AtomicLong _readNanos = new AtomicLong();
+    /** RouterInfo files to delete after the import is synced to the log, ReadJob thread only */
+    private final List<File> _importFiles = new ArrayList<File>();
+    /** what we have for those files, to be written to the log, ReadJob thread only */
+    private final Map<Hash, DatabaseEntry> _importEntries = new HashMap<Hash, DatabaseEntry>();
     
     private final static int READ_DELAY = 2*60*1000;
     private static final String PROP_FLAT = "router.networkDatabase.flat";
+    /** @since 0.9.28 */
+    private static final String PROP_LOG = "router.networkDatabase.log";
+    /** @since 0.9.28 */
+    private static final String PROP_LOAD_THREADS = "router.networkDatabase.loadThreads";
+    private static final int MAX_LOAD_THREADS = 16;
+    /** below this, read in the ReadJob thread only */
+    private static final int MIN_PARALLEL_LOAD = 64;
+    private static final int LOAD_BATCH = 128;
     static final String DIR_PREFIX = "r";
     static final String B64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-~";
     
@@ -69,6 +97,14 @@ public class PersistentDataStore extends TransientDataStore {
         _networkID = ctx.router().getNetworkID();
         _flat = ctx.getBooleanProperty(PROP_FLAT);
         _dbDir = getDbDir(dbDir);
+        File logFile = new File(_dbDir, NetDbLog.FILENAME);
+        if (ctx.getBooleanProperty(PROP_LOG)) {
+            _netDbLog = new NetDbLog(ctx, logFile);
+        } else {
+            _netDbLog = null;
+            if (logFile.exists())
+                exportLog(logFile);
+        }
         _facade = facade;
         _readJob = new ReadJob();
         _context.jobQueue().addJob(_readJob);
@@ -76,6 +112,10 @@ public class PersistentDataStore extends TransientDataStore {
         ctx.statManager().createRateStat("netDb.writePending", "How many pending writes are there", "NetworkDatabase", new long[] { 60*1000 });
         ctx.statManager().createRateStat("netDb.writeOut", "How many we wrote", "NetworkDatabase", new long[] { 20*60*1000 });
         ctx.statManager().createRateStat("netDb.writeTime", "How long it took", "NetworkDatabase", new long[] { 20*60*1000 });
+        ctx.statManager().createRateStat("netDb.loadRate", "RouterInfos read, verified, and stored per second, when reading many", "NetworkDatabase", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat("netDb.verifyRate", "RouterInfos read and verified per second per thread, when reading many", "NetworkDatabase", new long[] { 60*60*1000 });
+        if (_netDbLog != null)
+            ctx.statManager().createRateStat("netDb.logLoadTime", "How long it took to read the netDb log", "NetworkDatabase", new long[] { 60*60*1000 });
         //ctx.statManager().createRateStat("netDb.readTime", "How long one took", "NetworkDatabase", new long[] { 20*60*1000 });
         _writer = new Writer();
         I2PThread writer = new I2PThread(_writer, "DBWriter");
@@ -176,6 +216,11 @@ public class PersistentDataStore extends TransientDataStore {
         public void runJob() {
             if (_log.shouldLog(Log.INFO))
                 _log.info("Removing key " + _key /* , getAddedBy() */);
+            if (_netDbLog != null) {
+                // written with the next batch
+                _netDbLog.remove(_key);
+                return;
+            }
             try {
                 removeFile(_key, _dbDir);
             } catch (IOException ioe) {
@@ -221,6 +266,10 @@ public class PersistentDataStore extends TransientDataStore {
         }
 
         public void run() {
+            if (_netDbLog != null) {
+                runBatched();
+                return;
+            }
             _quit = false;
             Hash key = null;
             DatabaseEntry data = null;
@@ -277,6 +326,55 @@ public class PersistentDataStore extends TransientDataStore {
             }
         }
 
+        /**
+         *  Write everything queued in one batch, every 10 minutes
+         *  @since 0.9.28
+         */
+        private void runBatched() {
+            while (true) {
+                synchronized (_waitLock) {
+                    if (!_quit) {
+                        try {
+                            _waitLock.wait(WRITE_DELAY);
+                        } catch (InterruptedException ie) {}
+                    }
+                }
+                writeBatch();
+                if (_quit)
+                    break;
+            }
+            _netDbLog.close();
+        }
+
+        /** @since 0.9.28 */
+        private void writeBatch() {
+            List<DatabaseEntry> batch = new ArrayList<DatabaseEntry>(_keys.size());
+            for (Map.Entry<Hash, DatabaseEntry> e : _keys.entrySet()) {
+                // if it was replaced in the meantime, we'll get the new one next time
+                if (_keys.remove(e.getKey(), e.getValue()))
+                    batch.add(e.getValue());
+            }
+            long start = _context.clock().now();
+            int count;
+            // synch with the reader job
+            synchronized (_dbDir) {
+                try {
+                    count = _netDbLog.write(batch);
+                    _netDbLog.maybeCompact();
+                } catch (IOException ioe) {
+                    _log.error("Error writing to the netDb log", ioe);
+                    return;
+                }
+            }
+            if (count > 0) {
+                long time = _context.clock().now() - start;
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Wrote " + count + " entries to the log in " + time);
+                _context.statManager().addRateData("netDb.writeOut", count);
+                _context.statManager().addRateData("netDb.writeTime", time);
+            }
+        }
+
         public void flush() {
             synchronized(_waitLock) {
                 _quit = true;
@@ -330,6 +428,32 @@ public class PersistentDataStore extends TransientDataStore {
     private long getPublishDate(DatabaseEntry data) {
         return data.getDate();
     }
+
+    /**
+     *  Write all the RouterInfos in the log to files,
+     *  and delete the log. Startup only.
+     *  @since 0.9.28
+     */
+    private void exportLog(File logFile) {
+        try {
+            NetDbLog netDbLog = new NetDbLog(_context, logFile);
+            Map<Hash, byte[]> entries = netDbLog.load();
+            netDbLog.close();
+            for (Map.Entry<Hash, byte[]> e : entries.entrySet()) {
+                try {
+                    write(e.getKey(), NetDbLog.parse(e.getValue()));
+                } catch (DataFormatException dfe) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Bad RouterInfo in the netDb log: " + e.getKey(), dfe);
+                }
+            }
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Exported " + entries.size() + " RouterInfos from the netDb log to files");
+            logFile.delete();
+        } catch (IOException ioe) {
+            _log.error("Error exporting the netDb log", ioe);
+        }
+    }
     
     /**
      *  This was mostly for manual reseeding, i.e. the user manually
@@ -378,9 +502,10 @@ public class PersistentDataStore extends TransientDataStore {
                 // synch with the writer job
                 synchronized (_dbDir) {
                     // _lastModified must be 0 for the first run
-                    readFiles();
+                    boolean ok = readFiles();
+                    // if the import to the log failed, scan everything again next time
+                    _lastModified = ok ? now : 0;
                 }
-                _lastModified = now;
             }
             requeue(READ_DELAY);
         }
@@ -389,27 +514,31 @@ public class PersistentDataStore extends TransientDataStore {
             requeue(0);
         }
         
-        private void readFiles() {
+        /**
+         *  @return false if the import to the log failed, and the files must be scanned again
+         */
+        private boolean readFiles() {
             int routerCount = 0;
+            if (_netDbLog != null && !_initialized)
+                routerCount = readLog();
 
             File routerInfoFiles[] = _dbDir.listFiles(RouterInfoFilter.getInstance());
             if (_flat) {
                 if (routerInfoFiles != null) {
-                    routerCount = routerInfoFiles.length;
+                    routerCount += routerInfoFiles.length;
+                    List<ReadRouterJob> toRead = new ArrayList<ReadRouterJob>(routerInfoFiles.length);
                     for (int i = 0; i < routerInfoFiles.length; i++) {
-                        // drop out if the router gets killed right after startup
-                        if (!_context.router().isAlive())
-                            break;
                         Hash key = getRouterInfoHash(routerInfoFiles[i].getName());
                         if ( (key != null) && (!isKnown(key)) ) {
                             // Run it inline so we don't clog up the job queue, esp. at startup
                             // Also this allows us to wait until it is really done to call checkReseed() and set _initialized
                             //PersistentDataStore.this._context.jobQueue().addJob(new ReadRouterJob(routerInfoFiles[i], key));
-                            //long start = System.currentTimeMillis();
-                            (new ReadRouterJob(routerInfoFiles[i], key)).runJob();
-                            //_context.statManager().addRateData("netDb.readTime", System.currentTimeMillis() - start);
+                            toRead.add(new ReadRouterJob(routerInfoFiles[i], key));
+                        } else if (key != null && _netDbLog != null) {
+                            importFile(routerInfoFiles[i], key);
                         }
                     }
+                    runReadJobs(toRead);
                 }
             } else {
                 // move all new RIs to subdirs, then scan those
@@ -435,12 +564,19 @@ public class PersistentDataStore extends TransientDataStore {
                     }
                 }
                 Collections.shuffle(toRead, _context.random());
+                List<ReadRouterJob> jobs = new ArrayList<ReadRouterJob>(toRead.size());
                 for (File file : toRead) {
                     Hash key = getRouterInfoHash(file.getName());
                     if (key != null && !isKnown(key))
-                        (new ReadRouterJob(file, key)).runJob();
+                        jobs.add(new ReadRouterJob(file, key));
+                    else if (key != null && _netDbLog != null)
+                        importFile(file, key);
+                    else if (_netDbLog != null)
+                        file.delete();
                 }
+                runReadJobs(jobs);
             }
+            boolean rv = _netDbLog == null || finishImport();
             
             if (!_initialized) {
                 _initialized = true;
@@ -460,13 +596,169 @@ public class PersistentDataStore extends TransientDataStore {
                     _context.router().setNetDbReady();
                 }
             }
+            return rv;
+        }
+    }
+
+    /**
+     *  Delete the RouterInfo file after what we have for it is in the log.
+     *  ReadJob thread only.
+     *
+     *  @since 0.9.28
+     */
+    private void importFile(File file, Hash key) {
+        _importFiles.add(file);
+        DatabaseEntry data = get(key, false);
+        if (data != null && data.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO)
+            _importEntries.put(key, data);
+    }
+
+    /**
+     *  Write the imported RouterInfos to the log and sync it,
+     *  and only then delete the files.
+     *  If the write fails, the files are kept, to be imported again.
+     *  ReadJob thread only, synchronized on _dbDir.
+     *
+     *  @return success
+     *  @since 0.9.28
+     */
+    private boolean finishImport() {
+        if (_importFiles.isEmpty())
+            return true;
+        try {
+            int count = _netDbLog.write(_importEntries.values());
+            for (File f : _importFiles) {
+                f.delete();
+            }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Imported " + count + " RouterInfos from " + _importFiles.size() + " files to the log");
+            return true;
+        } catch (IOException ioe) {
+            _log.error("Error importing RouterInfo files to the netDb log, will retry", ioe);
+            return false;
+        } finally {
+            _importFiles.clear();
+            _importEntries.clear();
         }
     }
     
-    private class ReadRouterJob extends JobImpl {
+    /**
+     *  Read the log, store everything in it, in random order,
+     *  as in readFiles().
+     *
+     *  @return number of entries in the log
+     *  @since 0.9.28
+     */
+    private int readLog() {
+        long start = _context.clock().now();
+        Map<Hash, byte[]> entries;
+        try {
+            entries = _netDbLog.load();
+        } catch (IOException ioe) {
+            _log.error("Error reading the netDb log", ioe);
+            return 0;
+        }
+        List<ReadRouterJob> toRead = new ArrayList<ReadRouterJob>(entries.size());
+        for (Map.Entry<Hash, byte[]> e : entries.entrySet()) {
+            Hash key = e.getKey();
+            if (!isKnown(key))
+                toRead.add(new ReadRouterJob(e.getValue(), key));
+        }
+        Collections.shuffle(toRead, _context.random());
+        runReadJobs(toRead);
+        long time = _context.clock().now() - start;
+        _context.statManager().addRateData("netDb.logLoadTime", time);
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Read " + entries.size() + " RouterInfos from the log in " + time);
+        return entries.size();
+    }
+    
+    /**
+     *  Run the jobs in order, in this thread.
+     *  If there are many, read and verify them in parallel, a batch at a time,
+     *  while the previous batch is stored in this thread, in order.
+     *  Stops early if the router is shut down.
+     *
+     *  @since 0.9.28
+     */
+    private void runReadJobs(List<ReadRouterJob> jobs) {
+        if (jobs.isEmpty())
+            return;
+        long start = System.currentTimeMillis();
+        long readStart = _readNanos.get();
+        int threads = Math.min(MAX_LOAD_THREADS,
+                               _context.getProperty(PROP_LOAD_THREADS, Runtime.getRuntime().availableProcessors()));
+        boolean parallel = threads > 1 && jobs.size() >= MIN_PARALLEL_LOAD;
+        if (!parallel) {
+            for (ReadRouterJob job : jobs) {
+                // drop out if the router gets killed right after startup
+                if (!_context.router().isAlive())
+                    break;
+                job.runJob();
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                List<ReadRouterJob> prevJobs = null;
+                List<Future<RouterInfo>> prev = null;
+                for (int i = 0; i < jobs.size() && _context.router().isAlive(); i += LOAD_BATCH) {
+                    List<ReadRouterJob> batch = jobs.subList(i, Math.min(jobs.size(), i + LOAD_BATCH));
+                    List<Future<RouterInfo>> futures = new ArrayList<Future<RouterInfo>>(batch.size());
+                    for (ReadRouterJob job : batch) {
+                        futures.add(pool.submit(job));
+                    }
+                    if (prev != null)
+                        finishReadJobs(prevJobs, prev);
+                    prevJobs = batch;
+                    prev = futures;
+                }
+                if (prev != null)
+                    finishReadJobs(prevJobs, prev);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        long time = System.currentTimeMillis() - start;
+        if (jobs.size() >= MIN_PARALLEL_LOAD) {
+            long rate = jobs.size() * 1000L / Math.max(1, time);
+            long readTime = _readNanos.get() - readStart;
+            long verifyRate = jobs.size() * 1000000000L / Math.max(1, readTime);
+            _context.statManager().addRateData("netDb.loadRate", rate, time);
+            _context.statManager().addRateData("netDb.verifyRate", verifyRate, readTime / 1000000);
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Loaded " + jobs.size() + " RouterInfos in " + time + " ms (" + rate + "/s) with " +
+                          (parallel ? threads : 1) + " threads, read and verify " + verifyRate + "/s per thread");
+        }
+    }
+
+    /**
+     *  @since 0.9.28
+     */
+    private void finishReadJobs(List<ReadRouterJob> jobs, List<Future<RouterInfo>> futures) {
+        for (int i = 0; i < jobs.size(); i++) {
+            RouterInfo ri;
+            try {
+                ri = futures.get(i).get();
+            } catch (InterruptedException ie) {
+                ri = null;
+            } catch (ExecutionException ee) {
+                // call() catches everything, shouldn't happen
+                _log.error("Error reading RouterInfo", ee);
+                ri = null;
+            }
+            jobs.get(i).finish(ri);
+        }
+    }
+
+    private class ReadRouterJob extends JobImpl implements Callable<RouterInfo> {
+        /** null if from the log */
         private final File _routerFile;
+        /** null if from a file */
+        private final byte[] _data;
         private final Hash _key;
-        private long _knownDate;
+        private volatile long _knownDate;
+        private volatile boolean _skipped;
+        private volatile boolean _corrupt;
 
         /**
          *  @param key must match the RI hash in the file
@@ -474,9 +766,27 @@ public class PersistentDataStore extends TransientDataStore {
         public ReadRouterJob(File routerFile, Hash key) {
             super(PersistentDataStore.this._context);
             _routerFile = routerFile;
+            _data = null;
+            _key = key;
+        }
+
+        /**
+         *  @param data from the log
+         *  @param key must match the RI hash in the data
+         *  @since 0.9.28
+         */
+        public ReadRouterJob(byte[] data, Hash key) {
+            super(PersistentDataStore.this._context);
+            _routerFile = null;
+            _data = data;
             _key = key;
         }
 
+        /** for logging */
+        private String getSource() {
+            return _routerFile != null ? _routerFile.toString() : "the netDb log";
+        }
+
         public String getName() { return "Read RouterInfo"; }
         
         private boolean shouldRead() {
@@ -485,75 +795,128 @@ public class PersistentDataStore extends TransientDataStore {
             if (data == null) return true;
             if (data.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
                 _knownDate = ((RouterInfo)data).getPublished();
+                // the published date is checked after reading
+                if (_routerFile == null)
+                    return true;
                 long fileDate = _routerFile.lastModified();
                 // don't overwrite recent netdb RIs with reseed data
                 return fileDate > _knownDate + (60*60*1000);
             } else {
                 // safety measure - prevent injection from reseeding
-                _log.error("Prevented LS overwrite by RI " + _key + " from " + _routerFile);
+                _log.error("Prevented LS overwrite by RI " + _key + " from " + getSource());
                 return false;
             }
         }
 
         public void runJob() {
-            if (!shouldRead()) return;
+            finish(call());
+        }
+
+        /**
+         *  Read and verify. Thread safe, doesn't store anything.
+         *
+         *  @return null if not read, or corrupt
+         *  @since 0.9.28 split out of runJob()
+         */
+        public RouterInfo call() {
+            if (!shouldRead()) {
+                _skipped = true;
+                return null;
+            }
             if (_log.shouldLog(Log.DEBUG))
-                _log.debug("Reading " + _routerFile);
+                _log.debug("Reading " + getSource());
 
-                InputStream fis = null;
-                boolean corrupt = false;
-                try {
+            long begin = System.nanoTime();
+            InputStream fis = null;
+            try {
+                if (_data != null) {
+                    fis = new ByteArrayInputStream(_data);
+                } else {
                     fis = new FileInputStream(_routerFile);
                     fis = new BufferedInputStream(fis);
-                    RouterInfo ri = new RouterInfo();
-                    ri.readBytes(fis, true);  // true = verify sig on read
-                    if (ri.getNetworkId() != _networkID) {
-                        corrupt = true;
-                        if (_log.shouldLog(Log.ERROR))
-                            _log.error("The router "
-                                       + ri.getIdentity().calculateHash().toBase64() 
-                                       + " is from a different network");
-                    } else if (!ri.getIdentity().calculateHash().equals(_key)) {
-                        // prevent injection from reseeding
-                        // this is checked in KNDF.validate() but catch it sooner and log as error.
-                        corrupt = true;
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn(ri.getIdentity().calculateHash() + " does not match " + _key + " from " + _routerFile);
-                    } else if (ri.getPublished() <= _knownDate) {
-                        // Don't store but don't delete
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn("Skipping since netdb newer than " + _routerFile);
-                    } else {
-                        try {
-                            // persist = false so we don't write what we just read
-                            _facade.store(ri.getIdentity().getHash(), ri, false);
-                            // when heardAbout() was removed from TransientDataStore, it broke
-                            // profile bootstrapping for new routers,
-                            // so add it here.
-                            getContext().profileManager().heardAbout(ri.getIdentity().getHash(), ri.getPublished());
-                        } catch (IllegalArgumentException iae) {
-                            if (_log.shouldLog(Log.INFO))
-                                _log.info("Refused locally loaded routerInfo - deleting", iae);
-                            corrupt = true;
-                        }
+                }
+                RouterInfo ri = new RouterInfo();
+                ri.readBytes(fis, true);  // true = verify sig on read
+                if (ri.getNetworkId() != _networkID) {
+                    _corrupt = true;
+                    if (_log.shouldLog(Log.ERROR))
+                        _log.error("The router "
+                                   + ri.getIdentity().calculateHash().toBase64() 
+                                   + " is from a different network");
+                } else if (!ri.getIdentity().calculateHash().equals(_key)) {
+                    // prevent injection from reseeding
+                    // this is checked in KNDF.validate() but catch it sooner and log as error.
+                    _corrupt = true;
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn(ri.getIdentity().calculateHash() + " does not match " + _key + " from " + getSource());
+                } else {
+                    return ri;
+                }
+            } catch (DataFormatException dfe) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Error reading the routerInfo from " + getSource(), dfe);
+                _corrupt = true;
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Unable to read the router reference in " + getSource(), ioe);
+                _corrupt = true;
+            } catch (RuntimeException e) {
+                // key certificate problems, etc., don't let one bad RI kill the whole thing
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Unable to read the router reference in " + getSource(), e);
+                _corrupt = true;
+            } finally {
+                if (fis != null) try { fis.close(); } catch (IOException ioe) {}
+                _readNanos.addAndGet(System.nanoTime() - begin);
+            }
+            return null;
+        }
+
+        /**
+         *  Store it, and delete or import the file.
+         *  Call after call(), in the ReadJob thread.
+         *
+         *  @param ri from call(), may be null
+         *  @since 0.9.28 split out of runJob()
+         */
+        public void finish(RouterInfo ri) {
+            if (_skipped) {
+                if (_routerFile != null && _netDbLog != null)
+                    importFile(_routerFile, _key);
+                return;
+            }
+            if (ri != null) {
+                if (ri.getPublished() <= _knownDate) {
+                    // Don't store but don't delete
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Skipping since netdb newer than " + getSource());
+                } else {
+                    try {
+                        // persist = false so we don't write what we just read
+                        _facade.store(ri.getIdentity().getHash(), ri, false);
+                        // when heardAbout() was removed from TransientDataStore, it broke
+                        // profile bootstrapping for new routers,
+                        // so add it here.
+                        getContext().profileManager().heardAbout(ri.getIdentity().getHash(), ri.getPublished());
+                    } catch (IllegalArgumentException iae) {
+                        if (_log.shouldLog(Log.INFO))
+                            _log.info("Refused locally loaded routerInfo - deleting", iae);
+                        _corrupt = true;
                     }
-                } catch (DataFormatException dfe) {
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("Error reading the routerInfo from " + _routerFile.getName(), dfe);
-                    corrupt = true;
-                } catch (IOException ioe) {
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("Unable to read the router reference in " + _routerFile.getName(), ioe);
-                    corrupt = true;
-                } catch (RuntimeException e) {
-                    // key certificate problems, etc., don't let one bad RI kill the whole thing
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("Unable to read the router reference in " + _routerFile.getName(), e);
-                    corrupt = true;
-                } finally {
-                    if (fis != null) try { fis.close(); } catch (IOException ioe) {}
                 }
-                if (corrupt) _routerFile.delete();
+            }
+            if (_data != null) {
+                if (_corrupt)
+                    _netDbLog.remove(_key);
+            } else if (_netDbLog != null) {
+                // import into the log, the file is deleted after the log is synced
+                if (_corrupt)
+                    _routerFile.delete();
+                else
+                    importFile(_routerFile, _key);
+            } else {
+                if (_corrupt) _routerFile.delete();
+            }
         }
     }
     
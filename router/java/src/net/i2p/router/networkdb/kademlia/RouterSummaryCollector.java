@@ -0,0 +1,20 @@
+package net.i2p.router.networkdb.kademlia;
+
+import net.i2p.data.Hash;
+
+/**
+ *  Visit the known routers by a few fields only, so that periodic scans
+ *  of the whole netDb don't have to parse compact RouterInfos.
+ *  See FloodfillNetworkDatabaseFacade.getKnownRouterSummaries().
+ *
+ *  @since 0.9.28
+ */
+public interface RouterSummaryCollector {
+
+    /**
+     *  @param peer the router hash
+     *  @param caps the published capabilities, non-null
+     *  @param version the router.version option, "0" if none
+     */
+    public void add(Hash peer, String caps, String version);
+}
@@ -8,40 +8,88 @@ package net.i2p.router.networkdb.kademlia;
  *
  */
 
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Map;
 import java.util.Set;
 
+import net.i2p.data.DataFormatException;
 import net.i2p.data.DatabaseEntry;
 import net.i2p.data.Hash;
 import net.i2p.data.LeaseSet;
 import net.i2p.data.router.RouterInfo;
 import net.i2p.router.RouterContext;
+import net.i2p.router.networkdb.RouterInfoMemoryUsage;
+import net.i2p.util.LHMCache;
 import net.i2p.util.Log;
 
 /**
  *  Stores in-memory only. See extension.
+ *
+ *  If router.netdb.compactRouterInfos=true, RouterInfos are stored
+ *  as CompactRouterInfos, and parsed again when requested.
+ *  Our own RouterInfo is never compacted.
+ *  The most recently requested are kept in an LRU cache.
+ *  Iterating through getEntries() or getMapEntries() returns the cached
+ *  RouterInfo if there is one, else parses it without caching it,
+ *  so callers that want only the leasesets, the router hashes,
+ *  or the caps and versions should use getLeaseSets(),
+ *  getRouterInfoKeys(), or getRouterSummaries() instead.
  */
 class TransientDataStore implements DataStore {
     protected final Log _log;
+    /** leasesets, and routerinfos if not compact */
     private final ConcurrentHashMap<Hash, DatabaseEntry> _data;
     protected final RouterContext _context;
+    /** routerinfos if compact, else null */
+    private final ConcurrentHashMap<Hash, CompactRouterInfo> _compact;
+    /** recently requested routerinfos if compact, else null, synch on it */
+    private final Map<CompactRouterInfo, RouterInfo> _inflated;
+    private final AtomicLong _cacheHits = new AtomicLong();
+    private final AtomicLong _cacheMisses = new AtomicLong();
+
+    /** @since 0.9.28 */
+    public static final String PROP_COMPACT = "router.netdb.compactRouterInfos";
+    /** @since 0.9.28 */
+    public static final String PROP_INFLATED_CACHE = "router.netdb.inflatedRouterInfos";
+    private static final int DEFAULT_INFLATED_CACHE = 256;
     
     public TransientDataStore(RouterContext ctx) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _data = new ConcurrentHashMap<Hash, DatabaseEntry>(1024);
+        if (ctx.getBooleanProperty(PROP_COMPACT)) {
+            _compact = new ConcurrentHashMap<Hash, CompactRouterInfo>(1024);
+            int max = Math.max(16, ctx.getProperty(PROP_INFLATED_CACHE, DEFAULT_INFLATED_CACHE));
+            _inflated = new LHMCache<CompactRouterInfo, RouterInfo>(max);
+        } else {
+            _compact = null;
+            _inflated = null;
+        }
         if (_log.shouldLog(Log.INFO))
-            _log.info("Data Store initialized");
+            _log.info("Data Store initialized" + (_compact != null ? " (compact routerinfos)" : ""));
     }
     
     public boolean isInitialized() { return true; }
 
     public void stop() {
         _data.clear();
+        if (_compact != null) {
+            _compact.clear();
+            synchronized(_inflated) {
+                _inflated.clear();
+            }
+        }
     }
     
     public void restart() {
@@ -55,6 +103,8 @@ class TransientDataStore implements DataStore {
      *  @since 0.8.8
      */
     public int size() {
+        if (_compact != null)
+            return _data.size() + _compact.size();
         return _data.size();
     }
 
@@ -62,25 +112,90 @@ class TransientDataStore implements DataStore {
      *  @return Unmodifiable view, not a copy
      */
     public Set<Hash> getKeys() {
+        if (_compact != null)
+            return new KeySet();
         return Collections.unmodifiableSet(_data.keySet());
     }
     
     /**
+     *  If compact, each RouterInfo is parsed as it is iterated.
+     *
      *  @return Unmodifiable view, not a copy
      *  @since 0.8.3
      */
     public Collection<DatabaseEntry> getEntries() {
+        if (_compact != null)
+            return new EntryCollection();
         return Collections.unmodifiableCollection(_data.values());
     }
 
     /**
+     *  If compact, each RouterInfo is parsed as it is iterated.
+     *
      *  @return Unmodifiable view, not a copy
      *  @since 0.8.3
      */
     public Set<Map.Entry<Hash, DatabaseEntry>> getMapEntries() {
+        if (_compact != null)
+            return new MapEntrySet();
         return Collections.unmodifiableSet(_data.entrySet());
     }
 
+    /**
+     *  @return Unmodifiable view or a copy
+     *  @since 0.9.28
+     */
+    public Set<Hash> getRouterInfoKeys() {
+        if (_compact != null) {
+            // ours is in _data, see put()
+            Hash us = _context.routerHash();
+            if (us == null || !_data.containsKey(us))
+                return Collections.unmodifiableSet(_compact.keySet());
+            Set<Hash> rv = new HashSet<Hash>(_compact.keySet());
+            rv.add(us);
+            return rv;
+        }
+        Set<Hash> rv = new HashSet<Hash>(_data.size());
+        for (Map.Entry<Hash, DatabaseEntry> e : _data.entrySet()) {
+            if (e.getValue().getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO)
+                rv.add(e.getKey());
+        }
+        return rv;
+    }
+
+    /**
+     *  @return a copy
+     *  @since 0.9.28
+     */
+    public Collection<LeaseSet> getLeaseSets() {
+        Collection<LeaseSet> rv = new ArrayList<LeaseSet>();
+        for (DatabaseEntry d : _data.values()) {
+            if (d.getType() == DatabaseEntry.KEY_TYPE_LEASESET)
+                rv.add((LeaseSet) d);
+        }
+        return rv;
+    }
+
+    /**
+     *  Visit every RouterInfo, without parsing compact ones
+     *
+     *  @since 0.9.28
+     */
+    public void getRouterSummaries(RouterSummaryCollector collector) {
+        for (Map.Entry<Hash, DatabaseEntry> e : _data.entrySet()) {
+            DatabaseEntry d = e.getValue();
+            if (d.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
+                RouterInfo ri = (RouterInfo) d;
+                collector.add(e.getKey(), ri.getCapabilities(), ri.getVersion());
+            }
+        }
+        if (_compact != null) {
+            for (CompactRouterInfo cri : _compact.values()) {
+                collector.add(cri.getHash(), cri.getCapabilities(), cri.getVersion());
+            }
+        }
+    }
+
     /** for PersistentDataStore only - don't use here
       * @throws UnsupportedOperationException always
       */
@@ -89,11 +204,52 @@ class TransientDataStore implements DataStore {
     }
 
     public DatabaseEntry get(Hash key) {
-        return _data.get(key);
+        DatabaseEntry rv = _data.get(key);
+        if (rv != null || _compact == null)
+            return rv;
+        CompactRouterInfo cri = _compact.get(key);
+        if (cri == null)
+            return null;
+        return inflate(cri, true);
     }
     
     public boolean isKnown(Hash key) {
-        return _data.containsKey(key);
+        return _data.containsKey(key) ||
+               (_compact != null && _compact.containsKey(key));
+    }
+
+    /**
+     *  The LRU cache is always checked, so iterators return the cached
+     *  RouterInfo if there is one, instead of another copy.
+     *
+     *  @param cache add to the LRU cache, and count the hit or miss
+     *  @return null on error
+     *  @since 0.9.28
+     */
+    private RouterInfo inflate(CompactRouterInfo cri, boolean cache) {
+        synchronized(_inflated) {
+            RouterInfo rv = _inflated.get(cri);
+            if (rv != null) {
+                if (cache)
+                    _cacheHits.incrementAndGet();
+                return rv;
+            }
+        }
+        if (cache)
+            _cacheMisses.incrementAndGet();
+        RouterInfo rv;
+        try {
+            rv = cri.inflate();
+        } catch (DataFormatException dfe) {
+            _log.error("Bad compact RouterInfo " + cri.getHash(), dfe);
+            return null;
+        }
+        if (cache) {
+            synchronized(_inflated) {
+                _inflated.put(cri, rv);
+            }
+        }
+        return rv;
     }
 
     public int countLeaseSets() {
@@ -120,6 +276,10 @@ class TransientDataStore implements DataStore {
         if (data == null) return false;
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Storing key " + key);
+        // Don't compact ours, it caches its serialized form, and it's always wanted
+        if (_compact != null && data.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO &&
+            !key.equals(_context.routerHash()))
+            return putCompact(key, (RouterInfo) data);
         DatabaseEntry old = _data.putIfAbsent(key, data);
         boolean rv = false;
         if (data.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
@@ -129,17 +289,7 @@ class TransientDataStore implements DataStore {
             RouterInfo ri = (RouterInfo)data;
             if (old != null) {
                 RouterInfo ori = (RouterInfo)old;
-                if (ri.getPublished() < ori.getPublished()) {
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("Almost clobbered an old router! " + key + ": [old published on " + new Date(ori.getPublished()) +
-                                  " new on " + new Date(ri.getPublished()) + ']');
-                } else if (ri.getPublished() == ori.getPublished()) {
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("Duplicate " + key);
-                } else {
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("Updated the old router for " + key + ": [old published on " + new Date(ori.getPublished()) +
-                                  " new on " + new Date(ri.getPublished()) + ']');
+                if (isNewer(key, ori.getPublished(), ri.getPublished())) {
                     _data.put(key, data);
                     rv = true;
                 }
@@ -180,12 +330,101 @@ class TransientDataStore implements DataStore {
         }
         return rv;
     }
+
+    /**
+     *  @return true if the new RouterInfo should replace the old
+     *  @since 0.9.28 split out of put()
+     */
+    private boolean isNewer(Hash key, long oldPublished, long newPublished) {
+        if (newPublished < oldPublished) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Almost clobbered an old router! " + key + ": [old published on " + new Date(oldPublished) +
+                          " new on " + new Date(newPublished) + ']');
+        } else if (newPublished == oldPublished) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Duplicate " + key);
+        } else {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Updated the old router for " + key + ": [old published on " + new Date(oldPublished) +
+                          " new on " + new Date(newPublished) + ']');
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     *  The RouterInfo is put in the LRU cache, as it's likely to be wanted soon.
+     *
+     *  @param ri must be validated before here
+     *  @return success
+     *  @since 0.9.28
+     */
+    private boolean putCompact(Hash key, RouterInfo ri) {
+        CompactRouterInfo cri;
+        try {
+            cri = new CompactRouterInfo(key, ri);
+        } catch (DataFormatException dfe) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Unable to store " + key, dfe);
+            return false;
+        }
+        CompactRouterInfo old = _compact.putIfAbsent(key, cri);
+        if (old != null) {
+            if (!isNewer(key, old.getPublished(), cri.getPublished()))
+                return false;
+            _compact.put(key, cri);
+        } else {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("New router for " + key + ": published on " + new Date(cri.getPublished()));
+        }
+        synchronized(_inflated) {
+            if (old != null)
+                _inflated.remove(old);
+            _inflated.put(cri, ri);
+        }
+        return true;
+    }
+
+    /**
+     *  For the console.
+     *  The estimates for full RouterInfos are rough.
+     *
+     *  @return approximate heap usage of the RouterInfos and the cache statistics
+     *  @since 0.9.28
+     */
+    public RouterInfoMemoryUsage getRouterInfoMemoryUsage() {
+        long count = 0;
+        long compact = 0;
+        long bytes = 0;
+        long inflated = 0;
+        if (_compact != null) {
+            for (CompactRouterInfo cri : _compact.values()) {
+                compact++;
+                bytes += cri.getHeapSize();
+            }
+            count = compact;
+            synchronized(_inflated) {
+                for (RouterInfo ri : _inflated.values()) {
+                    inflated++;
+                    bytes += CompactRouterInfo.estimateHeapSize(ri);
+                }
+            }
+        }
+        // all if not compact, else only ours
+        for (DatabaseEntry d : _data.values()) {
+            if (d.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
+                count++;
+                bytes += CompactRouterInfo.estimateHeapSize((RouterInfo) d);
+            }
+        }
+        return new RouterInfoMemoryUsage(count, compact, inflated, bytes, _cacheHits.get(), _cacheMisses.get());
+    }
     
     @Override
     public String toString() {
         StringBuilder buf = new StringBuilder();
-        buf.append("Transient DataStore: ").append(_data.size()).append("\nKeys: ");
-        for (Map.Entry<Hash, DatabaseEntry> e : _data.entrySet()) {
+        buf.append("Transient DataStore: ").append(size()).append("\nKeys: ");
+        for (Map.Entry<Hash, DatabaseEntry> e : getMapEntries()) {
             Hash key = e.getKey();
             DatabaseEntry dp = e.getValue();
             buf.append("\n\t*Key:   ").append(key.toString()).append("\n\tContent: ").append(dp.toString());
@@ -204,6 +443,124 @@ class TransientDataStore implements DataStore {
     public DatabaseEntry remove(Hash key) {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Removing key " + key);
-        return _data.remove(key);
+        DatabaseEntry rv = _data.remove(key);
+        if (rv != null || _compact == null)
+            return rv;
+        CompactRouterInfo cri = _compact.remove(key);
+        if (cri == null)
+            return null;
+        synchronized(_inflated) {
+            rv = _inflated.remove(cri);
+        }
+        if (rv == null)
+            rv = inflate(cri, false);
+        return rv;
+    }
+
+    ////// Views for compact mode //////
+
+    /**
+     *  Iterates through _data, then the inflated _compact,
+     *  using the cached RouterInfos where there are any.
+     *  Skips any that fail to inflate, so the size may be
+     *  more than the number iterated.
+     *
+     *  @since 0.9.28
+     */
+    private abstract class CompactIterator<E> implements Iterator<E> {
+        private final Iterator<Map.Entry<Hash, DatabaseEntry>> _iter1 = _data.entrySet().iterator();
+        private final Iterator<CompactRouterInfo> _iter2 = _compact.values().iterator();
+        private E _next;
+
+        protected abstract E make(Hash key, DatabaseEntry entry);
+
+        public boolean hasNext() {
+            if (_next != null)
+                return true;
+            if (_iter1.hasNext()) {
+                Map.Entry<Hash, DatabaseEntry> e = _iter1.next();
+                _next = make(e.getKey(), e.getValue());
+                return true;
+            }
+            while (_iter2.hasNext()) {
+                CompactRouterInfo cri = _iter2.next();
+                RouterInfo ri = inflate(cri, false);
+                if (ri != null) {
+                    _next = make(cri.getHash(), ri);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public E next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            E rv = _next;
+            _next = null;
+            return rv;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** @since 0.9.28 */
+    private class EntryCollection extends AbstractCollection<DatabaseEntry> {
+        public int size() { return TransientDataStore.this.size(); }
+
+        public Iterator<DatabaseEntry> iterator() {
+            return new CompactIterator<DatabaseEntry>() {
+                protected DatabaseEntry make(Hash key, DatabaseEntry entry) {
+                    return entry;
+                }
+            };
+        }
+    }
+
+    /** @since 0.9.28 */
+    private class MapEntrySet extends AbstractSet<Map.Entry<Hash, DatabaseEntry>> {
+        public int size() { return TransientDataStore.this.size(); }
+
+        public Iterator<Map.Entry<Hash, DatabaseEntry>> iterator() {
+            return new CompactIterator<Map.Entry<Hash, DatabaseEntry>>() {
+                protected Map.Entry<Hash, DatabaseEntry> make(Hash key, DatabaseEntry entry) {
+                    return new AbstractMap.SimpleImmutableEntry<Hash, DatabaseEntry>(key, entry);
+                }
+            };
+        }
+    }
+
+    /**
+     *  No parsing required
+     *  @since 0.9.28
+     */
+    private class KeySet extends AbstractSet<Hash> {
+        public int size() { return TransientDataStore.this.size(); }
+
+        @Override
+        public boolean contains(Object o) {
+            return _data.containsKey(o) || _compact.containsKey(o);
+        }
+
+        public Iterator<Hash> iterator() {
+            return new Iterator<Hash>() {
+                private final Iterator<Hash> _iter1 = _data.keySet().iterator();
+                private final Iterator<Hash> _iter2 = _compact.keySet().iterator();
+
+                public boolean hasNext() {
+                    return _iter1.hasNext() || _iter2.hasNext();
+                }
+
+                public Hash next() {
+                    return _iter1.hasNext() ? _iter1.next() : _iter2.next();
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
     }
 }
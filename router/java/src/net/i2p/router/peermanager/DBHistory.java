@@ -2,6 +2,7 @@ package net.i2p.router.peermanager;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Locale;
 import java.util.Properties;
 
@@ -302,6 +303,51 @@ public class DBHistory {
         }
     }
     
+    /**
+     *  Size of the data written by store(ByteBuffer)
+     *  @since 0.9.28
+     */
+    public int getBinarySize() {
+        return 6*8 + _failedLookupRate.getBinarySize() + _invalidReplyRate.getBinarySize();
+    }
+
+    /**
+     *  Fixed-width binary form of store(OutputStream), for the ProfileStore
+     *  @since 0.9.28
+     */
+    public void store(ByteBuffer buf) {
+        buf.putLong(_unpromptedDbStoreNew);
+        buf.putLong(_unpromptedDbStoreOld);
+        buf.putLong(_lastLookupSuccessful);
+        buf.putLong(_lastLookupFailed);
+        buf.putLong(_lastStoreSuccessful);
+        buf.putLong(_lastStoreFailed);
+        _failedLookupRate.store(buf);
+        _invalidReplyRate.store(buf);
+    }
+
+    /**
+     *  Load what store(ByteBuffer) wrote
+     *  @since 0.9.28
+     */
+    public void load(ByteBuffer buf) {
+        _unpromptedDbStoreNew = buf.getLong();
+        _unpromptedDbStoreOld = buf.getLong();
+        _lastLookupSuccessful = buf.getLong();
+        _lastLookupFailed = buf.getLong();
+        _lastStoreSuccessful = buf.getLong();
+        _lastStoreFailed = buf.getLong();
+        try {
+            _failedLookupRate.load(buf, true);
+            _invalidReplyRate.load(buf, true);
+        } catch (IllegalArgumentException iae) {
+            _log.warn("DB History rates are corrupt, resetting", iae);
+            _failedLookupRate = null;
+            _invalidReplyRate = null;
+            createRates(_statGroup);
+        }
+    }
+    
     private synchronized void createRates(String statGroup) {
         if (_failedLookupRate == null)
             _failedLookupRate = new RateStat("dbHistory.failedLookupRate", "How often does this peer to respond to a lookup?", statGroup, new long[] { 10*60*1000l, 60*60*1000l, 24*60*60*1000l });
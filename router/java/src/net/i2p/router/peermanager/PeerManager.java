@@ -18,6 +18,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.data.Hash;
 import net.i2p.data.router.RouterInfo;
@@ -45,6 +46,8 @@ class PeerManager {
     /** value strings are lower case */
     private final Map<Hash, String> _capabilitiesByPeer;
     private final AtomicBoolean _storeLock = new AtomicBoolean();
+    /** @since 0.9.28 */
+    private final AtomicInteger _floodfillAdds = new AtomicInteger();
     private volatile long _lastStore;
 
     private static final long REORGANIZE_TIME = 45*1000;
@@ -141,8 +144,11 @@ class PeerManager {
             }
             long uptime = _context.router().getUptime();
             long delay;
-            if (orgtime > 1000 || uptime > 2*60*60*1000)
+            if (orgtime > 1000)
                 delay = REORGANIZE_TIME_LONG;
+            else if (uptime > 2*60*60*1000)
+                // incremental passes are cheap, keep the tiers more current
+                delay = _organizer.isIncremental() ? REORGANIZE_TIME_MEDIUM : REORGANIZE_TIME_LONG;
             else if (uptime > 10*60*1000)
                 delay = REORGANIZE_TIME_MEDIUM;
             else
@@ -214,11 +220,9 @@ class PeerManager {
      */
     void loadProfiles() {
         Set<PeerProfile> profiles = _persistenceHelper.readProfiles();
-        for (PeerProfile prof : profiles) {
-                _organizer.addProfile(prof);
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("Profile for " + prof.getPeer().toBase64() + " loaded");
-        }
+        _organizer.addProfiles(profiles);
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug(profiles.size() + " profiles loaded");
     }
     
     /**
@@ -303,10 +307,19 @@ class PeerManager {
                     if ( (oldCaps != null) && (oldCaps.indexOf(c) >= 0) )
                         continue;
                     Set<Hash> peers = locked_getPeers(c);
-                    if (peers != null)
-                        peers.add(peer);
+                    if (peers != null && peers.add(peer) &&
+                        c == FloodfillNetworkDatabaseFacade.CAPABILITY_FLOODFILL)
+                        _floodfillAdds.incrementAndGet();
                 }
     }
+
+    /**
+     *  @return how many times a peer has gained the floodfill capability
+     *  @since 0.9.28
+     */
+    public int getFloodfillAddCount() {
+        return _floodfillAdds.get();
+    }
     
     /** locking no longer req'd */
     private Set<Hash> locked_getPeers(char c) {
@@ -94,6 +94,14 @@ public class PeerManagerFacadeImpl implements PeerManagerFacade {
         return _manager.getPeersByCapability(capability); 
     }
 
+    /**
+     *  @since 0.9.28
+     */
+    public int getFloodfillAddCount() {
+        if (_manager == null) return 0;
+        return _manager.getFloodfillAddCount();
+    }
+
     /** @deprecated moved to routerconsole */
     @Deprecated
     public void renderStatusHTML(Writer out) throws IOException { 
@@ -65,6 +65,9 @@ public class PeerProfile {
     private float _capacityValueNew;
     // are we in coalescing state?
     private boolean _coalescing;
+    // for incremental reorganization, since 0.9.28
+    private volatile boolean _changed = true;
+    private long _lastValuesUpdate;
     // good vs bad behavior
     private TunnelHistory _tunnelHistory;
     private DBHistory _dbHistory;
@@ -594,6 +597,32 @@ public class PeerProfile {
     	
     	_speedValue = _speedValueNew;
     	_capacityValue = _capacityValueNew;
+    	_lastValuesUpdate = System.currentTimeMillis();
+    }
+
+    /**
+     *  When updateValues() was last called
+     *  @return 0 if never
+     *  @since 0.9.28
+     */
+    long getLastValuesUpdate() { return _lastValuesUpdate; }
+
+    /**
+     *  Mark the stats as changed, so the values are recalculated
+     *  in the next incremental reorganization.
+     *  @since 0.9.28
+     */
+    void setChanged() { _changed = true; }
+
+    /**
+     *  @return true if the stats changed since the last call
+     *  @since 0.9.28
+     */
+    boolean clearChanged() {
+        if (!_changed)
+            return false;
+        _changed = false;
+        return true;
     }
     
     private float calculateSpeed() { return (float) SpeedCalculator.calc(this); }
@@ -5,7 +5,9 @@ import java.io.OutputStream;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -15,6 +17,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.i2p.data.DataHelper;
@@ -90,6 +93,13 @@ public class ProfileOrganizer {
     
     /** synchronized against this lock when updating the tier that peers are located in (and when fetching them from a peer) */
     private final ReentrantReadWriteLock _reorganizeLock = new ReentrantReadWriteLock(false);
+
+    /**
+     *  Immutable copy of the tiers, replaced under the write lock whenever
+     *  the tiers change, so that selection doesn't need the lock.
+     *  @since 0.9.28
+     */
+    private volatile Tiers _tiers = Tiers.EMPTY;
     
     public ProfileOrganizer(RouterContext context) {
         _context = context;
@@ -109,12 +119,28 @@ public class ProfileOrganizer {
         _context.statManager().createRateStat("peer.profileThresholdTime", "How long the reorg takes determining the tier thresholds", "Peers", new long[] { 60*60*1000 });
         _context.statManager().createRateStat("peer.profilePlaceTime", "How long the reorg takes placing peers in the tiers", "Peers", new long[] { 60*60*1000 });
         _context.statManager().createRateStat("peer.profileReorgTime", "How long the reorg takes overall", "Peers", new long[] { 60*60*1000 });
+        _context.statManager().createRateStat("peer.profileIncrementalReorgTime", "How long the incremental reorg takes overall", "Peers", new long[] { 60*60*1000 });
+        _context.statManager().createRateStat("peer.profileReorgUpdated", "How many profiles the incremental reorg recalculates", "Peers", new long[] { 60*60*1000 });
+        _context.statManager().createRateStat("peer.profileLockWait", "How long we blocked waiting for the profile read lock", "Peers", new long[] { 60*1000, 60*60*1000 });
+        _context.statManager().createRateStat("peer.profileWriteLockWait", "How long we waited for the profile write lock", "Peers", new long[] { 60*1000, 60*60*1000 });
         // used in DBHistory
         _context.statManager().createRequiredRateStat("peer.failedLookupRate", "Net DB Lookup fail rate", "Peers", new long[] { 10*60*1000l, 60*60*1000l, 24*60*60*1000l });
     }
     
+    /**
+     *  Blocking.
+     *  As of 0.9.28, the time spent blocked behind a writer is recorded
+     *  in the peer.profileLockWait stat.
+     */
     private void getReadLock() {
-        _reorganizeLock.readLock().lock();
+        Lock lock = _reorganizeLock.readLock();
+        if (!(_reorganizeLock.isWriteLocked() || _reorganizeLock.hasQueuedThreads())) {
+            lock.lock();
+            return;
+        }
+        long start = System.currentTimeMillis();
+        lock.lock();
+        _context.statManager().addRateData("peer.profileLockWait", System.currentTimeMillis() - start);
     }
 
     /**
@@ -133,7 +159,11 @@ public class ProfileOrganizer {
     /** @return true if the lock was acquired */
     private boolean getWriteLock() {
         try {
+            if (_reorganizeLock.writeLock().tryLock())
+                return true;
+            long start = System.currentTimeMillis();
             boolean rv = _reorganizeLock.writeLock().tryLock(3000, TimeUnit.MILLISECONDS);
+            _context.statManager().addRateData("peer.profileWriteLockWait", System.currentTimeMillis() - start);
             if ((!rv) && _log.shouldLog(Log.WARN))
                 _log.warn("no lock, size is: " + _reorganizeLock.getQueueLength(), new Exception("rats"));
             return rv;
@@ -192,59 +222,107 @@ public class ProfileOrganizer {
      *
      */
     public PeerProfile addProfile(PeerProfile profile) {
-        if (profile == null) return null;
-
-        Hash peer = profile.getPeer();
-        if (peer.equals(_us)) {
-            if (_log.shouldWarn())
-                _log.warn("Who added our own profile?", new Exception("I did"));
+        if (!checkAdd(profile))
             return null;
-        }
-
-        if (_log.shouldLog(Log.DEBUG))
-            _log.debug("New profile created for " + peer);
-
+        Hash peer = profile.getPeer();
         PeerProfile old = getProfile(peer);
         profile.coalesceStats();
         if (!getWriteLock())
             return old;
         try {
-            // Don't do this, as it may substantially exceed
-            // the high cap and fast limits in-between reorganizations.
-            // just add to the not-failing tier, and maybe the high cap tier,
-            // it will get promoted in the next reorganization
-            // if appropriate. This lessens high-cap churn.
-            // The downside is that new peers don't become high cap until the next reorg
-            // if we are at our limit.
-            //locked_placeProfile(profile);
-            _notFailingPeers.put(peer, profile);
-            if (old == null)
-                _notFailingPeersList.add(peer);
-            // Add to high cap only if we have room. Don't add to Fast; wait for reorg.
-            if (_thresholdCapacityValue <= profile.getCapacityValue() &&
-                isSelectable(peer) &&
-                _highCapacityPeers.size() < getMaximumHighCapPeers()) {
-                _highCapacityPeers.put(peer, profile);
-            }
-            _strictCapacityOrder.add(profile);
+            locked_addProfile(profile, old);
+            locked_publishTiers();
         } finally { releaseWriteLock(); }
         return old;
     }
-    
-    private int count(Map<Hash, PeerProfile> m) {
-        getReadLock();
+
+    /**
+     * Add the new profiles, as when loading them at startup.
+     * Takes the write lock and publishes the tiers once for all of them,
+     * instead of once per profile as in addProfile().
+     *
+     * @since 0.9.28
+     */
+    public void addProfiles(Collection<PeerProfile> profiles) {
+        if (profiles.isEmpty())
+            return;
+        List<PeerProfile> toAdd = new ArrayList<PeerProfile>(profiles.size());
+        for (PeerProfile profile : profiles) {
+            if (!checkAdd(profile))
+                continue;
+            profile.coalesceStats();
+            toAdd.add(profile);
+        }
+        if (toAdd.isEmpty())
+            return;
+        if (!getWriteLock())
+            return;
         try {
-            return m.size();
-        } finally { releaseReadLock(); }
+            for (PeerProfile profile : toAdd) {
+                locked_addProfile(profile, locked_getProfile(profile.getPeer()));
+            }
+            locked_publishTiers();
+        } finally { releaseWriteLock(); }
+    }
+
+    /**
+     * @return false if null or our own profile
+     * @since 0.9.28
+     */
+    private boolean checkAdd(PeerProfile profile) {
+        if (profile == null) return false;
+
+        Hash peer = profile.getPeer();
+        if (peer.equals(_us)) {
+            if (_log.shouldWarn())
+                _log.warn("Who added our own profile?", new Exception("I did"));
+            return false;
+        }
+
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("New profile created for " + peer);
+        return true;
     }
 
-    public int countFastPeers() { return count(_fastPeers); }
-    public int countHighCapacityPeers() { return count(_highCapacityPeers); }
+    /**
+     * Caller must hold the write lock and publish the tiers.
+     *
+     * @param old the current profile for the peer or null
+     * @since 0.9.28
+     */
+    private void locked_addProfile(PeerProfile profile, PeerProfile old) {
+        Hash peer = profile.getPeer();
+        // Don't do this, as it may substantially exceed
+        // the high cap and fast limits in-between reorganizations.
+        // just add to the not-failing tier, and maybe the high cap tier,
+        // it will get promoted in the next reorganization
+        // if appropriate. This lessens high-cap churn.
+        // The downside is that new peers don't become high cap until the next reorg
+        // if we are at our limit.
+        //locked_placeProfile(profile);
+        _notFailingPeers.put(peer, profile);
+        if (old == null)
+            _notFailingPeersList.add(peer);
+        // Add to high cap only if we have room. Don't add to Fast; wait for reorg.
+        if (_thresholdCapacityValue <= profile.getCapacityValue() &&
+            isSelectable(peer) &&
+            _highCapacityPeers.size() < getMaximumHighCapPeers()) {
+            _highCapacityPeers.put(peer, profile);
+        }
+        _strictCapacityOrder.add(profile);
+    }
+    
+    /** As of 0.9.28, non-blocking */
+    public int countFastPeers() { return _tiers.fast.length; }
+    /** As of 0.9.28, non-blocking */
+    public int countHighCapacityPeers() { return _tiers.highCap.length; }
     /** @deprecated use ProfileManager.getPeersByCapability('f').size() */
     @Deprecated
-    public int countWellIntegratedPeers() { return count(_wellIntegratedPeers); }
-    public int countNotFailingPeers() { return count(_notFailingPeers); }
-    public int countFailingPeers() { return count(_failingPeers); }
+    public int countWellIntegratedPeers() { return _tiers.wellIntegrated.length; }
+    /** As of 0.9.28, non-blocking */
+    public int countNotFailingPeers() { return _tiers.notFailing.length; }
+    /** As of 0.9.28, non-blocking */
+    public int countFailingPeers() { return _tiers.failing.length; }
     
     public int countActivePeers() {
         int activePeers = 0;
@@ -268,16 +346,12 @@ public class ProfileOrganizer {
         return activePeers;
     }
     
-    private boolean isX(Map<Hash, PeerProfile> m, Hash peer) {
-        getReadLock();
-        try {
-            return m.containsKey(peer);
-        } finally { releaseReadLock(); }
-    }
-
-    public boolean isFast(Hash peer) { return isX(_fastPeers, peer); }
-    public boolean isHighCapacity(Hash peer) { return isX(_highCapacityPeers, peer); }
-    public boolean isWellIntegrated(Hash peer) { return isX(_wellIntegratedPeers, peer); }
+    /** As of 0.9.28, non-blocking */
+    public boolean isFast(Hash peer) { return _tiers.fastSet.contains(peer); }
+    /** As of 0.9.28, non-blocking */
+    public boolean isHighCapacity(Hash peer) { return _tiers.highCapSet.contains(peer); }
+    /** As of 0.9.28, non-blocking */
+    public boolean isWellIntegrated(Hash peer) { return _tiers.wellIntegratedSet.contains(peer); }
 
     /**
      *  Deprecated for now, always false
@@ -300,6 +374,7 @@ public class ProfileOrganizer {
             _notFailingPeersList.clear();
             _wellIntegratedPeers.clear();
             _strictCapacityOrder.clear();
+            _tiers = Tiers.EMPTY;
         } finally { releaseWriteLock(); }
     }
 
@@ -369,10 +444,7 @@ public class ProfileOrganizer {
      *
      */
     public void selectFastPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
-        getReadLock();
-        try {
-            locked_selectPeers(_fastPeers, howMany, exclude, matches, mask);
-        } finally { releaseReadLock(); }
+        selectPeers(_tiers.fast, howMany, exclude, matches, mask);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectFastPeers("+howMany+"), not enough fast (" + matches.size() + ") going on to highCap");
@@ -429,18 +501,16 @@ public class ProfileOrganizer {
      *</pre>
      */
     public void selectFastPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, Hash randomKey, Slice subTierMode) {
-        getReadLock();
-        try {
-            if (subTierMode != Slice.SLICE_ALL) {
-                int sz = _fastPeers.size();
-                if (sz < 6 || (subTierMode.mask >= 3 && sz < 12))
-                    subTierMode = Slice.SLICE_ALL;
-            }
-            if (subTierMode != Slice.SLICE_ALL)
-                locked_selectPeers(_fastPeers, howMany, exclude, matches, randomKey, subTierMode);
-            else
-                locked_selectPeers(_fastPeers, howMany, exclude, matches, 2);
-        } finally { releaseReadLock(); }
+        Hash[] fast = _tiers.fast;
+        if (subTierMode != Slice.SLICE_ALL) {
+            int sz = fast.length;
+            if (sz < 6 || (subTierMode.mask >= 3 && sz < 12))
+                subTierMode = Slice.SLICE_ALL;
+        }
+        if (subTierMode != Slice.SLICE_ALL)
+            selectPeers(fast, howMany, exclude, matches, randomKey, subTierMode);
+        else
+            selectPeers(fast, howMany, exclude, matches, 2);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectFastPeers("+howMany+"), not enough fast (" + matches.size() + ") going on to highCap");
@@ -465,19 +535,16 @@ public class ProfileOrganizer {
      *             not be in the same tunnel. 0 = disable check; 1 = /8; 2 = /16; 3 = /24; 4 = exact IP match
      */
     public void selectHighCapacityPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
-        getReadLock();
-        try {
-            // we only use selectHighCapacityPeers when we are selecting for PURPOSE_TEST
-            // or we are falling back due to _fastPeers being too small, so we can always 
-            // exclude the fast peers
-            /*
-            if (exclude == null)
-                exclude = new HashSet(_fastPeers.keySet());
-            else
-                exclude.addAll(_fastPeers.keySet());
-             */
-            locked_selectPeers(_highCapacityPeers, howMany, exclude, matches, mask);
-        } finally { releaseReadLock(); }
+        // we only use selectHighCapacityPeers when we are selecting for PURPOSE_TEST
+        // or we are falling back due to _fastPeers being too small, so we can always 
+        // exclude the fast peers
+        /*
+        if (exclude == null)
+            exclude = new HashSet(_fastPeers.keySet());
+        else
+            exclude.addAll(_fastPeers.keySet());
+         */
+        selectPeers(_tiers.highCap, howMany, exclude, matches, mask);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectHighCap("+howMany+"), not enough highcap (" + matches.size() + ") going on to ANFP2");
@@ -508,10 +575,7 @@ public class ProfileOrganizer {
      */
     @Deprecated
     public void selectWellIntegratedPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
-        getReadLock();
-        try {
-            locked_selectPeers(_wellIntegratedPeers, howMany, exclude, matches, mask);
-        } finally { releaseReadLock(); }
+        selectPeers(_tiers.wellIntegrated, howMany, exclude, matches, mask);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectWellIntegrated("+howMany+"), not enough integrated (" + matches.size() + ") going on to notFailing");
@@ -576,14 +640,12 @@ public class ProfileOrganizer {
      */
     public void selectActiveNotFailingPeers(int howMany, Set<Hash> exclude, Set<Hash> matches) {
         if (matches.size() < howMany) {
-            getReadLock();
-            try {
-                for (Hash peer : _notFailingPeers.keySet()) {
-                    if (!_context.commSystem().isEstablished(peer))
-                        exclude.add(peer);
-                }
-                locked_selectPeers(_notFailingPeers, howMany, exclude, matches, 0);
-            } finally { releaseReadLock(); }
+            Hash[] notFailing = _tiers.notFailing;
+            for (Hash peer : notFailing) {
+                if (!_context.commSystem().isEstablished(peer))
+                    exclude.add(peer);
+            }
+            selectPeers(notFailing, howMany, exclude, matches, 0);
         }
     }
 
@@ -602,15 +664,12 @@ public class ProfileOrganizer {
      */
     private void selectActiveNotFailingPeers2(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
         if (matches.size() < howMany) {
-            Map<Hash, PeerProfile> activePeers = new HashMap<Hash, PeerProfile>();
-            getReadLock();
-            try {
-                for (Map.Entry<Hash, PeerProfile> e : _notFailingPeers.entrySet()) {
-                    if (_context.commSystem().isEstablished(e.getKey()))
-                        activePeers.put(e.getKey(), e.getValue());
-                }
-                locked_selectPeers(activePeers, howMany, exclude, matches, mask);
-            } finally { releaseReadLock(); }
+            List<Hash> activePeers = new ArrayList<Hash>();
+            for (Hash peer : _tiers.notFailing) {
+                if (_context.commSystem().isEstablished(peer))
+                    activePeers.add(peer);
+            }
+            selectPeers(activePeers, howMany, exclude, matches, mask);
         }
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
@@ -639,30 +698,28 @@ public class ProfileOrganizer {
             int orig = matches.size();
             int needed = howMany - orig;
             List<Hash> selected = new ArrayList<Hash>(needed);
-            getReadLock();
-            try {
-                // use RandomIterator to avoid shuffling the whole thing
-                for (Iterator<Hash> iter = new RandomIterator<Hash>(_notFailingPeersList); (selected.size() < needed) && iter.hasNext(); ) {
-                    Hash cur = iter.next();
-                    if (matches.contains(cur) ||
-                        (exclude != null && exclude.contains(cur))) {
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("matched? " + matches.contains(cur) + " exclude: " + exclude + " cur=" + cur.toBase64());
-                        continue;
-                    } else if (onlyNotFailing && _highCapacityPeers.containsKey(cur)) {
-                        // we dont want the good peers, just random ones
-                        continue;
-                    } else {
-                        if (isSelectable(cur))
-                            selected.add(cur);
-                        else if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("Not selectable: " + cur.toBase64());
-                    }
+            Tiers tiers = _tiers;
+            // use RandomIterator to avoid shuffling the whole thing
+            for (Iterator<Hash> iter = new RandomIterator<Hash>(Arrays.asList(tiers.notFailing)); (selected.size() < needed) && iter.hasNext(); ) {
+                Hash cur = iter.next();
+                if (matches.contains(cur) ||
+                    (exclude != null && exclude.contains(cur))) {
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("matched? " + matches.contains(cur) + " exclude: " + exclude + " cur=" + cur.toBase64());
+                    continue;
+                } else if (onlyNotFailing && tiers.highCapSet.contains(cur)) {
+                    // we dont want the good peers, just random ones
+                    continue;
+                } else {
+                    if (isSelectable(cur))
+                        selected.add(cur);
+                    else if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Not selectable: " + cur.toBase64());
                 }
-            } finally { releaseReadLock(); }
+            }
             if (_log.shouldLog(Log.INFO))
                 _log.info("Selecting all not failing (strict? " + onlyNotFailing
-                          + ") found " + selected.size() + " new peers: " + selected + " all=" + _notFailingPeersList.size() + " strict=" + _strictCapacityOrder.size());
+                          + ") found " + selected.size() + " new peers: " + selected + " all=" + tiers.notFailing.length + " strict=" + _strictCapacityOrder.size());
             matches.addAll(selected);
         }
         if (matches.size() < howMany) {
@@ -681,11 +738,7 @@ public class ProfileOrganizer {
      *
      */
     public void selectFailingPeers(int howMany, Set<Hash> exclude, Set<Hash> matches) {
-        getReadLock();
-        try {
-            locked_selectPeers(_failingPeers, howMany, exclude, matches);
-        } finally { releaseReadLock(); }
-        return;        
+        selectPeers(_tiers.failing, howMany, exclude, matches);
     }                  
 
     /**                
@@ -695,13 +748,8 @@ public class ProfileOrganizer {
      *                 
      */                
     public List<Hash> selectPeersLocallyUnreachable() { 
-        List<Hash> n;
-        int count;
-        getReadLock();
-        try {
-            count = _notFailingPeers.size();
-            n = new ArrayList<Hash>(_notFailingPeers.keySet());
-        } finally { releaseReadLock(); }
+        Hash[] n = _tiers.notFailing;
+        int count = n.length;
         List<Hash> l = new ArrayList<Hash>(count / 4);
         for (Hash peer : n) {
             if (_context.commSystem().wasUnreachable(peer))
@@ -766,15 +814,13 @@ public class ProfileOrganizer {
      *
      */
     public Set<Hash> selectAllPeers() {
-        getReadLock();
-        try {
-            Set<Hash> allPeers = new HashSet<Hash>(_failingPeers.size() + _notFailingPeers.size() + _highCapacityPeers.size() + _fastPeers.size());
-            allPeers.addAll(_failingPeers.keySet());
-            allPeers.addAll(_notFailingPeers.keySet());
-            allPeers.addAll(_highCapacityPeers.keySet());
-            allPeers.addAll(_fastPeers.keySet());
-            return allPeers;
-        } finally { releaseReadLock(); }
+        Tiers tiers = _tiers;
+        Set<Hash> allPeers = new HashSet<Hash>(tiers.failing.length + tiers.notFailing.length + tiers.highCap.length + tiers.fast.length);
+        allPeers.addAll(Arrays.asList(tiers.failing));
+        allPeers.addAll(Arrays.asList(tiers.notFailing));
+        allPeers.addAll(Arrays.asList(tiers.highCap));
+        allPeers.addAll(Arrays.asList(tiers.fast));
+        return allPeers;
     }
     
     private static final long MIN_EXPIRE_TIME = 2*60*60*1000;
@@ -783,6 +829,23 @@ public class ProfileOrganizer {
     private static final int ENOUGH_PROFILES = 600;
     private long _currentExpireTime = MAX_EXPIRE_TIME;
 
+    /**
+     *  If true, reorganize() only recalculates the profiles whose stats changed,
+     *  or that haven't been recalculated in a while, with a full reorganization
+     *  once an hour.
+     *  @since 0.9.28
+     */
+    public static final String PROP_INCREMENTAL = "router.profileOrganizer.incremental";
+    private static final long FULL_REORG_INTERVAL = 60*60*1000;
+    /**
+     *  Recalculate unchanged profiles after this long, plus up to this long again,
+     *  spread by peer so they aren't all done in the same pass.
+     *  Twice this plus the PeerManager medium reorg time is about
+     *  the shortest profile Rate period (10 minutes), as the Rates must be coalesced.
+     */
+    private static final long MIN_UPDATE_AGE = 4*60*1000;
+    private long _lastFullReorg;
+
     /**
      * Place peers into the correct tier, as well as expand/contract and even drop profiles
      * according to whatever limits are in place.  Peer profiles are not coalesced during
@@ -799,7 +862,8 @@ public class ProfileOrganizer {
         int profileCount = 0;
         int expiredCount = 0;
         
-        long uptime = _context.router().getUptime();
+        // router is null in main()
+        long uptime = _context.router() != null ? _context.router().getUptime() : 0;
         long expireOlderThan = -1;
         if (uptime > 60*60*1000) {
             // dynamically adjust expire time to control memory usage
@@ -810,6 +874,15 @@ public class ProfileOrganizer {
             // drop profiles that we haven't spoken to in a while
             expireOlderThan = _context.clock().now() - _currentExpireTime;
         }
+
+        if (isIncremental()) {
+            long now = _context.clock().now();
+            if (now - _lastFullReorg < FULL_REORG_INTERVAL) {
+                reorganizeIncremental(shouldCoalesce, expireOlderThan);
+                return;
+            }
+            _lastFullReorg = now;
+        }
         
         if (shouldCoalesce) {
             getReadLock();
@@ -818,6 +891,7 @@ public class ProfileOrganizer {
                     if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) ) {
                         continue;
                     }
+                    prof.clearChanged();
                     long coalesceStart = System.currentTimeMillis();
                     prof.coalesceOnly();
                     coalesceTime += (int)(System.currentTimeMillis()-coalesceStart);
@@ -846,6 +920,8 @@ public class ProfileOrganizer {
                     continue; // drop, but no need to delete, since we don't periodically reread
                     // TODO maybe we should delete files, otherwise they are only deleted at restart
                 }
+                if (!shouldCoalesce)
+                    prof.clearChanged();
                 prof.updateValues();
                 reordered.add(prof);
                 profileCount++;
@@ -854,7 +930,7 @@ public class ProfileOrganizer {
             _strictCapacityOrder = reordered;
 
             long thresholdStart = System.currentTimeMillis();
-            locked_calculateThresholds(allPeers);
+            locked_calculateThresholds(allPeers, false);
             thresholdTime = System.currentTimeMillis()-thresholdStart;
 
             _failingPeers.clear();
@@ -874,6 +950,7 @@ public class ProfileOrganizer {
             locked_demoteHighCapAsNecessary();
             locked_promoteFastAsNecessary();
             locked_demoteFastAsNecessary();
+            locked_publishTiers();
 
             // we now use a random iterator in selectAllNotFailingPeers(),
             // as it was picking peers in-order before the first reorganization
@@ -906,6 +983,154 @@ public class ProfileOrganizer {
         _context.statManager().addRateData("peer.profilePlaceTime", placeTime, profileCount);
         _context.statManager().addRateData("peer.profileReorgTime", total, profileCount);
     }
+
+    /**
+     *  @return true if reorganize() is incremental
+     *  @since 0.9.28
+     */
+    public boolean isIncremental() {
+        return _context.getBooleanProperty(PROP_INCREMENTAL);
+    }
+
+    /**
+     *  Recalculate only the profiles whose stats changed since they were
+     *  last calculated, or that haven't been calculated in a while,
+     *  moving each in _strictCapacityOrder and placing it again.
+     *
+     *  The thresholds are calculated from _strictCapacityOrder,
+     *  which stays sorted, so there's no need to sort all the profiles again.
+     *  If the thresholds moved, the peers in the high capacity tier and
+     *  the peers above the new capacity threshold are placed again.
+     *
+     *  A change that races with the coalescing is picked up when the
+     *  profile is next recalculated anyway.
+     *
+     *  @param expireOlderThan drop profiles not sent to since this time, or -1
+     *  @since 0.9.28
+     */
+    private void reorganizeIncremental(boolean shouldCoalesce, long expireOlderThan) {
+        long sortTime = 0;
+        int coalesceTime = 0;
+        long thresholdTime = 0;
+        long placeTime = 0;
+        int profileCount = 0;
+        int expiredCount = 0;
+        long now = System.currentTimeMillis();
+        List<PeerProfile> changed = new ArrayList<PeerProfile>();
+
+        getReadLock();
+        try {
+            profileCount = _strictCapacityOrder.size();
+            for (PeerProfile prof : _strictCapacityOrder) {
+                if (prof.clearChanged() || isStale(prof, now))
+                    changed.add(prof);
+            }
+            if (shouldCoalesce) {
+                for (PeerProfile prof : changed) {
+                    if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) )
+                        continue;
+                    long coalesceStart = System.currentTimeMillis();
+                    prof.coalesceOnly();
+                    coalesceTime += (int)(System.currentTimeMillis()-coalesceStart);
+                }
+            }
+        } finally {
+            releaseReadLock();
+        }
+
+        if (!getWriteLock())
+            return;
+        long start = System.currentTimeMillis();
+        try {
+            long sortStart = System.currentTimeMillis();
+            for (Iterator<PeerProfile> iter = changed.iterator(); iter.hasNext(); ) {
+                PeerProfile prof = iter.next();
+                // remove before the values change, the order depends on them
+                if (!_strictCapacityOrder.remove(prof)) {
+                    // dropped by clearProfiles() since we looked
+                    iter.remove();
+                    continue;
+                }
+                if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) ) {
+                    locked_removeProfile(prof.getPeer());
+                    iter.remove();
+                    expiredCount++;
+                    continue;
+                }
+                prof.updateValues();
+                _strictCapacityOrder.add(prof);
+            }
+            sortTime = System.currentTimeMillis() - sortStart;
+
+            long thresholdStart = System.currentTimeMillis();
+            double oldCapacity = _thresholdCapacityValue;
+            double oldSpeed = _thresholdSpeedValue;
+            locked_calculateThresholds(_strictCapacityOrder, true);
+            thresholdTime = System.currentTimeMillis() - thresholdStart;
+
+            long placeStart = System.currentTimeMillis();
+            for (PeerProfile prof : changed) {
+                locked_placeProfile(prof);
+            }
+            if (oldCapacity != _thresholdCapacityValue || oldSpeed != _thresholdSpeedValue) {
+                // a copy, as placing removes it from the tier
+                for (PeerProfile prof : new ArrayList<PeerProfile>(_highCapacityPeers.values())) {
+                    locked_placeProfile(prof);
+                }
+                // highest capacity first
+                for (PeerProfile prof : _strictCapacityOrder) {
+                    if (prof.getCapacityValue() < _thresholdCapacityValue)
+                        break;
+                    if (!_highCapacityPeers.containsKey(prof.getPeer()))
+                        locked_placeProfile(prof);
+                }
+            }
+
+            locked_unfailAsNecessary();
+            locked_demoteHighCapAsNecessary();
+            locked_promoteFastAsNecessary();
+            locked_demoteFastAsNecessary();
+            locked_publishTiers();
+            placeTime = System.currentTimeMillis() - placeStart;
+        } finally { releaseWriteLock(); }
+
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Profiles reorganized incrementally. Updated: " + changed.size() + '/' + profileCount
+                       + " Expired: " + expiredCount
+                       + " Averages: [integration: " + _thresholdIntegrationValue 
+                       + ", capacity: " + _thresholdCapacityValue + ", speed: " + _thresholdSpeedValue + "]");
+
+        long total = System.currentTimeMillis()-start;
+        _context.statManager().addRateData("peer.profileSortTime", sortTime, profileCount);
+        _context.statManager().addRateData("peer.profileCoalesceTime", coalesceTime, profileCount);
+        _context.statManager().addRateData("peer.profileThresholdTime", thresholdTime, profileCount);
+        _context.statManager().addRateData("peer.profilePlaceTime", placeTime, profileCount);
+        _context.statManager().addRateData("peer.profileIncrementalReorgTime", total, profileCount);
+        _context.statManager().addRateData("peer.profileReorgUpdated", changed.size(), profileCount);
+    }
+
+    /**
+     *  Has it been too long since the values were last calculated?
+     *  @since 0.9.28
+     */
+    private static boolean isStale(PeerProfile prof, long now) {
+        long age = now - prof.getLastValuesUpdate();
+        return age > MIN_UPDATE_AGE + ((prof.getPeer().hashCode() & 0x7fffffff) % MIN_UPDATE_AGE);
+    }
+
+    /**
+     *  Remove from all the tiers, not from _strictCapacityOrder.
+     *  Called after locking the reorganizeLock.
+     *  @since 0.9.28
+     */
+    private void locked_removeProfile(Hash peer) {
+        _failingPeers.remove(peer);
+        _fastPeers.remove(peer);
+        _highCapacityPeers.remove(peer);
+        _wellIntegratedPeers.remove(peer);
+        if (_notFailingPeers.remove(peer) != null)
+            _notFailingPeersList.remove(peer);
+    }
     
     /**
      * As with locked_unfailAsNecessary, I'm not sure how much I like this - if there
@@ -1049,11 +1274,17 @@ public class ProfileOrganizer {
      * speed threshold, and use the mean integration value from the 
      * high capacity group to define the integration threshold.
      *
+     * @param sorted if true, allPeers iterates in InverseCapacityComparator order
+     *               with the current values, so we don't need to sort them again (since 0.9.28)
      */
-    private void locked_calculateThresholds(Set<PeerProfile> allPeers) {
+    private void locked_calculateThresholds(Collection<PeerProfile> allPeers, boolean sorted) {
         double totalCapacity = 0;
         double totalIntegration = 0;
-        Set<PeerProfile> reordered = new TreeSet<PeerProfile>(_comp);
+        Collection<PeerProfile> reordered;
+        if (sorted)
+            reordered = new ArrayList<PeerProfile>(allPeers.size());
+        else
+            reordered = new TreeSet<PeerProfile>(_comp);
         for (PeerProfile profile : allPeers) {
             if (_us.equals(profile.getPeer())) continue;
             
@@ -1090,7 +1321,7 @@ public class ProfileOrganizer {
      *                  (highest first) for active nonfailing peers whose 
      *                  capacity is greater than the growth factor
      */
-    private void locked_calculateCapacityThreshold(double totalCapacity, Set<PeerProfile> reordered) {
+    private void locked_calculateCapacityThreshold(double totalCapacity, Collection<PeerProfile> reordered) {
         int numNotFailing = reordered.size();
         
         double meanCapacity = avg(totalCapacity, numNotFailing);
@@ -1158,7 +1389,7 @@ public class ProfileOrganizer {
      * @param reordered ordered set of PeerProfile objects, ordered by capacity
      *                  (highest first) for active nonfailing peers
      */
-    private void locked_calculateSpeedThreshold(Set<PeerProfile> reordered) {
+    private void locked_calculateSpeedThreshold(Collection<PeerProfile> reordered) {
         if (true) {
             locked_calculateSpeedThresholdMean(reordered);
             return;
@@ -1190,7 +1421,7 @@ public class ProfileOrganizer {
 *****/
     }
     
-    private void locked_calculateSpeedThresholdMean(Set<PeerProfile> reordered) {
+    private void locked_calculateSpeedThresholdMean(Collection<PeerProfile> reordered) {
         double total = 0;
         int count = 0;
         for (PeerProfile profile : reordered) {
@@ -1233,8 +1464,16 @@ public class ProfileOrganizer {
      * matches set until it has howMany elements in it.
      *
      */
-    private void locked_selectPeers(Map<Hash, PeerProfile> peers, int howMany, Set<Hash> toExclude, Set<Hash> matches) {
-        locked_selectPeers(peers, howMany, toExclude, matches, 0);
+    private void selectPeers(Hash[] peers, int howMany, Set<Hash> toExclude, Set<Hash> matches) {
+        selectPeers(peers, howMany, toExclude, matches, 0);
+    }
+
+    /**
+     *  @param peers a tier snapshot, not modified
+     *  @since 0.9.28
+     */
+    private void selectPeers(Hash[] peers, int howMany, Set<Hash> toExclude, Set<Hash> matches, int mask) {
+        selectPeers(Arrays.asList(peers), howMany, toExclude, matches, mask);
     }
 
     /**
@@ -1244,11 +1483,10 @@ public class ProfileOrganizer {
      * @param mask 0-4 Number of bytes to match to determine if peers in the same IP range should
      *             not be in the same tunnel. 0 = disable check; 1 = /8; 2 = /16; 3 = /24; 4 = exact IP match
      */
-    private void locked_selectPeers(Map<Hash, PeerProfile> peers, int howMany, Set<Hash> toExclude, Set<Hash> matches, int mask) {
-        List<Hash> all = new ArrayList<Hash>(peers.keySet());
+    private void selectPeers(List<Hash> peers, int howMany, Set<Hash> toExclude, Set<Hash> matches, int mask) {
         MaskedIPSet IPSet = new MaskedIPSet(16);
         // use RandomIterator to avoid shuffling the whole thing
-        for (Iterator<Hash> iter = new RandomIterator<Hash>(all); (matches.size() < howMany) && iter.hasNext(); ) {
+        for (Iterator<Hash> iter = new RandomIterator<Hash>(peers); (matches.size() < howMany) && iter.hasNext(); ) {
             Hash peer = iter.next();
             if (toExclude != null && toExclude.contains(peer))
                 continue;
@@ -1287,6 +1525,7 @@ public class ProfileOrganizer {
     }
 
     /**
+     * @param peers a tier snapshot, not modified
      * @param randomKey used for deterministic random partitioning into subtiers
      * @param subTierMode 2-7:
      *<pre>
@@ -1298,11 +1537,10 @@ public class ProfileOrganizer {
      *    7: return only from group 3
      *</pre>
      */
-    private void locked_selectPeers(Map<Hash, PeerProfile> peers, int howMany, Set<Hash> toExclude,
-                                    Set<Hash> matches, Hash randomKey, Slice subTierMode) {
-        List<Hash> all = new ArrayList<Hash>(peers.keySet());
+    private void selectPeers(Hash[] peers, int howMany, Set<Hash> toExclude,
+                             Set<Hash> matches, Hash randomKey, Slice subTierMode) {
         // use RandomIterator to avoid shuffling the whole thing
-        for (Iterator<Hash> iter = new RandomIterator<Hash>(all); (matches.size() < howMany) && iter.hasNext(); ) {
+        for (Iterator<Hash> iter = new RandomIterator<Hash>(Arrays.asList(peers)); (matches.size() < howMany) && iter.hasNext(); ) {
             Hash peer = iter.next();
             if (toExclude != null && toExclude.contains(peer))
                 continue;
@@ -1371,6 +1609,54 @@ public class ProfileOrganizer {
         }
     }
     
+    /**
+     *  Called after locking the reorganizeLock, after the tiers are changed,
+     *  to publish a copy for the selectors.
+     *  @since 0.9.28
+     */
+    private void locked_publishTiers() {
+        _tiers = new Tiers(_fastPeers, _highCapacityPeers, _wellIntegratedPeers,
+                           _notFailingPeersList, _failingPeers);
+    }
+
+    /**
+     *  An immutable copy of the tiers.
+     *  The arrays are for random selection, the sets for membership tests.
+     *  @since 0.9.28
+     */
+    private static class Tiers {
+        public static final Tiers EMPTY = new Tiers();
+
+        public final Hash[] fast, highCap, wellIntegrated, notFailing, failing;
+        public final Set<Hash> fastSet, highCapSet, wellIntegratedSet;
+
+        private Tiers() {
+            fast = highCap = wellIntegrated = notFailing = failing = new Hash[0];
+            fastSet = highCapSet = wellIntegratedSet = Collections.emptySet();
+        }
+
+        public Tiers(Map<Hash, PeerProfile> fastPeers, Map<Hash, PeerProfile> highCapPeers,
+                     Map<Hash, PeerProfile> wellIntegratedPeers, List<Hash> notFailingPeers,
+                     Map<Hash, PeerProfile> failingPeers) {
+            fastSet = copy(fastPeers.keySet());
+            highCapSet = copy(highCapPeers.keySet());
+            wellIntegratedSet = copy(wellIntegratedPeers.keySet());
+            fast = toArray(fastSet);
+            highCap = toArray(highCapSet);
+            wellIntegrated = toArray(wellIntegratedSet);
+            notFailing = toArray(notFailingPeers);
+            failing = toArray(failingPeers.keySet());
+        }
+
+        private static Set<Hash> copy(Set<Hash> s) {
+            return s.isEmpty() ? Collections.<Hash>emptySet() : new HashSet<Hash>(s);
+        }
+
+        private static Hash[] toArray(Collection<Hash> c) {
+            return c.toArray(new Hash[c.size()]);
+        }
+    }
+
     /**
      * called after locking the reorganizeLock, place the profile in the appropriate tier.
      * This is where we implement the (betterThanAverage ? goToTierX : goToTierY) algorithms
@@ -1392,8 +1678,9 @@ public class ProfileOrganizer {
             _highCapacityPeers.remove(peer);
             _wellIntegratedPeers.remove(peer);
             
-            _notFailingPeers.put(peer, profile);
-            _notFailingPeersList.add(peer);
+            // may already be there in an incremental reorganization
+            if (_notFailingPeers.put(peer, profile) == null)
+                _notFailingPeersList.add(peer);
             // if not selectable for a tunnel (banlisted for example),
             // don't allow them in the high-cap pool, what would the point of that be?
             if (_thresholdCapacityValue <= profile.getCapacityValue() &&
@@ -10,8 +10,10 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
@@ -32,6 +34,11 @@ import net.i2p.util.SecureFileOutputStream;
  *  The files are gzip compressed, we previously stored them
  *  with a ".dat" extension instead of ".txt.gz", so it wasn't apparent.
  *  Now migrated to a ".txt.gz" extension.
+ *
+ *  As of 0.9.28, if router.profileStore=true, the profiles are stored
+ *  in a single ProfileStore file instead. Any profile files found are
+ *  imported into the store and deleted.
+ *  If the option is turned off again, the store is exported to files at startup.
  */
 class ProfilePersistenceHelper {
     private final Log _log;
@@ -39,6 +46,8 @@ class ProfilePersistenceHelper {
     
     public final static String PROP_PEER_PROFILE_DIR = "router.profileDir";
     public final static String DEFAULT_PEER_PROFILE_DIR = "peerProfiles";
+    /** @since 0.9.28 */
+    public final static String PROP_PROFILE_STORE = "router.profileStore";
     private final static String NL = System.getProperty("line.separator");
     private static final String PREFIX = "profile-";
     private static final String SUFFIX = ".txt.gz";
@@ -56,6 +65,8 @@ class ProfilePersistenceHelper {
     private static final long EXPIRE_AGE = 15*24*60*60*1000;
     
     private final File _profileDir;
+    /** null unless enabled */
+    private final ProfileStore _store;
     private Hash _us;
     
     public ProfilePersistenceHelper(RouterContext ctx) {
@@ -70,12 +81,28 @@ class ProfilePersistenceHelper {
             if (!subdir.exists())
                 subdir.mkdir();
         }
+        // the file isn't opened until used, only the PeerManager's helper reads and writes
+        if (ctx.getBooleanProperty(PROP_PROFILE_STORE))
+            _store = new ProfileStore(ctx, new File(_profileDir, ProfileStore.FILENAME));
+        else
+            _store = null;
     }
     
     public void setUs(Hash routerIdentHash) { _us = routerIdentHash; }
     
     /** write out the data from the profile to the stream */
     public void writeProfile(PeerProfile profile) {
+        if (_store != null) {
+            try {
+                if (isExpired(profile.getLastSendSuccessful()))
+                    _store.remove(profile.getPeer());
+                else
+                    _store.write(profile);
+            } catch (IOException ioe) {
+                _log.error("Error writing profile to " + _store.getFile(), ioe);
+            }
+            return;
+        }
         if (isExpired(profile.getLastSendSuccessful()))
             return;
         
@@ -176,6 +203,11 @@ class ProfilePersistenceHelper {
     }
     
     public Set<PeerProfile> readProfiles() {
+        if (_store != null)
+            return readStore();
+        File storeFile = new File(_profileDir, ProfileStore.FILENAME);
+        if (storeFile.exists())
+            exportStore(storeFile);
         long start = _context.clock().now();
         List<File> files = selectFiles();
         Set<PeerProfile> profiles = new HashSet<PeerProfile>(files.size());
@@ -190,6 +222,76 @@ class ProfilePersistenceHelper {
         return profiles;
     }
     
+    /**
+     *  Read the store, then import any profile files into it,
+     *  and delete the files.
+     *
+     *  @since 0.9.28
+     */
+    private Set<PeerProfile> readStore() {
+        long start = _context.clock().now();
+        Map<Hash, PeerProfile> profiles = new HashMap<Hash, PeerProfile>(1024);
+        try {
+            for (PeerProfile profile : _store.load()) {
+                if (isExpired(profile.getLastSendSuccessful())) {
+                    _store.remove(profile.getPeer());
+                    continue;
+                }
+                fixupFirstHeardAbout(profile);
+                profiles.put(profile.getPeer(), profile);
+            }
+        } catch (IOException ioe) {
+            _log.error("Error reading profiles from " + _store.getFile(), ioe);
+        }
+        long duration = _context.clock().now() - start;
+        int imported = 0;
+        List<File> files = selectFiles();
+        for (File f : files) {
+            PeerProfile profile = readProfile(f);
+            if (profile == null)
+                continue;
+            try {
+                _store.write(profile);
+            } catch (IOException ioe) {
+                _log.error("Error writing profile to " + _store.getFile(), ioe);
+                break;
+            }
+            profiles.put(profile.getPeer(), profile);
+            imported++;
+            f.delete();
+            // in case it was renamed from the old suffix
+            pickFile(profile).delete();
+        }
+        if (imported > 0 && _log.shouldWarn())
+            _log.warn("Imported " + imported + " profile files into the profile store");
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Loading " + profiles.size() + " from the profile store took " + duration + "ms");
+        return new HashSet<PeerProfile>(profiles.values());
+    }
+
+    /**
+     *  Write all the profiles in the store to files,
+     *  and delete the store. Startup only.
+     *
+     *  @since 0.9.28
+     */
+    private void exportStore(File storeFile) {
+        ProfileStore store = new ProfileStore(_context, storeFile);
+        try {
+            List<PeerProfile> profiles = store.load();
+            store.close();
+            for (PeerProfile profile : profiles) {
+                writeProfile(profile);
+            }
+            if (_log.shouldWarn())
+                _log.warn("Exported " + profiles.size() + " profiles from the profile store to files");
+            storeFile.delete();
+        } catch (IOException ioe) {
+            store.close();
+            _log.error("Error exporting the profile store", ioe);
+        }
+    }
+
     private static class ProfileFilter implements FilenameFilter {
         public boolean accept(File dir, String filename) {
             return (filename.startsWith(PREFIX) &&
@@ -234,6 +336,16 @@ class ProfilePersistenceHelper {
      *  @since 0.9.28
      */
     public void deleteOldProfiles(long age) {
+        if (_store != null) {
+            try {
+                int i = _store.removeOlderThan(_context.clock().now() - age);
+                if (_log.shouldWarn())
+                    _log.warn("Deleted " + i + " old profiles from the profile store");
+            } catch (IOException ioe) {
+                _log.error("Error deleting old profiles from " + _store.getFile(), ioe);
+            }
+            return;
+        }
         long cutoff = System.currentTimeMillis() - age;
         List<File> files = selectFiles();
         int i = 0;
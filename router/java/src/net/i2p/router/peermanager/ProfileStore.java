@@ -0,0 +1,349 @@
+package net.i2p.router.peermanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+import net.i2p.util.Log;
+
+/**
+ *  All the peer profiles in a single file of fixed-width records,
+ *  instead of one gzipped text file each in 64 subdirectories.
+ *  Enabled with router.profileStore=true.
+ *
+ *  Each peer keeps its slot, so the periodic store of all the profiles
+ *  overwrites the records in place and creates no files.
+ *  At startup the file is mapped read-only and read in a single pass.
+ *  The slots of removed profiles are reused.
+ *
+ *  File format: 8 byte magic, 4 byte version, 4 byte record length,
+ *  then records of:
+ *  <pre>
+ *    1 byte flags (0 for a free slot)
+ *    32 byte hash
+ *    8 byte date written
+ *    3 x 4 byte speed, capacity, and integration bonus
+ *    5 x 8 byte first heard about, last heard about, last heard from,
+ *              last sent successfully, and last failed send dates
+ *    4 x 4 byte float tunnel test time average and peak throughputs
+ *    TunnelHistory
+ *    tunnelCreateResponseTime and tunnelTestResponseTime rates
+ *    DBHistory, dbIntroduction and dbResponseTime rates, zeros if not flagged
+ *  </pre>
+ *  Rates are as written by Rate.store(ByteBuffer).
+ *  The record length is that of the current profile rates.
+ *  If the version or the record length changes, the file is discarded.
+ *
+ *  Methods are synchronized.
+ *  For ProfilePersistenceHelper only.
+ *
+ *  @since 0.9.28
+ */
+class ProfileStore {
+    private final RouterContext _context;
+    private final File _file;
+    private final Log _log;
+    /** hash to slot */
+    private final Map<Hash, Slot> _index;
+    private final Queue<Integer> _free;
+    private final int _tunnelHistoryOffset;
+    private final int _createResponseOffset;
+    private final int _testResponseOffset;
+    private final int _dbHistoryOffset;
+    private final int _dbIntroductionOffset;
+    private final int _dbResponseOffset;
+    private final int _recordLen;
+    /** for writes */
+    private final ByteBuffer _buf;
+    private RandomAccessFile _raf;
+    private FileChannel _channel;
+    /** slots in the file, including free ones */
+    private int _slots;
+
+    static final String FILENAME = "profiles.dat";
+    private static final byte[] MAGIC = DataHelper.getASCII("I2Pprofs");
+    private static final int VERSION = 1;
+    private static final int HEADER_LEN = MAGIC.length + 4 + 4;
+    private static final int FLAG_IN_USE = 0x01;
+    private static final int FLAG_EXPANDED = 0x02;
+    private static final int FLAG_EXPANDED_DB = 0x04;
+    private static final int DATA_OFFSET = 1 + Hash.HASH_LENGTH + 8;
+
+    private static class Slot {
+        final int index;
+        long written;
+
+        public Slot(int index, long written) {
+            this.index = index;
+            this.written = written;
+        }
+    }
+
+    /**
+     *  Does not open the file.
+     *  The record layout is taken from a new profile.
+     */
+    public ProfileStore(RouterContext ctx, File file) {
+        _context = ctx;
+        _file = file;
+        _log = ctx.logManager().getLog(ProfileStore.class);
+        _index = new HashMap<Hash, Slot>(1024);
+        _free = new ArrayDeque<Integer>();
+        PeerProfile prof = new PeerProfile(ctx, Hash.FAKE_HASH);
+        prof.expandDBProfile();
+        _tunnelHistoryOffset = DATA_OFFSET + 3*4 + 5*8 + 4*4;
+        _createResponseOffset = _tunnelHistoryOffset + prof.getTunnelHistory().getBinarySize();
+        _testResponseOffset = _createResponseOffset + prof.getTunnelCreateResponseTime().getBinarySize();
+        _dbHistoryOffset = _testResponseOffset + prof.getTunnelTestResponseTime().getBinarySize();
+        _dbIntroductionOffset = _dbHistoryOffset + prof.getDBHistory().getBinarySize();
+        _dbResponseOffset = _dbIntroductionOffset + prof.getDbIntroduction().getBinarySize();
+        _recordLen = _dbResponseOffset + prof.getDbResponseTime().getBinarySize();
+        _buf = ByteBuffer.allocate(_recordLen);
+    }
+
+    public File getFile() {
+        return _file;
+    }
+
+    /**
+     *  Open the file, creating it if necessary.
+     *  A file with a different version or record length is replaced.
+     */
+    private void open() throws IOException {
+        if (_channel != null)
+            return;
+        _raf = new RandomAccessFile(_file, "rw");
+        _channel = _raf.getChannel();
+        boolean ok = false;
+        long len = _raf.length();
+        if (len >= HEADER_LEN) {
+            byte[] magic = new byte[MAGIC.length];
+            _raf.readFully(magic);
+            int version = _raf.readInt();
+            int recordLen = _raf.readInt();
+            ok = DataHelper.eq(magic, MAGIC) && version == VERSION && recordLen == _recordLen;
+            if (!ok && _log.shouldLog(Log.WARN))
+                _log.warn("Discarding profile store " + _file + " version " + version +
+                          " record length " + recordLen + ", expected " + VERSION + ' ' + _recordLen);
+        }
+        if (ok) {
+            // ignore a partial record at the end
+            _slots = (int) ((len - HEADER_LEN) / _recordLen);
+        } else {
+            _raf.setLength(0);
+            _raf.seek(0);
+            _raf.write(MAGIC);
+            _raf.writeInt(VERSION);
+            _raf.writeInt(_recordLen);
+            _slots = 0;
+        }
+    }
+
+    /**
+     *  Map the file and read all the profiles, and rebuild the index.
+     *  Records that can't be parsed are freed.
+     *
+     *  @return non-null
+     */
+    public synchronized List<PeerProfile> load() throws IOException {
+        open();
+        _index.clear();
+        _free.clear();
+        List<PeerProfile> rv = new ArrayList<PeerProfile>(_slots);
+        if (_slots <= 0)
+            return rv;
+        MappedByteBuffer map = _channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LEN + ((long) _slots) * _recordLen);
+        byte[] hash = new byte[Hash.HASH_LENGTH];
+        for (int i = 0; i < _slots; i++) {
+            int off = HEADER_LEN + i * _recordLen;
+            int flags = map.get(off) & 0xff;
+            if ((flags & FLAG_IN_USE) == 0) {
+                _free.add(Integer.valueOf(i));
+                continue;
+            }
+            map.position(off + 1);
+            map.get(hash);
+            Hash peer = Hash.create(hash);
+            long written = map.getLong();
+            if (_index.containsKey(peer)) {
+                // shouldn't happen
+                free(i);
+                continue;
+            }
+            PeerProfile prof;
+            try {
+                prof = read(map, off, flags, peer);
+            } catch (IllegalArgumentException iae) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Bad profile record for " + peer, iae);
+                free(i);
+                continue;
+            }
+            _index.put(peer, new Slot(i, written));
+            rv.add(prof);
+        }
+        return rv;
+    }
+
+    /**
+     *  @param buf positioned after the date written
+     *  @throws IllegalArgumentException if the rates don't match
+     */
+    private PeerProfile read(ByteBuffer buf, int off, int flags, Hash peer) {
+        PeerProfile prof = new PeerProfile(_context, peer);
+        prof.setSpeedBonus(buf.getInt());
+        prof.setCapacityBonus(buf.getInt());
+        prof.setIntegrationBonus(buf.getInt());
+        prof.setFirstHeardAbout(buf.getLong());
+        prof.setLastHeardAbout(buf.getLong());
+        prof.setLastHeardFrom(buf.getLong());
+        prof.setLastSendSuccessful(buf.getLong());
+        prof.setLastSendFailed(buf.getLong());
+        prof.setTunnelTestTimeAverage(buf.getFloat());
+        prof.setPeakThroughputKBps(buf.getFloat());
+        prof.setPeakTunnelThroughputKBps(buf.getFloat());
+        prof.setPeakTunnel1mThroughputKBps(buf.getFloat());
+        if ((flags & FLAG_EXPANDED) != 0) {
+            buf.position(off + _tunnelHistoryOffset);
+            prof.getTunnelHistory().load(buf);
+            buf.position(off + _createResponseOffset);
+            prof.getTunnelCreateResponseTime().load(buf, true);
+            buf.position(off + _testResponseOffset);
+            prof.getTunnelTestResponseTime().load(buf, true);
+        }
+        if ((flags & FLAG_EXPANDED_DB) != 0) {
+            prof.expandDBProfile();
+            buf.position(off + _dbHistoryOffset);
+            prof.getDBHistory().load(buf);
+            buf.position(off + _dbIntroductionOffset);
+            prof.getDbIntroduction().load(buf, true);
+            buf.position(off + _dbResponseOffset);
+            prof.getDbResponseTime().load(buf, true);
+        }
+        return prof;
+    }
+
+    /**
+     *  Write the profile over its record, or to a free slot, or at the end.
+     */
+    public synchronized void write(PeerProfile prof) throws IOException {
+        open();
+        Hash peer = prof.getPeer();
+        long now = _context.clock().now();
+        Slot slot = _index.get(peer);
+        if (slot == null) {
+            Integer free = _free.poll();
+            slot = new Slot(free != null ? free.intValue() : _slots++, now);
+            _index.put(peer, slot);
+        } else {
+            slot.written = now;
+        }
+        ByteBuffer buf = _buf;
+        Arrays.fill(buf.array(), (byte) 0);
+        buf.clear();
+        int flags = FLAG_IN_USE;
+        if (prof.getIsExpanded())
+            flags |= FLAG_EXPANDED;
+        if (prof.getIsExpandedDB())
+            flags |= FLAG_EXPANDED_DB;
+        buf.put((byte) flags);
+        buf.put(peer.getData());
+        buf.putLong(now);
+        buf.putInt(prof.getSpeedBonus());
+        buf.putInt(prof.getCapacityBonus());
+        buf.putInt(prof.getIntegrationBonus());
+        buf.putLong(prof.getFirstHeardAbout());
+        buf.putLong(prof.getLastHeardAbout());
+        buf.putLong(prof.getLastHeardFrom());
+        buf.putLong(prof.getLastSendSuccessful());
+        buf.putLong(prof.getLastSendFailed());
+        buf.putFloat(prof.getTunnelTestTimeAverage());
+        buf.putFloat(prof.getPeakThroughputKBps());
+        buf.putFloat(prof.getPeakTunnelThroughputKBps());
+        buf.putFloat(prof.getPeakTunnel1mThroughputKBps());
+        if ((flags & FLAG_EXPANDED) != 0) {
+            buf.position(_tunnelHistoryOffset);
+            prof.getTunnelHistory().store(buf);
+            buf.position(_createResponseOffset);
+            prof.getTunnelCreateResponseTime().store(buf);
+            buf.position(_testResponseOffset);
+            prof.getTunnelTestResponseTime().store(buf);
+        }
+        if ((flags & FLAG_EXPANDED_DB) != 0) {
+            buf.position(_dbHistoryOffset);
+            prof.getDBHistory().store(buf);
+            buf.position(_dbIntroductionOffset);
+            prof.getDbIntroduction().store(buf);
+            buf.position(_dbResponseOffset);
+            prof.getDbResponseTime().store(buf);
+        }
+        buf.clear();
+        long pos = HEADER_LEN + ((long) slot.index) * _recordLen;
+        while (buf.hasRemaining()) {
+            pos += _channel.write(buf, pos);
+        }
+    }
+
+    /**
+     *  Free the peer's slot, if any
+     */
+    public synchronized void remove(Hash peer) throws IOException {
+        Slot slot = _index.remove(peer);
+        if (slot != null) {
+            open();
+            free(slot.index);
+        }
+    }
+
+    /**
+     *  Free the slots of the profiles last written before the cutoff
+     *
+     *  @return the number removed
+     */
+    public synchronized int removeOlderThan(long cutoff) throws IOException {
+        int rv = 0;
+        for (Iterator<Slot> iter = _index.values().iterator(); iter.hasNext(); ) {
+            Slot slot = iter.next();
+            if (slot.written < cutoff) {
+                iter.remove();
+                open();
+                free(slot.index);
+                rv++;
+            }
+        }
+        return rv;
+    }
+
+    /** clear the flags byte and add to the free list */
+    private void free(int index) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1);
+        _channel.write(buf, HEADER_LEN + ((long) index) * _recordLen);
+        _free.add(Integer.valueOf(index));
+    }
+
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    public synchronized void close() {
+        if (_raf != null) {
+            try { _raf.close(); } catch (IOException ioe) {}
+            _raf = null;
+            _channel = null;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package net.i2p.router.peermanager;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
@@ -189,6 +190,55 @@ public class TunnelHistory {
         }
     }
     
+    /**
+     *  Size of the data written by store(ByteBuffer)
+     *  @since 0.9.28
+     */
+    public int getBinarySize() {
+        return 9*8 + _rejectRate.getBinarySize() + _failRate.getBinarySize();
+    }
+
+    /**
+     *  Fixed-width binary form of store(OutputStream), for the ProfileStore
+     *  @since 0.9.28
+     */
+    public void store(ByteBuffer buf) {
+        buf.putLong(_lastAgreedTo);
+        buf.putLong(_lastFailed);
+        buf.putLong(_lastRejectedCritical);
+        buf.putLong(_lastRejectedBandwidth);
+        buf.putLong(_lastRejectedTransient);
+        buf.putLong(_lastRejectedProbabalistic);
+        buf.putLong(_lifetimeAgreedTo.get());
+        buf.putLong(_lifetimeFailed.get());
+        buf.putLong(_lifetimeRejected.get());
+        _rejectRate.store(buf);
+        _failRate.store(buf);
+    }
+
+    /**
+     *  Load what store(ByteBuffer) wrote
+     *  @since 0.9.28
+     */
+    public void load(ByteBuffer buf) {
+        _lastAgreedTo = buf.getLong();
+        _lastFailed = buf.getLong();
+        _lastRejectedCritical = buf.getLong();
+        _lastRejectedBandwidth = buf.getLong();
+        _lastRejectedTransient = buf.getLong();
+        _lastRejectedProbabalistic = buf.getLong();
+        _lifetimeAgreedTo.set(buf.getLong());
+        _lifetimeFailed.set(buf.getLong());
+        _lifetimeRejected.set(buf.getLong());
+        try {
+            _rejectRate.load(buf, true);
+            _failRate.load(buf, true);
+        } catch (IllegalArgumentException iae) {
+            _log.warn("TunnelHistory rates are corrupt, resetting", iae);
+            createRates(_statGroup);
+        }
+    }
+
     private final static long getLong(Properties props, String key) {
         return ProfilePersistenceHelper.getLong(props, key);
     }
@@ -30,6 +30,14 @@ import net.i2p.util.Log;
  *  methods for the common case where we are under the bandwidth limits.
  *  And the volatile counters are now AtomicIntegers / AtomicLongs.
  *
+ *  As of 0.9.28, the shortcut is a token bucket:
+ *  the available counters are only decremented with compareAndSet(),
+ *  so they never go negative, and the shortcut is only taken when
+ *  no request is pending or waiting to be notified, so it never
+ *  jumps ahead of a queued request.
+ *  Requests that can't be satisfied right away, or that arrive while
+ *  others are queued, take the locked FIFO path as before.
+ *
  */
 public class FIFOBandwidthLimiter {
     private final Log _log;
@@ -40,6 +48,18 @@ public class FIFOBandwidthLimiter {
     private final AtomicInteger _availableInbound = new AtomicInteger();
     /** how many bytes we can consume for outbound transmission immediately */
     private final AtomicInteger _availableOutbound = new AtomicInteger();
+    /**
+     *  Requests in _pendingInboundRequests, plus those removed but not yet notified.
+     *  The shortcut is only taken when this is zero.
+     *  @since 0.9.28
+     */
+    private final AtomicInteger _pendingInboundCount = new AtomicInteger();
+    /**
+     *  Requests in _pendingOutboundRequests, plus those removed but not yet notified.
+     *  The shortcut is only taken when this is zero.
+     *  @since 0.9.28
+     */
+    private final AtomicInteger _pendingOutboundCount = new AtomicInteger();
     /** how many bytes we can queue up for bursting */
     private final AtomicInteger _unavailableInboundBurst = new AtomicInteger();
     /** how many bytes we can queue up for bursting */
@@ -159,8 +179,16 @@ public class FIFOBandwidthLimiter {
 
     /** @since 0.8.8 */
     private void clear() {
-        _pendingInboundRequests.clear();
-        _pendingOutboundRequests.clear();
+        // Only subtract the requests still queued. Ones already removed by a
+        // satisfy*Requests() in progress are subtracted there, after the lock.
+        synchronized (_pendingInboundRequests) {
+            _pendingInboundCount.addAndGet(0 - _pendingInboundRequests.size());
+            _pendingInboundRequests.clear();
+        }
+        synchronized (_pendingOutboundRequests) {
+            _pendingOutboundCount.addAndGet(0 - _pendingOutboundRequests.size());
+            _pendingOutboundRequests.clear();
+        }
         _availableInbound.set(0);
         _availableOutbound.set(0);
         _maxInbound = 0;
@@ -218,6 +246,7 @@ public class FIFOBandwidthLimiter {
         synchronized (_pendingInboundRequests) {
             pending = _pendingInboundRequests.size();
             _pendingInboundRequests.add(req);
+            _pendingInboundCount.incrementAndGet();
         }
         satisfyInboundRequests(req.satisfiedBuffer);
         req.satisfiedBuffer.clear();
@@ -244,6 +273,7 @@ public class FIFOBandwidthLimiter {
         synchronized (_pendingOutboundRequests) {
             pending = _pendingOutboundRequests.size();
             _pendingOutboundRequests.add(req);
+            _pendingOutboundCount.incrementAndGet();
         }
         satisfyOutboundRequests(req.satisfiedBuffer);
         req.satisfiedBuffer.clear();
@@ -294,7 +324,7 @@ public class FIFOBandwidthLimiter {
             //if (_log.shouldLog(Log.DEBUG))
             //    _log.debug("available inbound (" + avi + ") exceeds our inbound burst (" + _maxInbound + "), so no supplement");
             int uib = _unavailableInboundBurst.addAndGet(avi - _maxInbound);
-            _availableInbound.set(_maxInbound);
+            _availableInbound.addAndGet(_maxInbound - avi);  // subtract the excess, the shortcut may have taken some since
             if (uib > _maxInboundBurst) {
                 //_totalWastedInboundBytes.addAndGet(uib - _maxInboundBurst);
                 _unavailableInboundBurst.set(_maxInboundBurst);
@@ -324,7 +354,7 @@ public class FIFOBandwidthLimiter {
             //if (_log.shouldLog(Log.DEBUG))
             //    _log.debug("available outbound (" + avo + ") exceeds our outbound burst (" + _maxOutbound + "), so no supplement");
             int uob = _unavailableOutboundBurst.getAndAdd(avo - _maxOutbound);
-            _availableOutbound.set(_maxOutbound);
+            _availableOutbound.addAndGet(_maxOutbound - avo);  // subtract the excess, the shortcut may have taken some since
 
             if (uob > _maxOutboundBurst) {
                 //_totalWastedOutboundBytes.getAndAdd(uob - _maxOutboundBurst);
@@ -424,12 +454,13 @@ public class FIFOBandwidthLimiter {
      * @param satisfied Out parameter, returned with the satisfied requests added
      */
     private final void satisfyInboundRequests(List<Request> satisfied) {
+        int removed = 0;
         synchronized (_pendingInboundRequests) {
             if (_inboundUnlimited) {
-                locked_satisfyInboundUnlimited(satisfied);
+                removed = locked_satisfyInboundUnlimited(satisfied);
             } else {
                 if (_availableInbound.get() > 0) {
-                    locked_satisfyInboundAvailable(satisfied);
+                    removed = locked_satisfyInboundAvailable(satisfied);
                 } else {
                     // no bandwidth available
                     if (_log.shouldLog(Log.DEBUG))
@@ -446,6 +477,9 @@ public class FIFOBandwidthLimiter {
                 creq.notifyAllocation();
             }
         }
+        // only now may the shortcut be taken
+        if (removed > 0)
+            _pendingInboundCount.addAndGet(0 - removed);
     }
     
     /** called from debug logging only */
@@ -480,10 +514,13 @@ public class FIFOBandwidthLimiter {
     /**
      * There are no limits, so just give every inbound request whatever they want
      *
+     * @return number of requests removed from the pending list
      */
-    private final void locked_satisfyInboundUnlimited(List<Request> satisfied) {
+    private final int locked_satisfyInboundUnlimited(List<Request> satisfied) {
+        int rv = 0;
         while (!_pendingInboundRequests.isEmpty()) {
             SimpleRequest req = _pendingInboundRequests.remove(0);
+            rv++;
             int allocated = req.getPendingRequested();
             _totalAllocatedInboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
@@ -496,6 +533,7 @@ public class FIFOBandwidthLimiter {
             if (waited > 10)
                 _context.statManager().addRateData("bwLimiter.inboundDelayedTime", waited);
         }
+        return rv;
     }
     
     /**
@@ -503,9 +541,11 @@ public class FIFOBandwidthLimiter {
      * bandwidth as we can to those who have used what we have given them and are waiting
      * for more (giving priority to the first ones who requested it)
      * 
-     * @return list of requests that were completely satisfied
+     * @param satisfied out parameter, the requests that were allocated bytes
+     * @return number of requests removed from the pending list, aborted or completely satisfied
      */
-    private final void locked_satisfyInboundAvailable(List<Request> satisfied) {
+    private final int locked_satisfyInboundAvailable(List<Request> satisfied) {
+        int rv = 0;
         for (int i = 0; i < _pendingInboundRequests.size(); i++) {
             SimpleRequest req = _pendingInboundRequests.get(i);
             long waited = now() - req.getRequestTime();
@@ -519,6 +559,7 @@ public class FIFOBandwidthLimiter {
                                 + "ms) pending " + _pendingInboundRequests.size());
                 _pendingInboundRequests.remove(i);
                 i--;
+                rv++;
                 continue;
             }
             int avi = _availableInbound.get();
@@ -537,12 +578,8 @@ public class FIFOBandwidthLimiter {
             //}
             // ok, they are really waiting for us to give them stuff
             int requested = req.getPendingRequested();
-            int allocated;
-            if (avi >= requested) 
-                allocated = requested;
-            else
-                allocated = avi;
-            _availableInbound.addAndGet(0 - allocated);
+            int allocated = take(_availableInbound, requested);
+            if (allocated <= 0) break;
             _totalAllocatedInboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
             satisfied.add(req);
@@ -564,22 +601,25 @@ public class FIFOBandwidthLimiter {
                                 + ", longest waited " + locked_getLongestInboundWait() + " out");
                 _pendingInboundRequests.remove(i);
                 i--;
+                rv++;
                 if (waited > 10)
                     _context.statManager().addRateData("bwLimiter.inboundDelayedTime", waited);
             }
         }
+        return rv;
     }
     
     /**
      * @param satisfied Out parameter, returned with the satisfied requests added
      */
     private final void satisfyOutboundRequests(List<Request> satisfied) {
+        int removed = 0;
         synchronized (_pendingOutboundRequests) {
             if (_outboundUnlimited) {
-                locked_satisfyOutboundUnlimited(satisfied);
+                removed = locked_satisfyOutboundUnlimited(satisfied);
             } else {
                 if (_availableOutbound.get() > 0) {
-                    locked_satisfyOutboundAvailable(satisfied);
+                    removed = locked_satisfyOutboundAvailable(satisfied);
                 } else {
                     // no bandwidth available
                     if (_log.shouldLog(Log.INFO))
@@ -596,15 +636,21 @@ public class FIFOBandwidthLimiter {
                 creq.notifyAllocation();
             }
         }
+        // only now may the shortcut be taken
+        if (removed > 0)
+            _pendingOutboundCount.addAndGet(0 - removed);
     }
     
     /**
      * There are no limits, so just give every outbound request whatever they want
      *
+     * @return number of requests removed from the pending list
      */
-    private final void locked_satisfyOutboundUnlimited(List<Request> satisfied) {
+    private final int locked_satisfyOutboundUnlimited(List<Request> satisfied) {
+        int rv = 0;
         while (!_pendingOutboundRequests.isEmpty()) {
             SimpleRequest req = _pendingOutboundRequests.remove(0);
+            rv++;
             int allocated = req.getPendingRequested();
             _totalAllocatedOutboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
@@ -618,6 +664,7 @@ public class FIFOBandwidthLimiter {
             if (waited > 10)
                 _context.statManager().addRateData("bwLimiter.outboundDelayedTime", waited);
         }
+        return rv;
     }
     
     /**
@@ -625,9 +672,11 @@ public class FIFOBandwidthLimiter {
      * bandwidth as we can to those who have used what we have given them and are waiting
      * for more (giving priority to the first ones who requested it)
      * 
-     * @return list of requests that were completely satisfied
+     * @param satisfied out parameter, the requests that were allocated bytes
+     * @return number of requests removed from the pending list, aborted or completely satisfied
      */
-    private final void locked_satisfyOutboundAvailable(List<Request> satisfied) {
+    private final int locked_satisfyOutboundAvailable(List<Request> satisfied) {
+        int rv = 0;
         for (int i = 0; i < _pendingOutboundRequests.size(); i++) {
             SimpleRequest req = _pendingOutboundRequests.get(i);
             long waited = now() - req.getRequestTime();
@@ -641,6 +690,7 @@ public class FIFOBandwidthLimiter {
                                 + "ms) pending " + _pendingOutboundRequests.size());
                 _pendingOutboundRequests.remove(i);
                 i--;
+                rv++;
                 continue;
             }
             int avo = _availableOutbound.get();
@@ -659,12 +709,8 @@ public class FIFOBandwidthLimiter {
             //}
             // ok, they are really waiting for us to give them stuff
             int requested = req.getPendingRequested();
-            int allocated;
-            if (avo >= requested) 
-                allocated = requested;
-            else
-                allocated = avo;
-            _availableOutbound.addAndGet(0 - allocated);
+            int allocated = take(_availableOutbound, requested);
+            if (allocated <= 0) break;
             _totalAllocatedOutboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
             satisfied.add(req);
@@ -686,16 +732,17 @@ public class FIFOBandwidthLimiter {
                                 + ", longest waited " + locked_getLongestOutboundWait() + " out)");
                 _pendingOutboundRequests.remove(i);
                 i--;
+                rv++;
                 if (waited > 10)
                     _context.statManager().addRateData("bwLimiter.outboundDelayedTime", waited);
             }
         }
+        return rv;
     }
     
     /**
-     *  Lockless total satisfaction,
-     *  at some minor risk of exceeding the limits
-     *  and driving the available counter below zero
+     *  Lockless, allocation-free total satisfaction.
+     *  As of 0.9.28, never exceeds the limits, and only if nothing is queued.
      *
      *  @param requested number of bytes
      *  @return satisfaction
@@ -703,21 +750,18 @@ public class FIFOBandwidthLimiter {
      */
     private boolean shortcutSatisfyInboundRequest(int requested) {
         boolean rv = _inboundUnlimited ||
-                     (_pendingInboundRequests.isEmpty() &&
-                      _availableInbound.get() >= requested);
-        if (rv) {
-            _availableInbound.addAndGet(0 - requested);
+                     (_pendingInboundCount.get() == 0 &&
+                      takeAll(_availableInbound, requested));
+        if (rv)
             _totalAllocatedInboundBytes.addAndGet(requested);
-        }
         //if (_log.shouldLog(Log.INFO))
         //    _log.info("IB shortcut for " + requested + "B? " + rv);
         return rv;
     }
     
     /**
-     *  Lockless total satisfaction,
-     *  at some minor risk of exceeding the limits
-     *  and driving the available counter below zero
+     *  Lockless, allocation-free total satisfaction.
+     *  As of 0.9.28, never exceeds the limits, and only if nothing is queued.
      *
      *  @param requested number of bytes
      *  @return satisfaction
@@ -725,17 +769,48 @@ public class FIFOBandwidthLimiter {
      */
     private boolean shortcutSatisfyOutboundRequest(int requested) {
         boolean rv = _outboundUnlimited ||
-                     (_pendingOutboundRequests.isEmpty() &&
-                      _availableOutbound.get() >= requested);
-        if (rv) {
-            _availableOutbound.addAndGet(0 - requested);
+                     (_pendingOutboundCount.get() == 0 &&
+                      takeAll(_availableOutbound, requested));
+        if (rv)
             _totalAllocatedOutboundBytes.addAndGet(requested);
-        }
         //if (_log.shouldLog(Log.INFO))
         //    _log.info("OB shortcut for " + requested + "B? " + rv);
         return rv;
     }
 
+    /**
+     *  Take all the requested tokens from the bucket, or none.
+     *
+     *  @return true if taken
+     *  @since 0.9.28
+     */
+    private static boolean takeAll(AtomicInteger available, int requested) {
+        while (true) {
+            int avail = available.get();
+            if (avail < requested)
+                return false;
+            if (available.compareAndSet(avail, avail - requested))
+                return true;
+        }
+    }
+
+    /**
+     *  Take as many of the requested tokens from the bucket as are available.
+     *
+     *  @return number taken, 0 if none available
+     *  @since 0.9.28
+     */
+    private static int take(AtomicInteger available, int requested) {
+        while (true) {
+            int avail = available.get();
+            if (avail <= 0)
+                return 0;
+            int rv = Math.min(avail, requested);
+            if (available.compareAndSet(avail, avail - rv))
+                return rv;
+        }
+    }
+
     /** @deprecated not worth translating */
     @Deprecated
     public void renderStatusHTML(Writer out) throws IOException {
@@ -15,7 +15,9 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -37,12 +39,28 @@ import net.i2p.util.SystemVersion;
 
 /**
  *  The main NTCP NIO thread.
+ *
+ *  As of 0.9.28, there may be several, see NTCPTransport.PROP_PUMPERS.
+ *  Each has its own selector and connections are assigned by hash.
+ *  The first one also handles the acceptors and the transport's idle expiration.
+ *  With more than one, the pumpers also process reads and prepare writes
+ *  on established connections themselves when no Reader or Writer
+ *  thread is working on that connection.
  */
 class EventPumper implements Runnable {
     private final RouterContext _context;
     private final Log _log;
     private volatile boolean _alive;
     private Selector _selector;
+    /** 0 to count - 1 */
+    private final int _id;
+    private final int _count;
+    /** process reads and prepare writes in this thread, see class javadoc */
+    private final boolean _inline;
+    /** for inline writes, only used by the pumper thread */
+    private final NTCPConnection.PrepBuffer _prepBuffer;
+    /** null if only one pumper */
+    private final String _keysStat, _busyStat;
     private final Set<NTCPConnection> _wantsWrite = new ConcurrentHashSet<NTCPConnection>(32);
     /**
      *  The following 3 are unbounded and lockless for performance in runDelayedEvents()
@@ -50,6 +68,10 @@ class EventPumper implements Runnable {
     private final Queue<NTCPConnection> _wantsRead = new ConcurrentLinkedQueue<NTCPConnection>();
     private final Queue<ServerSocketChannel> _wantsRegister = new ConcurrentLinkedQueue<ServerSocketChannel>();
     private final Queue<NTCPConnection> _wantsConRegister = new ConcurrentLinkedQueue<NTCPConnection>();
+    /** inbound, accepted by the first pumper, for this one. @since 0.9.28 */
+    private final Queue<SocketChannel> _wantsAcceptRegister = new ConcurrentLinkedQueue<SocketChannel>();
+    /** for gathering writes, pumper thread only. @since 0.9.28 */
+    private final ByteBuffer[] _gatherBufs;
     private final NTCPTransport _transport;
     private final ObjectCounter<ByteArray> _blockedIPs;
     private long _expireIdleWriteTime;
@@ -103,11 +125,36 @@ class EventPumper implements Runnable {
     }
 
     public EventPumper(RouterContext ctx, NTCPTransport transport) {
+        this(ctx, transport, 0, 1, false, new ObjectCounter<ByteArray>());
+    }
+
+    /**
+     *  @param id 0 to count - 1, 0 is the one that accepts
+     *  @param inline process reads and prepare writes in the pumper thread
+     *  @param blockedIPs shared by all the pumpers
+     *  @since 0.9.28
+     */
+    public EventPumper(RouterContext ctx, NTCPTransport transport, int id, int count, boolean inline,
+                       ObjectCounter<ByteArray> blockedIPs) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _transport = transport;
+        _id = id;
+        _count = count;
+        _inline = inline;
+        _prepBuffer = inline ? new NTCPConnection.PrepBuffer() : null;
+        _gatherBufs = new ByteBuffer[transport.getMaxWriteFrames()];
         _expireIdleWriteTime = MAX_EXPIRE_IDLE_TIME;
-        _blockedIPs = new ObjectCounter<ByteArray>();
+        _blockedIPs = blockedIPs;
+        if (count > 1) {
+            _keysStat = "ntcp.pumper" + (id + 1) + "Keys";
+            _busyStat = "ntcp.pumper" + (id + 1) + "Busy";
+            _context.statManager().createRateStat(_keysStat, "Connections on this selector", "ntcp", new long[] {10*60*1000, 60*60*1000} );
+            _context.statManager().createRateStat(_busyStat, "Percent of time this selector thread is not waiting", "ntcp", new long[] {10*60*1000, 60*60*1000} );
+        } else {
+            _keysStat = null;
+            _busyStat = null;
+        }
         _context.statManager().createRateStat("ntcp.pumperKeySetSize", "", "ntcp", new long[] {10*60*1000} );
         //_context.statManager().createRateStat("ntcp.pumperKeysPerLoop", "", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.pumperLoopsPerSecond", "", "ntcp", new long[] {10*60*1000} );
@@ -122,7 +169,8 @@ class EventPumper implements Runnable {
         try {
             _selector = Selector.open();
             _alive = true;
-            new I2PThread(this, "NTCP Pumper", true).start();
+            String name = _count > 1 ? "NTCP Pumper " + (_id + 1) + '/' + _count : "NTCP Pumper";
+            new I2PThread(this, name, true).start();
         } catch (IOException ioe) {
             _log.log(Log.CRIT, "Error opening the NTCP selector", ioe);
         } catch (java.lang.InternalError jlie) {
@@ -166,6 +214,15 @@ class EventPumper implements Runnable {
         _selector.wakeup();
     }
     
+    /**
+     *  Inbound, accepted by the first pumper.
+     *  @since 0.9.28
+     */
+    private void registerAccepted(SocketChannel chan) {
+        _wantsAcceptRegister.offer(chan);
+        _selector.wakeup();
+    }
+
     /**
      *  The selector loop.
      *  On high-bandwidth routers, this is the thread with the highest CPU usage, so
@@ -175,6 +232,7 @@ class EventPumper implements Runnable {
         int loopCount = 0;
         long lastFailsafeIteration = System.currentTimeMillis();
         long lastBlockedIPClear = lastFailsafeIteration;
+        long selectTime = 0;
         while (_alive && _selector.isOpen()) {
             try {
                 loopCount++;
@@ -183,7 +241,10 @@ class EventPumper implements Runnable {
                 try {
                     //if (_log.shouldLog(Log.DEBUG))
                     //    _log.debug("before select...");
+                    long beforeSelect = (_busyStat != null) ? System.nanoTime() : 0;
                     int count = _selector.select(SELECTOR_LOOP_DELAY);
+                    if (_busyStat != null)
+                        selectTime += System.nanoTime() - beforeSelect;
                     if (count > 0) {
                         //if (_log.shouldLog(Log.DEBUG))
                         //    _log.debug("select returned " + count);
@@ -216,6 +277,12 @@ class EventPumper implements Runnable {
                         _context.statManager().addRateData("ntcp.pumperKeySetSize", all.size());
                         _context.statManager().addRateData("ntcp.pumperLoopsPerSecond", loopCount / (FAILSAFE_ITERATION_FREQ / 1000));
                         loopCount = 0;
+                        if (_busyStat != null) {
+                            _context.statManager().addRateData(_keysStat, all.size());
+                            long busy = 100 - (selectTime / (FAILSAFE_ITERATION_FREQ * 10000));
+                            _context.statManager().addRateData(_busyStat, Math.max(0, busy));
+                            selectTime = 0;
+                        }
                         
                         int failsafeWrites = 0;
                         int failsafeCloses = 0;
@@ -314,7 +381,7 @@ class EventPumper implements Runnable {
                         } catch (InterruptedException ie) {}
                     }
                 }
-                if (lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
+                if (_id == 0 && lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
                     _blockedIPs.clear();
                     lastBlockedIPClear = now;
                 }
@@ -361,6 +428,10 @@ class EventPumper implements Runnable {
             _log.error("Error closing keys on pumper shutdown", e);
         }
         _wantsConRegister.clear();
+        SocketChannel schan;
+        while ((schan = _wantsAcceptRegister.poll()) != null) {
+            try { schan.close(); } catch (IOException ioe) {}
+        }
         _wantsRead.clear();
         _wantsRegister.clear();
         _wantsWrite.clear();
@@ -436,6 +507,33 @@ class EventPumper implements Runnable {
         }
     }
 
+    /**
+     *  Called by the connection when it has a batch of CBC-chained frames ready to write.
+     *  One bandwidth request for the whole batch, so the frames go to
+     *  con.write() or con.queuedWrite() together, in the order given.
+     *  The connection must not start another batch until this one is written.
+     *
+     *  @param frames non-empty, in encryption order
+     *  @since 0.9.28
+     */
+    public void wantsWrite(NTCPConnection con, List<byte[]> frames) {
+        List<ByteBuffer> bufs = new ArrayList<ByteBuffer>(frames.size());
+        int len = 0;
+        for (byte[] data : frames) {
+            bufs.add(ByteBuffer.wrap(data));
+            len += data.length;
+        }
+        FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestOutbound(len, 0, "NTCP write");
+        if (req.getPendingRequested() > 0) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("queued write on " + con + " for " + len + " in " + bufs.size() + " frames");
+            _context.statManager().addRateData("ntcp.wantsQueuedWrite", 1);
+            con.queuedWrite(bufs, req);
+        } else {
+            con.write(bufs);
+        }
+    }
+
     /**
      *  Called by the connection when it has data ready to write (after bw allocation).
      *  Only wakeup if new.
@@ -563,8 +661,14 @@ class EventPumper implements Runnable {
             if (shouldSetKeepAlive(chan))
                 chan.socket().setKeepAlive(true);
 
+            EventPumper pumper = _transport.getPumper(chan.socket().getInetAddress().hashCode());
+            if (pumper != this) {
+                pumper.registerAccepted(chan);
+                return;
+            }
             SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
-            new NTCPConnection(_context, _transport, chan, ckey);
+            NTCPConnection con = new NTCPConnection(_context, _transport, chan, ckey);
+            con.setPumper(this);
             //if (_log.shouldLog(Log.DEBUG))
             //    _log.debug("new NTCP connection established: " +con);
         } catch (IOException ioe) {
@@ -689,8 +793,8 @@ class EventPumper implements Runnable {
                     //    _log.debug("not bw throttled reading for " + con);
                     // stay interested
                     //key.interestOps(key.interestOps() | SelectionKey.OP_READ);
-                    con.recv(buf);
                     _context.statManager().addRateData("ntcp.read", read);
+                    con.recv(buf, _inline);
                 }
             }
         } catch (CancelledKeyException cke) {
@@ -744,6 +848,11 @@ class EventPumper implements Runnable {
     /**
      *  OP_WRITE will always be set before this is called.
      *  This method will disable the interest if no more writes remain.
+     *
+     *  As of 0.9.28, writes as many of the connection's buffers as we can
+     *  with a single gathering write, up to the transport's frame and byte limits,
+     *  and repeats until the socket is full or nothing is left.
+     *
      *  High-frequency path in thread.
      */
     private void processWrite(SelectionKey key) {
@@ -751,56 +860,42 @@ class EventPumper implements Runnable {
         //int buffers = 0;
         //long before = System.currentTimeMillis();
         NTCPConnection con = (NTCPConnection)key.attachment();
+        final ByteBuffer[] bufs = _gatherBufs;
+        final int maxBytes = _transport.getMaxWriteBytes();
+        int count = 0;
         try {
             while (true) {
-                ByteBuffer buf = con.getNextWriteBuf();
-                if (buf != null) {
-                    //if (_log.shouldLog(Log.DEBUG))
-                    //    _log.debug("writing " + buf.remaining()+"...");
-                    if (buf.remaining() <= 0) {
-                        //long beforeRem = System.currentTimeMillis();
-                        con.removeWriteBuf(buf);
-                        //long afterRem = System.currentTimeMillis();
-                        //if (_log.shouldLog(Log.DEBUG))
-                        //    _log.debug("buffer was already fully written and removed after " + (afterRem-beforeRem) + "...");
-                        //buffers++;
-                        continue;                    
-                    }
-                    int written = con.getChannel().write(buf);
-                    //totalWritten += written;
-                    if (written == 0) {
-                        if ( (buf.remaining() > 0) || (!con.isWriteBufEmpty()) ) {
-                            //if (_log.shouldLog(Log.DEBUG)) _log.debug("done writing, but data remains...");
-                            // stay interested
-                            //key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                        } else {
-                            //if (_log.shouldLog(Log.DEBUG)) _log.debug("done writing, no data remains...");
-                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-                        }
-                        break;
-                    } else if (buf.remaining() > 0) {
-                        //if (_log.shouldLog(Log.DEBUG)) _log.debug("buffer data remaining...");
-                        // stay interested
-                        //key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                        break;
-                    } else {
-                        //long beforeRem = System.currentTimeMillis();
-                        con.removeWriteBuf(buf);
-                        //long afterRem = System.currentTimeMillis();
-                        //if (_log.shouldLog(Log.DEBUG))
-                        //    _log.debug("buffer "+ buffers+"/"+written+"/"+totalWritten+" fully written after " +
-                        //               (beforeRem-before) + ", then removed after " + (afterRem-beforeRem) + "...");
-                        //releaseBuf(buf);
-                        //buffers++;
-                        //if (buffer time is too much, add OP_WRITe to the interest ops and break?)
-                        // LOOP
-                    }
-                } else {
+                count = con.getWriteBufs(bufs, maxBytes);
+                if (count <= 0) {
                     // Nothing more to write
 		    if (key.isValid())
                     	key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
                     break;
                 }
+                //if (_log.shouldLog(Log.DEBUG))
+                //    _log.debug("writing " + count + " buffers...");
+                long written = con.getChannel().write(bufs, 0, count);
+                //totalWritten += written;
+                // remove the ones that are done, in order
+                int done = 0;
+                while (done < count && bufs[done].remaining() <= 0) {
+                    // if inline, this may add the next buffers for us to write in this loop
+                    con.removeWriteBuf(bufs[done], _prepBuffer);
+                    bufs[done] = null;
+                    done++;
+                }
+                if (written > 0) {
+                    _context.statManager().addRateData("ntcp.writeBytes", written);
+                    _context.statManager().addRateData("ntcp.writeFrames", done);
+                }
+                if (done < count) {
+                    // socket is full, stay interested
+                    //key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    break;
+                }
+                //buffers += done;
+                //if (buffer time is too much, add OP_WRITe to the interest ops and break?)
+                // LOOP
             }
         } catch (CancelledKeyException cke) {
             if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, cke);
@@ -810,6 +905,11 @@ class EventPumper implements Runnable {
             if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, ioe);
             _context.statManager().addRateData("ntcp.writeError", 1);
             con.close();
+        } finally {
+            // don't hold on to them
+            for (int i = 0; i < count; i++) {
+                bufs[i] = null;
+            }
         }
         //long after = System.currentTimeMillis();
         //if (_log.shouldLog(Log.INFO))
@@ -884,6 +984,17 @@ class EventPumper implements Runnable {
             }
         }
         
+        SocketChannel schan;
+        while ((schan = _wantsAcceptRegister.poll()) != null) {
+            try {
+                SelectionKey ckey = schan.register(_selector, SelectionKey.OP_READ);
+                NTCPConnection ncon = new NTCPConnection(_context, _transport, schan, ckey);
+                ncon.setPumper(this);
+            } catch (ClosedChannelException cce) {
+                if (_log.shouldLog(Log.WARN)) _log.warn("Error registering", cce);
+            }
+        }
+
         while ((con = _wantsConRegister.poll()) != null) {
             try {
                 SelectionKey key = con.getChannel().register(_selector, SelectionKey.OP_CONNECT);
@@ -933,7 +1044,7 @@ class EventPumper implements Runnable {
         }
         
         long now = System.currentTimeMillis();
-        if (_lastExpired + 1000 <= now) {
+        if (_id == 0 && _lastExpired + 1000 <= now) {
             expireTimedOut();
             _lastExpired = now;
         }
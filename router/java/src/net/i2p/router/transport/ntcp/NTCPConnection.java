@@ -70,6 +70,8 @@ class NTCPConnection implements Closeable {
     private final RouterContext _context;
     private final Log _log;
     private SocketChannel _chan;
+    /** @since 0.9.28 */
+    private volatile EventPumper _pumper;
     private SelectionKey _conKey;
     private final FIFOBandwidthLimiter.CompleteListener _inboundListener;
     private final FIFOBandwidthLimiter.CompleteListener _outboundListener;
@@ -101,10 +103,11 @@ class NTCPConnection implements Closeable {
     //private final CoDelPriorityBlockingQueue<OutNetMessage> _outbound;
     private final PriBlockingQueue<OutNetMessage> _outbound;
     /**
-     *  current prepared OutNetMessage, or null - synchronize on _outbound to modify or read
+     *  current prepared OutNetMessages, in the order of their buffers in _writeBufs,
+     *  empty if none - synchronize on _outbound to modify or read
      *  FIXME why do we need this???
      */
-    private OutNetMessage _currentOutbound;
+    private final List<OutNetMessage> _currentOutbound;
     private SessionKey _sessionKey;
     /** encrypted block of the current I2NP message being read */
     private byte _curReadBlock[];
@@ -185,6 +188,7 @@ class NTCPConnection implements Closeable {
         _bwOutRequests = new ConcurrentHashSet<Request>(8);
         //_outbound = new CoDelPriorityBlockingQueue(ctx, "NTCP-Connection", 32);
         _outbound = new PriBlockingQueue<OutNetMessage>(ctx, "NTCP-Connection", 32);
+        _currentOutbound = new ArrayList<OutNetMessage>(transport.getMaxWriteFrames());
         _isInbound = true;
         _decryptBlockBuf = new byte[BLOCK_SIZE];
         _curReadState = new ReadState();
@@ -213,6 +217,7 @@ class NTCPConnection implements Closeable {
         _bwOutRequests = new ConcurrentHashSet<Request>(8);
         //_outbound = new CoDelPriorityBlockingQueue(ctx, "NTCP-Connection", 32);
         _outbound = new PriBlockingQueue<OutNetMessage>(ctx, "NTCP-Connection", 32);
+        _currentOutbound = new ArrayList<OutNetMessage>(transport.getMaxWriteFrames());
         _isInbound = false;
         _establishState = new EstablishState(ctx, transport, this);
         _decryptBlockBuf = new byte[BLOCK_SIZE];
@@ -242,6 +247,23 @@ class NTCPConnection implements Closeable {
     public SelectionKey getKey() { return _conKey; }
     public void setChannel(SocketChannel chan) { _chan = chan; }
     public void setKey(SelectionKey key) { _conKey = key; }
+
+    /**
+     *  The pumper whose selector this connection is registered with.
+     *  Before that is set, the transport's first pumper.
+     *  @since 0.9.28
+     */
+    public EventPumper getPumper() {
+        EventPumper rv = _pumper;
+        return rv != null ? rv : _transport.getPumper();
+    }
+
+    /**
+     *  Set before registering with the pumper's selector
+     *  @since 0.9.28
+     */
+    public void setPumper(EventPumper pumper) { _pumper = pumper; }
+
     public boolean isInbound() { return _isInbound; }
     public boolean isEstablished() { return _establishState.isComplete(); }
 
@@ -334,16 +356,18 @@ class NTCPConnection implements Closeable {
     public int getOutboundQueueSize() {
             int queued;
             synchronized(_outbound) {
-                queued = _outbound.size();
-                if (getCurrentOutbound() != null)
-                    queued++;
+                queued = _outbound.size() + _currentOutbound.size();
             }
             return queued;
     }
     
-    private OutNetMessage getCurrentOutbound() {
+    /**
+     *  @return number of prepared messages not yet completely written
+     *  @since 0.9.28 was getCurrentOutbound()
+     */
+    private int getCurrentOutboundCount() {
         synchronized(_outbound) {
-            return _currentOutbound;
+            return _currentOutbound.size();
         }
     }
 
@@ -455,8 +479,12 @@ class NTCPConnection implements Closeable {
         for (OutNetMessage msg : pending) 
             _transport.afterSend(msg, false, allowRequeue, msg.getLifetime());
 
-        OutNetMessage msg = getCurrentOutbound();
-        if (msg != null) 
+        pending.clear();
+        synchronized(_outbound) {
+            pending.addAll(_currentOutbound);
+            _currentOutbound.clear();
+        }
+        for (OutNetMessage msg : pending) 
             _transport.afterSend(msg, false, allowRequeue, msg.getLifetime());
         
         return old;
@@ -494,7 +522,7 @@ class NTCPConnection implements Closeable {
         //int enqueued = _outbound.size();
         // although stat description says ahead of this one, not including this one...
         //_context.statManager().addRateData("ntcp.sendQueueSize", enqueued);
-        boolean noOutbound = (getCurrentOutbound() == null);
+        boolean noOutbound = (getCurrentOutboundCount() == 0);
         //if (_log.shouldLog(Log.DEBUG)) _log.debug("messages enqueued on " + toString() + ": " + enqueued + " new one: " + msg.getMessageId() + " of " + msg.getMessageType());
         if (isEstablished() && noOutbound)
             _transport.getWriter().wantsWrite(this, "enqueued");
@@ -528,7 +556,7 @@ class NTCPConnection implements Closeable {
             int size = _outbound.size();
             if (_log.shouldLog(Log.WARN)) {
 	        int writeBufs = _writeBufs.size();
-                boolean currentOutboundSet = getCurrentOutbound() != null;
+                boolean currentOutboundSet = getCurrentOutboundCount() > 0;
                 try {
                     _log.warn("Too backlogged: size is " + size 
                           + ", wantsWrite? " + (0 != (_conKey.interestOps()&SelectionKey.OP_WRITE))
@@ -768,7 +796,7 @@ class NTCPConnection implements Closeable {
         //    _log.debug("Encrypting " + msg + " [" + System.identityHashCode(msg) + "] crc=" + crc.getValue() + "\nas: " 
         //               + Base64.encode(encrypted, 0, 16) + "...\ndecrypted: " 
         //               + Base64.encode(unencrypted, 0, 16) + "..." + "\nIV=" + Base64.encode(_prevWriteEnd, 0, 16));
-        _transport.getPumper().wantsWrite(this, encrypted);
+        getPumper().wantsWrite(this, encrypted);
 
         // for every 6-12 hours that we are connected to a peer, send them
 	// our updated netDb info (they may not accept it and instead query
@@ -798,27 +826,42 @@ class NTCPConnection implements Closeable {
         }
         
         long now = _context.clock().now();
-        if (_nextMetaTime <= now) {
-            sendMeta();
-            _nextMetaTime = now + (META_FREQUENCY / 2) + _context.random().nextInt(META_FREQUENCY / 2);
-        }
-      
-        OutNetMessage msg = null;
+        List<OutNetMessage> msgs;
         // this is synchronized only for _currentOutbound
         // Todo: figure out how to remove the synchronization
         synchronized (_outbound) {
-            if (_currentOutbound != null) {
+            if (!_currentOutbound.isEmpty()) {
                 if (_log.shouldLog(Log.INFO))
-                    _log.info("attempt for multiple outbound messages with " + System.identityHashCode(_currentOutbound) + " already waiting and " + _outbound.size() + " queued");
+                    _log.info("attempt for multiple outbound messages with " + _currentOutbound.size() + " already waiting and " + _outbound.size() + " queued");
                 return;
             }
+            // Take as many as are queued, up to the frame and size limits,
+            // so EventPumper can write them all with one gathering write.
+            // We never wait for more, so this adds no latency.
+            int maxFrames = _transport.getMaxWriteFrames();
+            int maxBytes = _transport.getMaxWriteBytes();
+            int bytes = 0;
+            while (_currentOutbound.size() < maxFrames && bytes < maxBytes) {
+                OutNetMessage msg = _outbound.poll();
+                if (msg == null)
+                    break;
+                _currentOutbound.add(msg);
+                bytes += msg.getMessageSize();
+            }
+            // The metadata goes out with the next batch, never on its own,
+            // so there is never more than one batch waiting for bandwidth
+            if (_currentOutbound.isEmpty())
+                return;
+            msgs = new ArrayList<OutNetMessage>(_currentOutbound);
 /****
                 //throw new RuntimeException("We should not be preparing a write while we still have one pending");
             if (queueTime() > 3*1000) {  // don't stall low-priority messages
 ****/
+/****
                 msg = _outbound.poll();
                 if (msg == null)
                     return;
+****/
 /****
             } else {
                 // FIXME
@@ -846,19 +889,34 @@ class NTCPConnection implements Closeable {
                     _log.warn("Already removed??? " + msg.getMessage().getType());
             }
 ****/
-            _currentOutbound = msg;
         }
+        if (msgs.size() > 1)
+            _context.statManager().addRateData("ntcp.prepareFrames", msgs.size());
         
-        //long begin = System.currentTimeMillis();
-        bufferedPrepare(msg,buf);
-        _context.aes().encrypt(buf.unencrypted, 0, buf.encrypted, 0, _sessionKey, _prevWriteEnd, 0, buf.unencryptedLength);
-        System.arraycopy(buf.encrypted, buf.encrypted.length-16, _prevWriteEnd, 0, _prevWriteEnd.length);
-        //long encryptedTime = System.currentTimeMillis();
-        //if (_log.shouldLog(Log.DEBUG))
-        //    _log.debug("Encrypting " + msg + " [" + System.identityHashCode(msg) + "] crc=" + crc.getValue() + "\nas: " 
-        //               + Base64.encode(encrypted, 0, 16) + "...\ndecrypted: " 
-        //               + Base64.encode(unencrypted, 0, 16) + "..." + "\nIV=" + Base64.encode(_prevWriteEnd, 0, 16));
-        _transport.getPumper().wantsWrite(this, buf.encrypted);
+        // One frame per message, in order, as each is the IV for the next.
+        // They all go to the pumper as one bandwidth request, if each had its own,
+        // a later one could be allocated first and reach the socket out of order.
+        List<byte[]> frames = new ArrayList<byte[]>(msgs.size() + 1);
+        if (_nextMetaTime <= now) {
+            frames.add(prepareMeta());
+            _nextMetaTime = now + (META_FREQUENCY / 2) + _context.random().nextInt(META_FREQUENCY / 2);
+        }
+        for (int i = 0; i < msgs.size(); i++) {
+            if (i > 0)
+                buf.init();
+            OutNetMessage msg = msgs.get(i);
+            //long begin = System.currentTimeMillis();
+            bufferedPrepare(msg,buf);
+            _context.aes().encrypt(buf.unencrypted, 0, buf.encrypted, 0, _sessionKey, _prevWriteEnd, 0, buf.unencryptedLength);
+            System.arraycopy(buf.encrypted, buf.encrypted.length-16, _prevWriteEnd, 0, _prevWriteEnd.length);
+            //long encryptedTime = System.currentTimeMillis();
+            //if (_log.shouldLog(Log.DEBUG))
+            //    _log.debug("Encrypting " + msg + " [" + System.identityHashCode(msg) + "] crc=" + crc.getValue() + "\nas: " 
+            //               + Base64.encode(encrypted, 0, 16) + "...\ndecrypted: " 
+            //               + Base64.encode(unencrypted, 0, 16) + "..." + "\nIV=" + Base64.encode(_prevWriteEnd, 0, 16));
+            frames.add(buf.encrypted);
+        }
+        getPumper().wantsWrite(this, frames);
         //long wantsTime = System.currentTimeMillis();
         //long releaseTime = System.currentTimeMillis();
         //if (_log.shouldLog(Log.DEBUG))
@@ -979,7 +1037,7 @@ class NTCPConnection implements Closeable {
             // our reads used to be bw throttled (during which time we were no
             // longer interested in reading from the network), but we aren't
             // throttled anymore, so we should resume being interested in reading
-            _transport.getPumper().wantsRead(NTCPConnection.this);
+            getPumper().wantsRead(NTCPConnection.this);
             //_transport.getReader().wantsRead(this);
         }
     }
@@ -991,10 +1049,16 @@ class NTCPConnection implements Closeable {
     private class OutboundListener implements FIFOBandwidthLimiter.CompleteListener {
         public void complete(FIFOBandwidthLimiter.Request req) {
             removeOBRequest(req);
-            ByteBuffer buf = (ByteBuffer)req.attachment();
+            Object att = req.attachment();
             if (!_closed.get()) {
                 _context.statManager().addRateData("ntcp.throttledWriteComplete", (_context.clock().now()-req.getRequestTime()));
-                write(buf);
+                if (att instanceof ByteBuffer) {
+                    write((ByteBuffer) att);
+                } else {
+                    @SuppressWarnings("unchecked")
+                    List<ByteBuffer> bufs = (List<ByteBuffer>) att;
+                    write(bufs);
+                }
             }
         }
     }
@@ -1033,6 +1097,18 @@ class NTCPConnection implements Closeable {
         req.setCompleteListener(_outboundListener);
         addOBRequest(req);
     }
+
+    /**
+     *  As queuedWrite(buf, req), for a batch of frames under one request
+     *
+     *  @param bufs in order
+     *  @since 0.9.28
+     */
+    public void queuedWrite(List<ByteBuffer> bufs, FIFOBandwidthLimiter.Request req) {
+        req.attach(bufs);
+        req.setCompleteListener(_outboundListener);
+        addOBRequest(req);
+    }
     
     /**
      * The contents of the buffer have been read and can be processed asap.
@@ -1041,11 +1117,24 @@ class NTCPConnection implements Closeable {
      * and call EventPumper.releaseBuf().
      */
     public void recv(ByteBuffer buf) {
+        recv(buf, false);
+    }
+
+    /**
+     *  As recv(buf), but if inline is true and we are established,
+     *  process it in the caller's (pumper) thread if no reader has it.
+     *
+     *  @since 0.9.28
+     */
+    public void recv(ByteBuffer buf, boolean inline) {
         _bytesReceived += buf.remaining();
             //buf.flip();
         _readBufs.offer(buf);
-        _transport.getReader().wantsRead(this);
         updateStats();
+        if (inline && isEstablished())
+            _transport.getReader().readInline(this);
+        else
+            _transport.getReader().wantsRead(this);
     }
 
     /**
@@ -1056,7 +1145,18 @@ class NTCPConnection implements Closeable {
         //if (_log.shouldLog(Log.DEBUG)) _log.debug("Before write(buf)");
         _writeBufs.offer(buf);
         //if (_log.shouldLog(Log.DEBUG)) _log.debug("After write(buf)");
-        _transport.getPumper().wantsWrite(this);
+        getPumper().wantsWrite(this);
+    }
+
+    /**
+     *  As write(buf), for a batch of frames under one request
+     *
+     *  @param bufs in order
+     *  @since 0.9.28
+     */
+    public void write(List<ByteBuffer> bufs) {
+        _writeBufs.addAll(bufs);
+        getPumper().wantsWrite(this);
     }
     
     /** @return null if none available */
@@ -1076,11 +1176,45 @@ class NTCPConnection implements Closeable {
     public ByteBuffer getNextWriteBuf() {
         return _writeBufs.peek(); // not remove!  we removeWriteBuf afterwards
     }
+
+    /**
+     *  The buffers at the head of the write queue, in order, for a gathering write.
+     *  Not removed, call removeWriteBuf() for each one after it is completely written.
+     *  At least one is returned if any are available, even if over maxBytes.
+     *
+     *  @param out out parameter, filled from index 0, up to its length
+     *  @param maxBytes stop after this many bytes remaining
+     *  @return the number of buffers in out, 0 if none available
+     *  @since 0.9.28
+     */
+    public int getWriteBufs(ByteBuffer[] out, int maxBytes) {
+        int rv = 0;
+        int bytes = 0;
+        for (ByteBuffer buf : _writeBufs) {
+            out[rv++] = buf;
+            bytes += buf.remaining();
+            if (rv >= out.length || bytes >= maxBytes)
+                break;
+        }
+        return rv;
+    }
     
     /**
      *  Remove the buffer, which _should_ be the one at the head of _writeBufs
      */
     public void removeWriteBuf(ByteBuffer buf) {
+        removeWriteBuf(buf, null);
+    }
+
+    /**
+     *  Remove the buffer, which _should_ be the one at the head of _writeBufs.
+     *  If prep is non-null, prepare the next write in the caller's (pumper)
+     *  thread if no writer has it.
+     *
+     *  @param prep may be null
+     *  @since 0.9.28
+     */
+    public void removeWriteBuf(ByteBuffer buf, PrepBuffer prep) {
         _bytesSent += buf.capacity();
         OutNetMessage msg = null;
         boolean clearMessage = false;
@@ -1090,13 +1224,14 @@ class NTCPConnection implements Closeable {
             clearMessage = true;
         }
         _writeBufs.remove(buf);
+        // prepare more when the last one of the current batch is gone
+        boolean prepareMore;
         if (clearMessage) {
             // see synchronization comments in prepareNextWriteFast()
             synchronized (_outbound) {
-                if (_currentOutbound != null) {
-                    msg = _currentOutbound;
-                    _currentOutbound = null;
-                }
+                if (!_currentOutbound.isEmpty())
+                    msg = _currentOutbound.remove(0);
+                prepareMore = _currentOutbound.isEmpty() && !_outbound.isEmpty();
             }
             if (msg != null) {
                 _lastSendTime = _context.clock().now();
@@ -1113,10 +1248,17 @@ class NTCPConnection implements Closeable {
         } else {
             if (_log.shouldLog(Log.INFO))
                 _log.info("I2NP meta message sent completely");
+            synchronized (_outbound) {
+                prepareMore = _currentOutbound.isEmpty() && !_outbound.isEmpty();
+            }
         }
         
-        if (getOutboundQueueSize() > 0) // push through the bw limiter to reach _writeBufs
-            _transport.getWriter().wantsWrite(this, "write completed");
+        if (prepareMore) { // push through the bw limiter to reach _writeBufs
+            if (prep != null)
+                _transport.getWriter().writeInline(this, prep);
+            else
+                _transport.getWriter().wantsWrite(this, "write completed");
+        }
 
         // this is not necessary, EventPumper.processWrite() handles this
         // and it just causes unnecessary selector.wakeup() and looping
@@ -1349,8 +1491,10 @@ class NTCPConnection implements Closeable {
      *          uninterpreted           | adler checksum of sz+data+pad |
      *  +-------+-------+-------+-------+-------+-------+-------+-------+
      *</pre>
+     *
+     *  @return the encrypted frame, to be sent in order with the batch it was prepared for
      */
-    private void sendMeta() {
+    private byte[] prepareMeta() {
         byte encrypted[] = new byte[_meta.length];
         synchronized (_meta) {
             DataHelper.toLong(_meta, 0, 2, 0);
@@ -1366,8 +1510,8 @@ class NTCPConnection implements Closeable {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Sending NTCP metadata");
         _sendingMeta = true;
-        _transport.getPumper().wantsWrite(this, encrypted);
         // enqueueInfoMessage(); // this often?
+        return encrypted;
     }
     
     private static final int MAX_HANDLERS = 4;
@@ -24,6 +24,7 @@ import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.i2p.crypto.SigType;
+import net.i2p.data.ByteArray;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import net.i2p.data.router.RouterAddress;
@@ -46,6 +47,7 @@ import net.i2p.router.util.DecayingBloomFilter;
 import net.i2p.util.Addresses;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.Log;
+import net.i2p.util.ObjectCounter;
 import net.i2p.util.OrderedProperties;
 import net.i2p.util.SystemVersion;
 import net.i2p.util.VersionComparator;
@@ -64,7 +66,10 @@ public class NTCPTransport extends TransportImpl {
     private final SharedBid _transientFail;
     private final Object _conLock;
     private final Map<Hash, NTCPConnection> _conByIdent;
+    /** the first of _pumpers, handles accepts */
     private final EventPumper _pumper;
+    /** @since 0.9.28 */
+    private final EventPumper[] _pumpers;
     private final Reader _reader;
     private net.i2p.router.transport.ntcp.Writer _writer;
     private int _ssuPort;
@@ -96,6 +101,34 @@ public class NTCPTransport extends TransportImpl {
     
     /** this is rarely if ever used, default is to bind to wildcard address */
     public static final String PROP_BIND_INTERFACE = "i2np.ntcp.bindInterface";
+    /**
+     *  Number of EventPumper selector threads, default 1. Requires restart.
+     *  @since 0.9.28
+     */
+    private static final String PROP_PUMPERS = "i2np.ntcp.pumpers";
+    /**
+     *  With more than one pumper, process reads and prepare writes in the
+     *  pumper threads where possible, default true. Requires restart.
+     *  @since 0.9.28
+     */
+    private static final String PROP_PUMPER_INLINE = "i2np.ntcp.pumperInline";
+    private static final int MAX_PUMPERS = 16;
+    /**
+     *  Max I2NP messages to prepare together and write with one gathering write,
+     *  default 16, 1 to disable. Requires restart.
+     *  @since 0.9.28
+     */
+    private static final String PROP_WRITE_FRAMES = "i2np.ntcp.maxFramesPerWrite";
+    /**
+     *  Stop adding messages to a batch once it is this big, default 16 KB.
+     *  Requires restart.
+     *  @since 0.9.28
+     */
+    private static final String PROP_WRITE_BYTES = "i2np.ntcp.maxBytesPerWrite";
+    private static final int DEFAULT_WRITE_FRAMES = 16;
+    private static final int MAX_WRITE_FRAMES = 64;
+    private final int _maxWriteFrames;
+    private final int _maxWriteBytes;
 
     private final NTCPSendFinisher _finisher;
     private final DHSessionKeyBuilder.Factory _dhFactory;
@@ -182,6 +215,9 @@ public class NTCPTransport extends TransportImpl {
         _context.statManager().createRateStat("ntcp.wantsQueuedWrite", "", "ntcp", RATES);
         //_context.statManager().createRateStat("ntcp.write", "", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.writeError", "", "ntcp", RATES);
+        _context.statManager().createRateStat("ntcp.prepareFrames", "Messages prepared together for one connection (if more than one)", "ntcp", RATES);
+        _context.statManager().createRateStat("ntcp.writeFrames", "Frames completed per write call", "ntcp", RATES);
+        _context.statManager().createRateStat("ntcp.writeBytes", "Bytes written per write call", "ntcp", RATES);
         _endpoints = new HashSet<InetSocketAddress>(4);
         _establishing = new ConcurrentHashSet<NTCPConnection>(16);
         _conLock = new Object();
@@ -190,7 +226,16 @@ public class NTCPTransport extends TransportImpl {
 
         _finisher = new NTCPSendFinisher(ctx, this);
 
-        _pumper = new EventPumper(ctx, this);
+        _maxWriteFrames = Math.max(1, Math.min(MAX_WRITE_FRAMES, ctx.getProperty(PROP_WRITE_FRAMES, DEFAULT_WRITE_FRAMES)));
+        _maxWriteBytes = Math.max(NTCPConnection.BUFFER_SIZE / 4, ctx.getProperty(PROP_WRITE_BYTES, NTCPConnection.BUFFER_SIZE));
+        int pumpers = Math.max(1, Math.min(MAX_PUMPERS, ctx.getProperty(PROP_PUMPERS, 1)));
+        boolean inline = pumpers > 1 && ctx.getProperty(PROP_PUMPER_INLINE, true);
+        ObjectCounter<ByteArray> blockedIPs = new ObjectCounter<ByteArray>();
+        _pumpers = new EventPumper[pumpers];
+        for (int i = 0; i < pumpers; i++) {
+            _pumpers[i] = new EventPumper(ctx, this, i, pumpers, inline, blockedIPs);
+        }
+        _pumper = _pumpers[0];
         _reader = new Reader(ctx);
         _writer = new net.i2p.router.transport.ntcp.Writer(ctx);
 
@@ -286,7 +331,9 @@ public class NTCPTransport extends TransportImpl {
                     SocketChannel channel = SocketChannel.open();
                     con.setChannel(channel);
                     channel.configureBlocking(false);
-                    _pumper.registerConnect(con);
+                    EventPumper pumper = getPumper(ih.hashCode());
+                    con.setPumper(pumper);
+                    pumper.registerConnect(con);
                     con.getEstablishState().prepareOutbound();
                 } catch (IOException ioe) {
                     if (_log.shouldLog(Log.ERROR))
@@ -620,7 +667,7 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void startListening() {
         // try once again to prevent two pumpers which is fatal
-        if (_pumper.isAlive())
+        if (isAlive())
             return;
         if (_log.shouldLog(Log.WARN)) _log.warn("Starting NTCP transport listening");
 
@@ -691,7 +738,9 @@ public class NTCPTransport extends TransportImpl {
      */
     private void startIt() {
         _finisher.start();
-        _pumper.startPumping();
+        for (EventPumper pumper : _pumpers) {
+            pumper.startPumping();
+        }
 
         long maxMemory = SystemVersion.getMaxMemory();
         int nr, nw;
@@ -708,7 +757,11 @@ public class NTCPTransport extends TransportImpl {
     }
 
     public boolean isAlive() {
-        return _pumper.isAlive();
+        for (EventPumper pumper : _pumpers) {
+            if (pumper.isAlive())
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -845,10 +898,36 @@ public class NTCPTransport extends TransportImpl {
     public String getStyle() { return STYLE; }
 
     /**
-     *  Hook for NTCPConnection
+     *  Hook for NTCPConnection.
+     *  The first pumper, which handles accepts and expiration.
+     *  Connections should use NTCPConnection.getPumper().
      */
     EventPumper getPumper() { return _pumper; }
 
+    /**
+     *  The pumper for a new connection
+     *
+     *  @param hash of the remote peer or IP
+     *  @since 0.9.28
+     */
+    EventPumper getPumper(int hash) {
+        if (_pumpers.length == 1)
+            return _pumper;
+        return _pumpers[(hash & Integer.MAX_VALUE) % _pumpers.length];
+    }
+
+    /**
+     *  Max frames to prepare and write at once, 1 or more
+     *  @since 0.9.28
+     */
+    int getMaxWriteFrames() { return _maxWriteFrames; }
+
+    /**
+     *  Soft limit on bytes to prepare and write at once
+     *  @since 0.9.28
+     */
+    int getMaxWriteBytes() { return _maxWriteBytes; }
+
     /**
      *  @since 0.9
      */
@@ -1317,7 +1396,9 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void stopListening() {
         if (_log.shouldLog(Log.WARN)) _log.warn("Stopping ntcp transport");
-        _pumper.stopPumping();
+        for (EventPumper pumper : _pumpers) {
+            pumper.stopPumping();
+        }
         _writer.stopWriting();
         _reader.stopReading();
         _finisher.stop();
@@ -72,6 +72,42 @@ class Reader {
             _log.debug("wantsRead: " + con + " already live? " + already);
     }
 
+    /**
+     *  Process the reads in the caller's thread if no reader is working on it,
+     *  otherwise same as wantsRead().
+     *  For the pumpers, to save the handoff to a reader thread.
+     *
+     *  @since 0.9.28
+     */
+    public void readInline(NTCPConnection con) {
+        synchronized (_pendingConnections) {
+            if (_liveReads.contains(con)) {
+                _readAfterLive.add(con);
+                return;
+            }
+            if (_pendingConnections.contains(con))
+                return;
+            _liveReads.add(con);
+        }
+        try {
+            processRead(con);
+        } catch (IllegalStateException ise) {
+            if (_log.shouldWarn())
+                _log.warn("Error in the ntcp reader", ise);
+        } catch (RuntimeException re) {
+            _log.log(Log.CRIT, "Error in the ntcp reader", re);
+        } finally {
+            synchronized (_pendingConnections) {
+                _liveReads.remove(con);
+                // something came in from another thread while we were processing
+                if (_readAfterLive.remove(con)) {
+                    _pendingConnections.add(con);
+                    _pendingConnections.notify();
+                }
+            }
+        }
+    }
+
     public void connectionClosed(NTCPConnection con) {
         synchronized (_pendingConnections) {
             _readAfterLive.remove(con);
@@ -70,6 +70,40 @@ class Writer {
             _log.debug("wantsWrite: " + con + " already live? " + already + " added to pending? " + pending + ": " + source);
     }
 
+    /**
+     *  Prepare the next write in the caller's thread if no writer is working on it,
+     *  otherwise same as wantsWrite().
+     *  For the pumpers, to save the handoff to a writer thread.
+     *
+     *  @param prep scratch space owned by the caller
+     *  @since 0.9.28
+     */
+    public void writeInline(NTCPConnection con, NTCPConnection.PrepBuffer prep) {
+        synchronized (_pendingConnections) {
+            if (_liveWrites.contains(con)) {
+                _writeAfterLive.add(con);
+                return;
+            }
+            if (_pendingConnections.contains(con))
+                return;
+            _liveWrites.add(con);
+        }
+        try {
+            prep.init();
+            con.prepareNextWrite(prep);
+        } catch (RuntimeException re) {
+            _log.log(Log.CRIT, "Error in the ntcp writer on " + con, re);
+        } finally {
+            synchronized (_pendingConnections) {
+                _liveWrites.remove(con);
+                if (_writeAfterLive.remove(con)) {
+                    _pendingConnections.add(con);
+                    _pendingConnections.notify();
+                }
+            }
+        }
+    }
+
     public void connectionClosed(NTCPConnection con) {
         synchronized (_pendingConnections) {
             _writeAfterLive.remove(con);
@@ -140,6 +140,28 @@ class PacketHandler {
         _inboundQueue.put(packet);
     }
 
+    /**
+     * Queue each packet in turn, as in queueReceived(UDPPacket).
+     * Blocking if the queue is full.
+     * If interrupted, the packets not yet queued are released.
+     *
+     * @param packets will not be modified
+     * @since 0.9.28
+     */
+    public void queueReceived(List<UDPPacket> packets) throws InterruptedException {
+        int sz = packets.size();
+        for (int i = 0; i < sz; i++) {
+            try {
+                _inboundQueue.put(packets.get(i));
+            } catch (InterruptedException ie) {
+                for (int j = i; j < sz; j++) {
+                    packets.get(j).release();
+                }
+                throw ie;
+            }
+        }
+    }
+
 
     /**
      * Blocking for a while
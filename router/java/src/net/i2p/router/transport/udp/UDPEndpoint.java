@@ -5,7 +5,9 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.router.RouterContext;
@@ -24,6 +26,8 @@ class UDPEndpoint implements SocketListener {
     private UDPSender _sender;
     private UDPReceiver _receiver;
     private DatagramSocket _socket;
+    /** non-null only if NIO is enabled, in which case _socket is its socket */
+    private DatagramChannel _channel;
     private final InetAddress _bindAddress;
     private final boolean _isIPv4, _isIPv6;
     private static final AtomicInteger _counter = new AtomicInteger();
@@ -58,10 +62,10 @@ class UDPEndpoint implements SocketListener {
             throw new SocketException("SSU Unable to bind to a port on " + _bindAddress);
         }
         int count = _counter.incrementAndGet();
-        _sender = new UDPSender(_context, _socket, "UDPSender " + count, this);
+        _sender = new UDPSender(_context, _socket, _channel, "UDPSender " + count, this);
         _sender.startup();
         if (_transport != null) {
-            _receiver = new UDPReceiver(_context, _transport, _socket, "UDPReceiver " + count, this);
+            _receiver = new UDPReceiver(_context, _transport, _socket, _channel, "UDPReceiver " + count, this);
             _receiver.startup();
         }
     }
@@ -71,6 +75,12 @@ class UDPEndpoint implements SocketListener {
             _sender.shutdown();
             _receiver.shutdown();
         }
+        if (_channel != null) {
+            try {
+                _channel.close();
+            } catch (IOException ioe) {}
+            _channel = null;
+        }
         if (_socket != null) {
             _socket.close();
         }
@@ -103,9 +113,17 @@ class UDPEndpoint implements SocketListener {
     private static final int MIN_RANDOM_PORT = 9111;
     private static final int MAX_RANDOM_PORT = 30777;
     private static final int MAX_PORT_RETRIES = 20;
+    /**
+     *  Use a non-blocking DatagramChannel, reading several datagrams per
+     *  selector wakeup, instead of blocking DatagramSocket calls.
+     *  @since 0.9.28
+     */
+    public static final String PROP_USE_NIO = "i2np.udp.useNIO";
+    private static final boolean DEFAULT_USE_NIO = false;
 
     /**
      *  Open socket using requested port in _listenPort and  bind host in _bindAddress.
+     *  If NIO is enabled, sets _channel, and the returned socket is its socket.
      *  If _listenPort <= 0, or requested port is busy, repeatedly try a new random port.
      *  @return null on failure
      *  Sets _listenPort to actual port or -1 on failure
@@ -113,6 +131,7 @@ class UDPEndpoint implements SocketListener {
     private DatagramSocket getSocket() {
         DatagramSocket socket = null;
         int port = _listenPort;
+        boolean useNIO = _context.getProperty(PROP_USE_NIO, DEFAULT_USE_NIO);
         if (port > 0 && !TransportUtil.isValidPort(port)) {
             _log.error("Specified UDP port " + port + " is not valid, selecting a new port");
             // See isValidPort() for list
@@ -126,15 +145,33 @@ class UDPEndpoint implements SocketListener {
                  // so we stay out of the way of other I2P stuff
                  port = selectRandomPort(_context);
              }
-             try {
-                 if (_bindAddress == null)
-                     socket = new DatagramSocket(port);
-                 else
-                     socket = new DatagramSocket(port, _bindAddress);
-                 break;
-             } catch (SocketException se) {
-                 if (_log.shouldLog(Log.WARN))
-                     _log.warn("Binding to port " + port + " failed", se);
+             if (useNIO) {
+                 DatagramChannel chan = null;
+                 try {
+                     chan = DatagramChannel.open();
+                     socket = chan.socket();
+                     socket.bind(new InetSocketAddress(_bindAddress, port));
+                     _channel = chan;
+                     break;
+                 } catch (IOException ioe) {
+                     socket = null;
+                     if (chan != null) {
+                         try { chan.close(); } catch (IOException e) {}
+                     }
+                     if (_log.shouldLog(Log.WARN))
+                         _log.warn("Binding to port " + port + " failed", ioe);
+                 }
+             } else {
+                 try {
+                     if (_bindAddress == null)
+                         socket = new DatagramSocket(port);
+                     else
+                         socket = new DatagramSocket(port, _bindAddress);
+                     break;
+                 } catch (SocketException se) {
+                     if (_log.shouldLog(Log.WARN))
+                         _log.warn("Binding to port " + port + " failed", se);
+                 }
              }
              port = -1;
         }
@@ -179,6 +216,7 @@ class UDPEndpoint implements SocketListener {
      *
      * UNIT TESTING ONLY. Direct from the socket.
      * In normal operation, UDPReceiver thread injects to PacketHandler queue.
+     * Does not work if NIO is enabled.
      *
      * @return null if we have shut down, or on failure
      */
@@ -20,21 +20,29 @@ import net.i2p.util.SystemVersion;
  * Basic delivery unit containing the datagram.  This also maintains a cache
  * of object instances to allow rapid reuse.
  *
+ * Not thread-safe. As of 0.9.28, a packet has a single owner at a time,
+ * and ownership is handed off through the queues between the threads
+ * (UDPReceiver to PacketHandler, PacketPusher to UDPSender, and the cache),
+ * which provide the necessary memory barriers.
+ * The owner must not touch the packet after queueing or releasing it.
+ * Set the system property i2np.udp.debugPackets=true to record where
+ * packets are acquired and released, to track down use-after-release.
+ *
  */
 class UDPPacket implements CDQEntry {
     private RouterContext _context;
     private final DatagramPacket _packet;
-    private volatile short _priority;
-    private volatile long _initializeTime;
+    private short _priority;
+    private long _initializeTime;
     //private volatile long _expiration;
     private final byte[] _data;
     private final byte[] _validateBuf;
     private final byte[] _ivBuf;
-    private volatile int _markedType;
+    private int _markedType;
     private RemoteHostId _remoteHost;
     private boolean _released;
-    //private volatile Exception _releasedBy;
-    //private volatile Exception _acquiredBy;
+    /** debug only */
+    private Exception _releasedBy, _acquiredBy;
     private long _enqueueTime;
     private long _receivedTime;
     //private long _beforeValidate;
@@ -48,6 +56,11 @@ class UDPPacket implements CDQEntry {
     //  Warning - this mixes contexts in a multi-router JVM
     private static final Queue<UDPPacket> _packetCache;
     private static final boolean CACHE = true;
+    /**
+     *  Record stack traces on acquire and release.
+     *  @since 0.9.28
+     */
+    private static final boolean DEBUG = Boolean.valueOf(System.getProperty("i2np.udp.debugPackets"));
     private static final int MIN_CACHE_SIZE = 64;
     private static final int MAX_CACHE_SIZE = 256;
     static {
@@ -133,7 +146,7 @@ class UDPPacket implements CDQEntry {
         init(ctx);
     }
 
-    private synchronized void init(RouterContext ctx) {
+    private void init(RouterContext ctx) {
         _context = ctx;
         //_dataBuf = _dataCache.acquire();
         Arrays.fill(_data, (byte)0);
@@ -150,6 +163,10 @@ class UDPPacket implements CDQEntry {
         _validateCount = 0;
         _remoteHost = null;
         _released = false;
+        if (DEBUG) {
+            _acquiredBy = new Exception("acquired by");
+            _releasedBy = null;
+        }
         // clear out some values to make debugging easier via toString()
         _messageType = -1;
         _enqueueTime = 0;
@@ -167,20 +184,20 @@ class UDPPacket implements CDQEntry {
   ****/
 
     /** */
-    public synchronized DatagramPacket getPacket() { verifyNotReleased(); return _packet; }
-    public synchronized short getPriority() { verifyNotReleased(); return _priority; }
+    public DatagramPacket getPacket() { verifyNotReleased(); return _packet; }
+    public short getPriority() { verifyNotReleased(); return _priority; }
     //public long getExpiration() { verifyNotReleased(); return _expiration; }
-    public synchronized long getBegin() { verifyNotReleased(); return _initializeTime; }
+    public long getBegin() { verifyNotReleased(); return _initializeTime; }
     public long getLifetime() { /** verifyNotReleased(); */ return _context.clock().now() - _initializeTime; }
-    public synchronized void resetBegin() { _initializeTime = _context.clock().now(); }
+    public void resetBegin() { _initializeTime = _context.clock().now(); }
     /** flag this packet as a particular type for accounting purposes */
-    public synchronized void markType(int type) { verifyNotReleased(); _markedType = type; }
+    public void markType(int type) { verifyNotReleased(); _markedType = type; }
     /** 
      * flag this packet as a particular type for accounting purposes, with
      * 1 implying the packet is an ACK, otherwise it is a data packet
      *
      */
-    public synchronized int getMarkedType() { verifyNotReleased(); return _markedType; }
+    public int getMarkedType() { verifyNotReleased(); return _markedType; }
     
     private int _messageType;
     private int _fragmentCount;
@@ -195,7 +212,7 @@ class UDPPacket implements CDQEntry {
     /** only for debugging and stats */
     void setFragmentCount(int count) { _fragmentCount = count; }
 
-    synchronized RemoteHostId getRemoteHost() {
+    RemoteHostId getRemoteHost() {
         if (_remoteHost == null) {
             //long before = System.currentTimeMillis();
             InetAddress addr = _packet.getAddress();
@@ -214,7 +231,7 @@ class UDPPacket implements CDQEntry {
      * MAC matches, false otherwise.
      *
      */
-    public synchronized boolean validate(SessionKey macKey) {
+    public boolean validate(SessionKey macKey) {
         verifyNotReleased(); 
         //_beforeValidate = _context.clock().now();
         boolean eq = false;
@@ -277,7 +294,7 @@ class UDPPacket implements CDQEntry {
      * with the decrypted data (leaving the MAC and IV unaltered)
      * 
      */
-    public synchronized void decrypt(SessionKey cipherKey) {
+    public void decrypt(SessionKey cipherKey) {
         verifyNotReleased(); 
         System.arraycopy(_data, MAC_SIZE, _ivBuf, 0, IV_SIZE);
         int len = _packet.getLength();
@@ -300,7 +317,7 @@ class UDPPacket implements CDQEntry {
     public void setEnqueueTime(long now) { _enqueueTime = now; }
 
     /** a packet handler has pulled it off the inbound queue */
-    synchronized void received() { _receivedTime = _context.clock().now(); }
+    void received() { _receivedTime = _context.clock().now(); }
 
     /** a packet handler has decrypted and verified the packet and is about to parse out the good bits */
     //void beforeReceiveFragments() { _beforeReceiveFragments = _context.clock().now(); }
@@ -314,7 +331,7 @@ class UDPPacket implements CDQEntry {
     public long getEnqueueTime() { return _enqueueTime; }
 
     /** a packet handler has pulled it off the inbound queue */
-    synchronized long getTimeSinceReceived() { return (_receivedTime > 0 ? _context.clock().now() - _receivedTime : 0); }
+    long getTimeSinceReceived() { return (_receivedTime > 0 ? _context.clock().now() - _receivedTime : 0); }
 
     /** a packet handler has decrypted and verified the packet and is about to parse out the good bits */
     //long getTimeSinceReceiveFragments() { return (_beforeReceiveFragments > 0 ? _context.clock().now() - _beforeReceiveFragments : 0); }
@@ -329,7 +346,7 @@ class UDPPacket implements CDQEntry {
      *  @deprecated unused
      */
     @Deprecated
-    public synchronized void requestInboundBandwidth() {
+    public void requestInboundBandwidth() {
         verifyNotReleased();
         _bandwidthRequest = _context.bandwidthLimiter().requestInbound(_packet.getLength(), "UDP receiver");
     }
@@ -340,7 +357,7 @@ class UDPPacket implements CDQEntry {
      *  Call before enqueueing.
      *  @since 0.9.21
      */
-    public synchronized void requestOutboundBandwidth() {
+    public void requestOutboundBandwidth() {
         verifyNotReleased();
         _bandwidthRequest = _context.bandwidthLimiter().requestOutbound(_packet.getLength(), 0, "UDP sender");
     }
@@ -351,7 +368,7 @@ class UDPPacket implements CDQEntry {
      *  Call after dequeueing.
      *  @since 0.9.21
      */
-    public synchronized FIFOBandwidthLimiter.Request getBandwidthRequest() {
+    public FIFOBandwidthLimiter.Request getBandwidthRequest() {
         verifyNotReleased();
         return _bandwidthRequest;
     }
@@ -400,14 +417,14 @@ class UDPPacket implements CDQEntry {
         if (CACHE) {
             rv = _packetCache.poll();
             if (rv != null) {
-                synchronized(rv) {
-                    if (!rv._released) {
-                        Log log = rv._context.logManager().getLog(UDPPacket.class);
-                        log.error("Unreleased cached packet", new Exception());
-                        rv = null;
-                    } else {
-                        rv.init(ctx);
-                    }
+                if (!rv._released) {
+                    Log log = rv._context.logManager().getLog(UDPPacket.class);
+                    log.error("Unreleased cached packet", new Exception());
+                    if (rv._acquiredBy != null)
+                        log.error("Acquired by: ", rv._acquiredBy);
+                    rv = null;
+                } else {
+                    rv.init(ctx);
                 }
             }
         }
@@ -424,11 +441,15 @@ class UDPPacket implements CDQEntry {
         release();
     }
 
-    public synchronized void release() {
-        verifyNotReleased();
+    public void release() {
+        if (_released) {
+            // don't put it in the cache twice
+            verifyNotReleased();
+            return;
+        }
         _released = true;
-        //_releasedBy = new Exception("released by");
-        //_acquiredBy = null;
+        if (DEBUG)
+            _releasedBy = new Exception("released by");
         //
         //_dataCache.release(_dataBuf);
         if (_bandwidthRequest != null) {
@@ -452,13 +473,19 @@ class UDPPacket implements CDQEntry {
             _packetCache.clear();
     }
 
-    private synchronized void verifyNotReleased() {
+    /**
+     *  Unsynchronized. Detection is best-effort if the caller
+     *  is not the owner, but the check is cheap.
+     */
+    private void verifyNotReleased() {
         if (!CACHE) return;
         if (_released) {
             Log log = _context.logManager().getLog(UDPPacket.class);
             log.error("Already released", new Exception());
-            //log.log(Log.CRIT, "Released by: ", _releasedBy);
-            //log.log(Log.CRIT, "Acquired by: ", _acquiredBy);
+            if (_releasedBy != null)
+                log.error("Released by: ", _releasedBy);
+            if (_acquiredBy != null)
+                log.error("Acquired by: ", _acquiredBy);
         }
     }
 }
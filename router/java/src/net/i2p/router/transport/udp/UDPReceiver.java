@@ -3,7 +3,15 @@ package net.i2p.router.transport.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.FIFOBandwidthLimiter;
@@ -26,6 +34,8 @@ class UDPReceiver {
     private final RouterContext _context;
     private final Log _log;
     private final DatagramSocket _socket;
+    /** null unless NIO enabled */
+    private final DatagramChannel _channel;
     private String _name;
     private volatile boolean _keepRunning;
     private final Runner _runner;
@@ -34,13 +44,19 @@ class UDPReceiver {
     private final SocketListener _endpoint;
 
     private static final boolean _isAndroid = SystemVersion.isAndroid();
+    /** max datagrams to read per selector wakeup in NIO mode */
+    private static final int MAX_BATCH = 32;
 
-    public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket, String name,
-                       SocketListener lsnr) {
+    /**
+     *  @param channel null to use blocking socket receives, non-null for NIO, socket must be its socket
+     */
+    public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket, DatagramChannel channel,
+                       String name, SocketListener lsnr) {
         _context = ctx;
         _log = ctx.logManager().getLog(UDPReceiver.class);
         _name = name;
         _socket = socket;
+        _channel = channel;
         _transport = transport;
         _endpoint = lsnr;
         _handler = transport.getPacketHandler();
@@ -53,6 +69,8 @@ class UDPReceiver {
         _context.statManager().createRateStat("udp.receiveHolePunch", "How often we receive a NAT hole punch", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.ignorePacketFromDroplist", "Packet lifetime for those dropped on the drop list", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.receiveFailsafe", "limiter stuck?", "udp", new long[] { 24*60*60*1000L });
+        if (channel != null)
+            _context.statManager().createRateStat("udp.receiveBatchSize", "Datagrams read per selector wakeup", "udp", UDPTransport.RATES);
     }
     
     /**
@@ -144,26 +162,8 @@ class UDPReceiver {
     private final int doReceive(UDPPacket packet) {
         if (!_keepRunning)
             return 0;
-
-        if (_log.shouldLog(Log.INFO))
-            _log.info("Received: " + packet);
-        
-        RemoteHostId from = packet.getRemoteHost();
-        if (_transport.isInDropList(from)) {
-            if (_log.shouldLog(Log.INFO))
-                _log.info("Ignoring packet from the drop-listed peer: " + from);
-            _context.statManager().addRateData("udp.ignorePacketFromDroplist", packet.getLifetime());
-            packet.release();
-            return 0;
-        }
-
-        // drop anything apparently from our IP (any port)
-        if (Arrays.equals(from.getIP(), _transport.getExternalIP()) && !_transport.allowLocal()) {
-            if (_log.shouldLog(Log.WARN))
-                _log.warn("Dropping (spoofed?) packet from ourselves");
-            packet.release();
+        if (!accept(packet))
             return 0;
-        }
 
 /****
         packet.enqueue();
@@ -208,6 +208,56 @@ class UDPReceiver {
 ****/
     }
     
+    /**
+     * Drop-list and spoof checks.
+     *
+     * @return true if it should be queued, false if dropped and released
+     * @since 0.9.28 pulled out of doReceive()
+     */
+    private boolean accept(UDPPacket packet) {
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Received: " + packet);
+        
+        RemoteHostId from = packet.getRemoteHost();
+        if (_transport.isInDropList(from)) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Ignoring packet from the drop-listed peer: " + from);
+            _context.statManager().addRateData("udp.ignorePacketFromDroplist", packet.getLifetime());
+            packet.release();
+            return false;
+        }
+
+        // drop anything apparently from our IP (any port)
+        if (Arrays.equals(from.getIP(), _transport.getExternalIP()) && !_transport.allowLocal()) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Dropping (spoofed?) packet from ourselves");
+            packet.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wait for bandwidth for all the packets at once.
+     *
+     * @param size total bytes
+     * @since 0.9.28 pulled out of Runner.run()
+     */
+    private void requestInbound(int size) {
+        FIFOBandwidthLimiter.Request req =
+              _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
+        // failsafe, don't wait forever
+        int waitCount = 0;
+        while (req.getPendingRequested() > 0 && waitCount++ < 5) {
+            req.waitForNextAllocation();
+        }
+        if (waitCount >= 5) {
+            // tell FBL we didn't receive it, but receive it anyway
+            req.abort();
+            _context.statManager().addRateData("udp.receiveFailsafe", 1);
+        }
+    }
+    
   /****
     private class ArtificiallyDelayedReceive implements SimpleTimer.TimedEvent {
         private UDPPacket _packet;
@@ -221,6 +271,10 @@ class UDPReceiver {
         //private volatile boolean _socketChanged;
 
         public void run() {
+            if (_channel != null) {
+                runNIO();
+                return;
+            }
             //_socketChanged = false;
             while (_keepRunning) {
                 //if (_socketChanged) {
@@ -264,19 +318,7 @@ class UDPReceiver {
                     } else if (size > 0) {
                         //FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
                         //_context.bandwidthLimiter().requestInbound(req, size, "UDP receiver");
-                        FIFOBandwidthLimiter.Request req =
-                              _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
-                        // failsafe, don't wait forever
-                        int waitCount = 0;
-                        while (req.getPendingRequested() > 0 && waitCount++ < 5) {
-                            req.waitForNextAllocation();
-                        }
-                        if (waitCount >= 5) {
-                            // tell FBL we didn't receive it, but receive it anyway
-                            req.abort();
-                            _context.statManager().addRateData("udp.receiveFailsafe", 1);
-                        }
-                        
+                        requestInbound(size);
                         receive(packet);
                         //_context.statManager().addRateData("udp.receivePacketSize", size);
                     } else {
@@ -311,6 +353,102 @@ class UDPReceiver {
                 _log.warn("Stop receiving on " + _endpoint);
         }
         
+        /**
+         *  Non-blocking reads into a single direct buffer, draining up to MAX_BATCH
+         *  datagrams per selector wakeup, with a single bandwidth request
+         *  for all of them. The packets are then queued to the PacketHandler one at a time.
+         *
+         *  @since 0.9.28
+         */
+        private void runNIO() {
+            Selector selector = null;
+            try {
+                selector = Selector.open();
+                _channel.configureBlocking(false);
+                _channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException ioe) {
+                _log.error("Unable to start NIO receiver on " + _endpoint, ioe);
+                if (selector != null)
+                    try { selector.close(); } catch (IOException e) {}
+                if (_keepRunning) {
+                    _keepRunning = false;
+                    _endpoint.fail();
+                }
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.allocateDirect(UDPPacket.MAX_PACKET_SIZE);
+            List<UDPPacket> batch = new ArrayList<UDPPacket>(MAX_BATCH);
+            while (_keepRunning) {
+                while (!_context.throttle().acceptNetworkMessage())
+                    try { Thread.sleep(10); } catch (InterruptedException ie) {}
+                int total = 0;
+                try {
+                    selector.select(1000);
+                    selector.selectedKeys().clear();
+                    for (int i = 0; i < MAX_BATCH; i++) {
+                        buf.clear();
+                        SocketAddress from = _channel.receive(buf);
+                        if (from == null)
+                            break;
+                        buf.flip();
+                        int size = buf.remaining();
+                        InetSocketAddress isa = (InetSocketAddress) from;
+                        if (size >= UDPPacket.MAX_PACKET_SIZE) {
+                            // DatagramChannel javadocs: If there are fewer bytes remaining in the buffer
+                            // than are required to hold the datagram then the remainder of the datagram is silently discarded.
+                            if (_log.shouldLog(Log.WARN))
+                                _log.warn("packet too large! truncated and dropped from: " + isa);
+                            continue;
+                        }
+                        if (size == 0) {
+                            _context.statManager().addRateData("udp.receiveHolePunch", 1);
+                            // nat hole punch packets are 0 bytes
+                            if (_log.shouldLog(Log.INFO))
+                                _log.info("Received a 0 byte udp packet from " + isa);
+                            _transport.getEstablisher().receiveHolePunch(isa.getAddress(), isa.getPort());
+                            continue;
+                        }
+                        if (_context.commSystem().isDummy())
+                            continue;
+                        UDPPacket packet = UDPPacket.acquire(_context, true);
+                        DatagramPacket dpacket = packet.getPacket();
+                        buf.get(dpacket.getData(), 0, size);
+                        dpacket.setLength(size);
+                        dpacket.setSocketAddress(isa);
+                        packet.resetBegin();
+                        if (accept(packet)) {
+                            batch.add(packet);
+                            total += size;
+                        }
+                    }
+                } catch (IOException ioe) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Error receiving", ioe);
+                    if (!_channel.isOpen()) {
+                        if (_keepRunning) {
+                            _keepRunning = false;
+                            _endpoint.fail();
+                        }
+                    } else if (_keepRunning && batch.isEmpty()) {
+                        try { Thread.sleep(100); } catch (InterruptedException ie) {}
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    _context.statManager().addRateData("udp.receiveBatchSize", batch.size());
+                    requestInbound(total);
+                    try {
+                        _handler.queueReceived(batch);
+                    } catch (InterruptedException ie) {
+                        _keepRunning = false;
+                    }
+                    batch.clear();
+                }
+            }
+            try { selector.close(); } catch (IOException ioe) {}
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Stop receiving on " + _endpoint);
+        }
+        
      /******
         public DatagramSocket updateListeningPort(DatagramSocket socket, int newPort) {
             _name = "UDPReceive on " + newPort;
@@ -3,6 +3,10 @@ package net.i2p.router.transport.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.concurrent.BlockingQueue;
 
 import net.i2p.router.RouterContext;
@@ -23,6 +27,8 @@ class UDPSender {
     private final RouterContext _context;
     private final Log _log;
     private final DatagramSocket _socket;
+    /** null unless NIO enabled */
+    private final DatagramChannel _channel;
     private String _name;
     private final BlockingQueue<UDPPacket> _outboundQueue;
     private volatile boolean _keepRunning;
@@ -37,8 +43,18 @@ class UDPSender {
     // When full, packets back up into the PacketPusher thread, pre-CoDel.
     private static final int MIN_QUEUE_SIZE = 64;
     private static final int MAX_QUEUE_SIZE = 384;
+    /**
+     *  NIO mode, max packets to drain from the queue per wakeup.
+     *  There is no multi-datagram send in Java, so each is still a separate send().
+     */
+    private static final int MAX_DRAIN = 32;
+    /** NIO mode, max time to wait for the socket buffer to drain */
+    private static final long MAX_WRITE_WAIT = 100;
     
-    public UDPSender(RouterContext ctx, DatagramSocket socket, String name, SocketListener lsnr) {
+    /**
+     *  @param channel null to use blocking socket sends, non-null for NIO, socket must be its socket
+     */
+    public UDPSender(RouterContext ctx, DatagramSocket socket, DatagramChannel channel, String name, SocketListener lsnr) {
         _context = ctx;
         _dummy = false; // ctx.commSystem().isDummy();
         _log = ctx.logManager().getLog(UDPSender.class);
@@ -46,6 +62,7 @@ class UDPSender {
         int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (1024*1024)));
         _outboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Sender", qsize);
         _socket = socket;
+        _channel = channel;
         _runner = new Runner();
         _name = name;
         _endpoint = lsnr;
@@ -60,6 +77,10 @@ class UDPSender {
         _context.statManager().createRateStat("udp.sendFailsafe", "limiter stuck?", "udp", new long[] { 24*60*60*1000L });
         // used in RouterWatchdog
         _context.statManager().createRequiredRateStat("udp.sendException", "Send fails (Windows exception?)", "udp", new long[] { 60*1000, 10*60*1000 });
+        if (channel != null) {
+            _context.statManager().createRateStat("udp.sendDrainSize", "Packets sent per queue wakeup", "udp", UDPTransport.RATES);
+            _context.statManager().createRateStat("udp.sendBufferFull", "Packets dropped as the socket buffer stayed full (duration == ms waited)", "udp", UDPTransport.RATES);
+        }
 
         _context.statManager().createRateStat("udp.sendPacketSize." + PacketBuilder.TYPE_ACK, "ack-only packet size", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.sendPacketSize." + PacketBuilder.TYPE_PUNCH, "hole punch packet size", "udp", UDPTransport.RATES);
@@ -215,6 +236,10 @@ class UDPSender {
     
     private class Runner implements Runnable {
         //private volatile boolean _socketChanged;
+        /** NIO only */
+        private ByteBuffer _buf;
+        /** NIO only, for waiting on a full socket buffer, created lazily */
+        private Selector _selector;
 
         public void run() {
             if (_log.shouldLog(Log.DEBUG))
@@ -228,85 +253,163 @@ class UDPSender {
                 
                 UDPPacket packet = getNextPacket();
                 if (packet != null) {
-                    if (_log.shouldLog(Log.DEBUG))
-                        _log.debug("Packet to send known: " + packet);
-                    long acquireTime = _context.clock().now();
-                    int size = packet.getPacket().getLength();
-                    // ?? int size2 = packet.getPacket().getLength();
-                    if (size > 0) {
-                        //_context.bandwidthLimiter().requestOutbound(req, size, "UDP sender");
-                        FIFOBandwidthLimiter.Request req = packet.getBandwidthRequest();
-                        if (req != null) {
-                            // failsafe, don't wait forever
-                            int waitCount = 0;
-                            while (req.getPendingRequested() > 0 && waitCount++ < 5) {
-                                req.waitForNextAllocation();
-                            }
-                            if (waitCount >= 5) {
-                                // tell FBL we didn't send it, but send it anyway
-                                req.abort();
-                                _context.statManager().addRateData("udp.sendFailsafe", 1);
-                            }
-                        }
-                    }
-                    
-                    long afterBW = _context.clock().now();
-                    
-                    //if (_log.shouldLog(Log.DEBUG)) {
-                        //if (len > 128)
-                        //    len = 128;
-                        //_log.debug("Sending packet: (size="+size + "/"+size2 +")\nraw: " + Base64.encode(packet.getPacket().getData(), 0, size));
-                    //}
-                    
-                    if (packet.getMessageType() >= PacketBuilder.TYPE_FIRST)
-                        _context.statManager().addRateData("udp.sendPacketSize." + packet.getMessageType(), size, packet.getFragmentCount());
-                    
-                    //packet.getPacket().setLength(size);
-                    try {
-                        //long before = _context.clock().now();
-                        //synchronized (Runner.this) {
-                            // synchronization lets us update safely
-                            //_log.debug("Break out datagram for " + packet);
-                            DatagramPacket dp = packet.getPacket();
-                            //if (_log.shouldLog(Log.DEBUG))
-                            //    _log.debug("Just before socket.send of " + packet);
-                            _socket.send(dp);
-                            //if (_log.shouldLog(Log.DEBUG))
-                            //    _log.debug("Just after socket.send of " + packet);
-                        //}
-                        //long sendTime = _context.clock().now() - before;
-                        // less than 50 microsec
-                        //_context.statManager().addRateData("udp.socketSendTime", sendTime, packet.getLifetime());
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("Sent the packet " + packet);
-                        long throttleTime = afterBW - acquireTime;
-                        if (throttleTime > 10)
-                            _context.statManager().addRateData("udp.sendBWThrottleTime", throttleTime, acquireTime - packet.getBegin());
-                        if (packet.getMarkedType() == 1)
-                            _context.statManager().addRateData("udp.sendACKTime", throttleTime, packet.getLifetime());
-                        _context.statManager().addRateData("udp.pushTime", packet.getLifetime(), packet.getLifetime());
-                        _context.statManager().addRateData("udp.sendPacketSize", size, packet.getLifetime());
-                    } catch (IOException ioe) {
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn("Error sending to " + packet.getPacket().getAddress(), ioe);
-                        _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
-                        if (_socket.isClosed()) {
-                            if (_keepRunning) {
-                                _keepRunning = false;
-                                _endpoint.fail();
+                    send(packet);
+                    if (_channel != null) {
+                        // drain what else is ready with the same wakeup
+                        int count = 1;
+                        while (_keepRunning && count < MAX_DRAIN) {
+                            packet = _outboundQueue.poll();
+                            if (packet == null)
+                                break;
+                            if (packet.getMessageType() == TYPE_POISON)
+                                break;
+                            if (packet.getLifetime() > MAX_HEAD_LIFETIME) {
+                                if (_log.shouldLog(Log.DEBUG))
+                                    _log.debug("Dropping expired " + packet);
+                                _context.statManager().addRateData("udp.sendQueueTrimmed", 1);
+                                packet.release();
+                                continue;
                             }
+                            send(packet);
+                            count++;
                         }
+                        _context.statManager().addRateData("udp.sendDrainSize", count);
                     }
-                    
-                    // back to the cache
-                    packet.release();
                 }
             }
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Stop sending on " + _endpoint);
             _outboundQueue.clear();
+            if (_selector != null) {
+                try { _selector.close(); } catch (IOException ioe) {}
+            }
         }
         
+        /**
+         *  Wait for bandwidth, send, update stats, and release the packet.
+         *  @since 0.9.28 pulled out of run()
+         */
+        private void send(UDPPacket packet) {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Packet to send known: " + packet);
+            long acquireTime = _context.clock().now();
+            int size = packet.getPacket().getLength();
+            // ?? int size2 = packet.getPacket().getLength();
+            if (size > 0) {
+                //_context.bandwidthLimiter().requestOutbound(req, size, "UDP sender");
+                FIFOBandwidthLimiter.Request req = packet.getBandwidthRequest();
+                if (req != null) {
+                    // failsafe, don't wait forever
+                    int waitCount = 0;
+                    while (req.getPendingRequested() > 0 && waitCount++ < 5) {
+                        req.waitForNextAllocation();
+                    }
+                    if (waitCount >= 5) {
+                        // tell FBL we didn't send it, but send it anyway
+                        req.abort();
+                        _context.statManager().addRateData("udp.sendFailsafe", 1);
+                    }
+                }
+            }
+            
+            long afterBW = _context.clock().now();
+            
+            //if (_log.shouldLog(Log.DEBUG)) {
+                //if (len > 128)
+                //    len = 128;
+                //_log.debug("Sending packet: (size="+size + "/"+size2 +")\nraw: " + Base64.encode(packet.getPacket().getData(), 0, size));
+            //}
+            
+            if (packet.getMessageType() >= PacketBuilder.TYPE_FIRST)
+                _context.statManager().addRateData("udp.sendPacketSize." + packet.getMessageType(), size, packet.getFragmentCount());
+            
+            //packet.getPacket().setLength(size);
+            try {
+                //long before = _context.clock().now();
+                //synchronized (Runner.this) {
+                    // synchronization lets us update safely
+                    //_log.debug("Break out datagram for " + packet);
+                    DatagramPacket dp = packet.getPacket();
+                    //if (_log.shouldLog(Log.DEBUG))
+                    //    _log.debug("Just before socket.send of " + packet);
+                    if (_channel != null) {
+                        long waited = sendNIO(dp);
+                        if (waited >= 0) {
+                            if (_log.shouldLog(Log.DEBUG))
+                                _log.debug("Socket buffer full for " + waited + "ms, dropping " + packet);
+                            _context.statManager().addRateData("udp.sendBufferFull", 1, waited);
+                            packet.release();
+                            return;
+                        }
+                    } else {
+                        _socket.send(dp);
+                    }
+                    //if (_log.shouldLog(Log.DEBUG))
+                    //    _log.debug("Just after socket.send of " + packet);
+                //}
+                //long sendTime = _context.clock().now() - before;
+                // less than 50 microsec
+                //_context.statManager().addRateData("udp.socketSendTime", sendTime, packet.getLifetime());
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("Sent the packet " + packet);
+                long throttleTime = afterBW - acquireTime;
+                if (throttleTime > 10)
+                    _context.statManager().addRateData("udp.sendBWThrottleTime", throttleTime, acquireTime - packet.getBegin());
+                if (packet.getMarkedType() == 1)
+                    _context.statManager().addRateData("udp.sendACKTime", throttleTime, packet.getLifetime());
+                _context.statManager().addRateData("udp.pushTime", packet.getLifetime(), packet.getLifetime());
+                _context.statManager().addRateData("udp.sendPacketSize", size, packet.getLifetime());
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Error sending to " + packet.getPacket().getAddress(), ioe);
+                _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
+                if (_socket.isClosed() || (_channel != null && !_channel.isOpen())) {
+                    if (_keepRunning) {
+                        _keepRunning = false;
+                        _endpoint.fail();
+                    }
+                }
+            }
+            
+            // back to the cache
+            packet.release();
+        }
+
+        /**
+         *  Copy to the direct buffer and send.
+         *  If the socket buffer is full, wait for it to drain, up to MAX_WRITE_WAIT.
+         *
+         *  @return -1 if sent, or the ms waited if not sent and the caller must drop it
+         *  @since 0.9.28
+         */
+        private long sendNIO(DatagramPacket dp) throws IOException {
+            if (_buf == null) {
+                _buf = ByteBuffer.allocateDirect(UDPPacket.MAX_PACKET_SIZE);
+                _channel.configureBlocking(false);
+            }
+            _buf.clear();
+            _buf.put(dp.getData(), dp.getOffset(), dp.getLength());
+            _buf.flip();
+            // zero-length hole punch returns 0 either way
+            if (_channel.send(_buf, dp.getSocketAddress()) > 0 || dp.getLength() == 0)
+                return -1;
+            if (_selector == null) {
+                _selector = Selector.open();
+                _channel.register(_selector, SelectionKey.OP_WRITE);
+            }
+            long begin = _context.clock().now();
+            long end = begin + MAX_WRITE_WAIT;
+            long remaining = MAX_WRITE_WAIT;
+            while (_keepRunning && remaining > 0) {
+                _selector.select(remaining);
+                _selector.selectedKeys().clear();
+                if (_channel.send(_buf, dp.getSocketAddress()) > 0)
+                    return -1;
+                remaining = end - _context.clock().now();
+            }
+            return _context.clock().now() - begin;
+        }
+
         /** @return next packet in queue. Will discard any packet older than MAX_HEAD_LIFETIME */
         private UDPPacket getNextPacket() {
             UDPPacket packet = null;
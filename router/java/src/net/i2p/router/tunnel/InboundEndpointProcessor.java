@@ -3,7 +3,6 @@ package net.i2p.router.tunnel;
 import net.i2p.data.Hash;
 import net.i2p.router.RouterContext;
 import net.i2p.util.Log;
-import net.i2p.util.SimpleByteCache;
 
 /**
  * Receive the inbound tunnel message, removing all of the layers
@@ -56,24 +55,20 @@ class InboundEndpointProcessor {
             return false;
         }
         
-        byte iv[] = SimpleByteCache.acquire(HopProcessor.IV_LENGTH);
-        System.arraycopy(orig, offset, iv, 0, iv.length);
         //if (_config.getLength() > 1)
-        //    _log.debug("IV at inbound endpoint before decrypt: " + Base64.encode(iv));
+        //    _log.debug("IV at inbound endpoint before decrypt: " + Base64.encode(orig, offset, HopProcessor.IV_LENGTH));
 
-        boolean ok = _validator.receiveIV(iv, 0, orig, offset + HopProcessor.IV_LENGTH);
+        // the validator copies what it needs
+        boolean ok = _validator.receiveIV(orig, offset, orig, offset + HopProcessor.IV_LENGTH);
         if (!ok) {
             if (_log.shouldLog(Log.WARN)) 
                 _log.warn("Invalid IV, dropping at IBEP " + _config);
-            SimpleByteCache.release(iv);
             return false;
         }
         
         // inbound endpoints and outbound gateways have to undo the crypto in the same way
         //if (USE_ENCRYPTION)
-            decrypt(_context, _config, iv, orig, offset, length);
-        
-        SimpleByteCache.release(iv);
+            decrypt(_context, _config, orig, offset, length);
         
         if (_config.getLength() > 0) {
             int rtt = 0; // dunno... may not be related to an rtt
@@ -90,17 +85,15 @@ class InboundEndpointProcessor {
     /**
      * Iteratively undo the crypto that the various layers in the tunnel added.
      */
-    private void decrypt(RouterContext ctx, TunnelCreatorConfig cfg, byte iv[], byte orig[], int offset, int length) {
+    private void decrypt(RouterContext ctx, TunnelCreatorConfig cfg, byte orig[], int offset, int length) {
         //Log log = ctx.logManager().getLog(OutboundGatewayProcessor.class);
-        byte cur[] = SimpleByteCache.acquire(HopProcessor.IV_LENGTH);
         for (int i = cfg.getLength()-2; i >= 0; i--) { // dont include the endpoint, since that is the creator
-            OutboundGatewayProcessor.decrypt(ctx, iv, orig, offset, length, cur, cfg.getConfig(i));
+            OutboundGatewayProcessor.decrypt(ctx, orig, offset, length, cfg.getConfig(i));
             //if (log.shouldLog(Log.DEBUG)) {
                 //log.debug("IV at hop " + i + ": " + Base64.encode(orig, offset, HopProcessor.IV_LENGTH));
                 //log.debug("hop " + i + ": " + Base64.encode(orig, offset + HopProcessor.IV_LENGTH, length - HopProcessor.IV_LENGTH));
             //}
         }
-        SimpleByteCache.release(cur);
     }
     
 }
@@ -22,6 +22,7 @@ import net.i2p.router.Router;
 import net.i2p.router.RouterContext;
 import net.i2p.router.TunnelPoolSettings;
 import net.i2p.router.networkdb.kademlia.FloodfillNetworkDatabaseFacade;
+import net.i2p.router.networkdb.kademlia.RouterSummaryCollector;
 import net.i2p.router.util.HashDistance;
 import net.i2p.util.Log;
 import net.i2p.util.VersionComparator;
@@ -200,7 +201,7 @@ public abstract class TunnelPeerSelector {
         //
         // Defaults changed to true for inbound only in filterUnreachable below.
 
-        Set<Hash> peers = new HashSet<Hash>(1);
+        final Set<Hash> peers = new HashSet<Hash>(1);
         peers.addAll(ctx.profileOrganizer().selectPeersRecentlyRejecting());
         peers.addAll(ctx.tunnelManager().selectPeersInTooManyTunnels());
         // if (false && filterUnreachable(ctx, isInbound, isExploratory)) {
@@ -216,105 +217,16 @@ public abstract class TunnelPeerSelector {
         }
         if (filterSlow(isInbound, isExploratory)) {
             // NOTE: filterSlow always returns true
-            Log log = ctx.logManager().getLog(TunnelPeerSelector.class);
-            char excl[] = getExcludeCaps(ctx);
+            final char excl[] = getExcludeCaps(ctx);
             if (excl != null) {
+                // As of 0.9.28, caps and version only, so compact RouterInfos aren't parsed
                 FloodfillNetworkDatabaseFacade fac = (FloodfillNetworkDatabaseFacade)ctx.netDb();
-                List<RouterInfo> known = fac.getKnownRouterData();
-                if (known != null) {
-                    for (int i = 0; i < known.size(); i++) {
-                        RouterInfo peer = known.get(i);
-                        boolean shouldExclude = shouldExclude(ctx, log, peer, excl);
-                        if (shouldExclude) {
-                            peers.add(peer.getIdentity().calculateHash());
-                            continue;
-                        }
-                        /*
-                        String cap = peer.getCapabilities();
-                        if (cap == null) {
-                            peers.add(peer.getIdentity().calculateHash());
-                            continue;
-                        }
-                        for (int j = 0; j < excl.length; j++) {
-                            if (cap.indexOf(excl[j]) >= 0) {
-                                peers.add(peer.getIdentity().calculateHash());
-                                continue;
-                            }
-                        }
-                        int maxLen = 0;
-                        if (cap.indexOf(FloodfillNetworkDatabaseFacade.CAPACITY_FLOODFILL) >= 0)
-                            maxLen++;
-                        if (cap.indexOf(Router.CAPABILITY_REACHABLE) >= 0)
-                            maxLen++;
-                        if (cap.indexOf(Router.CAPABILITY_UNREACHABLE) >= 0)
-                            maxLen++;
-                        if (cap.length() <= maxLen)
-                            peers.add(peer.getIdentity().calculateHash());
-                        // otherwise, it contains flags we aren't trying to focus on,
-                        // so don't exclude it based on published capacity
-                        
-                        if (filterUptime(ctx, isInbound, isExploratory)) {
-                            Properties opts = peer.getOptions();
-                            if (opts != null) {
-                                String val = opts.getProperty("stat_uptime");
-                                long uptimeMs = 0;
-                                if (val != null) {
-                                    long factor = 1;
-                                    if (val.endsWith("ms")) {
-                                        factor = 1;
-                                        val = val.substring(0, val.length()-2);
-                                    } else if (val.endsWith("s")) {
-                                        factor = 1000l;
-                                        val = val.substring(0, val.length()-1);
-                                    } else if (val.endsWith("m")) {
-                                        factor = 60*1000l;
-                                        val = val.substring(0, val.length()-1);
-                                    } else if (val.endsWith("h")) {
-                                        factor = 60*60*1000l;
-                                        val = val.substring(0, val.length()-1);
-                                    } else if (val.endsWith("d")) {
-                                        factor = 24*60*60*1000l;
-                                        val = val.substring(0, val.length()-1);
-                                    }
-                                    try { uptimeMs = Long.parseLong(val); } catch (NumberFormatException nfe) {}
-                                    uptimeMs *= factor;
-                                } else {
-                                    // not publishing an uptime, so exclude it
-                                    peers.add(peer.getIdentity().calculateHash());
-                                    continue;
-                                }
-                                
-                                long infoAge = ctx.clock().now() - peer.getPublished();
-                                if (infoAge < 0) {
-                                    infoAge = 0;
-                                } else if (infoAge > 24*60*60*1000) {
-				    // Only exclude long-unseen peers if we haven't just started up
-				    long DONT_EXCLUDE_PERIOD = 15*60*1000;
-				    if (ctx.router().getUptime() < DONT_EXCLUDE_PERIOD) {
-				        if (log.shouldLog(Log.DEBUG))
-				            log.debug("Not excluding a long-unseen peer, since we just started up.");
-				    } else {
-				        if (log.shouldLog(Log.DEBUG))
-				            log.debug("Excluding a long-unseen peer.");
-				        peers.add(peer.getIdentity().calculateHash());
-				    }
-                                    //peers.add(peer.getIdentity().calculateHash());
-                                    continue;
-                                } else {
-                                    if (infoAge + uptimeMs < 2*60*60*1000) {
-                                        // up for less than 2 hours, so exclude it
-                                        peers.add(peer.getIdentity().calculateHash());
-                                    }
-                                }
-                            } else {
-                                // not publishing stats, so exclude it
-                                peers.add(peer.getIdentity().calculateHash());
-                                continue;
-                            }
-                        }
-                         */
+                fac.getKnownRouterSummaries(new RouterSummaryCollector() {
+                    public void add(Hash peer, String caps, String version) {
+                        if (shouldExclude(caps, version, excl))
+                            peers.add(peer);
                     }
-                }
+                });
                 /*
                 for (int i = 0; i < excludeCaps.length(); i++) {
                     List matches = ctx.peerManager().getPeersByCapability(excludeCaps.charAt(i));
@@ -343,20 +255,17 @@ public abstract class TunnelPeerSelector {
         SigType type = ri.getIdentity().getSigType();
         if (type == SigType.DSA_SHA1)
             return null;
-        Set<Hash> rv = new HashSet<Hash>(1024);
+        final Set<Hash> rv = new HashSet<Hash>(1024);
         FloodfillNetworkDatabaseFacade fac = (FloodfillNetworkDatabaseFacade)ctx.netDb();
-        List<RouterInfo> known = fac.getKnownRouterData();
-        if (known != null) {
-            for (int i = 0; i < known.size(); i++) {
-                RouterInfo peer = known.get(i);
-                String v = peer.getVersion();
+        fac.getKnownRouterSummaries(new RouterSummaryCollector() {
+            public void add(Hash peer, String caps, String version) {
                 // RI sigtypes added in 0.9.16
                 // SSU inbound connection bug fixed in 0.9.17, but it won't bid, so NTCP only,
                 // no need to check
-                if (VersionComparator.comp(v, "0.9.16") < 0)
-                    rv.add(peer.getIdentity().calculateHash());
+                if (VersionComparator.comp(version, "0.9.16") < 0)
+                    rv.add(peer);
             }
-        }
+        });
         return rv;
     }
     
@@ -381,7 +290,14 @@ public abstract class TunnelPeerSelector {
     private static final String MIN_VERSION = "0.7.9";
 
     private static boolean shouldExclude(RouterContext ctx, Log log, RouterInfo peer, char excl[]) {
-        String cap = peer.getCapabilities();
+        return shouldExclude(peer.getCapabilities(), peer.getVersion(), excl);
+    }
+
+    /**
+     *  The checks that are still enabled need only the caps and version.
+     *  @since 0.9.28 split out of shouldExclude(ctx, log, peer, excl)
+     */
+    private static boolean shouldExclude(String cap, String v, char excl[]) {
         for (int j = 0; j < excl.length; j++) {
             if (cap.indexOf(excl[j]) >= 0) {
                 return true;
@@ -400,7 +316,6 @@ public abstract class TunnelPeerSelector {
         // so don't exclude it based on published capacity
 
         // minimum version check
-        String v = peer.getVersion();
         if (VersionComparator.comp(v, MIN_VERSION) < 0)
             return true;
 
@@ -0,0 +1,129 @@
+package net.i2p.router;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Job lag under a synthetic load, with the JobQueueRunners
+ *  or with the work-stealing JobQueuePool (router.jobQueue.workStealing).
+ *
+ *  Several producer threads add short CPU-bound jobs, some now and some
+ *  scheduled a few ms out, and each job records how long after its
+ *  start time it actually started.
+ *  Each of those jobs may add some child jobs, due now, when it runs,
+ *  as jobs often do, so that in the pool they are forked from the workers.
+ *
+ *  Usage: JobQueueBench runners|pool [jobs [producers [work (us) [children]]]]
+ *
+ *  @since 0.9.28
+ */
+public class JobQueueBench {
+
+    public static void main(String args[]) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: JobQueueBench runners|pool [jobs [producers [work (us) [children]]]]");
+            System.exit(1);
+        }
+        boolean pool = args[0].equals("pool");
+        final int count = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        final int producers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        final long work = (args.length > 3 ? Integer.parseInt(args[3]) : 20) * 1000L;
+        final int children = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        Properties props = new Properties();
+        props.setProperty("router.jobQueue.workStealing", Boolean.toString(pool));
+        // initAll() needs a Router, we only need the JobQueue
+        final BenchContext ctx = new BenchContext(props);
+        final JobQueue jq = new JobQueue(ctx);
+        ctx.jobQueue = jq;
+        jq.startup();
+        jq.runQueue(1);
+        jq.allowParallelOperation();
+
+        final int total = count * (1 + children);
+        final CountDownLatch done = new CountDownLatch(total);
+        final AtomicLong maxLag = new AtomicLong();
+        final AtomicLong totalLag = new AtomicLong();
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int per = count / producers + (p < count % producers ? 1 : 0);
+            threads[p] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < per; i++) {
+                        BenchJob job = new BenchJob(ctx, done, maxLag, totalLag, work, children);
+                        if ((i & 3) == 0)
+                            job.getTiming().setStartAfter(ctx.clock().now() + (i & 15));
+                        jq.addJob(job);
+                        // bursts
+                        if ((i & 255) == 255) {
+                            try { Thread.sleep(1); } catch (InterruptedException ie) {}
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        done.await();
+        long time = System.nanoTime() - start;
+        System.out.println((pool ? "Pool" : "Runners") + ": " + total + " jobs, " + producers + " producers, " +
+                           children + " children per job, " +
+                           (work / 1000) + " us each, " + Runtime.getRuntime().availableProcessors() + " CPUs, " +
+                           jq.getJobs(new java.util.ArrayList<Job>(),
+                                                                     new java.util.ArrayList<Job>(),
+                                                                     new java.util.ArrayList<Job>(),
+                                                                     new java.util.ArrayList<Job>()) +
+                           " runners: " + (time / 1000000) + " ms total, max lag " + maxLag.get() +
+                           " ms, avg lag " + (totalLag.get() * 1000 / total) + " us");
+        System.exit(0);
+    }
+
+    private static class BenchContext extends RouterContext {
+        public volatile JobQueue jobQueue;
+
+        public BenchContext(Properties props) {
+            super(null, props);
+        }
+
+        @Override
+        public JobQueue jobQueue() { return jobQueue; }
+    }
+
+    private static class BenchJob extends JobImpl {
+        private final CountDownLatch _done;
+        private final AtomicLong _maxLag, _totalLag;
+        private final long _work;
+        private final int _children;
+
+        public BenchJob(RouterContext ctx, CountDownLatch done, AtomicLong maxLag, AtomicLong totalLag,
+                        long work, int children) {
+            super(ctx);
+            _done = done;
+            _maxLag = maxLag;
+            _totalLag = totalLag;
+            _work = work;
+            _children = children;
+        }
+
+        public String getName() { return "Bench"; }
+
+        public void runJob() {
+            long lag = getContext().clock().now() - getTiming().getStartAfter();
+            if (lag < 0)
+                lag = 0;
+            _totalLag.addAndGet(lag);
+            long max;
+            while (lag > (max = _maxLag.get()) && !_maxLag.compareAndSet(max, lag)) {}
+            long end = System.nanoTime() + _work;
+            while (System.nanoTime() < end) {}
+            for (int i = 0; i < _children; i++) {
+                getContext().jobQueue().addJob(new BenchJob(getContext(), _done, _maxLag, _totalLag, _work, 0));
+            }
+            _done.countDown();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package net.i2p.router;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *  Adding the same job from several threads at once,
+ *  with and without the pumper moving it from the timed jobs.
+ *
+ *  @since 0.9.28
+ */
+public class JobQueueTest {
+    private static final int THREADS = 8;
+    private static final int JOBS = 20000;
+
+    private static TestContext _context;
+    private JobQueue _jq;
+
+    @BeforeClass
+    public static void init() {
+        // initAll() needs a Router, we only need the JobQueue
+        _context = new TestContext();
+    }
+
+    @Before
+    public void setUp() {
+        _jq = new JobQueue(_context);
+        _context.jobQueue = _jq;
+        _jq.startup();
+    }
+
+    @After
+    public void tearDown() {
+        _jq.shutdown();
+    }
+
+    /** no runners, so the jobs stay ready and every add after the first is a duplicate */
+    @Test
+    public void testConcurrentAddReady() throws Exception {
+        final CountJob[] jobs = newJobs(JOBS);
+        runAdders(new Runnable() {
+            public void run() {
+                for (int i = 0; i < JOBS; i++) {
+                    _jq.addJob(jobs[i]);
+                }
+            }
+        });
+        assertEquals(JOBS, getReady().size());
+        assertTrue(getTimed().isEmpty());
+        for (int i = 0; i < JOBS; i++) {
+            _jq.removeJob(jobs[i]);
+        }
+        assertEquals(0, _jq.getReadyCount());
+    }
+
+    /** adders reschedule the jobs while the pumper makes them ready, each must be ready only once */
+    @Test
+    public void testConcurrentAddTimed() throws Exception {
+        final CountJob[] jobs = newJobs(JOBS);
+        runAdders(new Runnable() {
+            public void run() {
+                for (int i = 0; i < JOBS; i++) {
+                    jobs[i].getTiming().setStartAfter(_context.clock().now() + (i % 3));
+                    _jq.addJob(jobs[i]);
+                }
+            }
+        });
+        // wait for the ready count, not for the timed jobs to be empty,
+        // as the pumper takes them out of the wheel before making them ready
+        for (int i = 0; i < 100 && getReady().size() < JOBS; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(getTimed().isEmpty());
+        assertEquals(JOBS, getReady().size());
+        for (int i = 0; i < JOBS; i++) {
+            _jq.removeJob(jobs[i]);
+        }
+        assertEquals(0, _jq.getReadyCount());
+    }
+
+    /** once it starts running, it may be added again */
+    @Test
+    public void testAddAfterRun() throws Exception {
+        _jq.runQueue(1);
+        CountDownLatch ran = new CountDownLatch(2);
+        CountJob job = new CountJob(_context, ran);
+        _jq.addJob(job);
+        for (int i = 0; i < 100 && job.count.get() < 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, job.count.get());
+        job.getTiming().setStartAfter(_context.clock().now() + 20);
+        _jq.addJob(job);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(2, job.count.get());
+    }
+
+    /** once a runner takes it off the queue, before it runs, it may be added again */
+    @Test
+    public void testAddAfterDequeue() throws Exception {
+        CountJob job = new CountJob(_context, null);
+        _jq.addJob(job);
+        assertSame(job, _jq.getNext());
+        job.getTiming().setStartAfter(_context.clock().now() + 60*1000);
+        _jq.addJob(job);
+        assertEquals(1, getTimed().size());
+        _jq.removeJob(job);
+    }
+
+    /** run r in THREADS threads, all starting together, and wait for them */
+    private static void runAdders(final Runnable r) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (Exception e) {
+                        return;
+                    }
+                    r.run();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    private static CountJob[] newJobs(int count) {
+        CountJob[] rv = new CountJob[count];
+        for (int i = 0; i < count; i++) {
+            rv[i] = new CountJob(_context, null);
+        }
+        return rv;
+    }
+
+    private List<Job> getReady() {
+        List<Job> ready = new ArrayList<Job>();
+        _jq.getJobs(ready, new ArrayList<Job>(), new ArrayList<Job>(), new ArrayList<Job>());
+        return ready;
+    }
+
+    private List<Job> getTimed() {
+        List<Job> timed = new ArrayList<Job>();
+        _jq.getJobs(new ArrayList<Job>(), timed, new ArrayList<Job>(), new ArrayList<Job>());
+        return timed;
+    }
+
+    private static class TestContext extends RouterContext {
+        public volatile JobQueue jobQueue;
+
+        public TestContext() {
+            super(null, new Properties());
+        }
+
+        @Override
+        public JobQueue jobQueue() { return jobQueue; }
+    }
+
+    private static class CountJob extends JobImpl {
+        public final AtomicInteger count = new AtomicInteger();
+        private final CountDownLatch _ran;
+
+        public CountJob(RouterContext ctx, CountDownLatch ran) {
+            super(ctx);
+            _ran = ran;
+        }
+
+        public String getName() { return "Count"; }
+
+        public void runJob() {
+            count.incrementAndGet();
+            if (_ran != null)
+                _ran.countDown();
+        }
+    }
+}
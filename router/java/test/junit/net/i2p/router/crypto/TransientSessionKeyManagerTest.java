@@ -0,0 +1,104 @@
+package net.i2p.router.crypto;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.SessionKey;
+import net.i2p.data.SessionTag;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Inbound tag set cleanup
+ *
+ *  @since 0.9.28
+ */
+public class TransientSessionKeyManagerTest {
+    private static final int MAX_TAGS = 100;
+    private static final int TAGS_PER_SET = 10;
+    /** neither "old" nor "recent" to clearExcess() */
+    private static final long EXPIRE = 5*60*1000;
+
+    private I2PAppContext _context;
+    private TransientSessionKeyManager _skm;
+
+    @Before
+    public void setUp() {
+        _context = I2PAppContext.getGlobalContext();
+        _skm = new TransientSessionKeyManager(_context, 40, 30, MAX_TAGS);
+    }
+
+    @After
+    public void tearDown() {
+        _skm.shutdown();
+    }
+
+    private Set<SessionTag> newTags(int count) {
+        Set<SessionTag> rv = new HashSet<SessionTag>(count);
+        for (int i = 0; i < count; i++) {
+            rv.add(new SessionTag(true));
+        }
+        return rv;
+    }
+
+    /** clearExcess() drops the sets from the expiration buckets, not only the index */
+    @Test
+    public void testClearExcess() {
+        int sets = 2 * MAX_TAGS / TAGS_PER_SET;
+        List<Set<SessionTag>> received = new ArrayList<Set<SessionTag>>(sets);
+        for (int i = 0; i < sets; i++) {
+            Set<SessionTag> tags = newTags(TAGS_PER_SET);
+            received.add(tags);
+            _skm.tagsReceived(_context.keyGenerator().generateSessionKey(), tags, EXPIRE);
+        }
+        int dropped = 0;
+        for (Set<SessionTag> tags : received) {
+            // the manager owns the sets, and clears the dropped ones
+            if (tags.isEmpty())
+                dropped++;
+            else
+                assertEquals(TAGS_PER_SET, tags.size());
+        }
+        assertTrue(dropped > 0);
+        assertTrue(_skm.getInboundTagCount() <= MAX_TAGS);
+        assertEquals(sets - dropped, _skm.getInboundTagSetCount());
+        assertEquals((sets - dropped) * TAGS_PER_SET, _skm.getInboundTagCount());
+    }
+
+    /** a tag received with two different keys drops both sets */
+    @Test
+    public void testDuplicateTag() {
+        Set<SessionTag> tags1 = newTags(TAGS_PER_SET);
+        Set<SessionTag> tags2 = newTags(TAGS_PER_SET - 1);
+        SessionTag dup = tags1.iterator().next();
+        tags2.add(dup);
+        SessionKey key1 = _context.keyGenerator().generateSessionKey();
+        SessionKey key2 = _context.keyGenerator().generateSessionKey();
+        _skm.tagsReceived(key1, tags1, EXPIRE);
+        assertEquals(1, _skm.getInboundTagSetCount());
+        _skm.tagsReceived(key2, tags2, EXPIRE);
+        assertEquals(0, _skm.getInboundTagSetCount());
+        assertEquals(0, _skm.getInboundTagCount());
+        assertTrue(tags1.isEmpty());
+        assertTrue(tags2.isEmpty());
+        assertNull(_skm.consumeTag(dup));
+    }
+
+    @Test
+    public void testConsume() {
+        Set<SessionTag> tags = newTags(TAGS_PER_SET);
+        SessionTag tag = tags.iterator().next();
+        SessionKey key = _context.keyGenerator().generateSessionKey();
+        _skm.tagsReceived(key, tags, EXPIRE);
+        assertEquals(key, _skm.consumeTag(tag));
+        assertNull(_skm.consumeTag(tag));
+        assertEquals(TAGS_PER_SET - 1, _skm.getInboundTagCount());
+    }
+}
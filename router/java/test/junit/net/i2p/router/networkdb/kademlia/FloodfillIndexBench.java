@@ -0,0 +1,111 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import net.i2p.data.Hash;
+import net.i2p.kademlia.XORComparator;
+
+/**
+ *  Compare selecting the floodfills closest to a routing key
+ *  by sorting all of them in a TreeSet, as FloodfillPeerSelector formerly did,
+ *  with walking the FloodfillIndex.
+ *
+ *  Usage: FloodfillIndexBench [floodfills] [lookups] [closest]
+ *
+ *  @since 0.9.28
+ */
+public class FloodfillIndexBench {
+
+    public static void main(String args[]) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int closest = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        Random rand = new Random(1234);
+        List<Hash> ffs = new ArrayList<Hash>(count);
+        for (int i = 0; i < count; i++) {
+            ffs.add(randomHash(rand));
+        }
+        Hash[] keys = new Hash[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = randomHash(rand);
+        }
+
+        // build incrementally, as the netdb does
+        long start = System.nanoTime();
+        FloodfillIndex index = new FloodfillIndex();
+        for (Hash h : ffs) {
+            index.add(h);
+        }
+        long time = System.nanoTime() - start;
+        System.out.println("Added " + count + " floodfills one at a time in " + (time / 1000) + " us");
+        start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            Hash h = ffs.get(i % count);
+            index.remove(h);
+            index.add(h);
+        }
+        time = System.nanoTime() - start;
+        System.out.println("Remove and add: " + (time / 2000) + " ns each");
+
+        // check
+        for (int i = 0; i < keys.length; i++) {
+            List<Hash> a = selectSorted(ffs, keys[i], count);
+            List<Hash> b = selectIndex(index, keys[i], count);
+            if (!a.equals(b))
+                throw new RuntimeException("Mismatch for key " + keys[i]);
+        }
+        System.out.println("TreeSet and index results match");
+
+        // warmup
+        for (int i = 0; i < lookups / 10; i++) {
+            selectSorted(ffs, keys[i % keys.length], closest);
+            selectIndex(index, keys[i % keys.length], closest);
+        }
+
+        long sum = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            sum += selectSorted(ffs, keys[i % keys.length], closest).size();
+        }
+        long sorted = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            sum += selectIndex(index, keys[i % keys.length], closest).size();
+        }
+        long indexed = System.nanoTime() - start;
+        System.out.println(lookups + " lookups of the " + closest + " closest of " + count + " floodfills (" + sum + ')');
+        System.out.println("TreeSet: " + (sorted / lookups) + " ns/lookup");
+        System.out.println("Index:   " + (indexed / lookups) + " ns/lookup");
+    }
+
+    /** as formerly in FloodfillPeerSelector */
+    private static List<Hash> selectSorted(List<Hash> ffs, Hash key, int howMany) {
+        TreeSet<Hash> sorted = new TreeSet<Hash>(new XORComparator<Hash>(key));
+        sorted.addAll(ffs);
+        List<Hash> rv = new ArrayList<Hash>(howMany);
+        for (int i = 0; i < howMany && !sorted.isEmpty(); i++) {
+            Hash entry = sorted.first();
+            sorted.remove(entry);
+            rv.add(entry);
+        }
+        return rv;
+    }
+
+    private static List<Hash> selectIndex(FloodfillIndex index, Hash key, int howMany) {
+        List<Hash> rv = new ArrayList<Hash>(howMany);
+        for (Iterator<Hash> iter = index.iterator(key); rv.size() < howMany && iter.hasNext(); ) {
+            rv.add(iter.next());
+        }
+        return rv;
+    }
+
+    private static Hash randomHash(Random rand) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        rand.nextBytes(b);
+        return new Hash(b);
+    }
+}
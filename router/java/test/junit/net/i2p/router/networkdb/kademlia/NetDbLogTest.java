@@ -0,0 +1,223 @@
+package net.i2p.router.networkdb.kademlia;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Certificate;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.data.PublicKey;
+import net.i2p.data.SigningPrivateKey;
+import net.i2p.data.SigningPublicKey;
+import net.i2p.data.SimpleDataStructure;
+import net.i2p.data.router.RouterIdentity;
+import net.i2p.data.router.RouterInfo;
+
+/**
+ *  Reloading the log after a crash or a bad record.
+ *
+ *  @since 0.9.28
+ */
+public class NetDbLogTest {
+    /** magic */
+    private static final int FIRST_RECORD = 8;
+    /** type, hash, published, length */
+    private static final int HEADER_LEN = 1 + Hash.HASH_LENGTH + 8 + 4;
+
+    private static I2PAppContext _context;
+    private static RouterInfo[] _ris;
+    private File _file;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        _context = I2PAppContext.getGlobalContext();
+        _ris = new RouterInfo[4];
+        for (int i = 0; i < _ris.length; i++) {
+            _ris[i] = createRouterInfo();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        _file = File.createTempFile("netDbLogTest", ".log");
+        // NetDbLog writes the magic if it doesn't exist
+        _file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        _file.delete();
+        new File(_file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        writeAll(3);
+        NetDbLog log = open();
+        Map<Hash, byte[]> entries = log.load();
+        log.close();
+        assertLoaded(entries, 0, 1, 2);
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        writeAll(3);
+        NetDbLog log = open();
+        log.load();
+        log.remove(_ris[1].getIdentity().getHash());
+        log.close();
+        log = open();
+        Map<Hash, byte[]> entries = log.load();
+        log.close();
+        assertLoaded(entries, 0, 2);
+    }
+
+    /** a partial record from a crash is truncated, and we can append after it */
+    @Test
+    public void testPartialRecord() throws Exception {
+        writeAll(2);
+        long good = _file.length();
+        RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+        raf.seek(good);
+        raf.write(new byte[] { 1, 2, 3, 4, 5, 6, 7 });
+        raf.close();
+        NetDbLog log = open();
+        Map<Hash, byte[]> entries = log.load();
+        assertLoaded(entries, 0, 1);
+        assertEquals(good, _file.length());
+        log.write(Collections.singletonList(_ris[2]));
+        log.close();
+        log = open();
+        entries = log.load();
+        log.close();
+        assertLoaded(entries, 0, 1, 2);
+    }
+
+    /** a bad type byte in the second record, the ones after it must still be loaded */
+    @Test
+    public void testBadType() throws Exception {
+        writeAll(3);
+        corrupt(getOffset(1), 0x55);
+        NetDbLog log = open();
+        Map<Hash, byte[]> entries = log.load();
+        assertLoaded(entries, 0, 2);
+        log.write(Collections.singletonList(_ris[3]));
+        log.close();
+        log = open();
+        entries = log.load();
+        log.close();
+        assertLoaded(entries, 0, 2, 3);
+    }
+
+    /** a length in the second record that runs into the third */
+    @Test
+    public void testBadLength() throws Exception {
+        writeAll(3);
+        long off = getOffset(1) + 1 + Hash.HASH_LENGTH + 8;
+        RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+        raf.seek(off);
+        raf.writeInt(dataLength(1) + 100);
+        raf.close();
+        NetDbLog log = open();
+        Map<Hash, byte[]> entries = log.load();
+        log.close();
+        assertLoaded(entries, 0, 2);
+    }
+
+    /** a bad byte in the middle of the second RouterIdentity */
+    @Test
+    public void testBadData() throws Exception {
+        writeAll(3);
+        corrupt(getOffset(1) + HEADER_LEN + 100, 0x55);
+        NetDbLog log = open();
+        Map<Hash, byte[]> entries = log.load();
+        log.close();
+        assertLoaded(entries, 0, 2);
+    }
+
+    /** the bad record is the last one, it's truncated */
+    @Test
+    public void testBadLast() throws Exception {
+        writeAll(3);
+        long off = getOffset(2);
+        corrupt(off, 0x55);
+        NetDbLog log = open();
+        Map<Hash, byte[]> entries = log.load();
+        log.close();
+        assertLoaded(entries, 0, 1);
+        assertEquals(off, _file.length());
+    }
+
+    /** one batch per RouterInfo, so they are in order in the file */
+    private void writeAll(int count) throws IOException {
+        NetDbLog log = open();
+        log.load();
+        for (int i = 0; i < count; i++) {
+            assertEquals(1, log.write(Collections.singletonList(_ris[i])));
+        }
+        log.close();
+    }
+
+    private NetDbLog open() throws IOException {
+        return new NetDbLog(_context, _file);
+    }
+
+    private static long getOffset(int idx) {
+        long rv = FIRST_RECORD;
+        for (int i = 0; i < idx; i++) {
+            rv += HEADER_LEN + dataLength(i);
+        }
+        return rv;
+    }
+
+    private static int dataLength(int idx) {
+        return _ris[idx].toByteArray().length;
+    }
+
+    private void corrupt(long off, int val) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+        raf.seek(off);
+        int old = raf.read();
+        raf.seek(off);
+        raf.write(old ^ val);
+        raf.close();
+    }
+
+    private static void assertLoaded(Map<Hash, byte[]> entries, int... idx) {
+        assertEquals(idx.length, entries.size());
+        for (int i : idx) {
+            byte[] data = entries.get(_ris[i].getIdentity().getHash());
+            assertNotNull("missing " + i, data);
+            assertTrue(DataHelper.eq(_ris[i].toByteArray(), data));
+        }
+    }
+
+    private static RouterInfo createRouterInfo() throws Exception {
+        Object keys[] = _context.keyGenerator().generatePKIKeypair();
+        SimpleDataStructure signingKeys[] = _context.keyGenerator().generateSigningKeys();
+        RouterIdentity ident = new RouterIdentity();
+        ident.setCertificate(Certificate.NULL_CERT);
+        ident.setPublicKey((PublicKey) keys[0]);
+        ident.setSigningPublicKey((SigningPublicKey) signingKeys[0]);
+        RouterInfo ri = new RouterInfo();
+        ri.setIdentity(ident);
+        ri.setPublished(_context.clock().now());
+        Properties options = new Properties();
+        options.setProperty("caps", "OR");
+        ri.setOptions(options);
+        ri.sign((SigningPrivateKey) signingKeys[1]);
+        return ri;
+    }
+}
@@ -0,0 +1,195 @@
+package net.i2p.router.peermanager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.data.Hash;
+import net.i2p.router.ClientManagerFacade;
+import net.i2p.router.CommSystemFacade;
+import net.i2p.router.NetworkDatabaseFacade;
+import net.i2p.router.RouterContext;
+import net.i2p.router.dummy.DummyClientManagerFacade;
+import net.i2p.router.dummy.DummyNetworkDatabaseFacade;
+import net.i2p.router.dummy.VMCommSystem;
+import net.i2p.stat.RateStat;
+import net.i2p.stat.StatManager;
+
+/**
+ *  Many threads selecting peers from the ProfileOrganizer tiers,
+ *  as the tunnel builders do, while another thread adds profiles,
+ *  which takes the write lock and republishes the tiers each time.
+ *
+ *  Selection no longer takes the read lock, so the selection rate should
+ *  scale with the threads and not drop when the writer is running.
+ *  The getProfile() threads still take the read lock, their blocked time is
+ *  reported from the peer.profileLockWait stat.
+ *
+ *  No router, so all peers are selectable, and a dummy comm system,
+ *  so no peers are established.
+ *
+ *  Usage: ProfileOrganizerBench [seconds per run] [max threads] [profiles]
+ *
+ *  @since 0.9.28
+ */
+public class ProfileOrganizerBench {
+
+    public static void main(String args[]) throws Exception {
+        final long runTime = 1000L * (args.length > 0 ? Integer.parseInt(args[0]) : 2);
+        final int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int count = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        RouterContext ctx = new BenchContext();
+        ProfileOrganizer organizer = new ProfileOrganizer(ctx);
+        organizer.setUs(Hash.FAKE_HASH);
+        Random rand = new Random(1234);
+        List<Hash> peers = new ArrayList<Hash>(count);
+        for (int i = 0; i < count; i++) {
+            Hash h = randomHash(rand);
+            peers.add(h);
+            organizer.addProfile(new PeerProfile(ctx, h));
+        }
+        System.out.println(organizer.countNotFailingPeers() + " not failing, " +
+                           organizer.countHighCapacityPeers() + " high capacity, " +
+                           (runTime / 1000) + " seconds per run");
+
+        // warmup
+        run(ctx, organizer, peers, 2, runTime / 2, false, false);
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(ctx, organizer, peers, threads, runTime, false, true);
+        }
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(ctx, organizer, peers, threads, runTime, true, true);
+        }
+    }
+
+    /**
+     *  No router, so we can't initAll(), just add the comm system,
+     *  netdb, and client manager that the organizer needs.
+     *  Full stats, and properties may be changed.
+     */
+    static class BenchContext extends RouterContext {
+        private final CommSystemFacade _comm;
+        private final NetworkDatabaseFacade _db;
+        private final ClientManagerFacade _clients;
+
+        public BenchContext() {
+            this(new Properties());
+        }
+
+        /** @param props added to */
+        public BenchContext(Properties props) {
+            super(null, fullStats(props));
+            _comm = new VMCommSystem(this);
+            _db = new DummyNetworkDatabaseFacade(this);
+            _clients = new DummyClientManagerFacade(this);
+        }
+
+        @Override
+        public CommSystemFacade commSystem() { return _comm; }
+
+        @Override
+        public NetworkDatabaseFacade netDb() { return _db; }
+
+        @Override
+        public ClientManagerFacade clientManager() { return _clients; }
+
+        public void setProperty(String name, String value) {
+            _overrideProps.setProperty(name, value);
+        }
+
+        private static Properties fullStats(Properties props) {
+            props.setProperty(StatManager.PROP_STAT_FULL, "true");
+            return props;
+        }
+    }
+
+    private static void run(final RouterContext ctx, final ProfileOrganizer organizer, final List<Hash> peers,
+                            int threads, final long runTime, boolean writer, boolean report) throws InterruptedException {
+        final AtomicLong selections = new AtomicLong();
+        final AtomicLong lookups = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final CountDownLatch doneSignal = new CountDownLatch(threads + (writer ? 1 : 0));
+        RateStat rs = ctx.statManager().getRate("peer.profileLockWait");
+        for (int i = 0; i < threads; i++) {
+            final boolean lookup = (i & 0x01) != 0;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        startSignal.await();
+                    } catch (InterruptedException ie) {}
+                    Random rand = new Random();
+                    Set<Hash> exclude = new HashSet<Hash>();
+                    Set<Hash> matches = new HashSet<Hash>();
+                    long sel = 0;
+                    long look = 0;
+                    long end = System.currentTimeMillis() + runTime;
+                    while (true) {
+                        if ((sel & 0xff) == 0 && System.currentTimeMillis() >= end)
+                            break;
+                        matches.clear();
+                        organizer.selectHighCapacityPeers(3, exclude, matches);
+                        matches.clear();
+                        organizer.selectNotFailingPeers(3, exclude, matches, true);
+                        sel += 2;
+                        if (lookup) {
+                            organizer.getProfile(peers.get(rand.nextInt(peers.size())));
+                            look++;
+                        }
+                    }
+                    selections.addAndGet(sel);
+                    lookups.addAndGet(look);
+                    doneSignal.countDown();
+                }
+            }, "Selector " + i);
+            t.start();
+        }
+        if (writer) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        startSignal.await();
+                    } catch (InterruptedException ie) {}
+                    Random rand = new Random();
+                    long w = 0;
+                    long end = System.currentTimeMillis() + runTime;
+                    while (System.currentTimeMillis() < end) {
+                        organizer.addProfile(new PeerProfile(ctx, peers.get(rand.nextInt(peers.size()))));
+                        w++;
+                    }
+                    writes.addAndGet(w);
+                    doneSignal.countDown();
+                }
+            }, "Writer");
+            t.start();
+        }
+        long waitsBefore = rs.getLifetimeEventCount();
+        double waitBefore = rs.getLifetimeAverageValue() * waitsBefore;
+        long start = System.nanoTime();
+        startSignal.countDown();
+        doneSignal.await();
+        long time = System.nanoTime() - start;
+        if (!report)
+            return;
+        long waits = rs.getLifetimeEventCount() - waitsBefore;
+        double wait = rs.getLifetimeAverageValue() * rs.getLifetimeEventCount() - waitBefore;
+        long sel = selections.get();
+        System.out.println(threads + " threads" + (writer ? " + writer: " : ": ") +
+                           (sel * 1000000000L / time) + " selections/sec, " +
+                           (lookups.get() * 1000000000L / time) + " getProfile()/sec, " +
+                           (writes.get() * 1000000000L / time) + " addProfile()/sec, " +
+                           waits + " blocked reads, " +
+                           "average block " + (waits > 0 ? ((long) wait) / waits : 0) + " ms");
+    }
+
+    static Hash randomHash(Random rand) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        rand.nextBytes(b);
+        return new Hash(b);
+    }
+}
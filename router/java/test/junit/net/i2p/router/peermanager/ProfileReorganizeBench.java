@@ -0,0 +1,108 @@
+package net.i2p.router.peermanager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import net.i2p.data.Hash;
+
+/**
+ *  Compare full and incremental ProfileOrganizer reorganizations,
+ *  with a fraction of the profiles getting new stats before each pass,
+ *  as the ProfileManager does between passes.
+ *
+ *  After the incremental passes, a full reorganization is done and the
+ *  high capacity tier is compared with the one from the last incremental pass.
+ *
+ *  Usage: ProfileReorganizeBench [profiles] [passes] [percent changed]
+ *
+ *  @since 0.9.28
+ */
+public class ProfileReorganizeBench {
+
+    public static void main(String args[]) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int pct = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        ProfileOrganizerBench.BenchContext ctx = new ProfileOrganizerBench.BenchContext();
+        ProfileOrganizer organizer = new ProfileOrganizer(ctx);
+        organizer.setUs(Hash.FAKE_HASH);
+        Random rand = new Random(1234);
+        List<PeerProfile> profiles = new ArrayList<PeerProfile>(count);
+        for (int i = 0; i < count; i++) {
+            PeerProfile prof = new PeerProfile(ctx, ProfileOrganizerBench.randomHash(rand));
+            update(prof, rand);
+            profiles.add(prof);
+            organizer.addProfile(prof);
+        }
+
+        // warmup
+        for (int i = 0; i < 3; i++) {
+            organizer.reorganize(true);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            change(profiles, pct, rand);
+            organizer.reorganize(true);
+        }
+        long full = System.nanoTime() - start;
+        System.out.println(count + " profiles, " + pct + "% changed per pass");
+        System.out.println("Full:        " + (full / (1000 * passes)) + " us/pass, " +
+                           organizer.countHighCapacityPeers() + " high capacity, " +
+                           organizer.countFastPeers() + " fast");
+
+        // the first pass is full
+        ctx.setProperty(ProfileOrganizer.PROP_INCREMENTAL, "true");
+        organizer.reorganize(true);
+        start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            change(profiles, pct, rand);
+            organizer.reorganize(true);
+        }
+        long incr = System.nanoTime() - start;
+        System.out.println("Incremental: " + (incr / (1000 * passes)) + " us/pass, " +
+                           organizer.countHighCapacityPeers() + " high capacity, " +
+                           organizer.countFastPeers() + " fast");
+        double capacity = organizer.getCapacityThreshold();
+        double speed = organizer.getSpeedThreshold();
+        Set<Hash> highCap = new HashSet<Hash>();
+        organizer.selectHighCapacityPeers(organizer.countHighCapacityPeers(), null, highCap);
+
+        ctx.setProperty(ProfileOrganizer.PROP_INCREMENTAL, "false");
+        organizer.reorganize(false);
+        Set<Hash> highCap2 = new HashSet<Hash>();
+        organizer.selectHighCapacityPeers(organizer.countHighCapacityPeers(), null, highCap2);
+        int same = 0;
+        for (Hash h : highCap) {
+            if (highCap2.contains(h))
+                same++;
+        }
+        System.out.println("Capacity threshold incremental " + capacity + " full " + organizer.getCapacityThreshold());
+        System.out.println("Speed threshold incremental " + speed + " full " + organizer.getSpeedThreshold());
+        System.out.println("High capacity: " + same + " of " + highCap2.size() + " the same");
+    }
+
+    private static void change(List<PeerProfile> profiles, int pct, Random rand) {
+        int n = profiles.size() * pct / 100;
+        for (int i = 0; i < n; i++) {
+            PeerProfile prof = profiles.get(rand.nextInt(profiles.size()));
+            update(prof, rand);
+            prof.setChanged();
+        }
+    }
+
+    /** new stats, as the ProfileManager would record them */
+    private static void update(PeerProfile prof, Random rand) {
+        long now = System.currentTimeMillis();
+        prof.setLastHeardFrom(now - rand.nextInt(20*60*1000));
+        prof.setLastSendSuccessful(now - rand.nextInt(20*60*1000));
+        int accepts = rand.nextInt(20);
+        for (int i = 0; i < accepts; i++) {
+            prof.getTunnelCreateResponseTime().addData(100 + rand.nextInt(1000), 0);
+        }
+        prof.setCapacityBonus(rand.nextInt(40) - 10);
+        prof.setSpeedBonus(rand.nextInt(100000));
+    }
+}
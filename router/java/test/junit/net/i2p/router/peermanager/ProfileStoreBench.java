@@ -0,0 +1,178 @@
+package net.i2p.router.peermanager;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import net.i2p.data.Hash;
+import net.i2p.util.FileUtil;
+
+/**
+ *  Compare storing and loading profiles as gzipped text files
+ *  with the single-file ProfileStore, in a temporary router directory.
+ *
+ *  The text files are imported into the store, as at the first startup
+ *  with router.profileStore=true, and the profiles are compared after each load.
+ *  At the end the store is exported back to files.
+ *
+ *  Usage: ProfileStoreBench [profiles] [passes]
+ *
+ *  @since 0.9.28
+ */
+public class ProfileStoreBench {
+
+    public static void main(String args[]) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "profilestorebench-" + System.currentTimeMillis());
+        Properties props = new Properties();
+        props.setProperty("i2p.dir.router", dir.getAbsolutePath());
+        StoreContext ctx = new StoreContext(props);
+        try {
+            run(ctx, count, passes);
+        } finally {
+            ctx.logManager().shutdown();
+            FileUtil.rmdir(dir, false);
+        }
+    }
+
+    private static void run(StoreContext ctx, int count, int passes) {
+        Random rand = new Random(1234);
+        Map<Hash, PeerProfile> profiles = new HashMap<Hash, PeerProfile>(count);
+        for (int i = 0; i < count; i++) {
+            PeerProfile prof = new PeerProfile(ctx, ProfileOrganizerBench.randomHash(rand));
+            update(ctx, prof, rand, (i % 4) == 0);
+            profiles.put(prof.getPeer(), prof);
+        }
+        System.out.println(count + " profiles, " + (count / 4) + " with DB history");
+
+        ProfilePersistenceHelper files = new ProfilePersistenceHelper(ctx);
+        long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            for (PeerProfile prof : profiles.values()) {
+                files.writeProfile(prof);
+            }
+        }
+        long time = System.nanoTime() - start;
+        System.out.println("Files: store " + (time / (1000L * count * passes)) + " us/profile");
+        start = System.nanoTime();
+        Set<PeerProfile> loaded = files.readProfiles();
+        time = System.nanoTime() - start;
+        System.out.println("Files: load " + (time / (1000L * count)) + " us/profile");
+        check(profiles, loaded);
+
+        ctx.setProperty(ProfilePersistenceHelper.PROP_PROFILE_STORE, "true");
+        ProfilePersistenceHelper store = new ProfilePersistenceHelper(ctx);
+        start = System.nanoTime();
+        loaded = store.readProfiles();
+        time = System.nanoTime() - start;
+        System.out.println("Import files into the store: " + (time / (1000L * count)) + " us/profile");
+        check(profiles, loaded);
+        start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            for (PeerProfile prof : profiles.values()) {
+                store.writeProfile(prof);
+            }
+        }
+        time = System.nanoTime() - start;
+        System.out.println("Store: store " + (time / (1000L * count * passes)) + " us/profile");
+        // a new helper, as at startup
+        store = new ProfilePersistenceHelper(ctx);
+        start = System.nanoTime();
+        loaded = store.readProfiles();
+        time = System.nanoTime() - start;
+        System.out.println("Store: load " + (time / (1000L * count)) + " us/profile");
+        check(profiles, loaded);
+
+        ctx.setProperty(ProfilePersistenceHelper.PROP_PROFILE_STORE, "false");
+        files = new ProfilePersistenceHelper(ctx);
+        loaded = files.readProfiles();
+        System.out.println("Exported the store back to files");
+        check(profiles, loaded);
+    }
+
+    /** as the ProfileManager would record them */
+    private static void update(StoreContext ctx, PeerProfile prof, Random rand, boolean db) {
+        long now = ctx.clock().now();
+        prof.setFirstHeardAbout(now - 24*60*60*1000 - rand.nextInt(20*60*1000));
+        prof.setLastHeardAbout(now - rand.nextInt(20*60*1000));
+        prof.setLastHeardFrom(now - rand.nextInt(20*60*1000));
+        prof.setLastSendSuccessful(now - rand.nextInt(20*60*1000));
+        prof.setCapacityBonus(rand.nextInt(40) - 10);
+        prof.setSpeedBonus(rand.nextInt(100000));
+        int accepts = 1 + rand.nextInt(20);
+        for (int i = 0; i < accepts; i++) {
+            prof.getTunnelCreateResponseTime().addData(100 + rand.nextInt(1000), 0);
+            prof.getTunnelHistory().incrementAgreedTo();
+        }
+        prof.getTunnelHistory().incrementRejected(rand.nextInt(4) * 10);
+        if (db) {
+            prof.expandDBProfile();
+            prof.getDBHistory().lookupSuccessful();
+            prof.getDbResponseTime().addData(100 + rand.nextInt(1000), 0);
+            prof.getDbIntroduction().addData(rand.nextInt(5), 0);
+        }
+    }
+
+    private static void check(Map<Hash, PeerProfile> profiles, Set<PeerProfile> loaded) {
+        if (loaded.size() != profiles.size())
+            throw new RuntimeException("Loaded " + loaded.size() + " of " + profiles.size());
+        for (PeerProfile p : loaded) {
+            PeerProfile o = profiles.get(p.getPeer());
+            if (o == null)
+                throw new RuntimeException("Unknown profile " + p.getPeer());
+            String diff = diff(p, o);
+            if (diff != null)
+                throw new RuntimeException("Mismatch for " + p.getPeer() + ": " + diff);
+        }
+        System.out.println("Loaded " + loaded.size() + " profiles, all match");
+    }
+
+    /** @return the first field that differs, or null */
+    private static String diff(PeerProfile p, PeerProfile o) {
+        if (p.getSpeedBonus() != o.getSpeedBonus())
+            return "speedBonus";
+        if (p.getCapacityBonus() != o.getCapacityBonus())
+            return "capacityBonus";
+        if (p.getLastHeardFrom() != o.getLastHeardFrom())
+            return "lastHeardFrom";
+        if (p.getLastSendSuccessful() != o.getLastSendSuccessful())
+            return "lastSendSuccessful";
+        if (p.getTunnelHistory().getLifetimeAgreedTo() != o.getTunnelHistory().getLifetimeAgreedTo())
+            return "lifetimeAgreedTo";
+        if (p.getTunnelHistory().getLastRejectedCritical() != o.getTunnelHistory().getLastRejectedCritical())
+            return "lastRejectedCritical";
+        if (p.getTunnelCreateResponseTime().getLifetimeEventCount() != o.getTunnelCreateResponseTime().getLifetimeEventCount())
+            return "tunnelCreateResponseTime events";
+        if (p.getTunnelCreateResponseTime().getLifetimeAverageValue() != o.getTunnelCreateResponseTime().getLifetimeAverageValue())
+            return "tunnelCreateResponseTime average";
+        if (p.getIsExpandedDB() != o.getIsExpandedDB())
+            return "expandedDB";
+        if (o.getIsExpandedDB()) {
+            if (p.getDBHistory().getLastLookupSuccessful() != o.getDBHistory().getLastLookupSuccessful())
+                return "lastLookupSuccessful";
+            if (p.getDbResponseTime().getLifetimeEventCount() != o.getDbResponseTime().getLifetimeEventCount())
+                return "dbResponseTime events";
+        }
+        return null;
+    }
+
+    /**
+     *  The persistence helper asks the organizer for the tiers
+     *  when writing text files.
+     */
+    private static class StoreContext extends ProfileOrganizerBench.BenchContext {
+        private final ProfileOrganizer _organizer;
+
+        public StoreContext(Properties props) {
+            super(props);
+            _organizer = new ProfileOrganizer(this);
+        }
+
+        @Override
+        public ProfileOrganizer profileOrganizer() { return _organizer; }
+    }
+}
@@ -0,0 +1,116 @@
+package net.i2p.router.transport;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+
+/**
+ *  Many threads requesting outbound bandwidth from one FIFOBandwidthLimiter,
+ *  as the NTCP Writers and pumpers and the SSU senders do.
+ *
+ *  The first run uses 1 byte requests, so the limit is rarely reached and
+ *  nearly all requests should take the lockless shortcut.
+ *  The second run uses large requests, so the limit is reached and
+ *  requests are queued, and waits for each one to be satisfied, as SSU does.
+ *
+ *  Usage: BandwidthLimiterBench [seconds per run] [max threads]
+ *
+ *  @since 0.9.28
+ */
+public class BandwidthLimiterBench {
+    private static final int KBPS = 16384;
+
+    public static void main(String args[]) throws Exception {
+        final long runTime = 1000L * (args.length > 0 ? Integer.parseInt(args[0]) : 2);
+        final int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        Properties props = new Properties();
+        props.setProperty(FIFOBandwidthRefiller.PROP_INBOUND_BANDWIDTH, Integer.toString(KBPS));
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BANDWIDTH, Integer.toString(KBPS));
+        props.setProperty(FIFOBandwidthRefiller.PROP_INBOUND_BURST_BANDWIDTH, Integer.toString(KBPS));
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BURST_BANDWIDTH, Integer.toString(KBPS));
+        props.setProperty(FIFOBandwidthRefiller.PROP_INBOUND_BANDWIDTH_PEAK, Integer.toString(KBPS));
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BANDWIDTH_PEAK, Integer.toString(KBPS));
+        I2PAppContext ctx = new I2PAppContext(props);
+        FIFOBandwidthLimiter limiter = new FIFOBandwidthLimiter(ctx);
+        // let the refiller fill the bucket
+        Thread.sleep(500);
+
+        System.out.println("Limit " + KBPS + " KBps, " + (runTime / 1000) + " seconds per run");
+        // warmup
+        run(limiter, 2, 1, runTime / 2, false);
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(limiter, threads, 1, runTime, true);
+        }
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(limiter, threads, 1024, runTime, true);
+        }
+        limiter.shutdown();
+    }
+
+    private static void run(final FIFOBandwidthLimiter limiter, int threads, final int size,
+                            final long runTime, boolean report) throws InterruptedException {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong queued = new AtomicLong();
+        final AtomicLong waited = new AtomicLong();
+        final AtomicLong maxWait = new AtomicLong();
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final CountDownLatch doneSignal = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        startSignal.await();
+                    } catch (InterruptedException ie) {}
+                    long req = 0;
+                    long q = 0;
+                    long w = 0;
+                    long max = 0;
+                    long end = System.currentTimeMillis() + runTime;
+                    while (true) {
+                        // don't call currentTimeMillis() every time
+                        if ((req & 0xff) == 0 && System.currentTimeMillis() >= end)
+                            break;
+                        FIFOBandwidthLimiter.Request r = limiter.requestOutbound(size, 0, "bench");
+                        req++;
+                        if (r.getPendingRequested() > 0) {
+                            q++;
+                            long start = System.nanoTime();
+                            while (r.getPendingRequested() > 0) {
+                                r.waitForNextAllocation();
+                            }
+                            long time = System.nanoTime() - start;
+                            w += time;
+                            if (time > max)
+                                max = time;
+                        }
+                    }
+                    requests.addAndGet(req);
+                    queued.addAndGet(q);
+                    waited.addAndGet(w);
+                    synchronized (maxWait) {
+                        if (max > maxWait.get())
+                            maxWait.set(max);
+                    }
+                    doneSignal.countDown();
+                }
+            }, "Requester " + i);
+            t.start();
+        }
+        long start = System.nanoTime();
+        startSignal.countDown();
+        doneSignal.await();
+        long time = System.nanoTime() - start;
+        if (!report)
+            return;
+        long reqs = requests.get();
+        long q = queued.get();
+        System.out.println(threads + " threads, " + size + " byte requests: " +
+                           (reqs * 1000000000L / time) + " requests/sec, " +
+                           (reqs * size * 1000000000L / (1024 * time)) + " KBps, " +
+                           q + " queued (" + (reqs > 0 ? (q * 1000 / reqs) / 10d : 0) + "%), " +
+                           "average wait " + (q > 0 ? (waited.get() / (1000 * q)) : 0) + " us, " +
+                           "max wait " + (maxWait.get() / 1000000) + " ms");
+    }
+}
@@ -0,0 +1,93 @@
+package net.i2p.router.transport.udp;
+
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.i2p.router.RouterContext;
+
+/**
+ *  Per-packet overhead of the UDPPacket accessors on the receive path,
+ *  without any crypto, single-threaded and with a handoff through a queue
+ *  as between UDPReceiver and PacketHandler.
+ *
+ *  Usage: UDPPacketBench [packets]
+ *
+ *  @since 0.9.28
+ */
+public class UDPPacketBench {
+
+    public static void main(String args[]) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        final RouterContext ctx = new RouterContext(null);
+        final InetAddress addr = InetAddress.getByName("127.0.0.1");
+
+        // warmup
+        runSingle(ctx, addr, count / 5);
+        runHandoff(ctx, addr, count / 5);
+
+        long start = System.nanoTime();
+        long sum = runSingle(ctx, addr, count);
+        long time = System.nanoTime() - start;
+        System.out.println("Single thread: " + count + " packets, " + (time / count) + " ns/packet (" + sum + ')');
+
+        start = System.nanoTime();
+        sum = runHandoff(ctx, addr, count);
+        time = System.nanoTime() - start;
+        System.out.println("Two threads:   " + count + " packets, " + (time / count) + " ns/packet (" + sum + ')');
+        UDPPacket.clearCache();
+    }
+
+    private static long runSingle(RouterContext ctx, InetAddress addr, int count) {
+        long rv = 0;
+        for (int i = 0; i < count; i++) {
+            UDPPacket packet = receive(ctx, addr, i);
+            rv += handle(packet);
+        }
+        return rv;
+    }
+
+    private static long runHandoff(final RouterContext ctx, final InetAddress addr, final int count) throws Exception {
+        final BlockingQueue<UDPPacket> queue = new ArrayBlockingQueue<UDPPacket>(64);
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        queue.put(receive(ctx, addr, i));
+                    }
+                } catch (InterruptedException ie) {}
+            }
+        });
+        producer.start();
+        long rv = 0;
+        for (int i = 0; i < count; i++) {
+            rv += handle(queue.take());
+        }
+        producer.join();
+        return rv;
+    }
+
+    /** as in UDPReceiver */
+    private static UDPPacket receive(RouterContext ctx, InetAddress addr, int i) {
+        UDPPacket packet = UDPPacket.acquire(ctx, true);
+        packet.getPacket().setAddress(addr);
+        packet.getPacket().setPort(1024 + (i & 0xff));
+        packet.getPacket().setLength(64);
+        packet.resetBegin();
+        packet.getRemoteHost();
+        return packet;
+    }
+
+    /** as in PacketHandler */
+    private static long handle(UDPPacket packet) {
+        packet.received();
+        long rv = packet.getPacket().getLength();
+        rv += packet.getBegin() & 0x01;
+        rv += packet.getRemoteHost().getPort();
+        rv += packet.getMarkedType();
+        rv += packet.getPriority();
+        rv += packet.getTimeSinceReceived();
+        packet.release();
+        return rv;
+    }
+}